@@ -0,0 +1,103 @@
+package org.keycloak.broker.spid.bench;
+
+import org.keycloak.broker.provider.AuthenticationRequest;
+import org.keycloak.broker.provider.util.IdentityBrokerState;
+import org.keycloak.broker.spid.SpidIdentityProvider;
+import org.keycloak.broker.spid.SpidIdentityProviderConfig;
+import org.keycloak.broker.spid.tests.support.SpidStubs;
+import org.keycloak.dom.saml.v2.protocol.AuthnContextComparisonType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.protocol.oidc.OIDCLoginProtocol;
+import org.keycloak.saml.validators.DestinationValidator;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link SpidIdentityProvider#performLogin} across the AuthnRequest variants. Run
+ * with {@code mvn -Pbenchmarks test-compile exec:exec}, which also reports the allocation rate
+ * ({@code -prof gc}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpidAuthnRequestBenchmark {
+
+    @Param({"redirect", "post"})
+    public String binding;
+
+    @Param({"false", "true"})
+    public boolean signed;
+
+    @Param({"RSA_SHA256", "RSA_SHA512"})
+    public String signatureAlgorithm;
+
+    @Param({"false", "true"})
+    public boolean loginHint;
+
+    @Param({"false", "true"})
+    public boolean authnContext;
+
+    private KeycloakSession session;
+    private RealmModel realm;
+    private UriInfo uriInfo;
+    private AuthenticationSessionModel authSession;
+    private SpidIdentityProvider provider;
+
+    @Setup
+    public void setup() {
+        KeyPair keyPair = SpidStubs.generateKeyPair();
+        session = SpidStubs.session(SpidStubs.keyManager(keyPair, SpidStubs.generateCertificate(keyPair)));
+        realm = SpidStubs.realm();
+        uriInfo = SpidStubs.uriInfo();
+        authSession = SpidStubs.authenticationSession();
+        if (loginHint) {
+            authSession.setClientNote(OIDCLoginProtocol.LOGIN_HINT_PARAM, "TINIT-RSSMRA80A01H501U");
+        }
+
+        SpidIdentityProviderConfig config = new SpidIdentityProviderConfig();
+        config.setAlias("spid-bench");
+        config.setEnabled(true);
+        config.setEntityId("https://sp.example.org/auth/realms/" + SpidStubs.REALM_ID);
+        config.setSingleSignOnServiceUrl("https://idp.example.org/sso");
+        config.setPostBindingAuthnRequest("post".equals(binding));
+        config.setPostBindingResponse(true);
+        config.setWantAuthnRequestsSigned(signed);
+        config.setSignatureAlgorithm(signatureAlgorithm);
+        config.setLoginHint(loginHint);
+        config.setAttributeConsumingServiceIndex(1);
+        if (authnContext) {
+            config.setAuthnContextComparisonType(AuthnContextComparisonType.MINIMUM);
+            config.setAuthnContextClassRefs("[\"https://www.spid.gov.it/SpidL2\"]");
+        }
+
+        provider = new SpidIdentityProvider(session, config, DestinationValidator.forProtocolMap(null));
+    }
+
+    @Benchmark
+    public Response performLogin() {
+        AuthenticationRequest request = new AuthenticationRequest(session, realm, authSession, null, uriInfo,
+            IdentityBrokerState.decoded("bench-state", "bench-client", "spid-tab"),
+            "https://sp.example.org/auth/realms/" + SpidStubs.REALM_ID + "/broker/spid-bench/endpoint");
+        return provider.performLogin(request);
+    }
+}
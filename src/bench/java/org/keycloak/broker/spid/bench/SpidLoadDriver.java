@@ -0,0 +1,429 @@
+package org.keycloak.broker.spid.bench;
+
+import org.keycloak.broker.spid.metrics.SpidHistogram;
+import org.keycloak.broker.spid.tests.support.FakeSpidIdp;
+import org.keycloak.broker.spid.tests.support.SpidStubs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs concurrent SPID login/logout cycles against a running Keycloak, with {@link FakeSpidIdp}
+ * as the IdP, and reports throughput, latency percentiles and errors by cause.
+ *
+ * Each cycle is a new browser: an OIDC authorization request with {@code kc_idp_hint} that goes
+ * through the SPID provider and the fake IdP up to the client redirect URI, then an IdP-initiated
+ * logout. Errors are reported by the {@code SpidSamlCheck_nr*} or {@code SpidFault_*} code of the
+ * Keycloak error page when there is one, else by HTTP status.
+ *
+ * Setup, once: run with {@code -Dspid.load.serve=true}, import {@code http://<idp>/metadata} in a
+ * SPID identity provider whose first broker login flow does not stop for a profile review, and
+ * register a public client with the redirect URI. The IdP key pair is kept in
+ * {@code target/fake-spid-idp.p12}, so that the imported metadata stays valid across runs. Then:
+ *
+ * <pre>
+ * mvn -Pbenchmarks test-compile exec:exec@load -Dspid.load.url=http://localhost:8080/auth \
+ *     -Dspid.load.realm=spid -Dspid.load.idp=spid-load -Dspid.load.concurrency=32 -Dspid.load.duration=120
+ * </pre>
+ */
+public final class SpidLoadDriver {
+
+    private static final Pattern FORM = Pattern.compile("<form[^>]*action=\"([^\"]*)\"[^>]*>(.*?)</form>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    private static final Pattern INPUT = Pattern.compile("<input[^>]*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ATTRIBUTE = Pattern.compile("(name|value)=\"([^\"]*)\"", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SPID_CODE = Pattern.compile("SpidSamlCheck_nr\\d+|SpidFault_\\w+");
+    private static final int MAX_STEPS = 20;
+
+    private final Map<String, String> options;
+    private final String keycloakUrl;
+    private final String realm;
+    private final String idpAlias;
+    private final String clientId;
+    private final String redirectUri;
+    private final int users;
+    private final AtomicLong nextUser = new AtomicLong();
+    private FakeSpidIdp idp;
+
+    private static final class Stats {
+        private final SpidHistogram loginLatency = new SpidHistogram();
+        private final SpidHistogram logoutLatency = new SpidHistogram();
+        private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+        private final LongAdder cycles = new LongAdder();
+
+        private void error(String cause) {
+            errors.computeIfAbsent(cause, k -> new LongAdder()).increment();
+        }
+    }
+
+    private SpidLoadDriver(Map<String, String> options) {
+        this.options = options;
+        this.keycloakUrl = option("url", "http://localhost:8080/auth");
+        this.realm = option("realm", "spid");
+        this.idpAlias = option("idp", "spid-load");
+        this.clientId = option("client", "spid-load");
+        this.redirectUri = option("redirect-uri", "http://localhost/spid-load/callback");
+        this.users = Integer.parseInt(option("users", "1000"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) continue;
+            int equals = arg.indexOf('=');
+            options.put(equals < 0 ? arg.substring(2) : arg.substring(2, equals), equals < 0 ? "true" : arg.substring(equals + 1));
+        }
+        new SpidLoadDriver(options).run();
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    private void run() throws Exception {
+        int concurrency = Integer.parseInt(option("concurrency", "16"));
+        long durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(option("duration", "60")));
+        long warmupMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(option("warmup", "10")));
+        if (users < concurrency) {
+            // Two virtual users on the same SPID user would log each other out
+            throw new IllegalArgumentException("--users must be at least --concurrency");
+        }
+
+        KeyStore.PrivateKeyEntry idpKey = loadOrCreateKey(new File(option("keystore", "target/fake-spid-idp.p12")));
+        KeyPair keyPair = new KeyPair(idpKey.getCertificate().getPublicKey(), idpKey.getPrivateKey());
+        idp = new FakeSpidIdp(keyPair, (X509Certificate) idpKey.getCertificate())
+            .start(new InetSocketAddress(option("idp-host", "localhost"), Integer.parseInt(option("idp-port", "8089"))), concurrency * 2);
+
+        try {
+            System.out.printf("Fake SPID IdP metadata: %s/metadata%n", idp.getBaseUrl());
+            if (Boolean.parseBoolean(option("serve", "false"))) {
+                System.out.println("Serving until interrupted");
+                Thread.currentThread().join();
+            }
+
+            System.out.printf("Warming up for %d s with %d virtual users%n", TimeUnit.MILLISECONDS.toSeconds(warmupMillis), concurrency);
+            drive(concurrency, warmupMillis, new Stats());
+
+            System.out.printf("Measuring for %d s%n", TimeUnit.MILLISECONDS.toSeconds(durationMillis));
+            Stats stats = new Stats();
+            long start = System.nanoTime();
+            drive(concurrency, durationMillis, stats);
+            report(stats, System.nanoTime() - start);
+        } finally {
+            idp.close();
+        }
+    }
+
+    private void drive(int concurrency, long durationMillis, Stats stats) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + durationMillis;
+        CountDownLatch done = new CountDownLatch(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    while (System.currentTimeMillis() < deadline) {
+                        cycle(String.valueOf(nextUser.getAndIncrement() % users), stats);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }, "spid-load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+    }
+
+    private void cycle(String user, Stats stats) {
+        Browser browser = new Browser(user);
+        try {
+            long start = System.nanoTime();
+            String loginError = login(browser);
+            long loggedIn = System.nanoTime();
+            if (loginError != null) {
+                stats.error("login: " + loginError);
+                return;
+            }
+            stats.loginLatency.record(TimeUnit.NANOSECONDS.toMicros(loggedIn - start));
+
+            String logoutError = logout(browser, user);
+            if (logoutError != null) {
+                stats.error("logout: " + logoutError);
+                return;
+            }
+            stats.logoutLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - loggedIn));
+            stats.cycles.increment();
+        } catch (Exception e) {
+            stats.error(e.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Returns {@code null} once the browser is back at the redirect URI with a code, or the error.
+     */
+    private String login(Browser browser) throws IOException {
+        String url = keycloakUrl + "/realms/" + realm + "/protocol/openid-connect/auth"
+            + "?response_type=code&scope=openid"
+            + "&client_id=" + encode(clientId)
+            + "&redirect_uri=" + encode(redirectUri)
+            + "&kc_idp_hint=" + encode(idpAlias);
+        Page page = browser.get(url);
+
+        for (int step = 0; step < MAX_STEPS; step++) {
+            if (page.location != null) {
+                if (page.location.startsWith(redirectUri)) {
+                    return page.location.contains("code=") ? null : "redirect without code";
+                }
+                page = browser.get(page.location);
+            } else if (page.status == 200 && page.form() != null) {
+                page = browser.submit(page.form());
+            } else {
+                return page.error();
+            }
+        }
+        return "too many redirects";
+    }
+
+    /**
+     * Returns {@code null} once the IdP has received the LogoutResponse of Keycloak, or the error.
+     */
+    private String logout(Browser browser, String user) throws IOException {
+        Page page = browser.get(idp.getBaseUrl() + "/logout?" + FakeSpidIdp.USER_PARAM + "=" + user);
+
+        for (int step = 0; step < MAX_STEPS; step++) {
+            if (page.location != null) {
+                page = browser.get(page.location);
+            } else if (page.status == 200 && page.body.contains(FakeSpidIdp.LOGGED_OUT)) {
+                return null;
+            } else if (page.status == 200 && page.form() != null) {
+                page = browser.submit(page.form());
+            } else {
+                return page.error();
+            }
+        }
+        return "too many redirects";
+    }
+
+    private static void report(Stats stats, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long completed = stats.cycles.sum();
+        long failed = stats.errors.values().stream().mapToLong(LongAdder::sum).sum();
+
+        System.out.println();
+        System.out.printf("Cycles:      %d completed, %d failed in %.1f s%n", completed, failed, seconds);
+        System.out.printf("Throughput:  %.1f cycles/s%n", completed / seconds);
+        printLatency("Login", stats.loginLatency);
+        printLatency("Logout", stats.logoutLatency);
+        if (!stats.errors.isEmpty()) {
+            System.out.println("Errors:");
+            Map<String, Long> sorted = new TreeMap<>();
+            stats.errors.forEach((cause, count) -> sorted.put(cause, count.sum()));
+            sorted.forEach((cause, count) -> System.out.printf("  %-50s %d%n", cause, count));
+        }
+    }
+
+    private static void printLatency(String name, SpidHistogram histogram) {
+        System.out.printf("%-12s p50 %.1f ms, p99 %.1f ms, max %.1f ms (%d samples)%n", name + ":",
+            histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+            histogram.getMax() / 1000.0, histogram.getCount());
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static KeyStore.PrivateKeyEntry loadOrCreateKey(File file) throws Exception {
+        char[] password = "fake-spid-idp".toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                keyStore.load(in, password);
+            }
+        } else {
+            KeyPair keyPair = SpidStubs.generateKeyPair();
+            X509Certificate certificate = SpidStubs.generateCertificate(keyPair);
+            keyStore.load(null, password);
+            keyStore.setKeyEntry("idp", keyPair.getPrivate(), password, new Certificate[] { certificate });
+            if (file.getParentFile() != null) file.getParentFile().mkdirs();
+            try (OutputStream out = new FileOutputStream(file)) {
+                keyStore.store(out, password);
+            }
+        }
+        Key key = keyStore.getKey("idp", password);
+        return new KeyStore.PrivateKeyEntry((PrivateKey) key, keyStore.getCertificateChain("idp"));
+    }
+
+    private static final class Form {
+        private final String action;
+        private final Map<String, String> fields;
+
+        private Form(String action, Map<String, String> fields) {
+            this.action = action;
+            this.fields = fields;
+        }
+    }
+
+    private static final class Page {
+        private final URI uri;
+        private final int status;
+        private final String location;
+        private final String body;
+
+        private Page(URI uri, int status, String location, String body) {
+            this.uri = uri;
+            this.status = status;
+            this.location = location != null ? uri.resolve(location).toString() : null;
+            this.body = body;
+        }
+
+        private Form form() {
+            Matcher form = FORM.matcher(body);
+            if (!form.find()) return null;
+
+            Map<String, String> fields = new LinkedHashMap<>();
+            Matcher input = INPUT.matcher(form.group(2));
+            while (input.find()) {
+                String name = null;
+                String value = "";
+                Matcher attribute = ATTRIBUTE.matcher(input.group());
+                while (attribute.find()) {
+                    if ("name".equalsIgnoreCase(attribute.group(1))) name = unescape(attribute.group(2));
+                    else value = unescape(attribute.group(2));
+                }
+                if (name != null) fields.put(name, value);
+            }
+            if (!fields.containsKey("SAMLRequest") && !fields.containsKey("SAMLResponse")) return null;
+            return new Form(uri.resolve(unescape(form.group(1))).toString(), fields);
+        }
+
+        private String error() {
+            Matcher code = SPID_CODE.matcher(body);
+            if (code.find()) return code.group();
+            return "HTTP " + status + (status == 200 ? " unexpected page" : "");
+        }
+
+        private static String unescape(String value) {
+            return value.replace("&quot;", "\"").replace("&lt;", "<").replace("&gt;", ">").replace("&#x3D;", "=").replace("&amp;", "&");
+        }
+    }
+
+    /**
+     * A cookie-keeping browser that does not follow redirects, so that each hop can be inspected.
+     */
+    private final class Browser {
+        private final String user;
+        private final Map<String, Map<String, String>> cookies = new HashMap<>();
+
+        private Browser(String user) {
+            this.user = user;
+        }
+
+        private Page get(String url) throws IOException {
+            return send("GET", withUser(url), null);
+        }
+
+        private Page submit(Form form) throws IOException {
+            StringBuilder body = new StringBuilder();
+            for (Map.Entry<String, String> field : form.fields.entrySet()) {
+                if (body.length() > 0) body.append('&');
+                body.append(encode(field.getKey())).append('=').append(encode(field.getValue()));
+            }
+            return send("POST", withUser(form.action), body.toString());
+        }
+
+        /**
+         * The user logs in on the fake IdP by telling who they are.
+         */
+        private String withUser(String url) {
+            if (!url.startsWith(idp.getBaseUrl() + "/sso")) return url;
+            return url + (url.contains("?") ? "&" : "?") + FakeSpidIdp.USER_PARAM + "=" + user;
+        }
+
+        private Page send(String method, String url, String form) throws IOException {
+            URI uri = URI.create(url);
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(10_000);
+            connection.setReadTimeout(30_000);
+            connection.setRequestMethod(method);
+
+            Map<String, String> jar = cookies.computeIfAbsent(uri.getAuthority(), k -> new LinkedHashMap<>());
+            if (!jar.isEmpty()) {
+                StringBuilder header = new StringBuilder();
+                jar.forEach((name, value) -> header.append(header.length() > 0 ? "; " : "").append(name).append('=').append(value));
+                connection.setRequestProperty("Cookie", header.toString());
+            }
+            if (form != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(form.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+
+            int status = connection.getResponseCode();
+            List<String> setCookies = connection.getHeaderFields().get("Set-Cookie");
+            if (setCookies != null) {
+                for (String setCookie : setCookies) {
+                    String[] parts = setCookie.split(";", 2);
+                    int equals = parts[0].indexOf('=');
+                    if (equals <= 0) continue;
+
+                    String name = parts[0].substring(0, equals).trim();
+                    String value = parts[0].substring(equals + 1).trim();
+                    boolean expired = parts.length > 1 && parts[1].toLowerCase().contains("max-age=0");
+                    if (value.isEmpty() || expired) jar.remove(name);
+                    else jar.put(name, value);
+                }
+            }
+
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            String body = "";
+            if (in != null) {
+                try (InputStream stream = in) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[8192];
+                    for (int read; (read = stream.read(buffer)) > 0; ) {
+                        out.write(buffer, 0, read);
+                    }
+                    body = new String(out.toByteArray(), StandardCharsets.UTF_8);
+                }
+            }
+            String location = status >= 300 && status < 400 ? connection.getHeaderField("Location") : null;
+            return new Page(uri, status, location, body);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.keycloak.broker.spid.bench;
+
+import org.keycloak.broker.provider.IdentityProviderMapper;
+import org.keycloak.broker.saml.mappers.UserAttributeMapper;
+import org.keycloak.broker.spid.SpidIdentityProvider;
+import org.keycloak.broker.spid.SpidIdentityProviderConfig;
+import org.keycloak.broker.spid.SpidIdentityProviderFactory;
+import org.keycloak.broker.spid.mappers.SpidUserAttributeMapper;
+import org.keycloak.broker.spid.metadata.SpidSpMetadataResourceProvider;
+import org.keycloak.broker.spid.tests.support.SpidResponseGenerator;
+import org.keycloak.broker.spid.tests.support.SpidStubs;
+import org.keycloak.crypto.KeyStatus;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.ws.rs.core.Response;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of SP metadata generation: the aggregated metadata of the realm
+ * ({@link SpidSpMetadataResourceProvider#get}) and the metadata of a single IdP
+ * ({@link SpidIdentityProvider#export}), by number of SPID IdPs, realm keys and attribute mappers,
+ * with and without signing. Run with
+ * {@code mvn -Pbenchmarks test-compile exec:exec -Djmh.include=SpidMetadata}; the bytes allocated
+ * per generation are reported as {@code gc.alloc.rate.norm}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpidMetadataBenchmark {
+
+    @Param({"1", "12"})
+    public int idps;
+
+    @Param({"1", "4"})
+    public int keys;
+
+    @Param({"0", "17"})
+    public int mappers;
+
+    @Param({"false", "true"})
+    public boolean signed;
+
+    private KeycloakSession session;
+    private RealmModel realm;
+    private SpidSpMetadataResourceProvider resourceProvider;
+    private SpidIdentityProviderFactory factory;
+    private IdentityProviderModel firstIdp;
+
+    @Setup
+    public void setup() {
+        KeyPair keyPair = SpidStubs.generateKeyPair();
+        List<KeyWrapper> otherKeys = new ArrayList<>();
+        for (int i = 1; i < keys; i++) {
+            KeyPair otherKeyPair = SpidStubs.generateKeyPair();
+            otherKeys.add(SpidStubs.rsaKey("spid-stub-kid-" + i, otherKeyPair, SpidStubs.generateCertificate(otherKeyPair), KeyStatus.PASSIVE));
+        }
+
+        List<IdentityProviderModel> identityProviders = new ArrayList<>();
+        for (int i = 0; i < idps; i++) {
+            identityProviders.add(identityProvider(String.format("spid-idp-%02d", i)));
+        }
+        firstIdp = identityProviders.get(0);
+
+        // One mapper per SPID attribute, all of them on the first IdP which drives the metadata
+        List<IdentityProviderMapperModel> mapperModels = new ArrayList<>();
+        List<String> attributeNames = new ArrayList<>(SpidResponseGenerator.SPID_ATTRIBUTES.keySet());
+        for (int i = 0; i < mappers; i++) {
+            mapperModels.add(mapper(firstIdp.getAlias(), attributeNames.get(i % attributeNames.size()), i));
+        }
+
+        realm = SpidStubs.realm(identityProviders, mapperModels);
+        List<IdentityProviderMapper> mapperFactories = Collections.singletonList(new SpidUserAttributeMapper());
+        session = SpidStubs.session(SpidStubs.keyManager(keyPair, SpidStubs.generateCertificate(keyPair), otherKeys), realm, mapperFactories);
+        factory = SpidIdentityProviderFactory.get(session);
+        resourceProvider = new SpidSpMetadataResourceProvider(session);
+    }
+
+    private IdentityProviderModel identityProvider(String alias) {
+        SpidIdentityProviderConfig config = new SpidIdentityProviderConfig();
+        config.setAlias(alias);
+        config.setInternalId(alias);
+        config.setProviderId(SpidIdentityProviderFactory.PROVIDER_ID);
+        config.setEnabled(true);
+        config.setEntityId("https://sp.example.org/auth/realms/" + SpidStubs.REALM_ID);
+        config.setSingleSignOnServiceUrl("https://" + alias + ".example.org/sso");
+        config.setSingleLogoutServiceUrl("https://" + alias + ".example.org/slo");
+        config.setNameIDPolicyFormat(JBossSAMLURIConstants.NAMEID_FORMAT_TRANSIENT.get());
+        config.setWantAuthnRequestsSigned(true);
+        config.setWantAssertionsSigned(true);
+        config.setSignSpMetadata(signed);
+        config.setSignatureAlgorithm("RSA_SHA256");
+        config.setAttributeConsumingServiceIndex(1);
+        config.setAttributeConsumingServiceName("it|Servizio di test,en|Test service");
+        config.setOrganizationNames("it|Ente di test,en|Test body");
+        config.setOrganizationDisplayNames("it|Ente,en|Body");
+        config.setOrganizationUrls("it|https://www.example.org/it,en|https://www.example.org/en");
+        config.setIpaCode("c_h501");
+        config.setOtherContactEmail("spid@example.org");
+        config.setOtherContactPhone("+390612345678");
+        return config;
+    }
+
+    private IdentityProviderMapperModel mapper(String alias, String attributeName, int index) {
+        Map<String, String> config = new HashMap<>();
+        config.put(UserAttributeMapper.ATTRIBUTE_NAME, attributeName);
+        config.put(UserAttributeMapper.ATTRIBUTE_NAME_FORMAT, JBossSAMLURIConstants.ATTRIBUTE_FORMAT_BASIC.name());
+        config.put(UserAttributeMapper.USER_ATTRIBUTE, attributeName);
+
+        IdentityProviderMapperModel mapper = new IdentityProviderMapperModel();
+        mapper.setId("mapper-" + index);
+        mapper.setName(attributeName + "-" + index);
+        mapper.setIdentityProviderAlias(alias);
+        mapper.setIdentityProviderMapper(SpidUserAttributeMapper.PROVIDER_ID);
+        mapper.setConfig(config);
+        return mapper;
+    }
+
+    /**
+     * The aggregated metadata, as served at {@code /realms/{realm}/spid-sp-metadata}.
+     */
+    @Benchmark
+    public Response aggregatedMetadata() {
+        return resourceProvider.get();
+    }
+
+    /**
+     * The metadata of one IdP, as served at {@code /realms/{realm}/broker/{alias}/endpoint/descriptor}.
+     */
+    @Benchmark
+    public Response export() {
+        SpidIdentityProvider provider = factory.create(session, firstIdp);
+        return provider.export(session.getContext().getUri(), realm, null);
+    }
+}
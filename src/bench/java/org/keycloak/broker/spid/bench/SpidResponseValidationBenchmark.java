@@ -0,0 +1,225 @@
+package org.keycloak.broker.spid.bench;
+
+import org.keycloak.broker.spid.SpidResponseValidator;
+import org.keycloak.broker.spid.tests.support.SpidResponseGenerator;
+import org.keycloak.broker.spid.tests.support.SpidStubs;
+import org.keycloak.common.VerificationException;
+import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
+import org.keycloak.dom.saml.v2.protocol.ResponseType;
+import org.keycloak.protocol.saml.SamlProtocolUtils;
+import org.keycloak.rotation.HardcodedKeyLocator;
+import org.keycloak.rotation.KeyLocator;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+import org.keycloak.saml.common.util.DocumentUtil;
+import org.keycloak.saml.processing.api.saml.v2.request.SAMLRequestParser;
+import org.keycloak.saml.processing.core.saml.v2.common.SAMLDocumentHolder;
+import org.keycloak.saml.processing.core.saml.v2.util.AssertionUtil;
+import org.keycloak.saml.processing.web.util.PostBindingUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+
+import javax.xml.namespace.QName;
+
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of each stage of the SPID login response pipeline of {@code SpidSAMLEndpoint}: decode,
+ * parse, signature verification, decryption, the SPID checks and attribute extraction. Run with
+ * {@code mvn -Pbenchmarks test-compile exec:exec -Djmh.include=SpidResponseValidation}.
+ *
+ * Besides the responses of a well-behaved IdP, the parameters cover adversarial ones: many
+ * certificates in the signatures and candidate keys in the locator, huge attribute values and
+ * deeply nested extensions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpidResponseValidationBenchmark {
+
+    @Param({"response", "assertion", "both"})
+    public String signedAt;
+
+    @Param({"false", "true"})
+    public boolean encrypted;
+
+    @Param({"1", "20"})
+    public int certificates;
+
+    @Param({"0", "65536"})
+    public int attributeValueSize;
+
+    @Param({"0", "512"})
+    public int nestingDepth;
+
+    private KeyPair encryptionKeys;
+    private KeyLocator keyLocator;
+    private String requestId;
+    private String encoded;
+    private byte[] decoded;
+    private SAMLDocumentHolder holder;
+    private SAMLDocumentHolder decryptedHolder;
+    private Element assertionElement;
+    private AssertionType assertion;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyPair signingKeys = SpidStubs.generateKeyPair();
+        encryptionKeys = SpidStubs.generateKeyPair();
+
+        // The extra certificates are both sent by the IdP and known to the SP, as when it
+        // publishes many signing keys in its metadata; the right key comes last
+        List<X509Certificate> extraCertificates = new ArrayList<>();
+        List<Key> candidateKeys = new ArrayList<>();
+        for (int i = 1; i < certificates; i++) {
+            KeyPair keyPair = SpidStubs.generateKeyPair();
+            extraCertificates.add(SpidStubs.generateCertificate(keyPair));
+            candidateKeys.add(keyPair.getPublic());
+        }
+        candidateKeys.add(signingKeys.getPublic());
+        keyLocator = new HardcodedKeyLocator(candidateKeys);
+
+        SpidResponseGenerator generator = new SpidResponseGenerator(signingKeys, SpidStubs.generateCertificate(signingKeys))
+            .signResponse(!"assertion".equals(signedAt))
+            .signAssertion(!"response".equals(signedAt))
+            .encryptFor(encrypted ? encryptionKeys.getPublic() : null)
+            .extraCertificates(extraCertificates)
+            .attributeValueSize(attributeValueSize)
+            .nestingDepth(nestingDepth);
+        requestId = generator.getRequestId();
+        encoded = generator.generateEncoded();
+
+        decoded = decode();
+        holder = parse();
+
+        // Decryption rewrites the document, whose signature is verified on the original one
+        decryptedHolder = parse();
+        ResponseType response = (ResponseType) decryptedHolder.getSamlObject();
+        assertionElement = encrypted
+            ? AssertionUtil.decryptAssertion(decryptedHolder, response, encryptionKeys.getPrivate())
+            : assertionElement(decryptedHolder);
+        assertion = response.getAssertions().get(0).getAssertion();
+        if (SpidResponseValidator.verify(decryptedHolder.getSamlDocument().getDocumentElement(), assertionElement, requestId) != null) {
+            throw new IllegalStateException("The generated response does not pass the SPID checks");
+        }
+    }
+
+    /**
+     * Decryption writes the assertion back into the parsed response, so it needs a fresh one for
+     * every invocation.
+     */
+    @State(Scope.Thread)
+    public static class Decryption {
+
+        private SAMLDocumentHolder holder;
+
+        @Setup(Level.Invocation)
+        public void parse(SpidResponseValidationBenchmark benchmark) throws Exception {
+            holder = SAMLRequestParser.parseResponseDocument(benchmark.decoded);
+        }
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return PostBindingUtil.base64Decode(encoded);
+    }
+
+    @Benchmark
+    public SAMLDocumentHolder parse() {
+        return SAMLRequestParser.parseResponseDocument(decoded);
+    }
+
+    @Benchmark
+    public boolean verifySignatures() throws Exception {
+        boolean valid = true;
+        if (!"assertion".equals(signedAt)) {
+            try {
+                SamlProtocolUtils.verifyDocumentSignature(holder.getSamlDocument(), keyLocator);
+            } catch (VerificationException e) {
+                valid = false;
+            }
+        }
+        if (!"response".equals(signedAt)) {
+            valid &= AssertionUtil.isSignatureValid(assertionElement, keyLocator);
+        }
+        return valid;
+    }
+
+    @Benchmark
+    public Element decrypt(Decryption decryption) throws Exception {
+        if (!encrypted) return assertionElement(decryption.holder);
+        return AssertionUtil.decryptAssertion(decryption.holder, (ResponseType) decryption.holder.getSamlObject(), encryptionKeys.getPrivate());
+    }
+
+    @Benchmark
+    public String spidChecks() {
+        return SpidResponseValidator.verify(decryptedHolder.getSamlDocument().getDocumentElement(), assertionElement, requestId);
+    }
+
+    @Benchmark
+    public Map<String, List<Object>> extractAttributes() {
+        Map<String, List<Object>> attributes = new HashMap<>();
+        for (AttributeStatementType statement : assertion.getAttributeStatements()) {
+            for (AttributeStatementType.ASTChoiceType choice : statement.getAttributes()) {
+                AttributeType attribute = choice.getAttribute();
+                attributes.put(attribute.getName(), attribute.getAttributeValue());
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * The whole pipeline, from the form parameter to the attributes.
+     */
+    @Benchmark
+    public Map<String, List<Object>> pipeline() throws Exception {
+        SAMLDocumentHolder documentHolder = SAMLRequestParser.parseResponseDocument(PostBindingUtil.base64Decode(encoded));
+        ResponseType response = (ResponseType) documentHolder.getSamlObject();
+        if (!"assertion".equals(signedAt)) {
+            SamlProtocolUtils.verifyDocumentSignature(documentHolder.getSamlDocument(), keyLocator);
+        }
+        Element element = encrypted
+            ? AssertionUtil.decryptAssertion(documentHolder, response, encryptionKeys.getPrivate())
+            : assertionElement(documentHolder);
+        if (SpidResponseValidator.verify(documentHolder.getSamlDocument().getDocumentElement(), element, requestId) != null) {
+            throw new IllegalStateException("SPID checks failed");
+        }
+        if (!"response".equals(signedAt) && !AssertionUtil.isSignatureValid(element, keyLocator)) {
+            throw new IllegalStateException("Invalid assertion signature");
+        }
+
+        Map<String, List<Object>> attributes = new HashMap<>();
+        for (AttributeStatementType statement : response.getAssertions().get(0).getAssertion().getAttributeStatements()) {
+            for (AttributeStatementType.ASTChoiceType choice : statement.getAttributes()) {
+                attributes.put(choice.getAttribute().getName(), choice.getAttribute().getAttributeValue());
+            }
+        }
+        return attributes;
+    }
+
+    private static Element assertionElement(SAMLDocumentHolder holder) {
+        return DocumentUtil.getElement(holder.getSamlDocument(), new QName(JBossSAMLURIConstants.ASSERTION_NSURI.get(), "Assertion"));
+    }
+}
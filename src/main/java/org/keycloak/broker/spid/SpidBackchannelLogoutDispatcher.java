@@ -0,0 +1,320 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.httpclient.HttpClientProvider;
+import org.keycloak.models.KeycloakSession;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Delivers SAML LogoutRequests to the SLO endpoint of SPID IdPs in the background.
+ *
+ * Requests are signed and encoded by the caller and queued here, so that Keycloak-initiated logout
+ * does not wait for the IdP. The queue is bounded: when it is full the request is dropped and
+ * counted. Deliveries failing with an I/O error, a 5xx or a 429 status are retried with exponential
+ * backoff; other statuses are final.
+ *
+ * Requests go through the HTTP client of the Keycloak {@link HttpClientProvider}, so that its proxy
+ * mappings, truststore, client keystore and hostname verification policy apply, and its pooled
+ * connections are reused.
+ */
+public class SpidBackchannelLogoutDispatcher {
+    protected static final Logger logger = Logger.getLogger(SpidBackchannelLogoutDispatcher.class);
+
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 2000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 5000;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_BACKOFF_MILLIS = 500;
+
+    private final RequestConfig requestConfig;
+    private final int maxRetries;
+    private final long retryBackoffMillis;
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService retryScheduler;
+
+    private volatile CloseableHttpClient httpClient;
+    private CloseableHttpClient ownHttpClient;
+
+    /**
+     * Final outcome of a queued LogoutRequest.
+     */
+    public enum Outcome {
+        DELIVERED("delivered"),
+        FAILED("failed"),
+        DROPPED("dropped");
+
+        private final String name;
+
+        Outcome(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public SpidBackchannelLogoutDispatcher(int queueSize, int threads, int connectTimeoutMillis, int readTimeoutMillis,
+                                           int maxRetries, long retryBackoffMillis) {
+        this.requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeoutMillis)
+            .setSocketTimeout(readTimeoutMillis)
+            .setRedirectsEnabled(false)
+            .build();
+        this.maxRetries = maxRetries;
+        this.retryBackoffMillis = retryBackoffMillis;
+
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueSize), daemonThreadFactory("spid-backchannel-logout"),
+            new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("spid-backchannel-logout-retry"));
+    }
+
+    public static SpidBackchannelLogoutDispatcher defaults() {
+        return new SpidBackchannelLogoutDispatcher(DEFAULT_QUEUE_SIZE, DEFAULT_THREADS, DEFAULT_CONNECT_TIMEOUT_MILLIS,
+            DEFAULT_READ_TIMEOUT_MILLIS, DEFAULT_MAX_RETRIES, DEFAULT_RETRY_BACKOFF_MILLIS);
+    }
+
+    private static ThreadFactory daemonThreadFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Sends the requests of the dispatcher through the HTTP client of the Keycloak
+     * {@link HttpClientProvider} of the given session. The client is shared by the sessions and
+     * outlives the given one.
+     */
+    public void useHttpClient(KeycloakSession session) {
+        HttpClientProvider httpClientProvider = session.getProvider(HttpClientProvider.class);
+        if (httpClientProvider != null) {
+            httpClient = httpClientProvider.getHttpClient();
+        }
+    }
+
+    /**
+     * Queues a LogoutRequest, sent through the Keycloak HTTP client of the given session.
+     *
+     * @return {@code false} if the queue is full and the request has been dropped
+     */
+    public boolean enqueue(KeycloakSession session, String url, Map<String, String> formParams, Consumer<Outcome> onOutcome) {
+        if (httpClient == null) {
+            useHttpClient(session);
+        }
+        return enqueue(url, formParams, onOutcome);
+    }
+
+    /**
+     * Queues a LogoutRequest.
+     *
+     * @param onOutcome notified of the final outcome of the request, from a background thread if
+     *                  the request was not dropped; may be {@code null}
+     * @return {@code false} if the queue is full and the request has been dropped
+     */
+    public boolean enqueue(String url, Map<String, String> formParams, Consumer<Outcome> onOutcome) {
+        byte[] body = encodeForm(formParams);
+        enqueued.increment();
+        return submit(url, body, 0, onOutcome);
+    }
+
+    private boolean submit(String url, byte[] body, int attempt, Consumer<Outcome> onOutcome) {
+        try {
+            executor.execute(() -> deliver(url, body, attempt, onOutcome));
+            return true;
+        } catch (RejectedExecutionException e) {
+            dropped.increment();
+            logger.warnf("SPID backchannel logout queue full, dropping logout request to: %s", url);
+            notify(onOutcome, Outcome.DROPPED);
+            return false;
+        }
+    }
+
+    private static void notify(Consumer<Outcome> onOutcome, Outcome outcome) {
+        if (onOutcome == null) return;
+        try {
+            onOutcome.accept(outcome);
+        } catch (RuntimeException e) {
+            logger.debug("Failed to report SPID backchannel logout outcome", e);
+        }
+    }
+
+    private void deliver(String url, byte[] body, int attempt, Consumer<Outcome> onOutcome) {
+        int status = -1;
+        try {
+            status = post(url, body);
+        } catch (IOException e) {
+            logger.debugf(e, "Failed saml backchannel broker logout to: %s", url);
+        }
+
+        if (status >= 200 && status < 400) {
+            delivered.increment();
+            notify(onOutcome, Outcome.DELIVERED);
+            return;
+        }
+
+        if (isRetryable(status) && attempt < maxRetries && !retryScheduler.isShutdown()) {
+            retried.increment();
+            long delay = retryBackoffMillis << attempt;
+            try {
+                retryScheduler.schedule(() -> { submit(url, body, attempt + 1, onOutcome); }, delay, TimeUnit.MILLISECONDS);
+                return;
+            } catch (RejectedExecutionException e) {
+                // shutting down
+            }
+        }
+
+        failed.increment();
+        logger.warnf("Failed saml backchannel broker logout to: %s (HTTP status %d, %d attempts)", url, status, attempt + 1);
+        notify(onOutcome, Outcome.FAILED);
+    }
+
+    /**
+     * Whether a delivery ending with the given HTTP status, or -1 for an I/O error, may succeed
+     * when retried.
+     */
+    static boolean isRetryable(int status) {
+        return status == -1 || status == 429 || status >= 500;
+    }
+
+    /**
+     * Sends a GET request to the given URL with the timeouts and the HTTP client of the dispatcher,
+     * and returns the HTTP status.
+     */
+    public int probe(String url) throws IOException {
+        return execute(new HttpGet(url));
+    }
+
+    private int post(String url, byte[] body) throws IOException {
+        HttpPost post = new HttpPost(url);
+        post.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_FORM_URLENCODED.withCharset(StandardCharsets.UTF_8)));
+        return execute(post);
+    }
+
+    private int execute(HttpRequestBase request) throws IOException {
+        request.setConfig(requestConfig);
+        try (CloseableHttpResponse response = httpClient().execute(request)) {
+            // Fully read the response, so that the connection goes back to the pool
+            EntityUtils.consumeQuietly(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    private CloseableHttpClient httpClient() {
+        CloseableHttpClient client = httpClient;
+        if (client != null) return client;
+
+        // No Keycloak session has been seen yet, as when used outside the server
+        synchronized (this) {
+            if (ownHttpClient == null) {
+                ownHttpClient = HttpClients.createSystem();
+            }
+            return ownHttpClient;
+        }
+    }
+
+    private static byte[] encodeForm(Map<String, String> formParams) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            for (Map.Entry<String, String> param : formParams.entrySet()) {
+                if (param.getValue() == null) continue;
+                if (sb.length() > 0) sb.append('&');
+                sb.append(URLEncoder.encode(param.getKey(), "UTF-8"))
+                    .append('=')
+                    .append(URLEncoder.encode(param.getValue(), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getRetried() {
+        return retried.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public void close() {
+        retryScheduler.shutdownNow();
+        executor.shutdown();
+        synchronized (this) {
+            if (ownHttpClient != null) {
+                try {
+                    ownHttpClient.close();
+                } catch (IOException e) {
+                    logger.debug("Failed to close the SPID backchannel logout HTTP client", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid;
+
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionModel;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Index from SPID broker session IDs to Keycloak user session IDs, used to resolve the sessions
+ * targeted by an IdP-initiated LogoutRequest without scanning the user sessions of the realm.
+ *
+ * The index is populated once the request of a SPID login has committed on this node, if it has
+ * created the user session: a login that goes on with the first broker login flow, or that is
+ * abandoned, is not indexed. Entries are removed on logout, and are dropped once the SSO session
+ * idle timeout of the realm (or its maximum lifespan, if shorter) has passed since the login; a
+ * session kept alive longer than that is found through the store lookup. Every hit is verified
+ * against the user session store, and a miss falls back to the store lookup, so sessions created
+ * on other cluster nodes or before a restart are still found.
+ *
+ * A LogoutRequest without a SessionIndex targets all the sessions of the principal, including the
+ * ones this node has never seen, so the sessions of a broker user ID are always looked up in the
+ * store; SPID IdPs send a SessionIndex in their LogoutRequests, which is the indexed path.
+ */
+public final class SpidBrokerSessionIndex {
+
+    private static final long PURGE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final ConcurrentMap<String, Entry> BY_BROKER_SESSION_ID = new ConcurrentHashMap<>();
+
+    private static volatile long nextPurge;
+
+    private SpidBrokerSessionIndex() {
+    }
+
+    private static final class Entry {
+        private final String userSessionId;
+        private final long expiresAt;
+
+        private Entry(String userSessionId, long expiresAt) {
+            this.userSessionId = userSessionId;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static String key(RealmModel realm, String brokerId) {
+        return realm.getId() + "/" + brokerId;
+    }
+
+    /**
+     * Records the user session of a SPID login once the transaction of the given session has
+     * committed, if the login has created it.
+     */
+    public static void putAfterCommit(KeycloakSession session, RealmModel realm, String userSessionId, String brokerSessionId) {
+        if (userSessionId == null || brokerSessionId == null) return;
+
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                UserSessionModel userSession = session.sessions().getUserSession(realm, userSessionId);
+                if (userSession != null && brokerSessionId.equals(userSession.getBrokerSessionId())) {
+                    put(realm, userSessionId, brokerSessionId);
+                }
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    /**
+     * Records the user session created for a SPID login.
+     */
+    public static void put(RealmModel realm, String userSessionId, String brokerSessionId) {
+        if (userSessionId == null || brokerSessionId == null) return;
+
+        int lifespan = Math.max(realm.getSsoSessionMaxLifespan(), realm.getSsoSessionMaxLifespanRememberMe());
+        int idleTimeout = Math.max(realm.getSsoSessionIdleTimeout(), realm.getSsoSessionIdleTimeoutRememberMe());
+        long now = System.currentTimeMillis();
+        long expiresAt = now + TimeUnit.SECONDS.toMillis(idleTimeout > 0 ? Math.min(lifespan, idleTimeout) : lifespan);
+        BY_BROKER_SESSION_ID.put(key(realm, brokerSessionId), new Entry(userSessionId, expiresAt));
+
+        if (now >= nextPurge) {
+            nextPurge = now + PURGE_INTERVAL_MILLIS;
+            purgeExpired(now);
+        }
+    }
+
+    /**
+     * Removes the given user session from the index.
+     */
+    public static void remove(RealmModel realm, UserSessionModel userSession) {
+        if (userSession.getBrokerSessionId() != null) {
+            BY_BROKER_SESSION_ID.remove(key(realm, userSession.getBrokerSessionId()));
+        }
+    }
+
+    /**
+     * Returns the user session with the given broker session ID, or {@code null}.
+     */
+    public static UserSessionModel getUserSessionByBrokerSessionId(KeycloakSession session, RealmModel realm, String brokerSessionId) {
+        String key = key(realm, brokerSessionId);
+        Entry entry = BY_BROKER_SESSION_ID.get(key);
+
+        if (entry != null) {
+            UserSessionModel userSession = entry.expiresAt > System.currentTimeMillis()
+                ? session.sessions().getUserSession(realm, entry.userSessionId)
+                : null;
+            if (userSession != null && brokerSessionId.equals(userSession.getBrokerSessionId())) {
+                return userSession;
+            }
+            BY_BROKER_SESSION_ID.remove(key, entry);
+        }
+
+        return session.sessions().getUserSessionByBrokerSessionId(realm, brokerSessionId);
+    }
+
+    /**
+     * Returns the user sessions with the given broker user ID, from the user session store.
+     */
+    public static List<UserSessionModel> getUserSessionsByBrokerUserId(KeycloakSession session, RealmModel realm, String brokerUserId) {
+        // collect to avoid concurrent modification as backchannelLogout removes the user sessions.
+        return session.sessions().getUserSessionByBrokerUserIdStream(realm, brokerUserId).collect(Collectors.toList());
+    }
+
+    private static void purgeExpired(long now) {
+        BY_BROKER_SESSION_ID.values().removeIf(entry -> entry.expiresAt <= now);
+    }
+
+    /**
+     * Drops all the entries of the given realm.
+     */
+    static void invalidateRealm(String realmId) {
+        String prefix = realmId + "/";
+        BY_BROKER_SESSION_ID.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+}
@@ -0,0 +1,579 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keycloak.broker.spid;
+
+import org.jboss.logging.Logger;
+import org.keycloak.executors.ExecutorsProvider;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.protocol.saml.SamlPrincipalType;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Creates the users of a list of SPID citizens ahead of their first login, so that the first login
+ * is a returning user login instead of a first broker login.
+ *
+ * The list is read as a stream of records, in CSV with a header line or in JSON lines, each with a
+ * {@code fiscalNumber} and optionally {@code username}, {@code email}, {@code firstName} and
+ * {@code lastName}; any other field is imported as a user attribute. Records are provisioned in
+ * batches of {@code batchSize}, each in its own {@link KeycloakSession} and transaction, with at
+ * most {@code parallelism} batches in flight. A batch that fails is retried one record at a time,
+ * so a bad record only fails itself.
+ *
+ * Each user is recorded in the {@link SpidFiscalNumberIndex} and linked to the SPID IdPs of the
+ * realm whose principal is the fiscal number, which is the only principal known in advance; logins
+ * through the other SPID IdPs are linked by the index. Users that already have the fiscal number
+ * are only linked, so provisioning the same list twice is harmless.
+ *
+ * The number of records provisioned without gaps is saved as a checkpoint in a realm attribute
+ * after each batch, so that a job interrupted midway resumes after the last checkpoint when the
+ * same list is sent again with the same job name. The checkpoint never passes a failed record, so
+ * records that failed, for instance while the database was unavailable, are retried by the resumed
+ * job; the records provisioned after them again are only linked.
+ */
+public class SpidBulkProvisioner {
+    protected static final Logger logger = Logger.getLogger(SpidBulkProvisioner.class);
+
+    public static final String EXECUTOR_NAME = "spid-provisioning";
+
+    public static final String CHECKPOINT_ATTRIBUTE_PREFIX = "spid.provisioning.checkpoint.";
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static final int MAX_REPORTED_ERRORS = 100;
+
+    public static final String FISCAL_NUMBER = SpidFiscalNumberIndex.FISCAL_NUMBER;
+    public static final String USERNAME = "username";
+    public static final String EMAIL = "email";
+    public static final String FIRST_NAME = "firstName";
+    public static final String LAST_NAME = "lastName";
+
+    private static final String FISCAL_NUMBER_PREFIX = "TINIT-";
+
+    private final int batchSize;
+    private final int parallelism;
+
+    public SpidBulkProvisioner(int batchSize, int parallelism) {
+        this.batchSize = Math.max(1, batchSize);
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public static SpidBulkProvisioner defaults() {
+        return new SpidBulkProvisioner(DEFAULT_BATCH_SIZE, DEFAULT_PARALLELISM);
+    }
+
+    public enum Format {
+        CSV, JSONL
+    }
+
+    /**
+     * A citizen to provision, read from the given line of the list.
+     */
+    public static class Record {
+        private final long line;
+        private final Map<String, List<String>> fields;
+
+        public Record(long line, Map<String, List<String>> fields) {
+            this.line = line;
+            this.fields = fields;
+        }
+
+        public long getLine() {
+            return line;
+        }
+
+        public String getFirst(String name) {
+            List<String> values = fields.get(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+
+        /**
+         * The fields that are imported as user attributes.
+         */
+        public Map<String, List<String>> getAttributes() {
+            Map<String, List<String>> attributes = new LinkedHashMap<>(fields);
+            attributes.remove(USERNAME);
+            attributes.remove(EMAIL);
+            attributes.remove(FIRST_NAME);
+            attributes.remove(LAST_NAME);
+            return attributes;
+        }
+    }
+
+    /**
+     * Reads the records of a list, one at a time.
+     */
+    public abstract static class RecordReader {
+        protected final BufferedReader reader;
+        protected long line;
+
+        protected RecordReader(Reader reader) {
+            this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        }
+
+        /**
+         * The next record, or {@code null} at the end of the list.
+         */
+        public abstract Record next() throws IOException;
+
+        protected String nextLine() throws IOException {
+            String text;
+            do {
+                text = reader.readLine();
+                line++;
+            } while (text != null && text.trim().isEmpty());
+            return text;
+        }
+    }
+
+    public static RecordReader reader(Format format, Reader reader) {
+        return format == Format.CSV ? new CsvRecordReader(reader) : new JsonLinesRecordReader(reader);
+    }
+
+    private static final class CsvRecordReader extends RecordReader {
+        private List<String> header;
+
+        private CsvRecordReader(Reader reader) {
+            super(reader);
+        }
+
+        @Override
+        public Record next() throws IOException {
+            if (header == null) {
+                String text = nextLine();
+                if (text == null) return null;
+                header = split(text).stream().map(String::trim).collect(Collectors.toList());
+            }
+
+            String text = nextLine();
+            if (text == null) return null;
+
+            List<String> cells = split(text);
+            Map<String, List<String>> fields = new LinkedHashMap<>();
+            for (int i = 0; i < cells.size() && i < header.size(); i++) {
+                String value = cells.get(i).trim();
+                if (!value.isEmpty() && !header.get(i).isEmpty()) {
+                    fields.put(header.get(i), Collections.singletonList(value));
+                }
+            }
+            return new Record(line, fields);
+        }
+
+        // RFC 4180 cells, without line breaks inside quoted cells
+        private static List<String> split(String text) {
+            List<String> cells = new ArrayList<>();
+            StringBuilder cell = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (quoted) {
+                    if (c == '"' && i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                        cell.append('"');
+                        i++;
+                    } else if (c == '"') {
+                        quoted = false;
+                    } else {
+                        cell.append(c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    cells.add(cell.toString());
+                    cell.setLength(0);
+                } else {
+                    cell.append(c);
+                }
+            }
+            cells.add(cell.toString());
+            return cells;
+        }
+    }
+
+    private static final class JsonLinesRecordReader extends RecordReader {
+
+        private JsonLinesRecordReader(Reader reader) {
+            super(reader);
+        }
+
+        @Override
+        public Record next() throws IOException {
+            String text = nextLine();
+            if (text == null) return null;
+
+            Map<?, ?> object;
+            try {
+                object = JsonSerialization.readValue(text, Map.class);
+            } catch (IOException e) {
+                // The record fails on its own, reported with its line
+                return new Record(line, Collections.emptyMap());
+            }
+            if (object == null) {
+                return new Record(line, Collections.emptyMap());
+            }
+
+            Map<String, List<String>> fields = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : object.entrySet()) {
+                List<String> values = new ArrayList<>();
+                if (entry.getValue() instanceof List) {
+                    for (Object value : (List<?>) entry.getValue()) {
+                        if (value != null) values.add(value.toString());
+                    }
+                } else if (entry.getValue() != null) {
+                    values.add(entry.getValue().toString());
+                }
+                if (!values.isEmpty()) {
+                    fields.put(String.valueOf(entry.getKey()), values);
+                }
+            }
+            return new Record(line, fields);
+        }
+    }
+
+    /**
+     * Outcome of a provisioning job.
+     */
+    public static class Result {
+        private long resumed;
+        private long processed;
+        private long created;
+        private long linked;
+        private long failed;
+        private long checkpoint;
+        private final List<String> errors = new ArrayList<>();
+        // Index of the first failed record of a batch, 0 if none
+        private long firstFailed;
+
+        /**
+         * The records skipped because they were before the checkpoint of the job.
+         */
+        public long getResumed() {
+            return resumed;
+        }
+
+        public long getProcessed() {
+            return processed;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getLinked() {
+            return linked;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getCheckpoint() {
+            return checkpoint;
+        }
+
+        /**
+         * The first errors, by line.
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        private void add(Result batch) {
+            processed += batch.processed;
+            created += batch.created;
+            linked += batch.linked;
+            failed += batch.failed;
+            for (String error : batch.errors) {
+                if (errors.size() < MAX_REPORTED_ERRORS) errors.add(error);
+            }
+        }
+
+        private Result snapshot() {
+            Result copy = new Result();
+            copy.resumed = resumed;
+            copy.checkpoint = checkpoint;
+            copy.add(this);
+            return copy;
+        }
+    }
+
+    /**
+     * Provisions the records read from the given reader, resuming after the checkpoint of the
+     * given job, if any. Runs outside of any request: the realm is read in a session of its own, and
+     * the given listener receives a copy of the result after each batch.
+     */
+    public Result provision(KeycloakSessionFactory sessionFactory, String realmId, String job, RecordReader reader,
+                            Consumer<Result> listener) throws IOException {
+        Progress progress = new Progress(sessionFactory, realmId, job == null ? null : CHECKPOINT_ATTRIBUTE_PREFIX + job, listener);
+        Result result = progress.result;
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = getRealm(session, realmId);
+            progress.realmName = realm.getName();
+            progress.aliases = getFiscalNumberAliases(realm);
+            String saved = progress.checkpointAttribute == null ? null : realm.getAttribute(progress.checkpointAttribute);
+            result.checkpoint = saved == null ? 0 : Long.parseLong(saved);
+            progress.executor = session.getProvider(ExecutorsProvider.class).getExecutor(EXECUTOR_NAME);
+        });
+        List<String> aliases = progress.aliases;
+        long checkpoint = result.checkpoint;
+        progress.submitted = checkpoint;
+
+        CompletionService<Result> completionService = new ExecutorCompletionService<>(progress.executor);
+
+        List<Record> batch = new ArrayList<>(batchSize);
+        long index = 0;
+        try {
+            for (Record record = reader.next(); record != null; record = reader.next()) {
+                index++;
+                if (index <= checkpoint) {
+                    result.resumed++;
+                    continue;
+                }
+                batch.add(record);
+                if (batch.size() == batchSize) {
+                    submit(completionService, progress, aliases, batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                submit(completionService, progress, aliases, batch);
+            }
+            while (!progress.running.isEmpty()) {
+                progress.complete(completionService.take());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<Result> future : progress.running.keySet()) {
+                future.cancel(true);
+            }
+            logger.warnf("SPID provisioning interrupted after %d records, checkpoint at %d", index, result.checkpoint);
+        }
+
+        logger.infof("SPID provisioning of realm %s: %d processed, %d created, %d linked, %d failed, %d resumed",
+            progress.realmName, result.processed, result.created, result.linked, result.failed, result.resumed);
+        return result;
+    }
+
+    private void submit(CompletionService<Result> completionService, Progress progress, List<String> aliases,
+                        List<Record> batch) throws InterruptedException {
+        while (progress.running.size() >= parallelism) {
+            progress.complete(completionService.take());
+        }
+        long first = progress.submitted + 1;
+        progress.submitted += batch.size();
+        Future<Result> future = completionService.submit(() -> provisionBatch(progress.sessionFactory, progress.realmId, aliases, first, batch));
+        progress.running.put(future, first);
+        progress.inFlight.put(first, progress.submitted);
+    }
+
+    /**
+     * The batches in flight of a job, by the index of their first record. The checkpoint is the
+     * index of the last record before both the first batch still in flight and the first failed
+     * record.
+     */
+    private static final class Progress {
+        private final KeycloakSessionFactory sessionFactory;
+        private final String realmId;
+        private final String checkpointAttribute;
+        private final Consumer<Result> listener;
+        private final Result result = new Result();
+        private final Map<Future<Result>, Long> running = new HashMap<>();
+        private final TreeMap<Long, Long> inFlight = new TreeMap<>();
+        private String realmName;
+        private List<String> aliases;
+        private ExecutorService executor;
+        private long submitted;
+        private long firstFailed = Long.MAX_VALUE;
+
+        private Progress(KeycloakSessionFactory sessionFactory, String realmId, String checkpointAttribute,
+                         Consumer<Result> listener) {
+            this.sessionFactory = sessionFactory;
+            this.realmId = realmId;
+            this.checkpointAttribute = checkpointAttribute;
+            this.listener = listener;
+        }
+
+        private void complete(Future<Result> done) throws InterruptedException {
+            long first = running.remove(done);
+            long last = inFlight.remove(first);
+            Result batch;
+            try {
+                batch = done.get();
+            } catch (ExecutionException e) {
+                logger.warn("failed to provision SPID users", e.getCause());
+                batch = new Result();
+                batch.processed = last - first + 1;
+                batch.failed = batch.processed;
+                batch.firstFailed = first;
+                batch.errors.add("records " + first + "-" + last + ": " + e.getCause());
+            }
+            result.add(batch);
+            if (batch.firstFailed > 0) {
+                firstFailed = Math.min(firstFailed, batch.firstFailed);
+            }
+
+            long checkpoint = Math.min(inFlight.isEmpty() ? submitted : inFlight.firstKey() - 1, firstFailed - 1);
+            if (checkpoint > result.checkpoint) {
+                result.checkpoint = checkpoint;
+                saveCheckpoint(checkpoint);
+            }
+            listener.accept(result.snapshot());
+        }
+
+        private void saveCheckpoint(long checkpoint) {
+            if (checkpointAttribute == null) return;
+
+            String value = String.valueOf(checkpoint);
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                    RealmModel realm = session.realms().getRealm(realmId);
+                    if (realm != null) realm.setAttribute(checkpointAttribute, value);
+                });
+            } catch (RuntimeException e) {
+                // The next checkpoint will cover these records
+                logger.warn("failed to save SPID provisioning checkpoint", e);
+            }
+        }
+    }
+
+    private static Result provisionBatch(KeycloakSessionFactory sessionFactory, String realmId, List<String> aliases,
+                                         long first, List<Record> batch) {
+        Result result = new Result();
+        // The fiscal number claims of a rolled back batch are kept for its retry
+        Set<String> claimed = new HashSet<>();
+        try {
+            Result batchResult = new Result();
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = getRealm(session, realmId);
+                for (Record record : batch) {
+                    provision(session, realm, aliases, record, batchResult, claimed);
+                }
+            });
+            return batchResult;
+        } catch (RuntimeException e) {
+            logger.debugf(e, "failed to provision a batch of SPID users, retrying one user at a time");
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            Record record = batch.get(i);
+            try {
+                Result recordResult = new Result();
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session ->
+                    provision(session, getRealm(session, realmId), aliases, record, recordResult, claimed));
+                result.add(recordResult);
+            } catch (RuntimeException e) {
+                result.processed++;
+                result.failed++;
+                if (result.firstFailed == 0) result.firstFailed = first + i;
+                result.errors.add("line " + record.getLine() + ": " + e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    private static RealmModel getRealm(KeycloakSession session, String realmId) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        if (realm == null) throw new IllegalStateException("realm " + realmId + " not found");
+        session.getContext().setRealm(realm);
+        return realm;
+    }
+
+    /**
+     * Creates the user of the given record, unless a user has its fiscal number, and links it to
+     * the given SPID IdPs.
+     */
+    public static void provision(KeycloakSession session, RealmModel realm, List<String> aliases, Record record, Result result) {
+        provision(session, realm, aliases, record, result, new HashSet<>());
+    }
+
+    private static void provision(KeycloakSession session, RealmModel realm, List<String> aliases, Record record, Result result,
+                                  Set<String> claimed) {
+        String fiscalNumber = SpidFiscalNumberIndex.normalize(record.getFirst(FISCAL_NUMBER));
+        if (fiscalNumber == null) {
+            throw new IllegalArgumentException("missing " + FISCAL_NUMBER);
+        }
+
+        UserModel user = SpidFiscalNumberIndex.getUser(session, realm, fiscalNumber);
+        if (user == null) {
+            String username = record.getFirst(USERNAME);
+            user = session.users().addUser(realm, username != null ? username : fiscalNumber.toLowerCase(Locale.ROOT));
+            user.setEnabled(true);
+            if (record.getFirst(EMAIL) != null) user.setEmail(record.getFirst(EMAIL));
+            if (record.getFirst(FIRST_NAME) != null) user.setFirstName(record.getFirst(FIRST_NAME));
+            if (record.getFirst(LAST_NAME) != null) user.setLastName(record.getFirst(LAST_NAME));
+            for (Map.Entry<String, List<String>> attribute : record.getAttributes().entrySet()) {
+                user.setAttribute(attribute.getKey(), attribute.getValue());
+            }
+            // Without its link the user would be created again by the next run, fail the record
+            if (! SpidFiscalNumberIndex.put(session, realm, user, fiscalNumber, claimed)) {
+                throw new IllegalStateException("could not link the fiscal number to the new user, see the server log");
+            }
+            result.created++;
+        }
+
+        // The principal of the IdPs, as sent in the assertion
+        String principal = FISCAL_NUMBER_PREFIX + fiscalNumber;
+        for (String alias : aliases) {
+            if (session.users().getFederatedIdentity(realm, user, alias) == null) {
+                session.users().addFederatedIdentity(realm, user, new FederatedIdentityModel(alias, principal, principal));
+                result.linked++;
+            }
+        }
+        result.processed++;
+    }
+
+    /**
+     * The aliases of the enabled SPID IdPs of the realm whose principal is the fiscal number.
+     */
+    public static List<String> getFiscalNumberAliases(RealmModel realm) {
+        List<String> aliases = new ArrayList<>();
+        for (IdentityProviderModel model : SpidIdentityProviderRegistry.getModels(realm)) {
+            SpidIdentityProviderConfig config = new SpidIdentityProviderConfig(model);
+            boolean byAttribute = config.getPrincipalType() == SamlPrincipalType.ATTRIBUTE
+                || config.getPrincipalType() == SamlPrincipalType.FRIENDLY_ATTRIBUTE;
+            if (byAttribute && FISCAL_NUMBER.equals(config.getPrincipalAttribute())) {
+                aliases.add(model.getAlias());
+            }
+        }
+        return aliases;
+    }
+}
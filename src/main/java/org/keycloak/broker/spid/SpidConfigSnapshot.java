@@ -0,0 +1,495 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid;
+
+import org.jboss.logging.Logger;
+import org.keycloak.dom.saml.v2.protocol.AuthnContextComparisonType;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.protocol.saml.SamlPrincipalType;
+import org.keycloak.saml.SignatureAlgorithm;
+import org.keycloak.saml.common.exceptions.ProcessingException;
+import org.keycloak.saml.common.util.XmlKeyInfoKeyNameTransformer;
+import org.keycloak.saml.processing.core.util.XMLSignatureUtil;
+import org.keycloak.util.JsonSerialization;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable, pre-parsed view of a {@link SpidIdentityProviderConfig}.
+ *
+ * The getters of {@link SpidIdentityProviderConfig} parse the backing string map on every call;
+ * this snapshot does the parsing once per version of the identity provider model and is shared
+ * by every provider instance built from the same model.
+ *
+ * The snapshot of an identity provider is dropped on its update and removal events. Updates made
+ * on other cluster nodes do not raise events here, so a snapshot is also checked against the model
+ * once it has been in use for the revalidation interval. The check is a reference comparison with
+ * the model the snapshot was built from, which the realm cache keeps until the realm changes on
+ * any node; only a different model instance is compared entry by entry, and the snapshot is
+ * rebuilt if the alias, the enabled/store-token flags or any entry of the config map has changed.
+ * Within the interval a provider instantiation only costs a map lookup.
+ *
+ * Snapshots not used for {@link #MAX_IDLE_MILLIS}, such as those of identity providers removed on
+ * other cluster nodes, are dropped, and at most {@link #MAX_SNAPSHOTS} are kept.
+ */
+public final class SpidConfigSnapshot {
+    private static final Logger logger = Logger.getLogger(SpidConfigSnapshot.class);
+
+    public static final long DEFAULT_REVALIDATE_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    static final long MAX_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    static final int MAX_SNAPSHOTS = 1024;
+
+    private static final ConcurrentMap<String, Entry> SNAPSHOTS = new ConcurrentHashMap<>();
+
+    private static volatile long revalidateMillis = DEFAULT_REVALIDATE_MILLIS;
+
+    private static final class Entry {
+        private final SpidConfigSnapshot snapshot;
+        private final IdentityProviderModel model;
+        private final long revalidateAt;
+
+        private Entry(SpidConfigSnapshot snapshot, IdentityProviderModel model, long revalidateAt) {
+            this.snapshot = snapshot;
+            this.model = model;
+            this.revalidateAt = revalidateAt;
+        }
+    }
+
+    // Source of this snapshot, used to detect model changes
+    private final Map<String, String> source;
+    private final String alias;
+    private final String internalId;
+    private final boolean enabled;
+    private final boolean storeToken;
+
+    private final String entityId;
+    private final String singleSignOnServiceUrl;
+    private final String singleLogoutServiceUrl;
+    private final String nameIDPolicyFormat;
+    private final boolean validateSignature;
+    private final boolean forceAuthn;
+    private final boolean wantAuthnRequestsSigned;
+    private final boolean wantAssertionsSigned;
+    private final boolean wantAssertionsEncrypted;
+    private final boolean addExtensionsElementWithKeyInfo;
+    private final boolean postBindingAuthnRequest;
+    private final boolean postBindingResponse;
+    private final boolean postBindingLogout;
+    private final boolean backchannelSupported;
+    private final boolean signSpMetadata;
+    private final boolean allowCreate;
+    private final boolean loginHint;
+    private final boolean spPrivate;
+    private final boolean statelessRelayState;
+    private final String signatureAlgorithmName;
+    private final SignatureAlgorithm signatureAlgorithm;
+    private final XmlKeyInfoKeyNameTransformer xmlSigKeyInfoKeyNameTransformer;
+    private final int allowedClockSkew;
+    private final SamlPrincipalType principalType;
+    private final String principalAttribute;
+    private final AuthnContextComparisonType authnContextComparisonType;
+    private final List<String> authnContextClassRefs;
+    private final List<String> authnContextDeclRefs;
+    private final Integer attributeConsumingServiceIndex;
+    private final List<String> attributeConsumingServiceNames;
+    private final String attributeConsumingServiceName;
+    private final List<String> organizationNames;
+    private final List<String> organizationDisplayNames;
+    private final List<String> organizationUrls;
+    private final List<String> signingCertificates;
+    private final List<X509Certificate> signingX509Certificates;
+    private final ProcessingException signingCertificatesError;
+    private final String ipaCode;
+    private final String vatNumber;
+    private final String fiscalCode;
+    private final String otherContactCompany;
+    private final String otherContactEmail;
+    private final String otherContactPhone;
+    private final String billingContactCompany;
+    private final String billingContactEmail;
+    private final String billingContactPhone;
+
+    private SpidConfigSnapshot(SpidIdentityProviderConfig config) {
+        this.source = new HashMap<>(config.getConfig());
+        this.alias = config.getAlias();
+        this.internalId = config.getInternalId();
+        this.enabled = config.isEnabled();
+        this.storeToken = config.isStoreToken();
+
+        this.entityId = config.getEntityId();
+        this.singleSignOnServiceUrl = config.getSingleSignOnServiceUrl();
+        this.singleLogoutServiceUrl = config.getSingleLogoutServiceUrl();
+        this.nameIDPolicyFormat = config.getNameIDPolicyFormat();
+        this.validateSignature = config.isValidateSignature();
+        this.forceAuthn = config.isForceAuthn();
+        this.wantAuthnRequestsSigned = config.isWantAuthnRequestsSigned();
+        this.wantAssertionsSigned = config.isWantAssertionsSigned();
+        this.wantAssertionsEncrypted = config.isWantAssertionsEncrypted();
+        this.addExtensionsElementWithKeyInfo = config.isAddExtensionsElementWithKeyInfo();
+        this.postBindingAuthnRequest = config.isPostBindingAuthnRequest();
+        this.postBindingResponse = config.isPostBindingResponse();
+        this.postBindingLogout = config.isPostBindingLogout();
+        this.backchannelSupported = config.isBackchannelSupported();
+        this.signSpMetadata = config.isSignSpMetadata();
+        // SPID: AllowCreate defaults to true when not explicitly configured
+        this.allowCreate = config.getConfig().get(SpidIdentityProviderConfig.ALLOW_CREATE) == null || config.isAllowCreate();
+        this.loginHint = config.isLoginHint();
+        this.spPrivate = config.isSpPrivate();
+        this.statelessRelayState = config.isStatelessRelayState();
+
+        this.signatureAlgorithmName = config.getSignatureAlgorithm();
+        SignatureAlgorithm algorithm = null;
+        if (signatureAlgorithmName != null) {
+            try {
+                algorithm = SignatureAlgorithm.valueOf(signatureAlgorithmName);
+            } catch (IllegalArgumentException e) {
+                // reported by getSignatureAlgorithm(), as it was before snapshots were introduced
+            }
+        }
+        this.signatureAlgorithm = algorithm;
+
+        this.xmlSigKeyInfoKeyNameTransformer = config.getXmlSigKeyInfoKeyNameTransformer();
+        this.allowedClockSkew = config.getAllowedClockSkew();
+        this.principalType = config.getPrincipalType();
+        this.principalAttribute = config.getPrincipalAttribute();
+        this.authnContextComparisonType = config.getAuthnContextComparisonType();
+        this.authnContextClassRefs = parseJsonArray(config.getAuthnContextClassRefs(), "AuthContextClassRefs");
+        this.authnContextDeclRefs = parseJsonArray(config.getAuthnContextDeclRefs(), "AuthContextDeclRefs");
+        this.attributeConsumingServiceIndex = config.getAttributeConsumingServiceIndex();
+        this.attributeConsumingServiceName = config.getAttributeConsumingServiceName();
+        this.attributeConsumingServiceNames = splitList(attributeConsumingServiceName);
+        this.organizationNames = splitList(config.getOrganizationNames());
+        this.organizationDisplayNames = splitList(config.getOrganizationDisplayNames());
+        this.organizationUrls = splitList(config.getOrganizationUrls());
+
+        this.signingCertificates = Collections.unmodifiableList(Arrays.asList(config.getSigningCertificates()));
+        List<X509Certificate> certificates = new ArrayList<>(signingCertificates.size());
+        ProcessingException certificatesError = null;
+        for (String signingCertificate : signingCertificates) {
+            try {
+                certificates.add(XMLSignatureUtil.getX509CertificateFromKeyInfoString(signingCertificate.replaceAll("\\s", "")));
+            } catch (ProcessingException e) {
+                certificatesError = e;
+                break;
+            }
+        }
+        this.signingX509Certificates = Collections.unmodifiableList(certificates);
+        this.signingCertificatesError = certificatesError;
+
+        this.ipaCode = config.getIpaCode();
+        this.vatNumber = config.getVatNumber();
+        this.fiscalCode = config.getFiscalCode();
+        this.otherContactCompany = config.getOtherContactCompany();
+        this.otherContactEmail = config.getOtherContactEmail();
+        this.otherContactPhone = config.getOtherContactPhone();
+        this.billingContactCompany = config.getBillingContactCompany();
+        this.billingContactEmail = config.getBillingContactEmail();
+        this.billingContactPhone = config.getBillingContactPhone();
+    }
+
+    /**
+     * Returns the snapshot for the given config, reusing the cached one when the underlying
+     * model has not changed since it was built.
+     */
+    public static SpidConfigSnapshot of(SpidIdentityProviderConfig config) {
+        String key = config.getInternalId() != null ? config.getInternalId() : config.getAlias();
+        if (key == null) {
+            return new SpidConfigSnapshot(config);
+        }
+
+        long now = System.currentTimeMillis();
+        Entry entry = SNAPSHOTS.get(key);
+        if (entry != null && now < entry.revalidateAt) {
+            return entry.snapshot;
+        }
+
+        IdentityProviderModel model = config.getSource();
+        boolean unchanged = entry != null
+            && (model != null && model == entry.model || entry.snapshot.isBuiltFrom(config));
+        SpidConfigSnapshot snapshot = unchanged ? entry.snapshot : new SpidConfigSnapshot(config);
+
+        prune(now);
+        SNAPSHOTS.put(key, new Entry(snapshot, model, now + revalidateMillis));
+        return snapshot;
+    }
+
+    private static void prune(long now) {
+        SNAPSHOTS.values().removeIf(entry -> entry.revalidateAt + MAX_IDLE_MILLIS < now);
+        if (SNAPSHOTS.size() >= MAX_SNAPSHOTS) {
+            SNAPSHOTS.clear();
+        }
+    }
+
+    /**
+     * Sets how long a snapshot is used before being compared with the model again.
+     */
+    static void setRevalidateMillis(long revalidateMillis) {
+        SpidConfigSnapshot.revalidateMillis = revalidateMillis;
+    }
+
+    /**
+     * Drops the cached snapshot of the identity provider with the given internal ID (or alias).
+     */
+    public static void evict(String key) {
+        if (key != null) {
+            SNAPSHOTS.remove(key);
+        }
+    }
+
+    private boolean isBuiltFrom(SpidIdentityProviderConfig config) {
+        return enabled == config.isEnabled()
+            && storeToken == config.isStoreToken()
+            && Objects.equals(alias, config.getAlias())
+            && Objects.equals(internalId, config.getInternalId())
+            && source.equals(config.getConfig());
+    }
+
+    private static List<String> splitList(String value) {
+        if (value == null)
+            return Collections.emptyList();
+
+        return Collections.unmodifiableList(Arrays.asList(value.split(",")));
+    }
+
+    private static List<String> parseJsonArray(String value, String description) {
+        if (value == null || value.isEmpty())
+            return Collections.emptyList();
+
+        try {
+            return Collections.unmodifiableList(Arrays.asList(JsonSerialization.readValue(value, String[].class)));
+        } catch (Exception e) {
+            logger.warn("Could not json-deserialize " + description + " config entry: " + value, e);
+            return Collections.emptyList();
+        }
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public String getInternalId() {
+        return internalId;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isStoreToken() {
+        return storeToken;
+    }
+
+    public String getEntityId() {
+        return entityId;
+    }
+
+    public String getSingleSignOnServiceUrl() {
+        return singleSignOnServiceUrl;
+    }
+
+    public String getSingleLogoutServiceUrl() {
+        return singleLogoutServiceUrl;
+    }
+
+    public String getNameIDPolicyFormat() {
+        return nameIDPolicyFormat;
+    }
+
+    public boolean isValidateSignature() {
+        return validateSignature;
+    }
+
+    public boolean isForceAuthn() {
+        return forceAuthn;
+    }
+
+    public boolean isWantAuthnRequestsSigned() {
+        return wantAuthnRequestsSigned;
+    }
+
+    public boolean isWantAssertionsSigned() {
+        return wantAssertionsSigned;
+    }
+
+    public boolean isWantAssertionsEncrypted() {
+        return wantAssertionsEncrypted;
+    }
+
+    public boolean isAddExtensionsElementWithKeyInfo() {
+        return addExtensionsElementWithKeyInfo;
+    }
+
+    public boolean isPostBindingAuthnRequest() {
+        return postBindingAuthnRequest;
+    }
+
+    public boolean isPostBindingResponse() {
+        return postBindingResponse;
+    }
+
+    public boolean isPostBindingLogout() {
+        return postBindingLogout;
+    }
+
+    public boolean isBackchannelSupported() {
+        return backchannelSupported;
+    }
+
+    public boolean isSignSpMetadata() {
+        return signSpMetadata;
+    }
+
+    public boolean isAllowCreate() {
+        return allowCreate;
+    }
+
+    public boolean isLoginHint() {
+        return loginHint;
+    }
+
+    public boolean isSpPrivate() {
+        return spPrivate;
+    }
+
+    public boolean isStatelessRelayState() {
+        return statelessRelayState;
+    }
+
+    /**
+     * @return the configured algorithm, or {@link SignatureAlgorithm#RSA_SHA256} if not set.
+     * @throws IllegalArgumentException if the configured algorithm is unknown
+     */
+    public SignatureAlgorithm getSignatureAlgorithm() {
+        if (signatureAlgorithm != null)
+            return signatureAlgorithm;
+        if (signatureAlgorithmName != null)
+            throw new IllegalArgumentException("Unknown signature algorithm: " + signatureAlgorithmName);
+        return SignatureAlgorithm.RSA_SHA256;
+    }
+
+    public XmlKeyInfoKeyNameTransformer getXmlSigKeyInfoKeyNameTransformer() {
+        return xmlSigKeyInfoKeyNameTransformer;
+    }
+
+    public int getAllowedClockSkew() {
+        return allowedClockSkew;
+    }
+
+    public SamlPrincipalType getPrincipalType() {
+        return principalType;
+    }
+
+    public String getPrincipalAttribute() {
+        return principalAttribute;
+    }
+
+    public AuthnContextComparisonType getAuthnContextComparisonType() {
+        return authnContextComparisonType;
+    }
+
+    public List<String> getAuthnContextClassRefs() {
+        return authnContextClassRefs;
+    }
+
+    public List<String> getAuthnContextDeclRefs() {
+        return authnContextDeclRefs;
+    }
+
+    public Integer getAttributeConsumingServiceIndex() {
+        return attributeConsumingServiceIndex;
+    }
+
+    public String getAttributeConsumingServiceName() {
+        return attributeConsumingServiceName;
+    }
+
+    public List<String> getAttributeConsumingServiceNames() {
+        return attributeConsumingServiceNames;
+    }
+
+    public List<String> getOrganizationNames() {
+        return organizationNames;
+    }
+
+    public List<String> getOrganizationDisplayNames() {
+        return organizationDisplayNames;
+    }
+
+    public List<String> getOrganizationUrls() {
+        return organizationUrls;
+    }
+
+    public List<String> getSigningCertificates() {
+        return signingCertificates;
+    }
+
+    /**
+     * @return the parsed signing certificates; validity is not checked here since it depends on the current time
+     * @throws ProcessingException if one of the configured certificates cannot be decoded
+     */
+    public List<X509Certificate> getSigningX509Certificates() throws ProcessingException {
+        if (signingCertificatesError != null)
+            throw signingCertificatesError;
+        return signingX509Certificates;
+    }
+
+    public String getIpaCode() {
+        return ipaCode;
+    }
+
+    public String getVatNumber() {
+        return vatNumber;
+    }
+
+    public String getFiscalCode() {
+        return fiscalCode;
+    }
+
+    public String getOtherContactCompany() {
+        return otherContactCompany;
+    }
+
+    public String getOtherContactEmail() {
+        return otherContactEmail;
+    }
+
+    public String getOtherContactPhone() {
+        return otherContactPhone;
+    }
+
+    public String getBillingContactCompany() {
+        return billingContactCompany;
+    }
+
+    public String getBillingContactEmail() {
+        return billingContactEmail;
+    }
+
+    public String getBillingContactPhone() {
+        return billingContactPhone;
+    }
+}
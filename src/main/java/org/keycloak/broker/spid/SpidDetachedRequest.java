@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keycloak.broker.spid;
+
+import org.keycloak.common.ClientConnection;
+
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Copies of the connection and headers of the current request, for work that continues on other
+ * threads. The {@code @Context} fields of a JAX-RS resource are proxies resolved on the request
+ * thread, which are not usable from an executor thread.
+ */
+final class SpidDetachedRequest {
+
+    private SpidDetachedRequest() {
+    }
+
+    static ClientConnection copy(ClientConnection connection) {
+        if (connection == null) return null;
+
+        String remoteAddr = connection.getRemoteAddr();
+        String remoteHost = connection.getRemoteHost();
+        int remotePort = connection.getRemotePort();
+        String localAddr = connection.getLocalAddr();
+        int localPort = connection.getLocalPort();
+        return new ClientConnection() {
+            @Override
+            public String getRemoteAddr() {
+                return remoteAddr;
+            }
+
+            @Override
+            public String getRemoteHost() {
+                return remoteHost;
+            }
+
+            @Override
+            public int getRemotePort() {
+                return remotePort;
+            }
+
+            @Override
+            public String getLocalAddr() {
+                return localAddr;
+            }
+
+            @Override
+            public int getLocalPort() {
+                return localPort;
+            }
+        };
+    }
+
+    static HttpHeaders copy(HttpHeaders headers) {
+        return headers == null ? null : new Headers(headers);
+    }
+
+    private static final class Headers implements HttpHeaders {
+        // Header names are case insensitive, keys are in lower case
+        private final MultivaluedMap<String, String> requestHeaders = new MultivaluedHashMap<>();
+        private final List<MediaType> acceptableMediaTypes;
+        private final List<Locale> acceptableLanguages;
+        private final MediaType mediaType;
+        private final Locale language;
+        private final Map<String, Cookie> cookies;
+        private final Date date;
+        private final int length;
+
+        private Headers(HttpHeaders headers) {
+            for (Map.Entry<String, List<String>> header : headers.getRequestHeaders().entrySet()) {
+                requestHeaders.addAll(header.getKey().toLowerCase(Locale.ROOT), new ArrayList<>(header.getValue()));
+            }
+            this.acceptableMediaTypes = Collections.unmodifiableList(new ArrayList<>(headers.getAcceptableMediaTypes()));
+            this.acceptableLanguages = Collections.unmodifiableList(new ArrayList<>(headers.getAcceptableLanguages()));
+            this.mediaType = headers.getMediaType();
+            this.language = headers.getLanguage();
+            this.cookies = Collections.unmodifiableMap(new LinkedHashMap<>(headers.getCookies()));
+            this.date = headers.getDate();
+            this.length = headers.getLength();
+        }
+
+        @Override
+        public List<String> getRequestHeader(String name) {
+            return requestHeaders.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        @Override
+        public String getHeaderString(String name) {
+            List<String> values = getRequestHeader(name);
+            return values == null ? null : String.join(",", values);
+        }
+
+        @Override
+        public MultivaluedMap<String, String> getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public List<MediaType> getAcceptableMediaTypes() {
+            return acceptableMediaTypes;
+        }
+
+        @Override
+        public List<Locale> getAcceptableLanguages() {
+            return acceptableLanguages;
+        }
+
+        @Override
+        public MediaType getMediaType() {
+            return mediaType;
+        }
+
+        @Override
+        public Locale getLanguage() {
+            return language;
+        }
+
+        @Override
+        public Map<String, Cookie> getCookies() {
+            return cookies;
+        }
+
+        @Override
+        public Date getDate() {
+            return date == null ? null : new Date(date.getTime());
+        }
+
+        @Override
+        public int getLength() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid;
+
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.spid.mappers.SpidAssertionAttributes;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SingleUseTokenStoreProvider;
+import org.keycloak.models.UserModel;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Index from the fiscal number of a SPID user to the Keycloak user, used to link the logins of
+ * the same person through different SPID IdPs without searching the users by attribute.
+ *
+ * The broker identity of a SPID login is keyed by IdP alias and principal, so each IdP gets its
+ * own federated identity. The fiscal number is kept as one more federated identity of the user,
+ * under the reserved {@link #ALIAS} and with the normalized fiscal number as federated user ID:
+ * the lookup is then the federated identity lookup of the user store, which is backed by the
+ * database index on the federated user ID and by the user cache, and is shared by the cluster.
+ * The link must never be used to log in: {@link SpidIdentityProviderConfig#validate} rejects
+ * the reserved alias, and the index is neither read nor written while another kind of identity
+ * provider of the realm has it.
+ *
+ * Nothing in the user store keeps the federated user ID unique, so two concurrent first logins of
+ * the same person could both link the fiscal number. The link is claimed in the single-use token
+ * store before being written, and a fiscal number found linked to several users is ignored rather
+ * than failing the logins.
+ */
+public final class SpidFiscalNumberIndex {
+
+    protected static final Logger logger = Logger.getLogger(SpidFiscalNumberIndex.class);
+
+    /**
+     * The pseudo identity provider alias of the fiscal number links.
+     */
+    public static final String ALIAS = "spid-fiscal-number";
+
+    public static final String FISCAL_NUMBER = "fiscalNumber";
+
+    private static final String FISCAL_NUMBER_PREFIX = "TINIT-";
+
+    private static final String CONTEXT_KEY = SpidFiscalNumberIndex.class.getName();
+
+    private static final String CLAIM_PREFIX = "spid-fiscal-number.";
+
+    private static final int CLAIM_LIFESPAN_SECONDS = 60;
+
+    private SpidFiscalNumberIndex() {
+    }
+
+    /**
+     * The fiscal number in upper case and without its {@code TINIT-} prefix, or {@code null} if
+     * it is blank.
+     */
+    public static String normalize(String fiscalNumber) {
+        if (fiscalNumber == null) return null;
+
+        String normalized = fiscalNumber.trim().toUpperCase(Locale.ROOT);
+        if (normalized.startsWith(FISCAL_NUMBER_PREFIX)) {
+            normalized = normalized.substring(FISCAL_NUMBER_PREFIX.length()).trim();
+        }
+        return normalized.isEmpty() ? null : normalized;
+    }
+
+    /**
+     * Returns the user with the given fiscal number, or {@code null}.
+     */
+    public static UserModel getUser(KeycloakSession session, RealmModel realm, String fiscalNumber) {
+        String normalized = normalize(fiscalNumber);
+        if (normalized == null || isAliasTaken(realm)) return null;
+
+        try {
+            return session.users().getUserByFederatedIdentity(realm, link(normalized));
+        } catch (IllegalStateException e) {
+            logDuplicate(realm);
+            return null;
+        }
+    }
+
+    /**
+     * Records the fiscal number of the assertion of the given login for the given user, once per
+     * login whatever the number of SPID mappers calling it.
+     */
+    public static void update(KeycloakSession session, RealmModel realm, UserModel user, BrokeredIdentityContext context) {
+        if (user.getId().equals(context.getContextData().get(CONTEXT_KEY))) return;
+        context.getContextData().put(CONTEXT_KEY, user.getId());
+
+        String fiscalNumber = SpidAssertionAttributes.of(context).getFirst(FISCAL_NUMBER);
+        if (fiscalNumber != null) {
+            put(session, realm, user, fiscalNumber);
+        }
+    }
+
+    /**
+     * Records the fiscal number of the given user, replacing the previous one.
+     *
+     * @return whether the index has been written
+     */
+    public static boolean put(KeycloakSession session, RealmModel realm, UserModel user, String fiscalNumber) {
+        return put(session, realm, user, fiscalNumber, null);
+    }
+
+    /**
+     * As {@link #put(KeycloakSession, RealmModel, UserModel, String)}, for a caller that keeps its
+     * claims in {@code claimed}: a fiscal number found there is not claimed again, and a new claim
+     * is added to it. Claims outlive the transaction that took them, so a caller retrying the writes
+     * of a rolled back transaction must hand the same set to the retry.
+     */
+    static boolean put(KeycloakSession session, RealmModel realm, UserModel user, String fiscalNumber, Set<String> claimed) {
+        String normalized = normalize(fiscalNumber);
+        if (normalized == null || isAliasTaken(realm)) return false;
+
+        FederatedIdentityModel current = session.users().getFederatedIdentity(realm, user, ALIAS);
+        if (current != null && normalized.equals(current.getUserId())) return false;
+
+        UserModel owner;
+        try {
+            owner = session.users().getUserByFederatedIdentity(realm, link(normalized));
+        } catch (IllegalStateException e) {
+            logDuplicate(realm);
+            return false;
+        }
+        if (owner != null && ! owner.getId().equals(user.getId())) {
+            logger.warnf("fiscal number of user %s already linked to user %s in realm %s",
+                user.getId(), owner.getId(), realm.getName());
+            return false;
+        }
+
+        // The link written by a concurrent login is not visible before its transaction commits
+        if (! claim(session, realm, normalized, claimed)) {
+            logger.debugf("fiscal number of user %s is being linked by another login in realm %s", user.getId(), realm.getName());
+            return false;
+        }
+
+        if (current != null) {
+            session.users().removeFederatedIdentity(realm, user, ALIAS);
+        }
+        session.users().addFederatedIdentity(realm, user, link(normalized));
+        return true;
+    }
+
+    private static boolean claim(KeycloakSession session, RealmModel realm, String normalized, Set<String> claimed) {
+        if (claimed != null && claimed.contains(normalized)) return true;
+
+        SingleUseTokenStoreProvider claims = session.getProvider(SingleUseTokenStoreProvider.class);
+        if (claims != null && ! claims.putIfAbsent(CLAIM_PREFIX + realm.getId() + "." + normalized, CLAIM_LIFESPAN_SECONDS)) {
+            return false;
+        }
+        if (claimed != null) claimed.add(normalized);
+        return true;
+    }
+
+    /**
+     * Whether an identity provider of the realm has the reserved alias, in which case its principals
+     * would log in as the users linked by fiscal number.
+     */
+    private static boolean isAliasTaken(RealmModel realm) {
+        if (realm.getIdentityProviderByAlias(ALIAS) == null) return false;
+
+        logger.errorf("identity provider %s of realm %s has the alias reserved for the fiscal number links, remove it",
+            ALIAS, realm.getName());
+        return true;
+    }
+
+    private static void logDuplicate(RealmModel realm) {
+        // The user store fails the lookup when the federated user ID is linked to several users
+        logger.warnf("a fiscal number is linked to several users in realm %s and is ignored,"
+            + " remove the extra %s federated identities", realm.getName(), ALIAS);
+    }
+
+    private static FederatedIdentityModel link(String normalized) {
+        return new FederatedIdentityModel(ALIAS, normalized, normalized);
+    }
+}
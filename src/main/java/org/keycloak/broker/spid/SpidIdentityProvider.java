@@ -23,8 +23,10 @@ import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.broker.provider.IdentityBrokerException;
 import org.keycloak.broker.provider.IdentityProviderDataMarshaller;
 import org.keycloak.broker.provider.IdentityProviderMapper;
-import org.keycloak.broker.provider.util.SimpleHttp;
 import org.keycloak.broker.saml.SAMLDataMarshaller;
+import org.keycloak.broker.spid.jfr.SpidJfrEvent;
+import org.keycloak.broker.spid.metrics.SpidMetricsProvider;
+import org.keycloak.broker.spid.tracing.SpidSpan;
 import org.keycloak.common.util.PemUtils;
 import org.keycloak.crypto.Algorithm;
 import org.keycloak.crypto.KeyStatus;
@@ -71,7 +73,6 @@ import org.keycloak.saml.processing.core.saml.v2.writers.SAMLMetadataWriter;
 import org.keycloak.saml.processing.core.util.KeycloakKeySamlExtensionGenerator;
 import org.keycloak.saml.validators.DestinationValidator;
 import org.keycloak.sessions.AuthenticationSessionModel;
-import org.keycloak.util.JsonSerialization;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -88,10 +89,11 @@ import javax.xml.stream.XMLStreamWriter;
 import java.io.StringWriter;
 import java.net.URI;
 import java.security.KeyPair;
-import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -101,10 +103,19 @@ public class SpidIdentityProvider extends AbstractIdentityProvider<SpidIdentityP
     protected static final Logger logger = Logger.getLogger(SpidIdentityProvider.class);
 
     private final DestinationValidator destinationValidator;
+    private final SpidConfigSnapshot snapshot;
 
     public SpidIdentityProvider(KeycloakSession session, SpidIdentityProviderConfig config, DestinationValidator destinationValidator) {
         super(session, config);
         this.destinationValidator = destinationValidator;
+        this.snapshot = SpidConfigSnapshot.of(config);
+    }
+
+    /**
+     * @return the pre-parsed view of this provider's configuration
+     */
+    public SpidConfigSnapshot getSnapshot() {
+        return snapshot;
     }
 
     @Override
@@ -114,12 +125,16 @@ public class SpidIdentityProvider extends AbstractIdentityProvider<SpidIdentityP
 
     @Override
     public Response performLogin(AuthenticationRequest request) {
+        long startNanos = System.nanoTime();
+        SpidSpan span = SpidSpan.start(session, "spid.login");
+        span.setAttribute("spid.idp", snapshot.getAlias());
+        SpidJfrEvent jfr = SpidJfrEvent.begin(SpidJfrEvent.Type.LOGIN_REQUEST, snapshot.getAlias());
         try {
             UriInfo uriInfo = request.getUriInfo();
             RealmModel realm = request.getRealm();
             String issuerURL = getEntityId(uriInfo, realm);
-            String destinationUrl = getConfig().getSingleSignOnServiceUrl();
-            String nameIDPolicyFormat = getConfig().getNameIDPolicyFormat();
+            String destinationUrl = snapshot.getSingleSignOnServiceUrl();
+            String nameIDPolicyFormat = snapshot.getNameIDPolicyFormat();
 
             if (nameIDPolicyFormat == null) {
                 nameIDPolicyFormat =  JBossSAMLURIConstants.NAMEID_FORMAT_PERSISTENT.get();
@@ -129,26 +144,24 @@ public class SpidIdentityProvider extends AbstractIdentityProvider<SpidIdentityP
 
             String assertionConsumerServiceUrl = request.getRedirectUri();
 
-            if (getConfig().isPostBindingResponse()) {
+            if (snapshot.isPostBindingResponse()) {
                 protocolBinding = JBossSAMLURIConstants.SAML_HTTP_POST_BINDING.get();
             }
 
             SAML2RequestedAuthnContextBuilder requestedAuthnContext =
                 new SAML2RequestedAuthnContextBuilder()
-                    .setComparison(getConfig().getAuthnContextComparisonType());
+                    .setComparison(snapshot.getAuthnContextComparisonType());
 
-            for (String authnContextClassRef : getAuthnContextClassRefUris())
+            for (String authnContextClassRef : snapshot.getAuthnContextClassRefs())
                 requestedAuthnContext.addAuthnContextClassRef(authnContextClassRef);
 
-            for (String authnContextDeclRef : getAuthnContextDeclRefUris())
+            for (String authnContextDeclRef : snapshot.getAuthnContextDeclRefs())
                 requestedAuthnContext.addAuthnContextDeclRef(authnContextDeclRef);
 
-            Integer attributeConsumingServiceIndex = getConfig().getAttributeConsumingServiceIndex();
+            Integer attributeConsumingServiceIndex = snapshot.getAttributeConsumingServiceIndex();
 
-            String loginHint = getConfig().isLoginHint() ? request.getAuthenticationSession().getClientNote(OIDCLoginProtocol.LOGIN_HINT_PARAM) : null;
-            Boolean allowCreate = null;
-            if (getConfig().getConfig().get(SpidIdentityProviderConfig.ALLOW_CREATE) == null || getConfig().isAllowCreate())
-                allowCreate = Boolean.TRUE;
+            String loginHint = snapshot.isLoginHint() ? request.getAuthenticationSession().getClientNote(OIDCLoginProtocol.LOGIN_HINT_PARAM) : null;
+            Boolean allowCreate = snapshot.isAllowCreate() ? Boolean.TRUE : null;
             SAML2AuthnRequestBuilder authnRequestBuilder = new SAML2AuthnRequestBuilder()
                     .assertionConsumerUrl(assertionConsumerServiceUrl)
                     .destination(destinationUrl)
@@ -158,7 +171,7 @@ public class SpidIdentityProvider extends AbstractIdentityProvider<SpidIdentityP
                         // SPID: Aggiungi l'attributo Format all'elemento Issuer
                         .setFormat(JBossSAMLURIConstants.NAMEID_FORMAT_ENTITY.get())
                         .build())
-                    .forceAuthn(getConfig().isForceAuthn())
+                    .forceAuthn(snapshot.isForceAuthn())
                     .protocolBinding(protocolBinding)
                     .nameIdPolicy(SAML2NameIDPolicyBuilder
                         .format(nameIDPolicyFormat)
@@ -169,18 +182,17 @@ public class SpidIdentityProvider extends AbstractIdentityProvider<SpidIdentityP
                     .requestedAuthnContext(requestedAuthnContext)
                     .subject(loginHint);
 
-            JaxrsSAML2BindingBuilder binding = new JaxrsSAML2BindingBuilder(session)
-                    .relayState(request.getState().getEncoded());
-            boolean postBinding = getConfig().isPostBindingAuthnRequest();
+            JaxrsSAML2BindingBuilder binding = new JaxrsSAML2BindingBuilder(session);
+            boolean postBinding = snapshot.isPostBindingAuthnRequest();
 
-            if (getConfig().isWantAuthnRequestsSigned()) {
+            if (snapshot.isWantAuthnRequestsSigned()) {
                 KeyManager.ActiveRsaKey keys = session.keys().getActiveRsaKey(realm);
 
-                String keyName = getConfig().getXmlSigKeyInfoKeyNameTransformer().getKeyName(keys.getKid(), keys.getCertificate());
+                String keyName = snapshot.getXmlSigKeyInfoKeyNameTransformer().getKeyName(keys.getKid(), keys.getCertificate());
                 binding.signWith(keyName, keys.getPrivateKey(), keys.getPublicKey(), keys.getCertificate())
                         .signatureAlgorithm(getSignatureAlgorithm())
                         .signDocument();
-                if (! postBinding && getConfig().isAddExtensionsElementWithKeyInfo()) {    // Only include extension if REDIRECT binding and signing whole SAML protocol message
+                if (! postBinding && snapshot.isAddExtensionsElementWithKeyInfo()) {    // Only include extension if REDIRECT binding and signing whole SAML protocol message
                     authnRequestBuilder.addExtension(new KeycloakKeySamlExtensionGenerator(keyName));
                 }
             }
@@ -194,21 +206,56 @@ public class SpidIdentityProvider extends AbstractIdentityProvider<SpidIdentityP
                 destinationUrl = authnRequest.getDestination().toString();
             }
 
+            SpidIdentityProviderFactory.get(session).getHealthTracker().watch(realm.getId(), snapshot.getAlias(), destinationUrl);
+
             // Save the current RequestID in the Auth Session as we need to verify it against the ID returned from the IdP
             request.getAuthenticationSession().setClientNote(SamlProtocol.SAML_REQUEST_ID, authnRequest.getID());
+            span.correlate(authnRequest.getID());
 
+            String relayState = request.getState().getEncoded();
+            if (snapshot.isStatelessRelayState()) {
+                relayState = SpidRelayStateToken.encode(session, realm, authnRequest.getID(), relayState);
+            }
+            binding.relayState(relayState);
+
+            Response response;
             if (postBinding) {
-                return binding.postBinding(authnRequestBuilder.toDocument()).request(destinationUrl);
+                response = binding.postBinding(authnRequestBuilder.toDocument()).request(destinationUrl);
             } else {
-                return binding.redirectBinding(authnRequestBuilder.toDocument()).request(destinationUrl);
+                response = binding.redirectBinding(authnRequestBuilder.toDocument()).request(destinationUrl);
+            }
+            if (jfr.isRecording()) {
+                jfr.setBinding(postBinding ? SamlProtocol.SAML_POST_BINDING : SamlProtocol.SAML_REDIRECT_BINDING);
+                jfr.setPayloadSize(getPayloadSize(response));
+                jfr.setOutcome(SpidMetricsProvider.RESPONSE_SUCCESS);
             }
+            return response;
         } catch (Exception e) {
+            span.setError(e.getMessage());
+            jfr.setOutcome("error");
             throw new IdentityBrokerException("Could not create authentication request.", e);
+        } finally {
+            span.end();
+            jfr.end();
+            SpidMetricsProvider metrics = session.getProvider(SpidMetricsProvider.class);
+            if (metrics != null) {
+                metrics.recordLogin(snapshot.getAlias(), System.nanoTime() - startNanos);
+            }
         }
     }
 
+    /**
+     * Returns the size of the HTML form of the POST binding, or of the URL of the redirect binding.
+     */
+    private static long getPayloadSize(Response response) {
+        if (response.getEntity() instanceof String) {
+            return ((String) response.getEntity()).length();
+        }
+        return response.getLocation() == null ? 0 : response.getLocation().toString().length();
+    }
+
     private String getEntityId(UriInfo uriInfo, RealmModel realm) {
-        String configEntityId = getConfig().getEntityId();
+        String configEntityId = snapshot.getEntityId();
 
         if (configEntityId == null || configEntityId.isEmpty())
             return UriBuilder.fromUri(uriInfo.getBaseUri()).path("realms").path(realm.getName()).build().toString();
@@ -216,32 +263,6 @@ public class SpidIdentityProvider extends AbstractIdentityProvider<SpidIdentityP
             return configEntityId;
     }
 
-    private List<String> getAuthnContextClassRefUris() {
-        String authnContextClassRefs = getConfig().getAuthnContextClassRefs();
-        if (authnContextClassRefs == null || authnContextClassRefs.isEmpty())
-            return new LinkedList<String>();
-
-        try {
-            return Arrays.asList(JsonSerialization.readValue(authnContextClassRefs, String[].class));
-        } catch (Exception e) {
-            logger.warn("Could not json-deserialize AuthContextClassRefs config entry: " + authnContextClassRefs, e);
-            return new LinkedList<String>();
-        }
-    }
-
-    private List<String> getAuthnContextDeclRefUris() {
-        String authnContextDeclRefs = getConfig().getAuthnContextDeclRefs();
-        if (authnContextDeclRefs == null || authnContextDeclRefs.isEmpty())
-            return new LinkedList<String>();
-
-        try {
-            return Arrays.asList(JsonSerialization.readValue(authnContextDeclRefs, String[].class));
-        } catch (Exception e) {
-            logger.warn("Could not json-deserialize AuthContextDeclRefs config entry: " + authnContextDeclRefs, e);
-            return new LinkedList<String>();
-        }
-    }
-
     @Override
     public void authenticationFinished(AuthenticationSessionModel authSession, BrokeredIdentityContext context)  {
         ResponseType responseType = (ResponseType)context.getContextData().get(SpidSAMLEndpoint.SAML_LOGIN_RESPONSE);
@@ -257,6 +278,10 @@ public class SpidIdentityProvider extends AbstractIdentityProvider<SpidIdentityP
             authSession.setUserSessionNote(SpidSAMLEndpoint.SAML_FEDERATED_SESSION_INDEX, authn.getSessionIndex());
 
         }
+
+        // The user session created for this login takes the ID of the root authentication session
+        SpidBrokerSessionIndex.putAfterCommit(session, authSession.getRealm(), authSession.getParentSession().getId(),
+            context.getBrokerSessionId());
     }
 
     @Override
@@ -266,33 +291,54 @@ public class SpidIdentityProvider extends AbstractIdentityProvider<SpidIdentityP
 
     @Override
     public void backchannelLogout(KeycloakSession session, UserSessionModel userSession, UriInfo uriInfo, RealmModel realm) {
-        String singleLogoutServiceUrl = getConfig().getSingleLogoutServiceUrl();
-        if (singleLogoutServiceUrl == null || singleLogoutServiceUrl.trim().equals("") || !getConfig().isBackchannelSupported()) return;
+        SpidBrokerSessionIndex.remove(realm, userSession);
+        String singleLogoutServiceUrl = snapshot.getSingleLogoutServiceUrl();
+        if (singleLogoutServiceUrl == null || singleLogoutServiceUrl.trim().equals("") || !snapshot.isBackchannelSupported()) return;
+        SpidMetricsProvider metrics = session.getProvider(SpidMetricsProvider.class);
+        String alias = snapshot.getAlias();
+        String realmId = realm.getId();
+        SpidIdentityProviderFactory factory = SpidIdentityProviderFactory.get(session);
+        SpidIdpHealthTracker healthTracker = factory.getHealthTracker();
+        if (! healthTracker.allowRequest(realmId, alias)) {
+            // The IdP is known to be failing, do not spend a delivery on it
+            logger.debugf("Skipping saml backchannel broker logout to: %s, the IdP circuit is open", singleLogoutServiceUrl);
+            if (metrics != null) metrics.countBackchannelLogout(alias, "skipped");
+            return;
+        }
         JaxrsSAML2BindingBuilder binding = buildLogoutBinding(session, userSession, realm);
+        SpidJfrEvent jfr = SpidJfrEvent.begin(SpidJfrEvent.Type.BACKCHANNEL_LOGOUT, snapshot.getAlias());
+        jfr.setBinding(SamlProtocol.SAML_POST_BINDING);
         try {
             LogoutRequestType logoutRequest = buildLogoutRequest(userSession, uriInfo, realm, singleLogoutServiceUrl);
             if (logoutRequest.getDestination() != null) {
                 singleLogoutServiceUrl = logoutRequest.getDestination().toString();
             }
-            int status = SimpleHttp.doPost(singleLogoutServiceUrl, session)
-                    .param(GeneralConstants.SAML_REQUEST_KEY, binding.postBinding(SAML2Request.convert(logoutRequest)).encoded())
-                    .param(GeneralConstants.RELAY_STATE, userSession.getId()).asStatus();
-            boolean success = status >=200 && status < 400;
-            if (!success) {
-                logger.warn("Failed saml backchannel broker logout to: " + singleLogoutServiceUrl);
-            }
+            // The request is signed and encoded here, delivery to the IdP happens in the background
+            Map<String, String> params = new LinkedHashMap<>();
+            params.put(GeneralConstants.SAML_REQUEST_KEY, binding.postBinding(SAML2Request.convert(logoutRequest)).encoded());
+            params.put(GeneralConstants.RELAY_STATE, userSession.getId());
+            boolean queued = factory.getLogoutDispatcher().enqueue(session, singleLogoutServiceUrl, params, outcome -> {
+                healthTracker.recordBackchannelLogout(realmId, alias, outcome);
+                if (metrics != null) metrics.countBackchannelLogout(alias, outcome.getName());
+            });
+            jfr.setPayloadSize(params.get(GeneralConstants.SAML_REQUEST_KEY).length());
+            jfr.setOutcome(queued ? "queued" : SpidBackchannelLogoutDispatcher.Outcome.DROPPED.getName());
         } catch (Exception e) {
+            jfr.setOutcome("error");
             logger.warn("Failed saml backchannel broker logout to: " + singleLogoutServiceUrl, e);
+        } finally {
+            jfr.end();
         }
 
     }
 
     @Override
     public Response keycloakInitiatedBrowserLogout(KeycloakSession session, UserSessionModel userSession, UriInfo uriInfo, RealmModel realm) {
-        String singleLogoutServiceUrl = getConfig().getSingleLogoutServiceUrl();
+        SpidBrokerSessionIndex.remove(realm, userSession);
+        String singleLogoutServiceUrl = snapshot.getSingleLogoutServiceUrl();
         if (singleLogoutServiceUrl == null || singleLogoutServiceUrl.trim().equals("")) return null;
 
-        if (getConfig().isBackchannelSupported()) {
+        if (snapshot.isBackchannelSupported()) {
             backchannelLogout(session, userSession, uriInfo, realm);
             return null;
        } else {
@@ -302,7 +348,7 @@ public class SpidIdentityProvider extends AbstractIdentityProvider<SpidIdentityP
                     singleLogoutServiceUrl = logoutRequest.getDestination().toString();
                 }
                 JaxrsSAML2BindingBuilder binding = buildLogoutBinding(session, userSession, realm);
-                if (getConfig().isPostBindingLogout()) {
+                if (snapshot.isPostBindingLogout()) {
                     return binding.postBinding(SAML2Request.convert(logoutRequest)).request(singleLogoutServiceUrl);
                 } else {
                     return binding.redirectBinding(SAML2Request.convert(logoutRequest)).request(singleLogoutServiceUrl);
@@ -341,9 +387,9 @@ public class SpidIdentityProvider extends AbstractIdentityProvider<SpidIdentityP
     private JaxrsSAML2BindingBuilder buildLogoutBinding(KeycloakSession session, UserSessionModel userSession, RealmModel realm) {
         JaxrsSAML2BindingBuilder binding = new JaxrsSAML2BindingBuilder(session)
                 .relayState(userSession.getId());
-        if (getConfig().isWantAuthnRequestsSigned()) {
+        if (snapshot.isWantAuthnRequestsSigned()) {
             KeyManager.ActiveRsaKey keys = session.keys().getActiveRsaKey(realm);
-            String keyName = getConfig().getXmlSigKeyInfoKeyNameTransformer().getKeyName(keys.getKid(), keys.getCertificate());
+            String keyName = snapshot.getXmlSigKeyInfoKeyNameTransformer().getKeyName(keys.getKid(), keys.getCertificate());
             binding.signWith(keyName, keys.getPrivateKey(), keys.getPublicKey(), keys.getCertificate())
                     .signatureAlgorithm(getSignatureAlgorithm())
                     .signDocument();
@@ -353,11 +399,12 @@ public class SpidIdentityProvider extends AbstractIdentityProvider<SpidIdentityP
 
     @Override
     public Response export(UriInfo uriInfo, RealmModel realm, String format) {
+        SpidJfrEvent jfr = SpidJfrEvent.begin(SpidJfrEvent.Type.METADATA, snapshot.getAlias());
         try
         {
             URI authnBinding = JBossSAMLURIConstants.SAML_HTTP_REDIRECT_BINDING.getUri();
 
-            if (getConfig().isPostBindingAuthnRequest()) {
+            if (snapshot.isPostBindingAuthnRequest()) {
                 authnBinding = JBossSAMLURIConstants.SAML_HTTP_POST_BINDING.getUri();
             }
 
@@ -368,13 +415,13 @@ public class SpidIdentityProvider extends AbstractIdentityProvider<SpidIdentityP
                     .path("endpoint")
                     .build();
 
-            boolean wantAuthnRequestsSigned = getConfig().isWantAuthnRequestsSigned();
-            boolean wantAssertionsSigned = getConfig().isWantAssertionsSigned();
-            boolean wantAssertionsEncrypted = getConfig().isWantAssertionsEncrypted();
+            boolean wantAuthnRequestsSigned = snapshot.isWantAuthnRequestsSigned();
+            boolean wantAssertionsSigned = snapshot.isWantAssertionsSigned();
+            boolean wantAssertionsEncrypted = snapshot.isWantAssertionsEncrypted();
             String entityId = getEntityId(uriInfo, realm);
-            String nameIDPolicyFormat = getConfig().getNameIDPolicyFormat();
-            int attributeConsumingServiceIndex = getConfig().getAttributeConsumingServiceIndex() != null ? getConfig().getAttributeConsumingServiceIndex(): 1;
-            String attributeConsumingServiceName = getConfig().getAttributeConsumingServiceName();
+            String nameIDPolicyFormat = snapshot.getNameIDPolicyFormat();
+            int attributeConsumingServiceIndex = snapshot.getAttributeConsumingServiceIndex() != null ? snapshot.getAttributeConsumingServiceIndex(): 1;
+            String attributeConsumingServiceName = snapshot.getAttributeConsumingServiceName();
 
             List<Element> signingKeys = new LinkedList<>();
             List<Element> encryptionKeys = new LinkedList<>();
@@ -450,10 +497,10 @@ public class SpidIdentityProvider extends AbstractIdentityProvider<SpidIdentityP
             String descriptor = sw.toString();
 
             // Metadata signing
-            if (getConfig().isSignSpMetadata())
+            if (snapshot.isSignSpMetadata())
             {
                 KeyManager.ActiveRsaKey activeKey = session.keys().getActiveRsaKey(realm);
-                String keyName = getConfig().getXmlSigKeyInfoKeyNameTransformer().getKeyName(activeKey.getKid(), activeKey.getCertificate());
+                String keyName = snapshot.getXmlSigKeyInfoKeyNameTransformer().getKeyName(activeKey.getKid(), activeKey.getCertificate());
                 KeyPair keyPair = new KeyPair(activeKey.getPublicKey(), activeKey.getPrivateKey());
 
                 Document metadataDocument = DocumentUtil.getDocument(descriptor);
@@ -469,20 +516,20 @@ public class SpidIdentityProvider extends AbstractIdentityProvider<SpidIdentityP
                 descriptor = DocumentUtil.getDocumentAsString(metadataDocument);
             }
 
+            jfr.setPayloadSize(descriptor.length());
+            jfr.setOutcome(SpidMetricsProvider.RESPONSE_SUCCESS);
             return Response.ok(descriptor, MediaType.APPLICATION_XML_TYPE).build();
         } catch (Exception e) {
+            jfr.setOutcome("error");
             logger.warn("Failed to export SAML SP Metadata!", e);
             throw new RuntimeException(e);
+        } finally {
+            jfr.end();
         }
     }
 
     public SignatureAlgorithm getSignatureAlgorithm() {
-        String alg = getConfig().getSignatureAlgorithm();
-        if (alg != null) {
-            SignatureAlgorithm algorithm = SignatureAlgorithm.valueOf(alg);
-            if (algorithm != null) return algorithm;
-        }
-        return SignatureAlgorithm.RSA_SHA256;
+        return snapshot.getSignatureAlgorithm();
     }
 
     @Override
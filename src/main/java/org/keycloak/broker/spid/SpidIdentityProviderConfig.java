@@ -19,6 +19,7 @@ package org.keycloak.broker.spid;
 import static org.keycloak.common.util.UriUtils.checkUrl;
 
 import org.keycloak.common.enums.SslRequired;
+import org.keycloak.common.util.Resteasy;
 import org.keycloak.dom.saml.v2.protocol.AuthnContextComparisonType;
 import org.keycloak.models.IdentityProviderModel;
 import org.keycloak.models.KeycloakSession;
@@ -57,6 +58,7 @@ public class SpidIdentityProviderConfig extends IdentityProviderModel {
     public static final String AUTHN_CONTEXT_DECL_REFS = "authnContextDeclRefs";
     public static final String SIGN_SP_METADATA = "signSpMetadata";
     public static final String ALLOW_CREATE = "allowCreate";
+    public static final String STATELESS_RELAY_STATE = "statelessRelayState";
     public static final String ATTRIBUTE_CONSUMING_SERVICE_INDEX = "attributeConsumingServiceIndex";
     public static final String ATTRIBUTE_CONSUMING_SERVICE_NAME = "attributeConsumingServiceName";
     public static final String ORGANIZATION_NAMES = "organizationNames";
@@ -73,11 +75,19 @@ public class SpidIdentityProviderConfig extends IdentityProviderModel {
     public static final String BILLING_CONTACT_PHONE = "billingContactPhone";
     public static final String BILLING_CONTACT_EMAIL = "billingContactEmail";
 
+    // The model this config is copied from, to tell a changed model from the one of a snapshot
+    private transient IdentityProviderModel source;
+
     public SpidIdentityProviderConfig(){
     }
 
     public SpidIdentityProviderConfig(IdentityProviderModel identityProviderModel) {
         super(identityProviderModel);
+        this.source = identityProviderModel;
+    }
+
+    IdentityProviderModel getSource() {
+        return source;
     }
 
     public String getEntityId() {
@@ -357,6 +367,14 @@ public class SpidIdentityProviderConfig extends IdentityProviderModel {
         getConfig().put(ALLOW_CREATE, String.valueOf(allowCreate));
     }
 
+    public boolean isStatelessRelayState() {
+        return Boolean.valueOf(getConfig().get(STATELESS_RELAY_STATE));
+    }
+
+    public void setStatelessRelayState(boolean statelessRelayState) {
+        getConfig().put(STATELESS_RELAY_STATE, String.valueOf(statelessRelayState));
+    }
+
     public Integer getAttributeConsumingServiceIndex() {
         Integer result = null;
         String strAttributeConsumingServiceIndex = getConfig().get(ATTRIBUTE_CONSUMING_SERVICE_INDEX);
@@ -422,7 +440,14 @@ public class SpidIdentityProviderConfig extends IdentityProviderModel {
         //transient name id format is not accepted together with principaltype SubjectnameId
         if (JBossSAMLURIConstants.NAMEID_FORMAT_TRANSIENT.get().equals(getNameIDPolicyFormat()) && SamlPrincipalType.SUBJECT == getPrincipalType())
             throw new IllegalArgumentException("Can not have Transient NameID Policy Format together with SUBJECT Principal Type");
-        
+        //the fiscal number links are federated identities of the reserved alias, and must not be used to log in
+        if (SpidFiscalNumberIndex.ALIAS.equals(getAlias()))
+            throw new IllegalArgumentException("The alias " + SpidFiscalNumberIndex.ALIAS + " is reserved");
+
+        // Keycloak publishes no event on identity provider creation, so a validated configuration
+        // (create or update) is the earliest point where the realm's SPID provider list may change;
+        // it only changes once the admin request commits
+        SpidIdentityProviderRegistry.invalidateAfterCommit(Resteasy.getContextData(KeycloakSession.class), realm.getId(), this);
     }
 
     public boolean isSpPrivate() {
@@ -26,6 +26,8 @@ import javax.xml.namespace.QName;
 
 import org.keycloak.Config.Scope;
 import org.keycloak.broker.provider.AbstractIdentityProviderFactory;
+import org.keycloak.broker.provider.IdentityProvider;
+import org.keycloak.broker.spid.metrics.SpidSlowResponseLogger;
 import org.keycloak.common.util.Time;
 import org.keycloak.dom.saml.v2.assertion.AttributeType;
 import org.keycloak.dom.saml.v2.metadata.EndpointType;
@@ -36,6 +38,11 @@ import org.keycloak.dom.saml.v2.metadata.KeyDescriptorType;
 import org.keycloak.dom.saml.v2.metadata.KeyTypes;
 import org.keycloak.models.IdentityProviderModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.protocol.LoginProtocol;
+import org.keycloak.protocol.LoginProtocolFactory;
+import org.keycloak.protocol.saml.SamlProtocol;
+import org.keycloak.provider.ProviderFactory;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
 import org.keycloak.saml.common.exceptions.ParsingException;
 import org.keycloak.saml.common.util.DocumentUtil;
@@ -54,6 +61,23 @@ public class SpidIdentityProviderFactory extends AbstractIdentityProviderFactory
     private static final String REFEDS_HIDE_FROM_DISCOVERY = "http://refeds.org/category/hide-from-discovery";
 
     private DestinationValidator destinationValidator;
+    private long providerRegistryTtl = SpidIdentityProviderRegistry.DEFAULT_TTL_MILLIS;
+    private SpidLogoutExecutor logoutExecutor = SpidLogoutExecutor.defaults();
+    private SpidBackchannelLogoutDispatcher logoutDispatcher;
+    private LoginProtocolFactory samlProtocolFactory;
+    private SpidReplayCache replayCache = SpidReplayCache.create(SpidReplayCache.MODE_LOCAL, SpidReplayCache.DEFAULT_MAX_ENTRIES);
+    private SpidSlowResponseLogger slowResponseLogger = SpidSlowResponseLogger.defaults();
+    private SpidIdpHealthTracker healthTracker = SpidIdpHealthTracker.defaults();
+    private long idpProbeInterval = SpidIdpHealthTracker.DEFAULT_PROBE_INTERVAL_MILLIS;
+
+    /**
+     * Returns the registered SPID identity provider factory, which holds the components shared by
+     * all SPID providers of this server.
+     */
+    public static SpidIdentityProviderFactory get(KeycloakSession session) {
+        ProviderFactory<?> factory = session.getKeycloakSessionFactory().getProviderFactory(IdentityProvider.class, PROVIDER_ID);
+        return (SpidIdentityProviderFactory) factory;
+    }
 
     @Override
     public String getName() {
@@ -189,6 +213,30 @@ public class SpidIdentityProviderFactory extends AbstractIdentityProviderFactory
         return new HashMap<>();
     }
 
+    public SpidLogoutExecutor getLogoutExecutor() {
+        return logoutExecutor;
+    }
+
+    public SpidBackchannelLogoutDispatcher getLogoutDispatcher() {
+        return logoutDispatcher;
+    }
+
+    public SpidReplayCache getReplayCache() {
+        return replayCache;
+    }
+
+    public SpidIdpHealthTracker getHealthTracker() {
+        return healthTracker;
+    }
+
+    public SpidSlowResponseLogger getSlowResponseLogger() {
+        return slowResponseLogger;
+    }
+
+    public LoginProtocolFactory getSamlProtocolFactory() {
+        return samlProtocolFactory;
+    }
+
     @Override
     public String getId() {
         return PROVIDER_ID;
@@ -199,5 +247,59 @@ public class SpidIdentityProviderFactory extends AbstractIdentityProviderFactory
         super.init(config);
 
         this.destinationValidator = DestinationValidator.forProtocolMap(config.getArray("knownProtocols"));
+        this.providerRegistryTtl = config.getLong("providerRegistryTtl", SpidIdentityProviderRegistry.DEFAULT_TTL_MILLIS);
+        SpidConfigSnapshot.setRevalidateMillis(config.getLong("configSnapshotRevalidate", SpidConfigSnapshot.DEFAULT_REVALIDATE_MILLIS));
+        this.logoutExecutor = new SpidLogoutExecutor(
+            config.getInt("logoutParallelism", SpidLogoutExecutor.DEFAULT_PARALLELISM),
+            config.getLong("logoutSessionTimeout", SpidLogoutExecutor.DEFAULT_SESSION_TIMEOUT_MILLIS),
+            config.getLong("logoutDeadline", SpidLogoutExecutor.DEFAULT_DEADLINE_MILLIS));
+        this.logoutDispatcher = new SpidBackchannelLogoutDispatcher(
+            config.getInt("backchannelLogoutQueueSize", SpidBackchannelLogoutDispatcher.DEFAULT_QUEUE_SIZE),
+            config.getInt("backchannelLogoutThreads", SpidBackchannelLogoutDispatcher.DEFAULT_THREADS),
+            config.getInt("backchannelLogoutConnectTimeout", SpidBackchannelLogoutDispatcher.DEFAULT_CONNECT_TIMEOUT_MILLIS),
+            config.getInt("backchannelLogoutReadTimeout", SpidBackchannelLogoutDispatcher.DEFAULT_READ_TIMEOUT_MILLIS),
+            config.getInt("backchannelLogoutMaxRetries", SpidBackchannelLogoutDispatcher.DEFAULT_MAX_RETRIES),
+            config.getLong("backchannelLogoutRetryBackoff", SpidBackchannelLogoutDispatcher.DEFAULT_RETRY_BACKOFF_MILLIS));
+        this.replayCache = SpidReplayCache.create(
+            config.get("replayCacheMode", SpidReplayCache.MODE_LOCAL),
+            config.getInt("replayCacheMaxEntries", SpidReplayCache.DEFAULT_MAX_ENTRIES));
+        this.slowResponseLogger.close();
+        this.slowResponseLogger = new SpidSlowResponseLogger(
+            config.getLong("slowResponseThreshold", SpidSlowResponseLogger.DEFAULT_THRESHOLD_MILLIS),
+            config.getInt("slowResponseMaxLogsPerMinute", SpidSlowResponseLogger.DEFAULT_MAX_PER_MINUTE));
+        this.healthTracker = new SpidIdpHealthTracker(
+            config.getInt("idpHealthWindowSize", SpidIdpHealthTracker.DEFAULT_WINDOW_SIZE),
+            config.getInt("idpHealthMinCalls", SpidIdpHealthTracker.DEFAULT_MIN_CALLS),
+            config.getInt("idpHealthFailureRatio", SpidIdpHealthTracker.DEFAULT_FAILURE_RATIO_PERCENT),
+            config.getLong("idpCircuitOpenDuration", SpidIdpHealthTracker.DEFAULT_OPEN_MILLIS),
+            System::currentTimeMillis);
+        this.idpProbeInterval = config.getLong("idpProbeInterval", SpidIdpHealthTracker.DEFAULT_PROBE_INTERVAL_MILLIS);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        super.postInit(factory);
+
+        SpidIdentityProviderRegistry.register(factory, providerRegistryTtl);
+        SpidIdpInitiatedClientCache.register(factory);
+        healthTracker.register(factory);
+        KeycloakSession session = factory.create();
+        try {
+            // Probes run without a session: give the dispatcher the Keycloak HTTP client up front
+            logoutDispatcher.useHttpClient(session);
+        } finally {
+            session.close();
+        }
+        healthTracker.startProbes(logoutDispatcher, idpProbeInterval);
+        this.samlProtocolFactory = (LoginProtocolFactory) factory.getProviderFactory(LoginProtocol.class, SamlProtocol.LOGIN_PROTOCOL);
+    }
+
+    @Override
+    public void close() {
+        if (logoutDispatcher != null) {
+            logoutDispatcher.close();
+        }
+        slowResponseLogger.close();
+        healthTracker.close();
     }
 }
@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Realm-scoped registry of the enabled SPID identity providers, ordered by alias.
+ *
+ * Entries are dropped when an identity provider of the realm is updated or removed, or when the
+ * realm itself is removed. Since Keycloak does not publish an event when an identity provider is
+ * created, and events are only delivered on the node where the change happened, entries also
+ * expire after a configurable time-to-live.
+ */
+public final class SpidIdentityProviderRegistry {
+    protected static final Logger logger = Logger.getLogger(SpidIdentityProviderRegistry.class);
+
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private static final String SESSION_ATTRIBUTE = SpidIdentityProviderRegistry.class.getName() + ".providers";
+
+    private static final ConcurrentMap<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+
+    private static volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+
+    private SpidIdentityProviderRegistry() {
+    }
+
+    private static final class Entry {
+        private final List<IdentityProviderModel> models;
+        private final long expiresAt;
+
+        private Entry(List<IdentityProviderModel> models, long expiresAt) {
+            this.models = models;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Subscribes the registry to the identity provider and realm lifecycle events of the given factory.
+     */
+    static void register(KeycloakSessionFactory factory, long ttlMillis) {
+        SpidIdentityProviderRegistry.ttlMillis = ttlMillis;
+        factory.register(SpidIdentityProviderRegistry::onEvent);
+    }
+
+    private static void onEvent(ProviderEvent event) {
+        if (event instanceof RealmModel.IdentityProviderUpdatedEvent) {
+            RealmModel.IdentityProviderUpdatedEvent updated = (RealmModel.IdentityProviderUpdatedEvent) event;
+            invalidateAfterCommit(updated.getKeycloakSession(), updated.getRealm().getId(), updated.getUpdatedIdentityProvider());
+        } else if (event instanceof RealmModel.IdentityProviderRemovedEvent) {
+            RealmModel.IdentityProviderRemovedEvent removed = (RealmModel.IdentityProviderRemovedEvent) event;
+            invalidateAfterCommit(removed.getKeycloakSession(), removed.getRealm().getId(), removed.getRemovedIdentityProvider());
+        } else if (event instanceof RealmModel.RealmRemovedEvent) {
+            String realmId = ((RealmModel.RealmRemovedEvent) event).getRealm().getId();
+            invalidate(realmId);
+            SpidBrokerSessionIndex.invalidateRealm(realmId);
+        }
+    }
+
+    /**
+     * Drops the registry entry of the given realm and the snapshot of the given identity provider
+     * once the transaction of the given session has committed: until then, a concurrent request
+     * would load and cache the previous configuration again. Without a session they are dropped
+     * right away.
+     */
+    static void invalidateAfterCommit(KeycloakSession session, String realmId, IdentityProviderModel model) {
+        if (session == null) {
+            invalidate(realmId);
+            evictSnapshot(model);
+            return;
+        }
+
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                invalidate(realmId);
+                evictSnapshot(model);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    private static void evictSnapshot(IdentityProviderModel model) {
+        if (model != null) {
+            SpidConfigSnapshot.evict(model.getInternalId() != null ? model.getInternalId() : model.getAlias());
+        }
+    }
+
+    /**
+     * Drops the registry entry of the given realm.
+     */
+    public static void invalidate(String realmId) {
+        if (realmId != null) {
+            ENTRIES.remove(realmId);
+        }
+    }
+
+    /**
+     * Returns the models of the enabled SPID identity providers of the realm, ordered by alias.
+     */
+    public static List<IdentityProviderModel> getModels(RealmModel realm) {
+        long now = System.currentTimeMillis();
+        Entry entry = ENTRIES.get(realm.getId());
+
+        if (entry == null || entry.expiresAt <= now) {
+            List<IdentityProviderModel> models = realm.getIdentityProvidersStream()
+                .filter(t -> SpidIdentityProviderFactory.PROVIDER_ID.equals(t.getProviderId()) && t.isEnabled())
+                .sorted(Comparator.comparing(IdentityProviderModel::getAlias))
+                .map(IdentityProviderModel::new)
+                .collect(Collectors.toList());
+
+            entry = new Entry(Collections.unmodifiableList(models), now + ttlMillis);
+            ENTRIES.put(realm.getId(), entry);
+        }
+
+        return entry.models;
+    }
+
+    /**
+     * Returns the enabled SPID identity providers of the realm, ordered by alias and instantiated
+     * by the registered {@link SpidIdentityProviderFactory}. Instances are bound to the given session
+     * and reused for the rest of the request.
+     */
+    @SuppressWarnings("unchecked")
+    public static List<SpidIdentityProvider> getProviders(KeycloakSession session, RealmModel realm) {
+        String attribute = SESSION_ATTRIBUTE + "." + realm.getId();
+        List<SpidIdentityProvider> providers = session.getAttribute(attribute, List.class);
+        if (providers != null) {
+            return providers;
+        }
+
+        SpidIdentityProviderFactory factory = SpidIdentityProviderFactory.get(session);
+
+        List<IdentityProviderModel> models = getModels(realm);
+        providers = new ArrayList<>(models.size());
+        for (IdentityProviderModel model : models) {
+            providers.add(factory.create(session, model));
+        }
+        providers = Collections.unmodifiableList(providers);
+
+        session.setAttribute(attribute, providers);
+        return providers;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid;
+
+import org.jboss.logging.Logger;
+import org.keycloak.broker.spid.metrics.SpidMetricsProvider;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderEvent;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Tracks the health of each SPID IdP and drives a circuit breaker per IdP.
+ *
+ * Failures only come from signals an outsider cannot produce: the outcomes of backchannel logouts
+ * and of the periodic probes of the SSO endpoint, every 30 seconds unless configured otherwise.
+ * The probes are the only failure signal of an IdP that is down while users try to log in, and
+ * should only be disabled where the IdPs cannot be reached from the server. Login responses reach the endpoint from
+ * the browser, where anyone can post forged ones or start a login and have the IdP answer with an
+ * error, so only the responses that passed every check count, as successes. SpidFault responses
+ * are counted apart, and are neither successes nor failures.
+ *
+ * The circuit opens when the failures among the last outcomes reach a ratio, and half-opens after a
+ * delay to let one trial request through. While the circuit is not closed the IdP is degraded:
+ * backchannel logouts are skipped, and the spid-idp-status resource reports it, so that the login
+ * theme can hide it or warn about it.
+ */
+public class SpidIdpHealthTracker {
+    protected static final Logger logger = Logger.getLogger(SpidIdpHealthTracker.class);
+
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    public static final int DEFAULT_MIN_CALLS = 5;
+    public static final int DEFAULT_FAILURE_RATIO_PERCENT = 50;
+    public static final long DEFAULT_OPEN_MILLIS = 30_000;
+    public static final long DEFAULT_PROBE_INTERVAL_MILLIS = 30_000;
+
+    public enum State {
+        CLOSED("closed"),
+        OPEN("open"),
+        HALF_OPEN("half_open");
+
+        private final String name;
+
+        State(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final int windowSize;
+    private final int minCalls;
+    private final int failureRatioPercent;
+    private final long openMillis;
+    private final LongSupplier clock;
+
+    private final ConcurrentMap<String, Health> health = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> probeUrls = new ConcurrentHashMap<>();
+    private ScheduledExecutorService probeScheduler;
+
+    public SpidIdpHealthTracker(int windowSize, int minCalls, int failureRatioPercent, long openMillis, LongSupplier clock) {
+        this.windowSize = windowSize;
+        this.minCalls = Math.min(minCalls, windowSize);
+        this.failureRatioPercent = failureRatioPercent;
+        this.openMillis = openMillis;
+        this.clock = clock;
+    }
+
+    public static SpidIdpHealthTracker defaults() {
+        return new SpidIdpHealthTracker(DEFAULT_WINDOW_SIZE, DEFAULT_MIN_CALLS, DEFAULT_FAILURE_RATIO_PERCENT,
+            DEFAULT_OPEN_MILLIS, System::currentTimeMillis);
+    }
+
+    /**
+     * Subscribes the tracker to the realm and identity provider removals of the given factory.
+     */
+    void register(KeycloakSessionFactory factory) {
+        factory.register(this::onEvent);
+    }
+
+    private void onEvent(ProviderEvent event) {
+        if (event instanceof RealmModel.IdentityProviderRemovedEvent) {
+            RealmModel.IdentityProviderRemovedEvent removed = (RealmModel.IdentityProviderRemovedEvent) event;
+            String key = key(removed.getRealm().getId(), removed.getRemovedIdentityProvider().getAlias());
+            health.remove(key);
+            probeUrls.remove(key);
+        } else if (event instanceof RealmModel.RealmRemovedEvent) {
+            String prefix = ((RealmModel.RealmRemovedEvent) event).getRealm().getId() + "/";
+            health.keySet().removeIf(key -> key.startsWith(prefix));
+            probeUrls.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+    }
+
+    /**
+     * Probes the SSO endpoints of the IdPs seen so far at the given interval, through the given
+     * dispatcher, or never if the interval is {@code 0}. An endpoint answering with a status below
+     * 500 is up.
+     */
+    void startProbes(SpidBackchannelLogoutDispatcher dispatcher, long intervalMillis) {
+        if (intervalMillis <= 0) return;
+
+        probeScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "spid-idp-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        probeScheduler.scheduleWithFixedDelay(() -> probe(dispatcher), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void probe(SpidBackchannelLogoutDispatcher dispatcher) {
+        for (Map.Entry<String, String> target : probeUrls.entrySet()) {
+            boolean up;
+            try {
+                up = dispatcher.probe(target.getValue()) < 500;
+            } catch (IOException | RuntimeException e) {
+                logger.debugf(e, "SPID IdP probe failed: %s", target.getValue());
+                up = false;
+            }
+            getHealth(target.getKey()).record(up ? Outcome.SUCCESS : Outcome.FAILURE);
+        }
+    }
+
+    /**
+     * Remembers the SSO endpoint of an IdP, for the probes.
+     */
+    public void watch(String realmId, String alias, String ssoUrl) {
+        if (probeScheduler == null || ssoUrl == null) return;
+        String key = key(realmId, alias);
+        if (!ssoUrl.equals(probeUrls.get(key))) {
+            probeUrls.put(key, ssoUrl);
+        }
+    }
+
+    /**
+     * Records the outcome of a login response, as counted by the {@link SpidMetricsProvider}. Only
+     * successful responses and SpidFault responses are recorded; other outcomes can be caused by
+     * anyone and are ignored.
+     */
+    public void recordResponse(String realmId, String alias, String outcome) {
+        Outcome result;
+        if (SpidMetricsProvider.RESPONSE_SUCCESS.equals(outcome)) {
+            result = Outcome.SUCCESS;
+        } else if (outcome != null && outcome.startsWith("SpidFault_")) {
+            result = Outcome.FAULT;
+        } else {
+            return;
+        }
+        getHealth(key(realmId, alias)).record(result);
+    }
+
+    public void recordBackchannelLogout(String realmId, String alias, SpidBackchannelLogoutDispatcher.Outcome outcome) {
+        if (outcome == SpidBackchannelLogoutDispatcher.Outcome.DELIVERED) {
+            getHealth(key(realmId, alias)).record(Outcome.SUCCESS);
+        } else if (outcome == SpidBackchannelLogoutDispatcher.Outcome.FAILED) {
+            getHealth(key(realmId, alias)).record(Outcome.FAILURE);
+        }
+    }
+
+    /**
+     * Returns whether a call to the IdP may be made. While the circuit is open this returns
+     * {@code false}; once it half-opens, a single trial call is let through until its outcome is
+     * recorded.
+     */
+    public boolean allowRequest(String realmId, String alias) {
+        Health h = health.get(key(realmId, alias));
+        return h == null || h.allowRequest();
+    }
+
+    public boolean isDegraded(String realmId, String alias) {
+        return getStatus(realmId, alias).getState() != State.CLOSED;
+    }
+
+    public Status getStatus(String realmId, String alias) {
+        Health h = health.get(key(realmId, alias));
+        return h == null ? new Status(State.CLOSED, 0, 0, 0, 0, 0) : h.getStatus();
+    }
+
+    public void close() {
+        if (probeScheduler != null) {
+            probeScheduler.shutdownNow();
+        }
+    }
+
+    private Health getHealth(String key) {
+        return health.computeIfAbsent(key, Health::new);
+    }
+
+    private static String key(String realmId, String alias) {
+        return realmId + "/" + alias;
+    }
+
+    private enum Outcome {
+        SUCCESS, FAILURE, FAULT
+    }
+
+    /**
+     * A point-in-time view of the health of one IdP.
+     */
+    public static class Status {
+
+        private final State state;
+        private final long successes;
+        private final long failures;
+        private final long faults;
+        private final int windowFailurePercent;
+        private final long lastFailureTime;
+
+        Status(State state, long successes, long failures, long faults, int windowFailurePercent, long lastFailureTime) {
+            this.state = state;
+            this.successes = successes;
+            this.failures = failures;
+            this.faults = faults;
+            this.windowFailurePercent = windowFailurePercent;
+            this.lastFailureTime = lastFailureTime;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public boolean isDegraded() {
+            return state != State.CLOSED;
+        }
+
+        public long getSuccesses() {
+            return successes;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getFaults() {
+            return faults;
+        }
+
+        public int getWindowFailurePercent() {
+            return windowFailurePercent;
+        }
+
+        /**
+         * Returns the time of the last failure in milliseconds since the epoch, or {@code 0}.
+         */
+        public long getLastFailureTime() {
+            return lastFailureTime;
+        }
+    }
+
+    private class Health {
+
+        private final String key;
+
+        // Last outcomes, true for a failure; faults are not part of the window
+        private final boolean[] window = new boolean[windowSize];
+        private int windowCount;
+        private int windowIndex;
+        private int windowFailures;
+
+        private State state = State.CLOSED;
+        private long openedAt;
+        private long trialStartedAt = -1L;
+
+        private long successes;
+        private long failures;
+        private long faults;
+        private long lastFailureTime;
+
+        Health(String key) {
+            this.key = key;
+        }
+
+        synchronized void record(Outcome outcome) {
+            long now = clock.getAsLong();
+            if (outcome == Outcome.FAULT) {
+                faults++;
+                return;
+            }
+
+            boolean failure = outcome == Outcome.FAILURE;
+            if (failure) {
+                failures++;
+                lastFailureTime = now;
+            } else {
+                successes++;
+            }
+
+            if (state != State.CLOSED) {
+                if (failure) {
+                    if (state == State.HALF_OPEN) open(now);
+                } else {
+                    close();
+                }
+                return;
+            }
+
+            if (windowCount == windowSize) {
+                if (window[windowIndex]) windowFailures--;
+            } else {
+                windowCount++;
+            }
+            window[windowIndex] = failure;
+            if (failure) windowFailures++;
+            windowIndex = (windowIndex + 1) % windowSize;
+
+            if (windowCount >= minCalls && windowFailures * 100 >= failureRatioPercent * windowCount) {
+                open(now);
+            }
+        }
+
+        synchronized boolean allowRequest() {
+            long now = clock.getAsLong();
+            switch (state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (now - openedAt < openMillis) return false;
+                    state = State.HALF_OPEN;
+                    trialStartedAt = now;
+                    return true;
+                default:
+                    // A trial whose outcome is never recorded must not keep the circuit half-open
+                    if (trialStartedAt >= 0 && now - trialStartedAt < openMillis) return false;
+                    trialStartedAt = now;
+                    return true;
+            }
+        }
+
+        synchronized Status getStatus() {
+            if (state == State.OPEN && clock.getAsLong() - openedAt >= openMillis) {
+                state = State.HALF_OPEN;
+                trialStartedAt = -1L;
+            }
+            int percent = windowCount == 0 ? 0 : windowFailures * 100 / windowCount;
+            return new Status(state, successes, failures, faults, percent, lastFailureTime);
+        }
+
+        private void open(long now) {
+            if (state == State.CLOSED) {
+                logger.warnf("SPID IdP %s is failing, circuit opened after %d failures in the last %d calls", key, windowFailures, windowCount);
+            }
+            state = State.OPEN;
+            openedAt = now;
+            trialStartedAt = -1L;
+        }
+
+        private void close() {
+            state = State.CLOSED;
+            trialStartedAt = -1L;
+            windowCount = 0;
+            windowIndex = 0;
+            windowFailures = 0;
+        }
+    }
+}
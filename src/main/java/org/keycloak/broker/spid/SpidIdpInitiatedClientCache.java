@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid;
+
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.protocol.saml.SamlProtocol;
+import org.keycloak.provider.ProviderEvent;
+
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Realm-scoped cache from SAML IdP-initiated SSO URL name to client ID.
+ *
+ * A realm's entries are dropped whenever one of its clients is created, updated or removed. Every
+ * hit is also checked against the client model, which is served by the Keycloak realm cache, so a
+ * stale entry left behind by a change made on another cluster node falls back to the attribute
+ * search instead of resolving the wrong client.
+ *
+ * URL names without a client are cached as well, since the endpoint is public and any name can
+ * be requested. A miss only lasts {@link #MISS_LIFESPAN_MILLIS}, which bounds how long a client
+ * created or renamed on another cluster node stays unknown here, and at most {@link #MAX_MISSES}
+ * of them are kept per realm.
+ */
+public final class SpidIdpInitiatedClientCache {
+
+    static final long MISS_LIFESPAN_MILLIS = 30_000;
+
+    static final int MAX_MISSES = 1024;
+
+    private static final ConcurrentMap<String, ConcurrentMap<String, String>> CLIENT_IDS = new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<String, ConcurrentMap<String, Long>> MISSES = new ConcurrentHashMap<>();
+
+    private SpidIdpInitiatedClientCache() {
+    }
+
+    /**
+     * Subscribes the cache to the client and realm lifecycle events of the given factory.
+     */
+    static void register(KeycloakSessionFactory factory) {
+        factory.register(SpidIdpInitiatedClientCache::onEvent);
+    }
+
+    private static void onEvent(ProviderEvent event) {
+        if (event instanceof ClientModel.ClientUpdatedEvent) {
+            invalidate(((ClientModel.ClientUpdatedEvent) event).getUpdatedClient().getRealm().getId());
+        } else if (event instanceof ClientModel.ClientRemovedEvent) {
+            invalidate(((ClientModel.ClientRemovedEvent) event).getClient().getRealm().getId());
+        } else if (event instanceof ClientModel.ClientCreationEvent) {
+            invalidate(((ClientModel.ClientCreationEvent) event).getCreatedClient().getRealm().getId());
+        } else if (event instanceof RealmModel.RealmRemovedEvent) {
+            invalidate(((RealmModel.RealmRemovedEvent) event).getRealm().getId());
+        }
+    }
+
+    /**
+     * Drops the entries of the given realm.
+     */
+    public static void invalidate(String realmId) {
+        if (realmId != null) {
+            CLIENT_IDS.remove(realmId);
+            MISSES.remove(realmId);
+        }
+    }
+
+    /**
+     * Returns the client whose IdP-initiated SSO URL name is {@code clientUrlName}, or {@code null}.
+     */
+    public static ClientModel getClient(KeycloakSession session, RealmModel realm, String clientUrlName) {
+        ConcurrentMap<String, String> clientIds = CLIENT_IDS.computeIfAbsent(realm.getId(), k -> new ConcurrentHashMap<>());
+
+        String clientId = clientIds.get(clientUrlName);
+        if (clientId != null) {
+            ClientModel client = realm.getClientById(clientId);
+            if (client != null && clientUrlName.equals(client.getAttribute(SamlProtocol.SAML_IDP_INITIATED_SSO_URL_NAME))) {
+                return client;
+            }
+            clientIds.remove(clientUrlName, clientId);
+        }
+
+        ConcurrentMap<String, Long> misses = MISSES.computeIfAbsent(realm.getId(), k -> new ConcurrentHashMap<>());
+        long now = System.currentTimeMillis();
+        Long missExpiresAt = misses.get(clientUrlName);
+        if (missExpiresAt != null) {
+            if (missExpiresAt > now) return null;
+            misses.remove(clientUrlName, missExpiresAt);
+        }
+
+        ClientModel client = session.clients()
+            .searchClientsByAttributes(realm, Collections.singletonMap(SamlProtocol.SAML_IDP_INITIATED_SSO_URL_NAME, clientUrlName), 0, 1)
+            .findFirst()
+            .orElse(null);
+
+        if (client != null) {
+            clientIds.put(clientUrlName, client.getId());
+        } else {
+            if (misses.size() >= MAX_MISSES) {
+                misses.clear();
+            }
+            misses.put(clientUrlName, now + MISS_LIFESPAN_MILLIS);
+        }
+        return client;
+    }
+}
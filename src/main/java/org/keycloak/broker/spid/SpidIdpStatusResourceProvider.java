@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reports the health of the enabled SPID IdPs of the realm as JSON, keyed by alias, e.g.
+ * {@code {"spid-idp": {"state": "open", "degraded": true}}}.
+ *
+ * The resource is public, so that the login theme can fetch it and hide degraded IdPs or warn about
+ * them: {@code /realms/{realm}/spid-idp-status}. It only tells the state of the circuit of each IdP;
+ * the counts behind it are not published.
+ */
+public class SpidIdpStatusResourceProvider implements RealmResourceProvider {
+
+    private KeycloakSession session;
+
+    public SpidIdpStatusResourceProvider(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response get() {
+        RealmModel realm = session.getContext().getRealm();
+        SpidIdpHealthTracker healthTracker = SpidIdentityProviderFactory.get(session).getHealthTracker();
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (SpidIdentityProvider provider : SpidIdentityProviderRegistry.getProviders(session, realm)) {
+            String alias = provider.getSnapshot().getAlias();
+            SpidIdpHealthTracker.Status status = healthTracker.getStatus(realm.getId(), alias);
+
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("state", status.getState().getName());
+            entry.put("degraded", status.isDegraded());
+            result.put(alias, entry);
+        }
+
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoCache(true);
+        return Response.ok(result, MediaType.APPLICATION_JSON_TYPE).cacheControl(cacheControl).build();
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
@@ -0,0 +1,282 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.common.util.Resteasy;
+import org.keycloak.executors.ExecutorsProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.managers.AuthenticationManager;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.UriInfo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the Keycloak backchannel logout of the user sessions targeted by an IdP-initiated
+ * LogoutRequest.
+ *
+ * Each user session is logged out in its own {@link KeycloakSession} and transaction, with at
+ * most {@code parallelism} sessions in flight. A session whose logout takes longer than the
+ * per-session timeout is cancelled, and no further sessions are started once the overall deadline
+ * has passed, so that the LogoutResponse can be sent to the IdP within its time budget. The
+ * {@link Result} tells which sessions have been logged out, so that the LogoutResponse can report
+ * a partial logout.
+ *
+ * The sessions run on executor threads, with copies of the connection and headers of the request
+ * and with the request URI, connection and headers pushed as the context of their session.
+ */
+public class SpidLogoutExecutor {
+    protected static final Logger logger = Logger.getLogger(SpidLogoutExecutor.class);
+
+    public static final String EXECUTOR_NAME = "spid-logout";
+
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final long DEFAULT_SESSION_TIMEOUT_MILLIS = 5000;
+    public static final long DEFAULT_DEADLINE_MILLIS = 10000;
+
+    private final int parallelism;
+    private final long sessionTimeoutMillis;
+    private final long deadlineMillis;
+
+    public SpidLogoutExecutor(int parallelism, long sessionTimeoutMillis, long deadlineMillis) {
+        this.parallelism = parallelism;
+        this.sessionTimeoutMillis = sessionTimeoutMillis;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    public static SpidLogoutExecutor defaults() {
+        return new SpidLogoutExecutor(DEFAULT_PARALLELISM, DEFAULT_SESSION_TIMEOUT_MILLIS, DEFAULT_DEADLINE_MILLIS);
+    }
+
+    /**
+     * Logs out a single user session.
+     */
+    public interface SessionLogout {
+        void logout(String userSessionId) throws Exception;
+    }
+
+    /**
+     * Outcome of a logout fan-out.
+     */
+    public static class Result {
+        private int completed;
+        private int failed;
+        private int timedOut;
+        private int skipped;
+        private final List<String> loggedOut = new ArrayList<>();
+
+        public int getCompleted() {
+            return completed;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getTimedOut() {
+            return timedOut;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * The IDs of the user sessions that have been logged out.
+         */
+        public List<String> getLoggedOut() {
+            return loggedOut;
+        }
+
+        /**
+         * Whether some of the user sessions may still be alive.
+         */
+        public boolean isPartial() {
+            return failed > 0 || timedOut > 0 || skipped > 0;
+        }
+    }
+
+    /**
+     * Logs out the given user sessions. Sessions are processed inline on the calling session when
+     * parallel processing is disabled or when there is a single session to log out.
+     */
+    public Result logout(KeycloakSession session, RealmModel realm, List<UserSessionModel> userSessions,
+                         UriInfo uriInfo, ClientConnection clientConnection, HttpHeaders headers) {
+        if (parallelism <= 1 || userSessions.size() <= 1) {
+            Result result = new Result();
+            for (UserSessionModel userSession : userSessions) {
+                try {
+                    AuthenticationManager.backchannelLogout(session, realm, userSession, uriInfo, clientConnection, headers, false);
+                    result.completed++;
+                    result.loggedOut.add(userSession.getId());
+                } catch (Exception e) {
+                    logger.warn("failed to do backchannel logout for userSession", e);
+                    result.failed++;
+                }
+            }
+            return result;
+        }
+
+        ExecutorService executor = session.getProvider(ExecutorsProvider.class).getExecutor(EXECUTOR_NAME);
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        String realmId = realm.getId();
+        ClientConnection detachedConnection = SpidDetachedRequest.copy(clientConnection);
+        HttpHeaders detachedHeaders = SpidDetachedRequest.copy(headers);
+
+        List<String> userSessionIds = new ArrayList<>(userSessions.size());
+        for (UserSessionModel userSession : userSessions) {
+            userSessionIds.add(userSession.getId());
+        }
+        return run(executor, userSessionIds, userSessionId ->
+            logoutInTransaction(sessionFactory, realmId, userSessionId, uriInfo, detachedConnection, detachedHeaders));
+    }
+
+    /**
+     * Runs the logout of the given user sessions on the given executor, within the time budget.
+     */
+    public Result run(ExecutorService executor, List<String> userSessionIds, SessionLogout logout) {
+        Result result = new Result();
+        CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+        Deque<String> pending = new ArrayDeque<>(userSessionIds);
+
+        Map<Future<Void>, Running> running = new HashMap<>();
+        // Cancelled futures are queued by the completion service as well, and are already counted
+        Set<Future<Void>> abandoned = new HashSet<>();
+        long deadline = System.currentTimeMillis() + deadlineMillis;
+
+        try {
+            while (!pending.isEmpty() || !running.isEmpty()) {
+                long now = System.currentTimeMillis();
+
+                while (running.size() < parallelism && !pending.isEmpty() && now < deadline) {
+                    String userSessionId = pending.poll();
+                    Future<Void> future = completionService.submit(() -> {
+                        logout.logout(userSessionId);
+                        return null;
+                    });
+                    running.put(future, new Running(userSessionId, now + sessionTimeoutMillis));
+                }
+
+                if (running.isEmpty()) {
+                    // Deadline passed before the remaining sessions could be started
+                    break;
+                }
+
+                long wakeUp = deadline;
+                for (Running session : running.values()) {
+                    wakeUp = Math.min(wakeUp, session.deadline);
+                }
+
+                Future<Void> done = completionService.poll(Math.max(0, wakeUp - now), TimeUnit.MILLISECONDS);
+                if (done != null) {
+                    if (abandoned.remove(done)) continue;
+                    Running session = running.remove(done);
+                    try {
+                        done.get();
+                        result.completed++;
+                        result.loggedOut.add(session.userSessionId);
+                    } catch (ExecutionException e) {
+                        logger.warn("failed to do backchannel logout for userSession", e.getCause());
+                        result.failed++;
+                    }
+                    continue;
+                }
+
+                now = System.currentTimeMillis();
+                for (Iterator<Map.Entry<Future<Void>, Running>> it = running.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<Future<Void>, Running> entry = it.next();
+                    if (entry.getValue().deadline <= now || deadline <= now) {
+                        // Not interrupted: a logout already running finishes its transaction
+                        entry.getKey().cancel(false);
+                        abandoned.add(entry.getKey());
+                        it.remove();
+                        result.timedOut++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<Void> future : running.keySet()) {
+                future.cancel(false);
+            }
+            result.timedOut += running.size();
+        }
+
+        result.skipped = pending.size();
+        if (result.timedOut > 0 || result.skipped > 0) {
+            logger.warnf("SPID logout did not complete within its time budget: %d completed, %d failed, %d timed out, %d not started",
+                result.completed, result.failed, result.timedOut, result.skipped);
+        }
+        return result;
+    }
+
+    private static final class Running {
+        private final String userSessionId;
+        private final long deadline;
+
+        private Running(String userSessionId, long deadline) {
+            this.userSessionId = userSessionId;
+            this.deadline = deadline;
+        }
+    }
+
+    private static void logoutInTransaction(KeycloakSessionFactory sessionFactory, String realmId, String userSessionId,
+                                            UriInfo uriInfo, ClientConnection clientConnection, HttpHeaders headers) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            // The worker session has no request: give it the one of the LogoutRequest
+            Resteasy.pushContext(KeycloakSession.class, session);
+            Resteasy.pushContext(UriInfo.class, uriInfo);
+            Resteasy.pushContext(ClientConnection.class, clientConnection);
+            Resteasy.pushContext(HttpHeaders.class, headers);
+            try {
+                RealmModel realm = session.realms().getRealm(realmId);
+                if (realm == null) return;
+                session.getContext().setRealm(realm);
+
+                UserSessionModel userSession = session.sessions().getUserSession(realm, userSessionId);
+                if (userSession == null
+                    || userSession.getState() == UserSessionModel.State.LOGGING_OUT
+                    || userSession.getState() == UserSessionModel.State.LOGGED_OUT) {
+                    return;
+                }
+
+                AuthenticationManager.backchannelLogout(session, realm, userSession, uriInfo, clientConnection, headers, false);
+            } finally {
+                Resteasy.clearContextData();
+            }
+        });
+    }
+}
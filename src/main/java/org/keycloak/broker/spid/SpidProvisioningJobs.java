@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keycloak.broker.spid;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The provisioning jobs started on this node, see {@link SpidProvisioningResourceProvider}. A job
+ * is known by the node running it only; finished jobs are forgotten an hour after they end.
+ */
+public class SpidProvisioningJobs {
+
+    /**
+     * The executor running the jobs, which submit their batches to {@link SpidBulkProvisioner#EXECUTOR_NAME}.
+     */
+    public static final String EXECUTOR_NAME = "spid-provisioning-jobs";
+
+    private static final long RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    public enum State {
+        RUNNING, COMPLETED, FAILED
+    }
+
+    public static class Job {
+        private final String id;
+        private volatile State state = State.RUNNING;
+        private volatile SpidBulkProvisioner.Result result = new SpidBulkProvisioner.Result();
+        private volatile String error;
+        private volatile long finishedAt;
+
+        private Job(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * The result as of the last completed batch, or the final result.
+         */
+        public SpidBulkProvisioner.Result getResult() {
+            return result;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        void update(SpidBulkProvisioner.Result result) {
+            this.result = result;
+        }
+
+        void finish(State state, String error) {
+            this.error = error;
+            this.finishedAt = System.currentTimeMillis();
+            this.state = state;
+        }
+    }
+
+    private final ConcurrentMap<String, Job> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a new running job, or returns {@code null} if a job with the same ID is still
+     * running in the realm.
+     */
+    public Job start(String realmId, String id) {
+        long now = System.currentTimeMillis();
+        jobs.values().removeIf(job -> job.state != State.RUNNING && now - job.finishedAt > RETENTION_MILLIS);
+
+        Job job = new Job(id);
+        Job registered = jobs.compute(key(realmId, id),
+            (key, current) -> current != null && current.state == State.RUNNING ? current : job);
+        return registered == job ? job : null;
+    }
+
+    public Job get(String realmId, String id) {
+        return jobs.get(key(realmId, id));
+    }
+
+    private static String key(String realmId, String id) {
+        return realmId + "/" + id;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keycloak.broker.spid;
+
+import org.jboss.logging.Logger;
+import org.keycloak.executors.ExecutorsProvider;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.Constants;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Provisions the users of a list of SPID citizens, see {@link SpidBulkProvisioner}:
+ * {@code POST /realms/{realm}/spid-provisioning?job=<name>} with a {@code text/csv} or
+ * {@code application/x-ndjson} body.
+ *
+ * The list is saved to a temporary file and provisioned in the background, so that the request
+ * only lasts the upload: the response is a {@code 202 Accepted} whose {@code Location} is the
+ * status of the job, {@code GET /realms/{realm}/spid-provisioning/jobs/{id}}, on the node that
+ * runs it.
+ *
+ * The caller needs a bearer token of the realm with the {@code manage-users} role of the realm
+ * management client. The job name is optional and enables resuming an interrupted job; it is also
+ * the job ID, otherwise a random one is generated.
+ */
+public class SpidProvisioningResourceProvider implements RealmResourceProvider {
+    protected static final Logger logger = Logger.getLogger(SpidProvisioningResourceProvider.class);
+
+    private KeycloakSession session;
+    private SpidBulkProvisioner provisioner;
+    private SpidProvisioningJobs jobs;
+
+    public SpidProvisioningResourceProvider(KeycloakSession session, SpidBulkProvisioner provisioner, SpidProvisioningJobs jobs) {
+        this.session = session;
+        this.provisioner = provisioner;
+        this.jobs = jobs;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response provision(@QueryParam("job") String job, @HeaderParam(HttpHeaders.CONTENT_TYPE) String contentType,
+                              InputStream input) throws IOException {
+        RealmModel realm = session.getContext().getRealm();
+
+        Response denied = authorize(realm);
+        if (denied != null) {
+            return denied;
+        }
+
+        SpidBulkProvisioner.Format format = getFormat(contentType);
+        if (format == null) {
+            return Response.status(Response.Status.UNSUPPORTED_MEDIA_TYPE).build();
+        }
+        if (job != null && !job.matches("[A-Za-z0-9._-]{1,64}")) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        String id = job != null ? job : KeycloakModelUtils.generateId();
+        SpidProvisioningJobs.Job running = jobs.start(realm.getId(), id);
+        if (running == null) {
+            return Response.status(Response.Status.CONFLICT).build();
+        }
+
+        File list = null;
+        try {
+            list = File.createTempFile("spid-provisioning-", ".tmp");
+            Files.copy(input, list.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            if (list != null) delete(list);
+            running.finish(SpidProvisioningJobs.State.FAILED, e.toString());
+            throw e;
+        }
+
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        String realmId = realm.getId();
+        File saved = list;
+        try {
+            session.getProvider(ExecutorsProvider.class).getExecutor(SpidProvisioningJobs.EXECUTOR_NAME)
+                .execute(() -> run(sessionFactory, realmId, job, format, saved, running));
+        } catch (RejectedExecutionException e) {
+            delete(list);
+            running.finish(SpidProvisioningJobs.State.FAILED, e.toString());
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+        }
+
+        return Response.accepted(running)
+            .location(session.getContext().getUri().getAbsolutePathBuilder().path("jobs").path(id).build())
+            .type(MediaType.APPLICATION_JSON_TYPE)
+            .build();
+    }
+
+    @GET
+    @Path("jobs/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getJob(@PathParam("id") String id) {
+        RealmModel realm = session.getContext().getRealm();
+
+        Response denied = authorize(realm);
+        if (denied != null) {
+            return denied;
+        }
+
+        SpidProvisioningJobs.Job job = jobs.get(realm.getId(), id);
+        if (job == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok(job, MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    private void run(KeycloakSessionFactory sessionFactory, String realmId, String job, SpidBulkProvisioner.Format format,
+                     File list, SpidProvisioningJobs.Job running) {
+        try (Reader reader = Files.newBufferedReader(list.toPath(), StandardCharsets.UTF_8)) {
+            running.update(provisioner.provision(sessionFactory, realmId, job, SpidBulkProvisioner.reader(format, reader), running::update));
+            if (Thread.currentThread().isInterrupted()) {
+                running.finish(SpidProvisioningJobs.State.FAILED, "interrupted");
+            } else {
+                running.finish(SpidProvisioningJobs.State.COMPLETED, null);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warnf(e, "SPID provisioning job %s of realm %s failed", running.getId(), realmId);
+            running.finish(SpidProvisioningJobs.State.FAILED, e.toString());
+        } finally {
+            delete(list);
+        }
+    }
+
+    private static void delete(File list) {
+        try {
+            Files.deleteIfExists(list.toPath());
+        } catch (IOException e) {
+            logger.warnf(e, "failed to delete the SPID provisioning list %s", list);
+        }
+    }
+
+    private Response authorize(RealmModel realm) {
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).setRealm(realm).authenticate();
+        if (auth == null) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        ClientModel realmManagement = realm.getClientByClientId(Constants.REALM_MANAGEMENT_CLIENT_ID);
+        RoleModel manageUsers = realmManagement == null ? null : realmManagement.getRole(AdminRoles.MANAGE_USERS);
+        if (manageUsers == null || !auth.getUser().hasRole(manageUsers)) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+        return null;
+    }
+
+    private static SpidBulkProvisioner.Format getFormat(String contentType) {
+        if (contentType == null) return null;
+
+        String mediaType = contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+        switch (mediaType) {
+            case "text/csv":
+                return SpidBulkProvisioner.Format.CSV;
+            case "application/x-ndjson":
+            case "application/jsonl":
+                return SpidBulkProvisioner.Format.JSONL;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
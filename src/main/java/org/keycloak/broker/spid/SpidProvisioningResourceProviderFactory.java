@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keycloak.broker.spid;
+
+import org.keycloak.Config.Scope;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+public class SpidProvisioningResourceProviderFactory implements RealmResourceProviderFactory {
+
+    public static final String ID = "spid-provisioning";
+
+    private SpidBulkProvisioner provisioner = SpidBulkProvisioner.defaults();
+    private final SpidProvisioningJobs jobs = new SpidProvisioningJobs();
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new SpidProvisioningResourceProvider(session, provisioner, jobs);
+    }
+
+    @Override
+    public void init(Scope config) {
+        this.provisioner = new SpidBulkProvisioner(
+            config.getInt("batchSize", SpidBulkProvisioner.DEFAULT_BATCH_SIZE),
+            config.getInt("parallelism", SpidBulkProvisioner.DEFAULT_PARALLELISM));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid;
+
+import org.keycloak.common.util.Base64Url;
+import org.keycloak.common.util.Time;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Compact, HMAC-protected RelayState binding the ID of an AuthnRequest, its issue time and the
+ * broker state that references the authentication session.
+ *
+ * The token has the form {@code s1.<iat>.<mac>.<state>}, where {@code iat} is the issue time in
+ * seconds (base 36) and {@code mac} is a truncated HMAC-SHA256, keyed with the HS256 key of the
+ * realm, over the request ID, the issue time and the state. The request ID is not carried: it is
+ * taken from the InResponseTo of the response, so a response to another request, a stale response
+ * or a forged RelayState is rejected before the authentication session is loaded.
+ */
+public final class SpidRelayStateToken {
+
+    private static final String PREFIX = "s1.";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_LENGTH = 16;
+
+    private final long issuedAt;
+    private final byte[] mac;
+    private final String state;
+
+    private SpidRelayStateToken(long issuedAt, byte[] mac, String state) {
+        this.issuedAt = issuedAt;
+        this.mac = mac;
+        this.state = state;
+    }
+
+    /**
+     * Returns the RelayState to send along with the AuthnRequest with the given ID.
+     */
+    public static String encode(KeycloakSession session, RealmModel realm, String requestId, String state) {
+        KeyWrapper key = session.keys().getActiveKey(realm, KeyUse.SIG, Algorithm.HS256);
+        long issuedAt = Time.currentTime();
+        return PREFIX + Long.toString(issuedAt, 36) + "." + Base64Url.encode(mac(key, requestId, issuedAt, state)) + "." + state;
+    }
+
+    /**
+     * Parses a RelayState produced by {@link #encode}, or returns {@code null} if the RelayState
+     * is not such a token.
+     */
+    public static SpidRelayStateToken parse(String relayState) {
+        if (relayState == null || !relayState.startsWith(PREFIX)) return null;
+
+        int iatEnd = relayState.indexOf('.', PREFIX.length());
+        int macEnd = iatEnd < 0 ? -1 : relayState.indexOf('.', iatEnd + 1);
+        if (macEnd < 0) return null;
+
+        try {
+            long issuedAt = Long.parseLong(relayState.substring(PREFIX.length(), iatEnd), 36);
+            byte[] mac = Base64Url.decode(relayState.substring(iatEnd + 1, macEnd));
+            return new SpidRelayStateToken(issuedAt, mac, relayState.substring(macEnd + 1));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the broker state that references the authentication session.
+     */
+    public String getState() {
+        return state;
+    }
+
+    /**
+     * Checks that the token was issued for the given request ID by this realm, at most
+     * {@code maxAgeSeconds} ago.
+     */
+    public boolean isValid(KeycloakSession session, RealmModel realm, String requestId, int maxAgeSeconds) {
+        if (requestId == null || mac.length != MAC_LENGTH) return false;
+
+        long age = Time.currentTime() - issuedAt;
+        if (age < 0 || age > maxAgeSeconds) return false;
+
+        // Keys that are not active any more are still accepted, for requests issued before a rotation
+        return session.keys().getKeysStream(realm, KeyUse.SIG, Algorithm.HS256)
+            .filter(key -> key.getStatus().isEnabled() && key.getSecretKey() != null)
+            .anyMatch(key -> MessageDigest.isEqual(mac, mac(key, requestId, issuedAt, state)));
+    }
+
+    private static byte[] mac(KeyWrapper key, String requestId, long issuedAt, String state) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key.getSecretKey().getEncoded(), MAC_ALGORITHM));
+            byte[] digest = mac.doFinal((requestId + "." + issuedAt + "." + state).getBytes(StandardCharsets.UTF_8));
+            return Arrays.copyOf(digest, MAC_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not compute RelayState MAC", e);
+        }
+    }
+}
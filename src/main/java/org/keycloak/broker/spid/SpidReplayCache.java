@@ -0,0 +1,245 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseTokenStoreProvider;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers the IDs of the assertions consumed by the SPID broker, so that an assertion cannot be
+ * replayed while it is still valid.
+ *
+ * Entries are keyed by issuer and assertion ID and live until the NotOnOrAfter of the assertion
+ * plus the allowed clock skew. By default they are kept in memory on this node; in cluster mode
+ * they are stored through the Keycloak {@link SingleUseTokenStoreProvider}, which is replicated
+ * across the cluster.
+ */
+public class SpidReplayCache {
+    protected static final Logger logger = Logger.getLogger(SpidReplayCache.class);
+
+    public static final String MODE_LOCAL = "local";
+    public static final String MODE_CLUSTER = "cluster";
+
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private static final String KEY_PREFIX = "spid-assertion:";
+
+    /**
+     * Backing store of the consumed assertion IDs.
+     */
+    public interface Store {
+        /**
+         * Records the key until the given expiration time.
+         *
+         * @return {@code false} if the key was already recorded and has not expired yet
+         */
+        boolean putIfAbsent(KeycloakSession session, String key, long expiresAtMillis);
+    }
+
+    private final Store store;
+
+    public SpidReplayCache(Store store) {
+        this.store = store;
+    }
+
+    public static SpidReplayCache create(String mode, int maxEntries) {
+        if (MODE_CLUSTER.equalsIgnoreCase(mode)) {
+            return new SpidReplayCache(new ClusterStore());
+        }
+        return new SpidReplayCache(new LocalStore(maxEntries, 1000, 512, System::currentTimeMillis));
+    }
+
+    /**
+     * Marks the assertion as consumed.
+     *
+     * @return {@code false} if the assertion has already been consumed
+     */
+    public boolean consume(KeycloakSession session, String issuer, String assertionId, long expiresAtMillis) {
+        return store.putIfAbsent(session, KEY_PREFIX + issuer + "|" + assertionId, expiresAtMillis);
+    }
+
+    /**
+     * Stores entries in the cluster-wide single-use token store of Keycloak.
+     */
+    public static class ClusterStore implements Store {
+        @Override
+        public boolean putIfAbsent(KeycloakSession session, String key, long expiresAtMillis) {
+            long lifespanMillis = expiresAtMillis - System.currentTimeMillis();
+            if (lifespanMillis <= 0) return true;
+
+            int lifespanSeconds = (int) Math.min(Integer.MAX_VALUE, TimeUnit.MILLISECONDS.toSeconds(lifespanMillis) + 1);
+            return session.getProvider(SingleUseTokenStoreProvider.class).putIfAbsent(key, lifespanSeconds);
+        }
+    }
+
+    /**
+     * In-memory store with timing-wheel expiry.
+     *
+     * Entries live in a concurrent map; their keys are also queued in the wheel bucket of their
+     * expiration tick. As time passes, the buckets of the elapsed ticks are swept by whichever
+     * thread gets there first, so expired entries are removed without a background thread and
+     * without scanning the whole map. Expiration times beyond the span of the wheel are requeued
+     * until they are reached. The number of entries is capped: when the cap is reached the entry
+     * closest to expiry is evicted to record the new one, and a warning is logged at most once per
+     * minute.
+     */
+    public static class LocalStore implements Store {
+        private static final long WARNING_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+        private final ConcurrentMap<String, Long> entries = new ConcurrentHashMap<>();
+        private final Queue<String>[] wheel;
+        private final int mask;
+        private final long tickMillis;
+        private final int maxEntries;
+        private final LongSupplier clock;
+        private final AtomicLong lastSweptTick;
+        private final AtomicLong evictionTick = new AtomicLong();
+        private final ReentrantLock sweepLock = new ReentrantLock();
+        private final AtomicLong evicted = new AtomicLong();
+        private final AtomicLong lastWarning = new AtomicLong(-WARNING_INTERVAL_MILLIS);
+
+        @SuppressWarnings("unchecked")
+        public LocalStore(int maxEntries, long tickMillis, int buckets, LongSupplier clock) {
+            if (Integer.bitCount(buckets) != 1) {
+                throw new IllegalArgumentException("The number of buckets must be a power of two");
+            }
+            this.wheel = new Queue[buckets];
+            for (int i = 0; i < buckets; i++) {
+                wheel[i] = new ConcurrentLinkedQueue<>();
+            }
+            this.mask = buckets - 1;
+            this.tickMillis = tickMillis;
+            this.maxEntries = maxEntries;
+            this.clock = clock;
+            this.lastSweptTick = new AtomicLong(clock.getAsLong() / tickMillis);
+        }
+
+        @Override
+        public boolean putIfAbsent(KeycloakSession session, String key, long expiresAtMillis) {
+            long now = clock.getAsLong();
+            advance(now);
+
+            if (expiresAtMillis <= now) return true;
+
+            Long previous = entries.get(key);
+            if (previous != null) {
+                if (previous > now || !entries.replace(key, previous, expiresAtMillis)) {
+                    return false;
+                }
+            } else {
+                if (entries.size() >= maxEntries) {
+                    evictNextToExpire(now);
+                }
+                if (entries.putIfAbsent(key, expiresAtMillis) != null) {
+                    return false;
+                }
+            }
+
+            bucket(expiresAtMillis).add(key);
+            return true;
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        /**
+         * Removes an entry from the head of the wheel, the first bucket from the eviction cursor
+         * that still holds a live key. Keys polled on the way leave their bucket, evicted or not,
+         * so the wheel never holds more keys than the map; the cursor only moves forward within a
+         * turn, so runs of empty buckets are not searched again by the next eviction.
+         */
+        private void evictNextToExpire(long now) {
+            long currentTick = now / tickMillis;
+            long tick = evictionTick.get();
+            if (tick < currentTick || tick >= currentTick + wheel.length) {
+                tick = currentTick;
+            }
+            boolean removed = false;
+            for (long lastTick = tick + wheel.length; tick < lastTick; tick++) {
+                if (evictFrom(wheel[(int) (tick & mask)])) {
+                    removed = true;
+                    break;
+                }
+            }
+            evictionTick.set(tick);
+            if (!removed) return;
+
+            long count = evicted.incrementAndGet();
+            long last = lastWarning.get();
+            if (now - last >= WARNING_INTERVAL_MILLIS && lastWarning.compareAndSet(last, now)) {
+                logger.warnf("SPID assertion replay cache is full (%d entries), %d entries evicted before their expiry so far",
+                    maxEntries, count);
+            }
+        }
+
+        private boolean evictFrom(Queue<String> bucket) {
+            for (String key = bucket.poll(); key != null; key = bucket.poll()) {
+                Long expiresAt = entries.get(key);
+                // Keys that were swept or re-added in another bucket are dropped as they go past
+                if (expiresAt != null && bucket(expiresAt) == bucket && entries.remove(key, expiresAt)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Queue<String> bucket(long expiresAtMillis) {
+            return wheel[(int) ((expiresAtMillis / tickMillis) & mask)];
+        }
+
+        private void advance(long now) {
+            long currentTick = now / tickMillis;
+            if (currentTick <= lastSweptTick.get() || !sweepLock.tryLock()) return;
+
+            try {
+                long fromTick = Math.max(lastSweptTick.get() + 1, currentTick - wheel.length + 1);
+                for (long tick = fromTick; tick <= currentTick; tick++) {
+                    sweep(wheel[(int) (tick & mask)], now);
+                }
+                lastSweptTick.set(currentTick);
+            } finally {
+                sweepLock.unlock();
+            }
+        }
+
+        private void sweep(Queue<String> bucket, long now) {
+            for (int i = bucket.size(); i > 0; i--) {
+                String key = bucket.poll();
+                if (key == null) break;
+
+                Long expiresAt = entries.get(key);
+                if (expiresAt == null) continue;
+
+                if (expiresAt <= now) {
+                    entries.remove(key, expiresAt);
+                } else {
+                    // Not due yet, the wheel has gone round: wait for the next turn
+                    bucket(expiresAt).add(key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid;
+
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+import org.keycloak.saml.common.util.DocumentUtil;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.namespace.QName;
+
+/**
+ * The SPID rules on login responses that go beyond SAML, as numbered in the SPID validator test
+ * suite ({@code SpidSamlCheck_nrXX}).
+ *
+ * The checks only read the DOM of the response, so they can be run and measured outside of the
+ * endpoint.
+ */
+public final class SpidResponseValidator {
+
+    private SpidResponseValidator() {
+    }
+
+    /**
+     * Applies the SPID-specific checks to a login response and its assertion, which must already
+     * be decrypted.
+     *
+     * @return the code of the first failed check, e.g. {@code SpidSamlCheck_nr17}, or {@code null}
+     *         if the response passes all of them
+     */
+    public static String verify(Element documentElement, Element assertionElement, String expectedRequestId) {
+        // 17: Response > InResponseTo missing
+        if (!documentElement.hasAttribute("InResponseTo")) {
+            return "SpidSamlCheck_nr17";
+        }
+
+        // 16: Response > InResponseTo empty
+        String responseInResponseToValue = documentElement.getAttribute("InResponseTo");
+        if (responseInResponseToValue.isEmpty()) {
+            return "SpidSamlCheck_nr16";
+        }
+
+        // 18: Response > InResponseTo does not match request ID
+        if (!responseInResponseToValue.equals(expectedRequestId)) {
+            return "SpidSamlCheck_nr18";
+        }
+
+        // 42: Assertion > Subject missing
+        Element subjectElement = DocumentUtil.getChildElement(assertionElement, 
+            new QName(JBossSAMLURIConstants.ASSERTION_NSURI.get(), "Subject"));
+        if (subjectElement == null) {
+            return "SpidSamlCheck_nr42";
+        }
+
+        // 41: Assertion > Subject empty (Keycloak returns error earlier)
+        if (!hasNamedChild(subjectElement)) {
+            return "SpidSamlCheck_nr41";
+        }
+
+        // 52: Assertion > Subject > Confirmation missing
+        Element subjectConfirmationElement = DocumentUtil.getChildElement(subjectElement, 
+            new QName(JBossSAMLURIConstants.ASSERTION_NSURI.get(), "SubjectConfirmation"));
+
+        if (subjectConfirmationElement == null) {
+            return "SpidSamlCheck_nr52";
+        }
+
+        // 51: Assertion > Subject > Confirmation empty
+        if (!hasNamedChild(subjectConfirmationElement)) {
+            return "SpidSamlCheck_nr51";
+        }
+
+        // 53: Assertion > Subject > Confirmation > Method missing
+        if (!subjectConfirmationElement.hasAttribute("Method")) {
+            return "SpidSamlCheck_nr54";
+        }
+
+        // 54: Assertion > Subject > Confirmation > Method empty
+        String subjectConfirmationMethodValue = subjectConfirmationElement.getAttribute("Method");
+        if (subjectConfirmationMethodValue.isEmpty()) {
+            return "SpidSamlCheck_nr53";
+        }
+
+        // 55: Assertion > Subject > Confirmation > Method is not JBossSAMLURIConstants.SUBJECT_CONFIRMATION_BEARER
+        if (!subjectConfirmationMethodValue.equals(JBossSAMLURIConstants.SUBJECT_CONFIRMATION_BEARER.get())) {
+            return "SpidSamlCheck_nr55";
+        }
+
+        // 56: Assertion > Subject > Confirmation > SubjectConfirmationData missing
+        Element subjectConfirmationDataElement = DocumentUtil.getChildElement(subjectConfirmationElement, 
+            new QName(JBossSAMLURIConstants.ASSERTION_NSURI.get(), "SubjectConfirmationData"));
+
+        if (subjectConfirmationDataElement == null) {
+            return "SpidSamlCheck_nr56";
+        }
+
+        // 58: Assertion > Subject > Confirmation > SubjectConfirmationData > Recipient missing
+        if (!subjectConfirmationDataElement.hasAttribute("Recipient")) {
+            return "SpidSamlCheck_nr58";
+        }
+        
+        // 57: Assertion > Subject > Confirmation > SubjectConfirmationData > Recipient is empty
+        String subjectConfirmationDataRecipientValue = subjectConfirmationDataElement.getAttribute("Recipient");
+        if (subjectConfirmationDataRecipientValue.isEmpty()) {
+            return "SpidSamlCheck_nr57";
+        }
+
+        // 61: Assertion > Subject > Confirmation > SubjectConfirmationData > InResponseTo missing
+        if (!subjectConfirmationDataElement.hasAttribute("InResponseTo")) {
+            return "SpidSamlCheck_nr61";
+        }
+        
+        // 60: Assertion > Subject > Confirmation > SubjectConfirmationData > InResponseTo is empty
+        String subjectConfirmationDataInResponseToValue = subjectConfirmationDataElement.getAttribute("InResponseTo");
+        if (subjectConfirmationDataInResponseToValue.isEmpty()) {
+            return "SpidSamlCheck_nr60";
+        }
+
+        // 62: Assertion > Subject > Confirmation > SubjectConfirmationData > InResponseTo does not match request ID
+        if (!subjectConfirmationDataInResponseToValue.equals(expectedRequestId)) {
+            return "SpidSamlCheck_nr62";
+        }
+
+        return null;
+    }
+
+    private static boolean hasNamedChild(Element element)
+    {
+        NodeList childNodes = element.getChildNodes();
+        if (childNodes == null) return false;
+
+        for (int i = 0; i < childNodes.getLength(); ++i)
+        {
+            Node node = childNodes.item(i);
+            if (node.getNodeType() ==  Node.ELEMENT_NODE && node.getNodeName() != null)
+                return true;
+        }
+
+        return false;
+    }
+}
@@ -24,6 +24,12 @@ import org.jboss.resteasy.spi.ResteasyProviderFactory;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.broker.provider.IdentityBrokerException;
 import org.keycloak.broker.provider.IdentityProvider;
+import org.keycloak.broker.spid.jfr.SpidJfrEvent;
+import org.keycloak.broker.spid.metrics.SpidMetricsProvider;
+import org.keycloak.broker.spid.metrics.SpidPhase;
+import org.keycloak.broker.spid.metrics.SpidPhaseTimer;
+import org.keycloak.broker.spid.metrics.SpidSlowResponseLogger;
+import org.keycloak.broker.spid.tracing.SpidSpan;
 import org.keycloak.common.ClientConnection;
 import org.keycloak.common.VerificationException;
 import org.keycloak.dom.saml.v2.assertion.AssertionType;
@@ -47,7 +53,6 @@ import org.keycloak.models.KeyManager;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserSessionModel;
-import org.keycloak.protocol.LoginProtocol;
 import org.keycloak.protocol.LoginProtocolFactory;
 import org.keycloak.protocol.saml.JaxrsSAML2BindingBuilder;
 import org.keycloak.protocol.saml.SamlProtocol;
@@ -66,7 +71,6 @@ import org.keycloak.saml.common.util.DocumentUtil;
 import org.keycloak.saml.processing.core.saml.v2.common.SAMLDocumentHolder;
 import org.keycloak.saml.processing.core.saml.v2.constants.X500SAMLProfileConstants;
 import org.keycloak.saml.processing.core.saml.v2.util.AssertionUtil;
-import org.keycloak.saml.processing.core.util.XMLSignatureUtil;
 import org.keycloak.saml.processing.web.util.PostBindingUtil;
 import org.keycloak.services.ErrorPage;
 import org.keycloak.services.Urls;
@@ -96,10 +100,8 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
-import java.util.Optional;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import org.keycloak.protocol.saml.SamlPrincipalType;
@@ -110,14 +112,13 @@ import org.keycloak.saml.validators.ConditionsValidator;
 import org.keycloak.saml.validators.DestinationValidator;
 import org.keycloak.services.util.CacheControlUtil;
 import org.keycloak.sessions.AuthenticationSessionModel;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import java.net.URI;
 import java.security.cert.CertificateException;
 
-import java.util.Collections;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.xml.crypto.dsig.XMLSignature;
 
@@ -136,9 +137,16 @@ public class SpidSAMLEndpoint {
     public static final String SAML_LOGIN_RESPONSE = "SAML_LOGIN_RESPONSE";
     public static final String SAML_ASSERTION = "SAML_ASSERTION";
     public static final String SAML_AUTHN_STATEMENT = "SAML_AUTHN_STATEMENT";
+    public static final String STATUS_PARTIAL_LOGOUT = "urn:oasis:names:tc:SAML:2.0:status:PartialLogout";
+
+    private static final Pattern SPID_FAULT_PATTERN = Pattern.compile("SpidFault_ErrorCode_nr[0-9]{1,3}");
+
+    // Replay protection window for assertions that carry no NotOnOrAfter
+    private static final long MAX_ASSERTION_LIFETIME_MILLIS = 3600000;
     protected RealmModel realm;
     protected EventBuilder event;
     protected SpidIdentityProviderConfig config;
+    protected SpidConfigSnapshot snapshot;
     protected IdentityProvider.AuthenticationCallback callback;
     protected SpidIdentityProvider provider;
     private final DestinationValidator destinationValidator;
@@ -158,6 +166,7 @@ public class SpidSAMLEndpoint {
         this.config = config;
         this.callback = callback;
         this.provider = provider;
+        this.snapshot = provider.getSnapshot();
         this.destinationValidator = destinationValidator;
     }
 
@@ -209,6 +218,14 @@ public class SpidSAMLEndpoint {
     }
 
     protected abstract class Binding {
+        protected SpidPhaseTimer timer;
+        // What the slow response logger reports besides the timing
+        protected String responseOutcome;
+        protected SAMLDocumentHolder responseHolder;
+        protected boolean assertionEncrypted;
+        protected int signatureVerifications;
+        protected int candidateKeys;
+
         private boolean checkSsl() {
             if (session.getContext().getUri().getBaseUri().getScheme().equals("https")) {
                 return true;
@@ -238,6 +255,19 @@ public class SpidSAMLEndpoint {
             return null;
         }
 
+        protected void countResponse(String outcome) {
+            SpidMetricsProvider metrics = session.getProvider(SpidMetricsProvider.class);
+            if (metrics != null) {
+                metrics.countResponse(snapshot.getAlias(), outcome);
+            }
+            responseOutcome = outcome;
+            SpidIdentityProviderFactory.get(session).getHealthTracker().recordResponse(realm.getId(), snapshot.getAlias(), outcome);
+            timer.getSpan().setAttribute("spid.outcome", outcome);
+            if (! SpidMetricsProvider.RESPONSE_SUCCESS.equals(outcome)) {
+                timer.getSpan().setError(outcome);
+            }
+        }
+
         protected abstract String getBindingType();
         protected abstract boolean containsUnencryptedSignature(SAMLDocumentHolder documentHolder);
         protected abstract void verifySignature(String key, SAMLDocumentHolder documentHolder) throws VerificationException;
@@ -251,32 +281,82 @@ public class SpidSAMLEndpoint {
         protected KeyLocator getIDPKeyLocator() {
             List<Key> keys = new LinkedList<>();
 
-            for (String signingCertificate : config.getSigningCertificates()) {
-                X509Certificate cert = null;
+            List<X509Certificate> certificates;
+            try {
+                certificates = snapshot.getSigningX509Certificates();
+            } catch (ProcessingException e) {
+                throw new RuntimeException(e);
+            }
+
+            for (X509Certificate cert : certificates) {
                 try {
-                    cert = XMLSignatureUtil.getX509CertificateFromKeyInfoString(signingCertificate.replaceAll("\\s", ""));
                     cert.checkValidity();
                     keys.add(cert.getPublicKey());
                 } catch (CertificateException e) {
                     logger.warnf("Ignoring invalid certificate: %s", cert);
-                } catch (ProcessingException e) {
-                    throw new RuntimeException(e);
                 }
             }
 
+            candidateKeys = keys.size();
             return new HardcodedKeyLocator(keys);
         }
 
+        protected int countSignatures(SAMLDocumentHolder documentHolder) {
+            NodeList nl = documentHolder.getSamlDocument().getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
+            return nl == null ? 0 : nl.getLength();
+        }
+
         public Response execute(String samlRequest, String samlResponse, String relayState, String clientId) {
             event = new EventBuilder(realm, session, clientConnection);
-            Response response = basicChecks(samlRequest, samlResponse);
-            if (response != null) return response;
-            if (samlRequest != null) return handleSamlRequest(samlRequest, relayState);
-            else return handleSamlResponse(samlResponse, relayState, clientId);
+            SpidSpan span = SpidSpan.start(session, samlRequest != null ? "spid.request" : "spid.response");
+            span.setAttribute("spid.idp", snapshot.getAlias());
+            span.setAttribute("spid.binding", getBindingType());
+            timer = SpidPhaseTimer.start(session, snapshot.getAlias(), getBindingType(), span);
+            try {
+                Response response = basicChecks(samlRequest, samlResponse);
+                if (response != null) return response;
+                if (samlRequest != null) return handleSamlRequest(samlRequest, relayState);
+
+                SpidJfrEvent jfr = SpidJfrEvent.begin(SpidJfrEvent.Type.RESPONSE, snapshot.getAlias());
+                try {
+                    return handleSamlResponse(samlResponse, relayState, clientId);
+                } finally {
+                    endJfrEvent(jfr, samlResponse);
+                }
+            } finally {
+                timer.finish();
+                if (samlResponse != null) {
+                    logIfSlow(samlResponse);
+                }
+            }
+        }
+
+        private void endJfrEvent(SpidJfrEvent jfr, String payload) {
+            if (jfr.isRecording()) {
+                jfr.setBinding(getBindingType());
+                jfr.setOutcome(responseOutcome);
+                jfr.setPayloadSize(payload.length());
+                jfr.end();
+            }
+        }
+
+        private void logIfSlow(String samlResponse) {
+            SpidSlowResponseLogger slowResponseLogger = SpidIdentityProviderFactory.get(session).getSlowResponseLogger();
+            if (! slowResponseLogger.isSlow(timer)) return;
+
+            int signatures = responseHolder == null ? 0 : countSignatures(responseHolder);
+            slowResponseLogger.sample(timer, new SpidSlowResponseLogger.Sample(responseOutcome, samlResponse,
+                signatures, signatureVerifications, candidateKeys, assertionEncrypted));
         }
 
         protected Response handleSamlRequest(String samlRequest, String relayState) {
             SAMLDocumentHolder holder = extractRequestDocument(samlRequest);
+            if (holder == null) {
+                event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
+                event.detail(Details.REASON, Errors.INVALID_SAML_DOCUMENT);
+                event.error(Errors.INVALID_REQUEST);
+                return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_REQUEST);
+            }
             RequestAbstractType requestAbstractType = (RequestAbstractType) holder.getSamlObject();
             // validate destination
             if (isDestinationRequired() &&
@@ -286,13 +366,13 @@ public class SpidSAMLEndpoint {
                 event.error(Errors.INVALID_REQUEST);
                 return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_REQUEST);
             }
-            if (! destinationValidator.validate(getExpectedDestination(config.getAlias(), null), requestAbstractType.getDestination())) {
+            if (! destinationValidator.validate(getExpectedDestination(snapshot.getAlias(), null), requestAbstractType.getDestination())) {
                 event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
                 event.detail(Details.REASON, Errors.INVALID_DESTINATION);
                 event.error(Errors.INVALID_SAML_RESPONSE);
                 return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_REQUEST);
             }
-            if (config.isValidateSignature()) {
+            if (snapshot.isValidateSignature()) {
                 try {
                     verifySignature(GeneralConstants.SAML_REQUEST_KEY, holder);
                 } catch (VerificationException e) {
@@ -307,7 +387,14 @@ public class SpidSAMLEndpoint {
                 logger.debug("** logout request");
                 event.event(EventType.LOGOUT);
                 LogoutRequestType logout = (LogoutRequestType) requestAbstractType;
-                return logoutRequest(logout, relayState);
+                SpidJfrEvent jfr = SpidJfrEvent.begin(SpidJfrEvent.Type.LOGOUT_REQUEST, snapshot.getAlias());
+                try {
+                    Response response = logoutRequest(logout, relayState);
+                    responseOutcome = response.getStatus() < 400 ? SpidMetricsProvider.RESPONSE_SUCCESS : "error";
+                    return response;
+                } finally {
+                    endJfrEvent(jfr, samlRequest);
+                }
 
             } else {
                 event.event(EventType.LOGIN);
@@ -317,61 +404,72 @@ public class SpidSAMLEndpoint {
         }
 
         protected Response logoutRequest(LogoutRequestType request, String relayState) {
-            String brokerUserId = config.getAlias() + "." + request.getNameID().getValue();
+            String brokerUserId = snapshot.getAlias() + "." + request.getNameID().getValue();
+            List<UserSessionModel> userSessions;
             if (request.getSessionIndex() == null || request.getSessionIndex().isEmpty()) {
-                AtomicReference<LogoutRequestType> ref = new AtomicReference<>(request);
-                session.sessions().getUserSessionByBrokerUserIdStream(realm, brokerUserId)
+                userSessions = SpidBrokerSessionIndex.getUserSessionsByBrokerUserId(session, realm, brokerUserId).stream()
                         .filter(userSession -> userSession.getState() != UserSessionModel.State.LOGGING_OUT &&
                                 userSession.getState() != UserSessionModel.State.LOGGED_OUT)
-                        .collect(Collectors.toList()) // collect to avoid concurrent modification as backchannelLogout removes the user sessions.
-                        .forEach(processLogout(ref));
-                request = ref.get();
-
+                        .collect(Collectors.toList());
             }  else {
+                userSessions = new LinkedList<>();
                 for (String sessionIndex : request.getSessionIndex()) {
-                    String brokerSessionId = config.getAlias()  + "." + sessionIndex;
-                    UserSessionModel userSession = session.sessions().getUserSessionByBrokerSessionId(realm, brokerSessionId);
+                    String brokerSessionId = snapshot.getAlias()  + "." + sessionIndex;
+                    UserSessionModel userSession = SpidBrokerSessionIndex.getUserSessionByBrokerSessionId(session, realm, brokerSessionId);
                     if (userSession != null) {
                         if (userSession.getState() == UserSessionModel.State.LOGGING_OUT || userSession.getState() == UserSessionModel.State.LOGGED_OUT) {
                             continue;
                         }
+                        userSessions.add(userSession);
+                    }
+                }
+            }
 
-                        for(Iterator<SamlAuthenticationPreprocessor> it = SamlSessionUtils.getSamlAuthenticationPreprocessorIterator(session); it.hasNext();) {
-                            request = it.next().beforeProcessingLogoutRequest(request, userSession, null);
-                        }
+            for (UserSessionModel userSession : userSessions) {
+                for(Iterator<SamlAuthenticationPreprocessor> it = SamlSessionUtils.getSamlAuthenticationPreprocessorIterator(session); it.hasNext();) {
+                    request = it.next().beforeProcessingLogoutRequest(request, userSession, null);
+                }
+            }
 
-                        try {
-                            AuthenticationManager.backchannelLogout(session, realm, userSession, session.getContext().getUri(), clientConnection, headers, false);
-                        } catch (Exception e) {
-                            logger.warn("failed to do backchannel logout for userSession", e);
-                        }
-                    }
+            // Sessions are logged out concurrently, within the time budget configured on the SPID provider factory
+            SpidLogoutExecutor logoutExecutor = SpidIdentityProviderFactory.get(session).getLogoutExecutor();
+            SpidLogoutExecutor.Result result = logoutExecutor.logout(session, realm, userSessions,
+                session.getContext().getUri(), clientConnection, headers);
+
+            // Sessions still alive stay in the index, so that a retried LogoutRequest finds them
+            for (UserSessionModel userSession : userSessions) {
+                if (result.getLoggedOut().contains(userSession.getId())) {
+                    SpidBrokerSessionIndex.remove(realm, userSession);
                 }
             }
 
             String issuerURL = getEntityId(session.getContext().getUri(), realm);
             SAML2LogoutResponseBuilder builder = new SAML2LogoutResponseBuilder();
             builder.logoutRequestID(request.getID());
-            builder.destination(config.getSingleLogoutServiceUrl());
+            builder.destination(snapshot.getSingleLogoutServiceUrl());
             builder.issuer(issuerURL);
             JaxrsSAML2BindingBuilder binding = new JaxrsSAML2BindingBuilder(session)
                         .relayState(relayState);
-            boolean postBinding = config.isPostBindingLogout();
-            if (config.isWantAuthnRequestsSigned()) {
+            boolean postBinding = snapshot.isPostBindingLogout();
+            if (snapshot.isWantAuthnRequestsSigned()) {
                 KeyManager.ActiveRsaKey keys = session.keys().getActiveRsaKey(realm);
-                String keyName = config.getXmlSigKeyInfoKeyNameTransformer().getKeyName(keys.getKid(), keys.getCertificate());
+                String keyName = snapshot.getXmlSigKeyInfoKeyNameTransformer().getKeyName(keys.getKid(), keys.getCertificate());
                 binding.signWith(keyName, keys.getPrivateKey(), keys.getPublicKey(), keys.getCertificate())
                         .signatureAlgorithm(provider.getSignatureAlgorithm())
                         .signDocument();
-                if (! postBinding && config.isAddExtensionsElementWithKeyInfo()) {    // Only include extension if REDIRECT binding and signing whole SAML protocol message
+                if (! postBinding && snapshot.isAddExtensionsElementWithKeyInfo()) {    // Only include extension if REDIRECT binding and signing whole SAML protocol message
                     builder.addExtension(new KeycloakKeySamlExtensionGenerator(keyName));
                 }
             }
             try {
+                Document logoutResponse = builder.buildDocument();
+                if (result.isPartial()) {
+                    addPartialLogoutStatus(logoutResponse);
+                }
                 if (postBinding) {
-                    return binding.postBinding(builder.buildDocument()).response(config.getSingleLogoutServiceUrl());
+                    return binding.postBinding(logoutResponse).response(snapshot.getSingleLogoutServiceUrl());
                 } else {
-                    return binding.redirectBinding(builder.buildDocument()).response(config.getSingleLogoutServiceUrl());
+                    return binding.redirectBinding(logoutResponse).response(snapshot.getSingleLogoutServiceUrl());
                 }
             } catch (ConfigurationException e) {
                 throw new RuntimeException(e);
@@ -383,21 +481,22 @@ public class SpidSAMLEndpoint {
 
         }
 
-        private Consumer<UserSessionModel> processLogout(AtomicReference<LogoutRequestType> ref) {
-            return userSession -> {
-                for(Iterator<SamlAuthenticationPreprocessor> it = SamlSessionUtils.getSamlAuthenticationPreprocessorIterator(session); it.hasNext();) {
-                    ref.set(it.next().beforeProcessingLogoutRequest(ref.get(), userSession, null));
-                }
-                try {
-                    AuthenticationManager.backchannelLogout(session, realm, userSession, session.getContext().getUri(), clientConnection, headers, false);
-                } catch (Exception e) {
-                    logger.warn("failed to do backchannel logout for userSession", e);
-                }
-            };
+        /**
+         * Adds the PartialLogout second-level status code to the Success status of the given
+         * LogoutResponse, as some of the sessions of the principal could not be logged out.
+         */
+        private void addPartialLogoutStatus(Document logoutResponse) {
+            NodeList statusCodes = logoutResponse.getElementsByTagNameNS(JBossSAMLURIConstants.PROTOCOL_NSURI.get(), "StatusCode");
+            if (statusCodes.getLength() == 0) return;
+
+            Element statusCode = (Element) statusCodes.item(0);
+            Element partialLogout = logoutResponse.createElementNS(JBossSAMLURIConstants.PROTOCOL_NSURI.get(), statusCode.getTagName());
+            partialLogout.setAttribute("Value", STATUS_PARTIAL_LOGOUT);
+            statusCode.appendChild(partialLogout);
         }
 
         private String getEntityId(UriInfo uriInfo, RealmModel realm) {
-            String configEntityId = config.getEntityId();
+            String configEntityId = snapshot.getEntityId();
 
             if (configEntityId == null || configEntityId.isEmpty())
                 return UriBuilder.fromUri(uriInfo.getBaseUri()).path("realms").path(realm.getName()).build().toString();
@@ -412,7 +511,21 @@ public class SpidSAMLEndpoint {
                 if (clientId != null && ! clientId.trim().isEmpty()) {
                     authSession = samlIdpInitiatedSSO(clientId);
                 } else {
-                    authSession = callback.getAndVerifyAuthenticationSession(relayState);
+                    String state = relayState;
+                    SpidRelayStateToken relayStateToken = snapshot.isStatelessRelayState() ? SpidRelayStateToken.parse(relayState) : null;
+                    if (relayStateToken != null) {
+                        // Reject stale or forged responses before loading the authentication session
+                        int maxAge = realm.getAccessCodeLifespanLogin() + snapshot.getAllowedClockSkew();
+                        if (! relayStateToken.isValid(session, realm, responseType.getInResponseTo(), maxAge)) {
+                            logger.error("RelayState does not match the InResponseTo of the response, or has expired");
+                            countResponse(SpidMetricsProvider.RESPONSE_INVALID_RELAY_STATE);
+                            event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
+                            event.error(Errors.INVALID_SAML_RESPONSE);
+                            return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_REQUESTER);
+                        }
+                        state = relayStateToken.getState();
+                    }
+                    authSession = callback.getAndVerifyAuthenticationSession(state);
                 }
                 session.getContext().setAuthenticationSession(authSession);
 
@@ -422,10 +535,15 @@ public class SpidSAMLEndpoint {
                     boolean isSpidFault = responseType.getStatus() != null
                         && responseType.getStatus().getStatusMessage() != null
                         && responseType.getStatus().getStatusMessage().startsWith("ErrorCode nr");
-                    if (isSpidFault)
-                        return callback.error("SpidFault_" + responseType.getStatus().getStatusMessage().replace(' ', '_'));
+                    if (isSpidFault) {
+                        String spidFault = "SpidFault_" + responseType.getStatus().getStatusMessage().replace(' ', '_');
+                        // The status message comes from the IdP: only count well-formed error codes
+                        countResponse(SPID_FAULT_PATTERN.matcher(spidFault).matches() ? spidFault : "SpidFault_other");
+                        return callback.error(spidFault);
+                    }
                     else
                     {
+                        countResponse(SpidMetricsProvider.RESPONSE_STATUS_ERROR);
                         String statusMessage = responseType.getStatus() == null ? Messages.IDENTITY_PROVIDER_UNEXPECTED_ERROR : responseType.getStatus().getStatusMessage();
                         return callback.error(statusMessage);
                     }
@@ -435,9 +553,11 @@ public class SpidSAMLEndpoint {
                 }
 
                 boolean assertionIsEncrypted = AssertionUtil.isAssertionEncrypted(responseType);
+                assertionEncrypted = assertionIsEncrypted;
 
-                if (config.isWantAssertionsEncrypted() && !assertionIsEncrypted) {
+                if (snapshot.isWantAssertionsEncrypted() && !assertionIsEncrypted) {
                     logger.error("The assertion is not encrypted, which is required.");
+                    countResponse(SpidMetricsProvider.RESPONSE_ASSERTION_NOT_ENCRYPTED);
                     event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
                     event.error(Errors.INVALID_SAML_RESPONSE);
                     return ErrorPage.error(session, authSession, Response.Status.BAD_REQUEST, Messages.INVALID_REQUESTER);
@@ -447,41 +567,56 @@ public class SpidSAMLEndpoint {
 
                 if (assertionIsEncrypted) {
                     // This methods writes the parsed and decrypted assertion back on the responseType parameter:
+                    timer.begin();
                     assertionElement = AssertionUtil.decryptAssertion(holder, responseType, keys.getPrivateKey());
+                    timer.end(SpidPhase.DECRYPTION);
                 } else {
                     /* We verify the assertion using original document to handle cases where the IdP
                     includes whitespace and/or newlines inside tags. */
                     assertionElement = DocumentUtil.getElement(holder.getSamlDocument(), new QName(JBossSAMLConstants.ASSERTION.get()));
                 }
 
+                String expectedRequestId = authSession.getClientNote(SamlProtocol.SAML_REQUEST_ID);
+
                 // Apply SPID-specific response validation rules
-                String spidExpectedRequestId = authSession.getClientNote(SamlProtocol.SAML_REQUEST_ID);
-                String spidResponseValidationError = verifySpidResponse(holder.getSamlDocument().getDocumentElement(), assertionElement, spidExpectedRequestId);
+                timer.begin();
+                String spidResponseValidationError = SpidResponseValidator.verify(holder.getSamlDocument().getDocumentElement(), assertionElement, expectedRequestId);
+                timer.end(SpidPhase.SPID_VALIDATION);
                 if (spidResponseValidationError != null)
                 {
                     logger.error("SPID Response Validation Error: " + spidResponseValidationError);
+                    countResponse(spidResponseValidationError);
                     event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
                     event.error(Errors.INVALID_SAML_RESPONSE);
                     return callback.error(spidResponseValidationError);
                 }
 
                 // Validate InResponseTo attribute: must match the generated request ID
-                String expectedRequestId = authSession.getClientNote(SamlProtocol.SAML_REQUEST_ID);
+                timer.begin();
                 final boolean inResponseToValidationSuccess = validateInResponseToAttribute(responseType, expectedRequestId);
+                timer.end(SpidPhase.IN_RESPONSE_TO);
                 if (!inResponseToValidationSuccess)
                 {
+                    countResponse(SpidMetricsProvider.RESPONSE_INVALID_IN_RESPONSE_TO);
                     event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
                     event.error(Errors.INVALID_SAML_RESPONSE);
                     return ErrorPage.error(session, authSession, Response.Status.BAD_REQUEST, Messages.INVALID_REQUESTER);
                 }
 
+                timer.begin();
                 boolean signed = AssertionUtil.isSignedElement(assertionElement);
-                final boolean assertionSignatureNotExistsWhenRequired = config.isWantAssertionsSigned() && !signed;
-                final boolean signatureNotValid = signed && config.isValidateSignature() && !AssertionUtil.isSignatureValid(assertionElement, getIDPKeyLocator());
-                final boolean hasNoSignatureWhenRequired = ! signed && config.isValidateSignature() && ! containsUnencryptedSignature(holder);
+                final boolean assertionSignatureNotExistsWhenRequired = snapshot.isWantAssertionsSigned() && !signed;
+                boolean signatureNotValid = false;
+                if (signed && snapshot.isValidateSignature()) {
+                    signatureVerifications++;
+                    signatureNotValid = !AssertionUtil.isSignatureValid(assertionElement, getIDPKeyLocator());
+                }
+                final boolean hasNoSignatureWhenRequired = ! signed && snapshot.isValidateSignature() && ! containsUnencryptedSignature(holder);
+                timer.end(SpidPhase.ASSERTION_SIGNATURE);
 
                 if (assertionSignatureNotExistsWhenRequired || signatureNotValid || hasNoSignatureWhenRequired) {
                     logger.error("validation failed");
+                    countResponse(SpidMetricsProvider.RESPONSE_INVALID_SIGNATURE);
                     event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
                     event.error(Errors.INVALID_SIGNATURE);
                     return ErrorPage.error(session, authSession, Response.Status.BAD_REQUEST, Messages.INVALID_REQUESTER);
@@ -493,6 +628,7 @@ public class SpidSAMLEndpoint {
 
                 if (principal == null) {
                     logger.errorf("no principal in assertion; expected: %s", expectedPrincipalType());
+                    countResponse(SpidMetricsProvider.RESPONSE_NO_PRINCIPAL);
                     event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
                     event.error(Errors.INVALID_SAML_RESPONSE);
                     return ErrorPage.error(session, authSession, Response.Status.BAD_REQUEST, Messages.INVALID_REQUESTER);
@@ -511,12 +647,13 @@ public class SpidSAMLEndpoint {
                     identity.setEmail(subjectNameID.getValue());
                 }
 
-                if (config.isStoreToken()) {
+                if (snapshot.isStoreToken()) {
                     identity.setToken(samlResponse);
                 }
 
+                timer.begin();
                 ConditionsValidator.Builder cvb = new ConditionsValidator.Builder(assertion.getID(), assertion.getConditions(), destinationValidator)
-                        .clockSkewInMillis(1000 * config.getAllowedClockSkew());
+                        .clockSkewInMillis(1000 * snapshot.getAllowedClockSkew());
                 try {
                     String issuerURL = getEntityId(session.getContext().getUri(), realm);
                     cvb.addAllowedAudience(URI.create(issuerURL));
@@ -527,13 +664,28 @@ public class SpidSAMLEndpoint {
                 } catch (IllegalArgumentException ex) {
                     // warning has been already emitted in DeploymentBuilder
                 }
-                if (! cvb.build().isValid()) {
+                boolean conditionsValid = cvb.build().isValid();
+                timer.end(SpidPhase.CONDITIONS);
+                if (! conditionsValid) {
                     logger.error("Assertion expired.");
+                    countResponse(SpidMetricsProvider.RESPONSE_ASSERTION_EXPIRED);
                     event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
                     event.error(Errors.INVALID_SAML_RESPONSE);
                     return ErrorPage.error(session, authSession, Response.Status.BAD_REQUEST, Messages.EXPIRED_CODE);
                 }
 
+                // Reject assertions that have already been consumed while they are still valid
+                String assertionIssuer = assertion.getIssuer() != null ? assertion.getIssuer().getValue() : snapshot.getAlias();
+                long assertionExpiry = getAssertionExpiry(assertion) + 1000L * snapshot.getAllowedClockSkew();
+                if (! SpidIdentityProviderFactory.get(session).getReplayCache().consume(session, assertionIssuer, assertion.getID(), assertionExpiry)) {
+                    logger.errorf("Assertion replay detected, assertion ID %s from %s has already been consumed", assertion.getID(), assertionIssuer);
+                    countResponse(SpidMetricsProvider.RESPONSE_ASSERTION_REPLAYED);
+                    event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
+                    event.detail(Details.REASON, "assertion_replayed");
+                    event.error(Errors.INVALID_SAML_RESPONSE);
+                    return ErrorPage.error(session, authSession, Response.Status.BAD_REQUEST, Messages.INVALID_REQUESTER);
+                }
+
                 AuthnStatementType authn = null;
                 for (Object statement : assertion.getStatements()) {
                     if (statement instanceof AuthnStatementType) {
@@ -548,16 +700,21 @@ public class SpidSAMLEndpoint {
                         identity.setEmail(email);
                 }
 
-                String brokerUserId = config.getAlias() + "." + principal;
+                String brokerUserId = snapshot.getAlias() + "." + principal;
                 identity.setBrokerUserId(brokerUserId);
                 identity.setIdpConfig(config);
                 identity.setIdp(provider);
                 if (authn != null && authn.getSessionIndex() != null) {
-                    identity.setBrokerSessionId(config.getAlias() + "." + authn.getSessionIndex());
+                    identity.setBrokerSessionId(snapshot.getAlias() + "." + authn.getSessionIndex());
                  }
 
-
-                return callback.authenticated(identity);
+                countResponse(SpidMetricsProvider.RESPONSE_SUCCESS);
+                timer.begin();
+                try {
+                    return callback.authenticated(identity);
+                } finally {
+                    timer.end(SpidPhase.AUTHENTICATED);
+                }
             } catch (WebApplicationException e) {
                 return e.getResponse();
             } catch (Exception e) {
@@ -566,6 +723,27 @@ public class SpidSAMLEndpoint {
         }
 
 
+        /**
+         * Returns the time after which the assertion is no longer acceptable: the earliest of the
+         * NotOnOrAfter of its conditions and of its subject confirmation data.
+         */
+        private long getAssertionExpiry(AssertionType assertion) {
+            long expiry = Long.MAX_VALUE;
+            if (assertion.getConditions() != null && assertion.getConditions().getNotOnOrAfter() != null) {
+                expiry = assertion.getConditions().getNotOnOrAfter().toGregorianCalendar().getTimeInMillis();
+            }
+            SubjectType subject = assertion.getSubject();
+            if (subject != null && subject.getConfirmation() != null) {
+                for (SubjectConfirmationType confirmation : subject.getConfirmation()) {
+                    SubjectConfirmationDataType data = confirmation.getSubjectConfirmationData();
+                    if (data != null && data.getNotOnOrAfter() != null) {
+                        expiry = Math.min(expiry, data.getNotOnOrAfter().toGregorianCalendar().getTimeInMillis());
+                    }
+                }
+            }
+            return expiry == Long.MAX_VALUE ? System.currentTimeMillis() + MAX_ASSERTION_LIFETIME_MILLIS : expiry;
+        }
+
         /**
          * If there is a client whose SAML IDP-initiated SSO URL name is set to the
          * given {@code clientUrlName}, creates a fresh authentication session for that
@@ -578,20 +756,18 @@ public class SpidSAMLEndpoint {
         private AuthenticationSessionModel samlIdpInitiatedSSO(final String clientUrlName) {
             event.event(EventType.LOGIN);
             CacheControlUtil.noBackButtonCacheControlHeader();
-            Optional<ClientModel> oClient = SpidSAMLEndpoint.this.session.clients()
-              .searchClientsByAttributes(realm, Collections.singletonMap(SamlProtocol.SAML_IDP_INITIATED_SSO_URL_NAME, clientUrlName), 0, 1)
-              .findFirst();
+            ClientModel client = SpidIdpInitiatedClientCache.getClient(session, realm, clientUrlName);
 
-            if (! oClient.isPresent()) {
+            if (client == null) {
                 event.error(Errors.CLIENT_NOT_FOUND);
                 Response response = ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.CLIENT_NOT_FOUND);
                 throw new WebApplicationException(response);
             }
 
-            LoginProtocolFactory factory = (LoginProtocolFactory) session.getKeycloakSessionFactory().getProviderFactory(LoginProtocol.class, SamlProtocol.LOGIN_PROTOCOL);
+            LoginProtocolFactory factory = SpidIdentityProviderFactory.get(session).getSamlProtocolFactory();
             SamlService samlService = (SamlService) factory.createProtocolEndpoint(SpidSAMLEndpoint.this.realm, event);
             ResteasyProviderFactory.getInstance().injectProperties(samlService);
-            AuthenticationSessionModel authSession = samlService.getOrCreateLoginSessionForIdpInitiatedSso(session, SpidSAMLEndpoint.this.realm, oClient.get(), null);
+            AuthenticationSessionModel authSession = samlService.getOrCreateLoginSessionForIdpInitiatedSso(session, SpidSAMLEndpoint.this.realm, client, null);
             if (authSession == null) {
                 event.error(Errors.INVALID_REDIRECT_URI);
                 Response response = ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_REDIRECT_URI);
@@ -619,8 +795,14 @@ public class SpidSAMLEndpoint {
                 event.error(Errors.INVALID_SAML_RESPONSE);
                 return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_FEDERATED_IDENTITY_ACTION);
             }
+            responseHolder = holder;
             StatusResponseType statusResponse = (StatusResponseType)holder.getSamlObject();
+            // Join the trace of the login this is a response to
+            if (statusResponse instanceof ResponseType) {
+                timer.getSpan().linkTo(statusResponse.getInResponseTo());
+            }
             // validate destination
+            timer.begin();
             if (isDestinationRequired()
                     && statusResponse.getDestination() == null && containsUnencryptedSignature(holder)) {
                 event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
@@ -628,24 +810,33 @@ public class SpidSAMLEndpoint {
                 event.error(Errors.INVALID_SAML_LOGOUT_RESPONSE);
                 return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_REQUEST);
             }
-            if (! destinationValidator.validate(getExpectedDestination(config.getAlias(), clientId), statusResponse.getDestination())) {
+            if (! destinationValidator.validate(getExpectedDestination(snapshot.getAlias(), clientId), statusResponse.getDestination())) {
                 event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
                 event.detail(Details.REASON, Errors.INVALID_DESTINATION);
                 event.error(Errors.INVALID_SAML_RESPONSE);
                 return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_REQUEST);
             }
-            if (config.isValidateSignature()) {
+            timer.end(SpidPhase.DESTINATION);
+            if (snapshot.isValidateSignature()) {
+                timer.begin();
                 try {
                     verifySignature(GeneralConstants.SAML_RESPONSE_KEY, holder);
+                    timer.end(SpidPhase.SIGNATURE);
                 } catch (VerificationException e) {
                     logger.error("validation failed", e);
+                    countResponse(SpidMetricsProvider.RESPONSE_INVALID_SIGNATURE);
                     event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
                     event.error(Errors.INVALID_SIGNATURE);
                     return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_FEDERATED_IDENTITY_ACTION);
                 }
             }
             if (statusResponse instanceof ResponseType) {
-                return handleLoginResponse(samlResponse, holder, (ResponseType)statusResponse, relayState, clientId);
+                SpidJfrEvent jfr = SpidJfrEvent.begin(SpidJfrEvent.Type.LOGIN_RESPONSE, snapshot.getAlias());
+                try {
+                    return handleLoginResponse(samlResponse, holder, (ResponseType)statusResponse, relayState, clientId);
+                } finally {
+                    endJfrEvent(jfr, samlResponse);
+                }
 
             } else {
                 // todo need to check that it is actually a LogoutResponse
@@ -704,17 +895,36 @@ public class SpidSAMLEndpoint {
                     return;
                 }
             }
+            signatureVerifications++;
             SamlProtocolUtils.verifyDocumentSignature(documentHolder.getSamlDocument(), getIDPKeyLocator());
         }
 
         @Override
         protected SAMLDocumentHolder extractRequestDocument(String samlRequest) {
-            return SAMLRequestParser.parseRequestPostBinding(samlRequest);
+            try {
+                return SAMLRequestParser.parseRequestPostBinding(samlRequest);
+            } catch (RuntimeException e) {
+                // Base64 decoding errors are wrapped in a RuntimeException, reject as unparseable
+                logger.debugf("Could not decode SAML request: %s", e.getMessage());
+                return null;
+            }
         }
         @Override
         protected SAMLDocumentHolder extractResponseDocument(String response) {
-            byte[] samlBytes = PostBindingUtil.base64Decode(response);
-            return SAMLRequestParser.parseResponseDocument(samlBytes);
+            timer.begin();
+            byte[] samlBytes;
+            try {
+                samlBytes = PostBindingUtil.base64Decode(response);
+            } catch (RuntimeException e) {
+                logger.debugf("Could not decode SAML response: %s", e.getMessage());
+                return null;
+            } finally {
+                timer.end(SpidPhase.DECODE);
+            }
+            timer.begin();
+            SAMLDocumentHolder holder = SAMLRequestParser.parseResponseDocument(samlBytes);
+            timer.end(SpidPhase.PARSE);
+            return holder;
         }
 
         @Override
@@ -735,19 +945,40 @@ public class SpidSAMLEndpoint {
         @Override
         protected void verifySignature(String key, SAMLDocumentHolder documentHolder) throws VerificationException {
             KeyLocator locator = getIDPKeyLocator();
+            signatureVerifications++;
             SamlProtocolUtils.verifyRedirectSignature(documentHolder, locator, session.getContext().getUri(), key);
         }
 
+        @Override
+        protected int countSignatures(SAMLDocumentHolder documentHolder) {
+            return super.countSignatures(documentHolder) + (containsUnencryptedSignature(documentHolder) ? 1 : 0);
+        }
+
 
 
         @Override
         protected SAMLDocumentHolder extractRequestDocument(String samlRequest) {
-            return SAMLRequestParser.parseRequestRedirectBinding(samlRequest);
+            try {
+                return SAMLRequestParser.parseRequestRedirectBinding(samlRequest);
+            } catch (RuntimeException e) {
+                // Base64 and DEFLATE errors are wrapped in a RuntimeException, reject as unparseable
+                logger.debugf("Could not decode SAML request: %s", e.getMessage());
+                return null;
+            }
         }
 
         @Override
         protected SAMLDocumentHolder extractResponseDocument(String response) {
-            return SAMLRequestParser.parseResponseRedirectBinding(response);
+            // Decoding and inflating are not separable from parsing here, they are all timed as parse
+            timer.begin();
+            try {
+                return SAMLRequestParser.parseResponseRedirectBinding(response);
+            } catch (RuntimeException e) {
+                logger.debugf("Could not decode SAML response: %s", e.getMessage());
+                return null;
+            } finally {
+                timer.end(SpidPhase.PARSE);
+            }
         }
 
         @Override
@@ -771,15 +1002,15 @@ public class SpidSAMLEndpoint {
 
     private String getPrincipal(AssertionType assertion) {
 
-        SamlPrincipalType principalType = config.getPrincipalType();
+        SamlPrincipalType principalType = snapshot.getPrincipalType();
 
         if (principalType == null || principalType.equals(SamlPrincipalType.SUBJECT)) {
             NameIDType subjectNameID = getSubjectNameID(assertion);
             return subjectNameID != null ? subjectNameID.getValue() : null;
         } else if (principalType.equals(SamlPrincipalType.ATTRIBUTE)) {
-            return getAttributeByName(assertion, config.getPrincipalAttribute());
+            return getAttributeByName(assertion, snapshot.getPrincipalAttribute());
         } else {
-            return getAttributeByFriendlyName(assertion, config.getPrincipalAttribute());
+            return getAttributeByFriendlyName(assertion, snapshot.getPrincipalAttribute());
         }
 
     }
@@ -798,13 +1029,13 @@ public class SpidSAMLEndpoint {
     }
 
     private String expectedPrincipalType() {
-        SamlPrincipalType principalType = config.getPrincipalType();
+        SamlPrincipalType principalType = snapshot.getPrincipalType();
         switch (principalType) {
             case SUBJECT:
                 return principalType.name();
             case ATTRIBUTE:
             case FRIENDLY_ATTRIBUTE:
-                return String.format("%s(%s)", principalType.name(), config.getPrincipalAttribute());
+                return String.format("%s(%s)", principalType.name(), snapshot.getPrincipalAttribute());
             default:
                 return null;
         }
@@ -876,115 +1107,4 @@ public class SpidSAMLEndpoint {
 
         return true;
     }
-
-    private String verifySpidResponse(Element documentElement, Element assertionElement, String expectedRequestId) {
-        // 17: Response > InResponseTo missing
-        if (!documentElement.hasAttribute("InResponseTo")) {
-            return "SpidSamlCheck_nr17";
-        }
-
-        // 16: Response > InResponseTo empty
-        String responseInResponseToValue = documentElement.getAttribute("InResponseTo");
-        if (responseInResponseToValue.isEmpty()) {
-            return "SpidSamlCheck_nr16";
-        }
-
-        // 18: Response > InResponseTo does not match request ID
-        if (!responseInResponseToValue.equals(expectedRequestId)) {
-            return "SpidSamlCheck_nr18";
-        }
-
-        // 42: Assertion > Subject missing
-        Element subjectElement = DocumentUtil.getChildElement(assertionElement, 
-            new QName(JBossSAMLURIConstants.ASSERTION_NSURI.get(), "Subject"));
-        if (subjectElement == null) {
-            return "SpidSamlCheck_nr42";
-        }
-
-        // 41: Assertion > Subject empty (Keycloak returns error earlier)
-        if (!hasNamedChild(subjectElement)) {
-            return "SpidSamlCheck_nr41";
-        }
-
-        // 52: Assertion > Subject > Confirmation missing
-        Element subjectConfirmationElement = DocumentUtil.getChildElement(subjectElement, 
-            new QName(JBossSAMLURIConstants.ASSERTION_NSURI.get(), "SubjectConfirmation"));
-
-        if (subjectConfirmationElement == null) {
-            return "SpidSamlCheck_nr52";
-        }
-
-        // 51: Assertion > Subject > Confirmation empty
-        if (!hasNamedChild(subjectConfirmationElement)) {
-            return "SpidSamlCheck_nr51";
-        }
-
-        // 53: Assertion > Subject > Confirmation > Method missing
-        if (!subjectConfirmationElement.hasAttribute("Method")) {
-            return "SpidSamlCheck_nr54";
-        }
-
-        // 54: Assertion > Subject > Confirmation > Method empty
-        String subjectConfirmationMethodValue = subjectConfirmationElement.getAttribute("Method");
-        if (subjectConfirmationMethodValue.isEmpty()) {
-            return "SpidSamlCheck_nr53";
-        }
-
-        // 55: Assertion > Subject > Confirmation > Method is not JBossSAMLURIConstants.SUBJECT_CONFIRMATION_BEARER
-        if (!subjectConfirmationMethodValue.equals(JBossSAMLURIConstants.SUBJECT_CONFIRMATION_BEARER.get())) {
-            return "SpidSamlCheck_nr55";
-        }
-
-        // 56: Assertion > Subject > Confirmation > SubjectConfirmationData missing
-        Element subjectConfirmationDataElement = DocumentUtil.getChildElement(subjectConfirmationElement, 
-            new QName(JBossSAMLURIConstants.ASSERTION_NSURI.get(), "SubjectConfirmationData"));
-
-        if (subjectConfirmationDataElement == null) {
-            return "SpidSamlCheck_nr56";
-        }
-
-        // 58: Assertion > Subject > Confirmation > SubjectConfirmationData > Recipient missing
-        if (!subjectConfirmationDataElement.hasAttribute("Recipient")) {
-            return "SpidSamlCheck_nr58";
-        }
-        
-        // 57: Assertion > Subject > Confirmation > SubjectConfirmationData > Recipient is empty
-        String subjectConfirmationDataRecipientValue = subjectConfirmationDataElement.getAttribute("Recipient");
-        if (subjectConfirmationDataRecipientValue.isEmpty()) {
-            return "SpidSamlCheck_nr57";
-        }
-
-        // 61: Assertion > Subject > Confirmation > SubjectConfirmationData > InResponseTo missing
-        if (!subjectConfirmationDataElement.hasAttribute("InResponseTo")) {
-            return "SpidSamlCheck_nr61";
-        }
-        
-        // 60: Assertion > Subject > Confirmation > SubjectConfirmationData > InResponseTo is empty
-        String subjectConfirmationDataInResponseToValue = subjectConfirmationDataElement.getAttribute("InResponseTo");
-        if (subjectConfirmationDataInResponseToValue.isEmpty()) {
-            return "SpidSamlCheck_nr60";
-        }
-
-        // 62: Assertion > Subject > Confirmation > SubjectConfirmationData > InResponseTo does not match request ID
-        if (!subjectConfirmationDataInResponseToValue.equals(expectedRequestId)) {
-            return "SpidSamlCheck_nr62";
-        }
-
-        return null;
-    }
-
-    private boolean hasNamedChild(Element element)
-    {
-        NodeList childNodes = element.getChildNodes();
-        if (childNodes == null) return false;
-
-        for (int i = 0; i < childNodes.getLength(); ++i)
-        {
-            Node node = childNodes.item(i);
-            if (node.getNodeType() ==  Node.ELEMENT_NODE && node.getNodeName() != null)
-                return true;
-        }
-
-        return false;
-    }
 }
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.keycloak.broker.spid.authenticators;
+
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.authentication.authenticators.broker.AbstractIdpAuthenticator;
+import org.keycloak.authentication.authenticators.broker.util.SerializedBrokeredIdentityContext;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.spid.SpidFiscalNumberIndex;
+import org.keycloak.broker.spid.SpidIdentityProviderFactory;
+import org.keycloak.broker.spid.mappers.SpidAssertionAttributes;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * First broker login step linking a SPID login to the user with the same fiscal number, found
+ * through the {@link SpidFiscalNumberIndex} instead of a search of the users by attribute.
+ *
+ * The step succeeds with the existing user, which the broker then links to the identity of the
+ * SPID IdP, and is only attempted when the login does not come from a SPID IdP, has no fiscal
+ * number, no user has it yet or the user is already linked to another identity of the same IdP.
+ */
+public class SpidFiscalNumberLinkAuthenticator extends AbstractIdpAuthenticator {
+
+    protected static final Logger logger = Logger.getLogger(SpidFiscalNumberLinkAuthenticator.class);
+
+    @Override
+    protected void authenticateImpl(AuthenticationFlowContext context, SerializedBrokeredIdentityContext serializedCtx, BrokeredIdentityContext brokerContext) {
+        if (brokerContext.getIdpConfig() == null
+            || ! SpidIdentityProviderFactory.PROVIDER_ID.equals(brokerContext.getIdpConfig().getProviderId())) {
+            context.attempted();
+            return;
+        }
+
+        KeycloakSession session = context.getSession();
+        RealmModel realm = context.getRealm();
+        String fiscalNumber = SpidAssertionAttributes.of(brokerContext).getFirst(SpidFiscalNumberIndex.FISCAL_NUMBER);
+        UserModel existingUser = SpidFiscalNumberIndex.getUser(session, realm, fiscalNumber);
+        if (existingUser == null || ! existingUser.isEnabled()) {
+            context.attempted();
+            return;
+        }
+        // A user has a single identity per IdP, left to the other steps to sort out
+        if (session.users().getFederatedIdentity(realm, existingUser, brokerContext.getIdpConfig().getAlias()) != null) {
+            context.attempted();
+            return;
+        }
+
+        logger.debugf("User '%s' will be linked with identity provider '%s' by fiscal number",
+            existingUser.getUsername(), brokerContext.getIdpConfig().getAlias());
+        context.setUser(existingUser);
+        context.success();
+    }
+
+    @Override
+    protected void actionImpl(AuthenticationFlowContext context, SerializedBrokeredIdentityContext serializedCtx, BrokeredIdentityContext brokerContext) {
+    }
+
+    @Override
+    public boolean requiresUser() {
+        return false;
+    }
+
+    @Override
+    public boolean configuredFor(KeycloakSession session, RealmModel realm, UserModel user) {
+        return false;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The JFR event classes. Only loaded by {@link SpidJfrEvent} once the JFR API is known to be
+ * available.
+ *
+ * The {@link EventType} of each event class is looked up once: whether it is enabled in a running
+ * recording is checked on it before an event is allocated.
+ */
+final class JfrSpidEvents {
+
+    private static final SpidJfrEvent.Type[] TYPES = SpidJfrEvent.Type.values();
+    private static final EventType[] EVENT_TYPES = new EventType[TYPES.length];
+
+    static {
+        for (SpidJfrEvent.Type type : TYPES) {
+            EVENT_TYPES[type.ordinal()] = EventType.getEventType(eventClass(type));
+        }
+    }
+
+    private JfrSpidEvents() {
+    }
+
+    static SpidJfrEvent begin(SpidJfrEvent.Type type, String alias) {
+        if (!EVENT_TYPES[type.ordinal()].isEnabled()) return SpidJfrEvent.NOOP;
+
+        SpidEvent event = create(type);
+        event.alias = alias;
+        event.begin();
+        return new Recording(event);
+    }
+
+    private static Class<? extends SpidEvent> eventClass(SpidJfrEvent.Type type) {
+        switch (type) {
+            case LOGIN_REQUEST: return LoginRequestEvent.class;
+            case RESPONSE: return ResponseEvent.class;
+            case LOGIN_RESPONSE: return LoginResponseEvent.class;
+            case LOGOUT_REQUEST: return LogoutRequestEvent.class;
+            case BACKCHANNEL_LOGOUT: return BackchannelLogoutEvent.class;
+            case METADATA: return MetadataEvent.class;
+            default: throw new IllegalArgumentException(type.name());
+        }
+    }
+
+    private static SpidEvent create(SpidJfrEvent.Type type) {
+        switch (type) {
+            case LOGIN_REQUEST: return new LoginRequestEvent();
+            case RESPONSE: return new ResponseEvent();
+            case LOGIN_RESPONSE: return new LoginResponseEvent();
+            case LOGOUT_REQUEST: return new LogoutRequestEvent();
+            case BACKCHANNEL_LOGOUT: return new BackchannelLogoutEvent();
+            case METADATA: return new MetadataEvent();
+            default: throw new IllegalArgumentException(type.name());
+        }
+    }
+
+    private static final class Recording extends SpidJfrEvent {
+
+        private final SpidEvent event;
+
+        Recording(SpidEvent event) {
+            this.event = event;
+        }
+
+        @Override
+        public boolean isRecording() {
+            return true;
+        }
+
+        @Override
+        public void setBinding(String binding) {
+            event.binding = binding;
+        }
+
+        @Override
+        public void setOutcome(String outcome) {
+            event.outcome = outcome;
+        }
+
+        @Override
+        public void setPayloadSize(long payloadSize) {
+            event.payloadSize = payloadSize;
+        }
+
+        @Override
+        public void end() {
+            event.end();
+            if (event.shouldCommit()) {
+                event.commit();
+            }
+        }
+    }
+
+    @Category({"Keycloak", "SPID"})
+    @StackTrace(false)
+    abstract static class SpidEvent extends Event {
+
+        @Label("IdP Alias")
+        String alias;
+
+        @Label("Binding")
+        String binding;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Label("Payload Size")
+        @DataAmount
+        long payloadSize;
+    }
+
+    @Name("org.keycloak.spid.LoginRequest")
+    @Label("SPID Login Request")
+    @Description("AuthnRequest built and sent to a SPID IdP")
+    static final class LoginRequestEvent extends SpidEvent {
+    }
+
+    @Name("org.keycloak.spid.Response")
+    @Label("SPID Response")
+    @Description("SAML response received from a SPID IdP")
+    static final class ResponseEvent extends SpidEvent {
+    }
+
+    @Name("org.keycloak.spid.LoginResponse")
+    @Label("SPID Login Response")
+    @Description("Validation of a SPID login response and brokering of the identity")
+    static final class LoginResponseEvent extends SpidEvent {
+    }
+
+    @Name("org.keycloak.spid.LogoutRequest")
+    @Label("SPID Logout Request")
+    @Description("LogoutRequest received from a SPID IdP")
+    static final class LogoutRequestEvent extends SpidEvent {
+    }
+
+    @Name("org.keycloak.spid.BackchannelLogout")
+    @Label("SPID Backchannel Logout")
+    @Description("LogoutRequest built and queued for a SPID IdP")
+    static final class BackchannelLogoutEvent extends SpidEvent {
+    }
+
+    @Name("org.keycloak.spid.Metadata")
+    @Label("SPID Metadata")
+    @Description("Generation of the SPID SP metadata")
+    static final class MetadataEvent extends SpidEvent {
+    }
+}
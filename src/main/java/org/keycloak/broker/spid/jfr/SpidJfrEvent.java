@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.jfr;
+
+import org.jboss.logging.Logger;
+
+/**
+ * A Java Flight Recorder event of a SPID flow, carrying the IdP alias, the binding, the outcome and
+ * the size of the SAML payload.
+ *
+ * The JFR API is only touched when it is visible to this deployment, so the provider still runs on
+ * JVMs without it. When JFR is not available, or the event is not enabled in the running
+ * recordings, {@link #begin(Type, String)} returns {@link #NOOP} without allocating.
+ */
+public abstract class SpidJfrEvent {
+    protected static final Logger logger = Logger.getLogger(SpidJfrEvent.class);
+
+    private static final boolean AVAILABLE = isAvailable();
+
+    public static final SpidJfrEvent NOOP = new SpidJfrEvent() {
+        @Override
+        public boolean isRecording() {
+            return false;
+        }
+
+        @Override
+        public void setBinding(String binding) {
+        }
+
+        @Override
+        public void setOutcome(String outcome) {
+        }
+
+        @Override
+        public void setPayloadSize(long payloadSize) {
+        }
+
+        @Override
+        public void end() {
+        }
+    };
+
+    public enum Type {
+        LOGIN_REQUEST,
+        RESPONSE,
+        LOGIN_RESPONSE,
+        LOGOUT_REQUEST,
+        BACKCHANNEL_LOGOUT,
+        METADATA
+    }
+
+    public static SpidJfrEvent begin(Type type, String alias) {
+        if (!AVAILABLE) return NOOP;
+        return JfrSpidEvents.begin(type, alias);
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, SpidJfrEvent.class.getClassLoader());
+            // Registers the event types, which fails if JFR is present but disabled
+            Class.forName(JfrSpidEvents.class.getName(), true, SpidJfrEvent.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError | RuntimeException e) {
+            logger.debug("Java Flight Recorder is not available, SPID events are disabled");
+            return false;
+        }
+    }
+
+    public abstract boolean isRecording();
+
+    public abstract void setBinding(String binding);
+
+    public abstract void setOutcome(String outcome);
+
+    public abstract void setPayloadSize(long payloadSize);
+
+    /**
+     * Ends the event and commits it if it passes the threshold of the running recordings.
+     */
+    public abstract void end();
+}
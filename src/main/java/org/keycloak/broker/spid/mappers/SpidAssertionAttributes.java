@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.mappers;
+
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.spid.SpidSAMLEndpoint;
+import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The attribute values of the assertion of a login, by attribute name and friendly name.
+ *
+ * The attribute statements are scanned once per login, the first time a SPID mapper asks for an
+ * attribute, and the index is kept in the context data of the login for the following mappers.
+ * The index is kept as a plain map, as the context data is serialized into the authentication
+ * session for first broker login.
+ */
+public final class SpidAssertionAttributes {
+
+    private static final String CONTEXT_KEY = SpidAssertionAttributes.class.getName();
+
+    private final Map<String, List<String>> values;
+
+    private SpidAssertionAttributes(Map<String, List<String>> values) {
+        this.values = values;
+    }
+
+    private static HashMap<String, List<String>> index(AssertionType assertion) {
+        HashMap<String, List<String>> values = new HashMap<>();
+        for (AttributeStatementType statement : assertion.getAttributeStatements()) {
+            for (AttributeStatementType.ASTChoiceType choice : statement.getAttributes()) {
+                AttributeType attribute = choice.getAttribute();
+                if (attribute == null) continue;
+
+                List<String> attributeValues = new ArrayList<>(attribute.getAttributeValue().size());
+                for (Object value : attribute.getAttributeValue()) {
+                    if (value != null) attributeValues.add(value.toString());
+                }
+                add(values, attribute.getName(), attributeValues);
+                if (attribute.getFriendlyName() != null && ! attribute.getFriendlyName().equals(attribute.getName())) {
+                    add(values, attribute.getFriendlyName(), attributeValues);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The attributes of the assertion of the given login.
+     */
+    public static SpidAssertionAttributes of(BrokeredIdentityContext context) {
+        AssertionType assertion = (AssertionType) context.getContextData().get(SpidSAMLEndpoint.SAML_ASSERTION);
+        if (assertion == null) {
+            return new SpidAssertionAttributes(Collections.emptyMap());
+        }
+
+        String key = CONTEXT_KEY + ":" + assertion.getID();
+        Object values = context.getContextData().get(key);
+        if (values instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<String, List<String>> cached = (Map<String, List<String>>) values;
+            return new SpidAssertionAttributes(cached);
+        }
+        HashMap<String, List<String>> indexed = index(assertion);
+        context.getContextData().put(key, indexed);
+        return new SpidAssertionAttributes(indexed);
+    }
+
+    /**
+     * The values of the attribute with the given name or friendly name, empty if the assertion
+     * does not have it.
+     */
+    public List<String> get(String name) {
+        List<String> attributeValues = name == null ? null : values.get(name);
+        return attributeValues == null ? Collections.emptyList() : Collections.unmodifiableList(attributeValues);
+    }
+
+    /**
+     * The first value of the attribute with the given name or friendly name, or {@code null}.
+     */
+    public String getFirst(String name) {
+        List<String> attributeValues = get(name);
+        return attributeValues.isEmpty() ? null : attributeValues.get(0);
+    }
+
+    private static void add(Map<String, List<String>> values, String name, List<String> attributeValues) {
+        if (name == null) return;
+        values.computeIfAbsent(name, key -> new ArrayList<>()).addAll(attributeValues);
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.mappers;
+
+import org.jboss.logging.Logger;
+import org.keycloak.broker.provider.AbstractIdentityProviderMapper;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.spid.SpidFiscalNumberIndex;
+import org.keycloak.broker.spid.SpidIdentityProviderFactory;
+import org.keycloak.dom.saml.v2.metadata.AttributeConsumingServiceType;
+import org.keycloak.dom.saml.v2.metadata.EntityDescriptorType;
+import org.keycloak.dom.saml.v2.metadata.RequestedAttributeType;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderSyncMode;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.protocol.saml.mappers.SamlMetadataDescriptorUpdater;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Imports the whole SPID attribute set in one mapper: a table of SPID attribute names and user
+ * attributes, applied in one pass over the assertion, with the SPID values normalized on the way.
+ *
+ * It replaces one {@link SpidUserAttributeMapper} per attribute, each of which runs and scans the
+ * assertion on its own on every login.
+ */
+public class SpidProfileMapper extends AbstractIdentityProviderMapper implements SamlMetadataDescriptorUpdater {
+
+    private static final Logger logger = Logger.getLogger(SpidProfileMapper.class);
+
+    public static final String[] COMPATIBLE_PROVIDERS = {SpidIdentityProviderFactory.PROVIDER_ID};
+
+    public static final String PROVIDER_ID = "spid-profile-idp-mapper";
+
+    public static final String ATTRIBUTES = "spid.attributes";
+    public static final String STRIP_FISCAL_NUMBER_PREFIX = "spid.strip.fiscal.number.prefix";
+    public static final String DATE_OF_BIRTH_FORMAT = "spid.date.of.birth.format";
+
+    public static final String DEFAULT_ATTRIBUTES = String.join("\n",
+        "name=" + UserModel.FIRST_NAME,
+        "familyName=" + UserModel.LAST_NAME,
+        "email=" + UserModel.EMAIL,
+        "fiscalNumber=fiscalNumber",
+        "dateOfBirth=dateOfBirth");
+
+    public static final String FISCAL_NUMBER = "fiscalNumber";
+    public static final String FISCAL_NUMBER_PREFIX = "TINIT-";
+    public static final String DATE_OF_BIRTH = "dateOfBirth";
+
+    private static final Set<IdentityProviderSyncMode> IDENTITY_PROVIDER_SYNC_MODES = EnumSet.allOf(IdentityProviderSyncMode.class);
+
+    private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
+
+    static {
+        ProviderConfigProperty property = new ProviderConfigProperty();
+        property.setName(ATTRIBUTES);
+        property.setLabel("Attributes");
+        property.setHelpText("One mapping per line, SPID attribute name = user attribute, e.g. 'familyName=lastName'. "
+            + "Use email, firstName and lastName for the user profile fields.");
+        property.setType(ProviderConfigProperty.TEXT_TYPE);
+        property.setDefaultValue(DEFAULT_ATTRIBUTES);
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName(STRIP_FISCAL_NUMBER_PREFIX);
+        property.setLabel("Strip fiscal number prefix");
+        property.setHelpText("Store the fiscalNumber without its '" + FISCAL_NUMBER_PREFIX + "' prefix.");
+        property.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+        property.setDefaultValue("true");
+        configProperties.add(property);
+
+        property = new ProviderConfigProperty();
+        property.setName(DATE_OF_BIRTH_FORMAT);
+        property.setLabel("Date of birth format");
+        property.setHelpText("The format the dateOfBirth is stored in, as a java.time pattern. "
+            + "Dates that SPID sends in another format than yyyy-MM-dd are not imported.");
+        property.setType(ProviderConfigProperty.STRING_TYPE);
+        property.setDefaultValue("yyyy-MM-dd");
+        configProperties.add(property);
+    }
+
+    // The parsed configuration of each mapper model, reparsed when the model changes
+    private final Map<String, Profile> profiles = new ConcurrentHashMap<>();
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public String[] getCompatibleProviders() {
+        return COMPATIBLE_PROVIDERS;
+    }
+
+    @Override
+    public String getDisplayCategory() {
+        return "Attribute Importer";
+    }
+
+    @Override
+    public String getDisplayType() {
+        return "SPID Profile Importer";
+    }
+
+    @Override
+    public String getHelpText() {
+        return "Import the SPID attributes listed in the table into the user profile and attributes, in a single mapper.";
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return configProperties;
+    }
+
+    @Override
+    public boolean supportsSyncMode(IdentityProviderSyncMode syncMode) {
+        return IDENTITY_PROVIDER_SYNC_MODES.contains(syncMode);
+    }
+
+    @Override
+    public void preprocessFederatedIdentity(KeycloakSession session, RealmModel realm, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        Profile profile = getProfile(mapperModel);
+        SpidAssertionAttributes attributes = SpidAssertionAttributes.of(context);
+        for (Mapping mapping : profile.mappings) {
+            String value = first(profile.normalize(mapping.spidAttribute, attributes.get(mapping.spidAttribute)));
+            if (value == null) continue;
+
+            if (mapping.userAttribute.equalsIgnoreCase(UserModel.EMAIL)) {
+                context.setEmail(value);
+            } else if (mapping.userAttribute.equalsIgnoreCase(UserModel.FIRST_NAME)) {
+                context.setFirstName(value);
+            } else if (mapping.userAttribute.equalsIgnoreCase(UserModel.LAST_NAME)) {
+                context.setLastName(value);
+            }
+        }
+    }
+
+    @Override
+    public void importNewUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        updateBrokeredUser(session, realm, user, mapperModel, context);
+    }
+
+    @Override
+    public void updateBrokeredUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        Profile profile = getProfile(mapperModel);
+        SpidAssertionAttributes attributes = SpidAssertionAttributes.of(context);
+        SpidUserAttributeUpdater updater = SpidUserAttributeUpdater.of(context, user);
+        SpidFiscalNumberIndex.update(session, realm, user, context);
+        for (Mapping mapping : profile.mappings) {
+            List<String> received = attributes.get(mapping.spidAttribute);
+            List<String> values = profile.normalize(mapping.spidAttribute, received);
+            // Values that cannot be normalized leave the stored ones alone
+            if (values.isEmpty() && ! received.isEmpty()) continue;
+            String value = first(values);
+
+            if (mapping.userAttribute.equalsIgnoreCase(UserModel.EMAIL)) {
+                if (value != null) updater.setEmail(value);
+            } else if (mapping.userAttribute.equalsIgnoreCase(UserModel.FIRST_NAME)) {
+                if (value != null) updater.setFirstName(value);
+            } else if (mapping.userAttribute.equalsIgnoreCase(UserModel.LAST_NAME)) {
+                if (value != null) updater.setLastName(value);
+            } else {
+                updater.setAttribute(mapping.userAttribute, values);
+            }
+        }
+    }
+
+    @Override
+    public void updateMetadata(IdentityProviderMapperModel mapperModel, EntityDescriptorType entityDescriptor) {
+        Profile profile = getProfile(mapperModel);
+        for (EntityDescriptorType.EDTChoiceType choiceType : entityDescriptor.getChoiceType()) {
+            List<EntityDescriptorType.EDTDescriptorChoiceType> descriptors = choiceType.getDescriptors();
+            if (descriptors == null) continue;
+
+            for (EntityDescriptorType.EDTDescriptorChoiceType descriptor : descriptors) {
+                if (descriptor.getSpDescriptor() == null || descriptor.getSpDescriptor().getAttributeConsumingService() == null) continue;
+
+                for (AttributeConsumingServiceType attributeConsumingService : descriptor.getSpDescriptor().getAttributeConsumingService()) {
+                    for (Mapping mapping : profile.mappings) {
+                        boolean alreadyPresent = attributeConsumingService.getRequestedAttribute().stream()
+                            .anyMatch(requested -> mapping.spidAttribute.equalsIgnoreCase(requested.getName()));
+                        if (alreadyPresent) continue;
+
+                        RequestedAttributeType requestedAttribute = new RequestedAttributeType(mapping.spidAttribute);
+                        requestedAttribute.setIsRequired(null);
+                        requestedAttribute.setNameFormat(JBossSAMLURIConstants.ATTRIBUTE_FORMAT_BASIC.get());
+                        attributeConsumingService.addRequestedAttribute(requestedAttribute);
+                    }
+                }
+            }
+        }
+    }
+
+    private Profile getProfile(IdentityProviderMapperModel mapperModel) {
+        Map<String, String> config = mapperModel.getConfig();
+        String key = mapperModel.getId() != null ? mapperModel.getId() : "";
+        Profile profile = profiles.get(key);
+        if (profile == null || ! profile.isFor(config)) {
+            profile = new Profile(config);
+            profiles.put(key, profile);
+        }
+        return profile;
+    }
+
+    private static String first(List<String> values) {
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    private static final class Mapping {
+        private final String spidAttribute;
+        private final String userAttribute;
+
+        private Mapping(String spidAttribute, String userAttribute) {
+            this.spidAttribute = spidAttribute;
+            this.userAttribute = userAttribute;
+        }
+    }
+
+    private static final class Profile {
+        private final String attributesConfig;
+        private final String stripPrefixConfig;
+        private final String dateFormatConfig;
+
+        private final List<Mapping> mappings = new ArrayList<>();
+        private final boolean stripFiscalNumberPrefix;
+        private final DateTimeFormatter dateOfBirthFormat;
+
+        private Profile(Map<String, String> config) {
+            attributesConfig = config.get(ATTRIBUTES);
+            stripPrefixConfig = config.get(STRIP_FISCAL_NUMBER_PREFIX);
+            dateFormatConfig = config.get(DATE_OF_BIRTH_FORMAT);
+
+            String table = attributesConfig != null ? attributesConfig : DEFAULT_ATTRIBUTES;
+            for (String line : table.split("[\\r\\n,]+")) {
+                int separator = line.indexOf('=');
+                if (separator < 0) continue;
+                String spidAttribute = line.substring(0, separator).trim();
+                String userAttribute = line.substring(separator + 1).trim();
+                if (! spidAttribute.isEmpty() && ! userAttribute.isEmpty()) {
+                    mappings.add(new Mapping(spidAttribute, userAttribute));
+                }
+            }
+
+            stripFiscalNumberPrefix = stripPrefixConfig == null || Boolean.parseBoolean(stripPrefixConfig);
+
+            DateTimeFormatter format = DateTimeFormatter.ISO_LOCAL_DATE;
+            if (dateFormatConfig != null && ! dateFormatConfig.trim().isEmpty()) {
+                try {
+                    format = DateTimeFormatter.ofPattern(dateFormatConfig.trim());
+                } catch (IllegalArgumentException e) {
+                    logger.warnf("Invalid date of birth format '%s', using yyyy-MM-dd", dateFormatConfig);
+                }
+            }
+            dateOfBirthFormat = format;
+        }
+
+        private boolean isFor(Map<String, String> config) {
+            return Objects.equals(attributesConfig, config.get(ATTRIBUTES))
+                && Objects.equals(stripPrefixConfig, config.get(STRIP_FISCAL_NUMBER_PREFIX))
+                && Objects.equals(dateFormatConfig, config.get(DATE_OF_BIRTH_FORMAT));
+        }
+
+        private List<String> normalize(String spidAttribute, List<String> values) {
+            if (values.isEmpty()) return values;
+
+            if (stripFiscalNumberPrefix && FISCAL_NUMBER.equals(spidAttribute)) {
+                List<String> stripped = new ArrayList<>(values.size());
+                for (String value : values) {
+                    stripped.add(value.startsWith(FISCAL_NUMBER_PREFIX) ? value.substring(FISCAL_NUMBER_PREFIX.length()) : value);
+                }
+                return stripped;
+            }
+            if (DATE_OF_BIRTH.equals(spidAttribute)) {
+                List<String> dates = new ArrayList<>(values.size());
+                for (String value : values) {
+                    try {
+                        dates.add(LocalDate.parse(value.trim()).format(dateOfBirthFormat));
+                    } catch (DateTimeParseException e) {
+                        logger.warnf("Ignoring dateOfBirth '%s', not in the SPID yyyy-MM-dd format", value);
+                    }
+                }
+                return dates;
+            }
+            return values;
+        }
+    }
+}
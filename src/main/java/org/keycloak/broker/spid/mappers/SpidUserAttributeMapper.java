@@ -17,9 +17,24 @@
 
 package org.keycloak.broker.spid.mappers;
 
+import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.broker.saml.mappers.UserAttributeMapper;
+import org.keycloak.broker.spid.SpidFiscalNumberIndex;
 import org.keycloak.broker.spid.SpidIdentityProviderFactory;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
 
+import java.util.List;
+
+/**
+ * Imports a SPID attribute into the user. Unlike {@link UserAttributeMapper}, the synchronization
+ * on returning logins only writes the attributes whose value has changed, see
+ * {@link SpidUserAttributeUpdater}, and the assertion is scanned once for all the mappers of the
+ * login, see {@link SpidAssertionAttributes}. The SPID mappers also keep the fiscal number of the
+ * user in the {@link SpidFiscalNumberIndex}.
+ */
 public class SpidUserAttributeMapper extends UserAttributeMapper {
 
     public static final String[] COMPATIBLE_PROVIDERS = {SpidIdentityProviderFactory.PROVIDER_ID};
@@ -40,4 +55,38 @@ public class SpidUserAttributeMapper extends UserAttributeMapper {
     public String getDisplayType() {
         return "SPID Attribute Importer";
     }
+
+    @Override
+    public void importNewUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        super.importNewUser(session, realm, user, mapperModel, context);
+        SpidFiscalNumberIndex.update(session, realm, user, context);
+    }
+
+    @Override
+    public void updateBrokeredUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        SpidFiscalNumberIndex.update(session, realm, user, context);
+
+        String attribute = mapperModel.getConfig().get(USER_ATTRIBUTE);
+        if (attribute == null || attribute.isEmpty()) return;
+
+        List<String> values = findAttributeValues(mapperModel, context);
+        SpidUserAttributeUpdater updater = SpidUserAttributeUpdater.of(context, user);
+        if (attribute.equalsIgnoreCase(UserModel.EMAIL)) {
+            if (! values.isEmpty()) updater.setEmail(values.get(0));
+        } else if (attribute.equalsIgnoreCase(UserModel.FIRST_NAME)) {
+            if (! values.isEmpty()) updater.setFirstName(values.get(0));
+        } else if (attribute.equalsIgnoreCase(UserModel.LAST_NAME)) {
+            if (! values.isEmpty()) updater.setLastName(values.get(0));
+        } else {
+            updater.setAttribute(attribute, values);
+        }
+    }
+
+    private static List<String> findAttributeValues(IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        String attributeName = mapperModel.getConfig().get(ATTRIBUTE_NAME);
+        if (attributeName == null) {
+            attributeName = mapperModel.getConfig().get(ATTRIBUTE_FRIENDLY_NAME);
+        }
+        return SpidAssertionAttributes.of(context).get(attributeName);
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.mappers;
+
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the attributes of a brokered user only where they differ from the stored ones.
+ *
+ * Every write goes through the user cache, which invalidates the user across the cluster, and
+ * ends up in a database update even when the value is unchanged. Returning users mostly bring
+ * the same attributes, so the SPID mappers of a login share the stored attributes, kept in the
+ * context data of the login: they are read once, and each mapper only writes its delta. They are
+ * kept as a plain map, as the context data is serialized for the post broker login flow.
+ */
+public final class SpidUserAttributeUpdater {
+
+    private static final String CONTEXT_KEY = SpidUserAttributeUpdater.class.getName();
+
+    private final BrokeredIdentityContext context;
+    private final UserModel user;
+    private Map<String, List<String>> attributes;
+
+    private SpidUserAttributeUpdater(BrokeredIdentityContext context, UserModel user) {
+        this.context = context;
+        this.user = user;
+    }
+
+    /**
+     * The updater of the given user for the login of the given context, sharing the attributes
+     * read by the mappers that ran before.
+     */
+    public static SpidUserAttributeUpdater of(BrokeredIdentityContext context, UserModel user) {
+        return new SpidUserAttributeUpdater(context, user);
+    }
+
+    /**
+     * Sets the attribute to the given values, or removes it if there are none.
+     *
+     * @return whether the user has been written
+     */
+    public boolean setAttribute(String name, List<String> values) {
+        List<String> current = getAttributes().get(name);
+        if (values == null || values.isEmpty()) {
+            if (current == null || current.isEmpty()) return false;
+            user.removeAttribute(name);
+            attributes.remove(name);
+            return true;
+        }
+        if (current != null && sameValues(current, values)) return false;
+
+        user.setAttribute(name, values);
+        attributes.put(name, new ArrayList<>(values));
+        return true;
+    }
+
+    /**
+     * Sets the email, which is stored in lower case.
+     *
+     * @return whether the user has been written
+     */
+    public boolean setEmail(String email) {
+        if (email.equalsIgnoreCase(user.getEmail())) return false;
+        user.setEmail(email);
+        return true;
+    }
+
+    public boolean setFirstName(String firstName) {
+        if (firstName.equals(user.getFirstName())) return false;
+        user.setFirstName(firstName);
+        return true;
+    }
+
+    public boolean setLastName(String lastName) {
+        if (lastName.equals(user.getLastName())) return false;
+        user.setLastName(lastName);
+        return true;
+    }
+
+    private Map<String, List<String>> getAttributes() {
+        if (attributes == null) {
+            String key = CONTEXT_KEY + ":" + user.getId();
+            Object stored = context.getContextData().get(key);
+            if (stored instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<String, List<String>> shared = (Map<String, List<String>>) stored;
+                attributes = shared;
+            } else {
+                attributes = new HashMap<>(user.getAttributes());
+                context.getContextData().put(key, attributes);
+            }
+        }
+        return attributes;
+    }
+
+    // Stores do not keep the order of multivalued attributes
+    private static boolean sameValues(List<String> current, List<String> values) {
+        return current.size() == values.size() && current.containsAll(values) && values.containsAll(current);
+    }
+}
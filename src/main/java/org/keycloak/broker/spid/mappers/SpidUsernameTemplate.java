@@ -0,0 +1,165 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.mappers;
+
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.spid.SpidSAMLEndpoint;
+import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.dom.saml.v2.assertion.NameIDType;
+import org.keycloak.dom.saml.v2.assertion.SubjectType;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * A username template compiled into literal and variable segments, so that a login only appends
+ * the segments instead of matching the template again.
+ *
+ * Templates use the syntax of the username template mapper: {@code ${ALIAS}}, {@code ${UUID}},
+ * {@code ${NAMEID}} and {@code ${ATTRIBUTE.<name>}}, each optionally followed by transformers,
+ * e.g. {@code ${ATTRIBUTE.fiscalNumber | stripprefix | lowercase}}. Unknown and empty variables
+ * are kept as they are written in the template.
+ */
+public final class SpidUsernameTemplate {
+
+    private static final String ATTRIBUTE_PREFIX = "ATTRIBUTE.";
+
+    private static final Map<String, UnaryOperator<String>> TRANSFORMERS;
+
+    static {
+        Map<String, UnaryOperator<String>> transformers = new HashMap<>();
+        transformers.put("lowercase", value -> value.toLowerCase(Locale.ROOT));
+        transformers.put("uppercase", value -> value.toUpperCase(Locale.ROOT));
+        transformers.put("localpart", SpidUsernameTemplate::getEmailLocalPart);
+        transformers.put("stripprefix", SpidUsernameTemplate::stripTypePrefix);
+        TRANSFORMERS = Collections.unmodifiableMap(transformers);
+    }
+
+    private static String getEmailLocalPart(String email) {
+        int index = email.lastIndexOf('@');
+        return index == -1 ? email : email.substring(0, index);
+    }
+
+    /**
+     * Strips the type prefix of SPID identifiers, e.g. TINIT-RSSMRA80A01H501U or VATIT-12345678901.
+     */
+    private static String stripTypePrefix(String value) {
+        if (value.length() < 6 || value.charAt(5) != '-' || !(value.startsWith("TIN") || value.startsWith("VAT"))) {
+            return value;
+        }
+        return isUpperCaseLetter(value.charAt(3)) && isUpperCaseLetter(value.charAt(4)) ? value.substring(6) : value;
+    }
+
+    private static boolean isUpperCaseLetter(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    private interface Segment {
+        void append(StringBuilder username, BrokeredIdentityContext context);
+    }
+
+    private final String template;
+    private final List<Segment> segments;
+
+    private SpidUsernameTemplate(String template, List<Segment> segments) {
+        this.template = template;
+        this.segments = segments;
+    }
+
+    public static SpidUsernameTemplate compile(String template) {
+        List<Segment> segments = new ArrayList<>();
+        int position = 0;
+        while (position < template.length()) {
+            int start = template.indexOf("${", position);
+            int end = start < 0 ? -1 : template.indexOf('}', start + 2);
+            if (end < 0) {
+                segments.add(literal(template.substring(position)));
+                break;
+            }
+            if (start > position) {
+                segments.add(literal(template.substring(position, start)));
+            }
+            segments.add(variable(template.substring(start + 2, end)));
+            position = end + 1;
+        }
+        return new SpidUsernameTemplate(template, Collections.unmodifiableList(segments));
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    public String evaluate(BrokeredIdentityContext context) {
+        StringBuilder username = new StringBuilder(64);
+        for (Segment segment : segments) {
+            segment.append(username, context);
+        }
+        return username.toString();
+    }
+
+    private static Segment literal(String text) {
+        return (username, context) -> username.append(text);
+    }
+
+    private static Segment variable(String expression) {
+        String[] parts = expression.split("\\|");
+        String name = parts[0].trim();
+        UnaryOperator<String> transformer = UnaryOperator.identity();
+        for (int i = 1; i < parts.length; i++) {
+            UnaryOperator<String> next = TRANSFORMERS.get(parts[i].trim());
+            if (next != null) {
+                UnaryOperator<String> previous = transformer;
+                transformer = value -> next.apply(previous.apply(value));
+            }
+        }
+        UnaryOperator<String> transform = transformer;
+
+        if (name.equals("ALIAS")) {
+            return (username, context) -> username.append(transform.apply(context.getIdpConfig().getAlias()));
+        }
+        if (name.equals("UUID")) {
+            return (username, context) -> username.append(transform.apply(KeycloakModelUtils.generateId()));
+        }
+        if (name.equals("NAMEID")) {
+            return (username, context) -> {
+                String nameId = getNameId(context);
+                username.append(transform.apply(nameId != null ? nameId : ""));
+            };
+        }
+        if (name.startsWith(ATTRIBUTE_PREFIX)) {
+            String attributeName = name.substring(ATTRIBUTE_PREFIX.length());
+            return (username, context) -> {
+                String value = SpidAssertionAttributes.of(context).getFirst(attributeName);
+                username.append(transform.apply(value != null ? value : ""));
+            };
+        }
+        return literal("${" + expression + "}");
+    }
+
+    private static String getNameId(BrokeredIdentityContext context) {
+        AssertionType assertion = (AssertionType) context.getContextData().get(SpidSAMLEndpoint.SAML_ASSERTION);
+        SubjectType subject = assertion == null ? null : assertion.getSubject();
+        if (subject == null || subject.getSubType() == null || ! (subject.getSubType().getBaseID() instanceof NameIDType)) {
+            return null;
+        }
+        return ((NameIDType) subject.getSubType().getBaseID()).getValue();
+    }
+}
@@ -17,15 +17,32 @@
 
 package org.keycloak.broker.spid.mappers;
 
+import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.broker.saml.mappers.UsernameTemplateMapper;
 import org.keycloak.broker.spid.SpidIdentityProviderFactory;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sets the username from a template, as {@link UsernameTemplateMapper} does, but with the template
+ * compiled once per mapper model instead of matched on every login, see
+ * {@link SpidUsernameTemplate}, which also adds the SPID {@code stripprefix} transformer.
+ */
 public class SpidUsernameTemplateMapper extends UsernameTemplateMapper  {
 
     public static final String[] COMPATIBLE_PROVIDERS = {SpidIdentityProviderFactory.PROVIDER_ID};
 
     public static final String PROVIDER_ID = "spid-saml-username-idp-mapper";
 
+    private static final String TARGET = "target";
+
+    // The compiled template of each mapper model, compiled again when the template changes
+    private final Map<String, SpidUsernameTemplate> templates = new ConcurrentHashMap<>();
+
     @Override
     public String getId() {
         return PROVIDER_ID;
@@ -40,4 +57,27 @@ public class SpidUsernameTemplateMapper extends UsernameTemplateMapper  {
     public String getDisplayType() {
         return "SPID Username Template Importer";
     }
+
+    @Override
+    public void preprocessFederatedIdentity(KeycloakSession session, RealmModel realm, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        String template = mapperModel.getConfig().get(TEMPLATE);
+        if (template == null) return;
+
+        String key = mapperModel.getId() != null ? mapperModel.getId() : template;
+        SpidUsernameTemplate compiled = templates.get(key);
+        if (compiled == null || ! compiled.getTemplate().equals(template)) {
+            compiled = SpidUsernameTemplate.compile(template);
+            templates.put(key, compiled);
+        }
+
+        String username = compiled.evaluate(context);
+        String target = mapperModel.getConfig().get(TARGET);
+        if ("BROKER_ID".equals(target)) {
+            context.setId(username);
+        } else if ("BROKER_USERNAME".equals(target)) {
+            context.setUsername(username);
+        } else {
+            context.setModelUsername(username);
+        }
+    }
 }
@@ -32,7 +32,6 @@ import org.keycloak.dom.saml.v2.metadata.LocalizedURIType;
 import org.keycloak.dom.saml.v2.metadata.OrganizationType;
 import org.keycloak.dom.saml.v2.metadata.SPSSODescriptorType;
 import org.keycloak.models.KeyManager;
-import org.keycloak.models.IdentityProviderModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.saml.SPMetadataDescriptor;
@@ -71,8 +70,10 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.keycloak.broker.provider.IdentityProviderMapper;
+import org.keycloak.broker.spid.SpidConfigSnapshot;
 import org.keycloak.broker.spid.SpidIdentityProvider;
-import org.keycloak.broker.spid.SpidIdentityProviderFactory;
+import org.keycloak.broker.spid.SpidIdentityProviderRegistry;
+import org.keycloak.broker.spid.jfr.SpidJfrEvent;
 
 public class SpidSpMetadataResourceProvider implements RealmResourceProvider {
     protected static final Logger logger = Logger.getLogger(SpidSpMetadataResourceProvider.class);
@@ -94,22 +95,18 @@ public class SpidSpMetadataResourceProvider implements RealmResourceProvider {
     @GET
     @Produces("text/xml; charset=utf-8")
     public Response get() {
+        SpidJfrEvent jfr = SpidJfrEvent.begin(SpidJfrEvent.Type.METADATA, null);
         try
         {
-            // Retrieve all enabled SPID Identity Providers for this realms
+            // Retrieve all enabled SPID Identity Providers for this realm, in alphabetical order
             RealmModel realm = session.getContext().getRealm();
-            List<IdentityProviderModel> lstSpidIdentityProviders = realm.getIdentityProvidersStream()
-                .filter(t -> t.getProviderId().equals(SpidIdentityProviderFactory.PROVIDER_ID) &&
-                    t.isEnabled())
-                .sorted((o1,o2)-> o1.getAlias().compareTo(o2.getAlias()))
-                .collect(Collectors.toList());
+            List<SpidIdentityProvider> lstSpidIdentityProviders = SpidIdentityProviderRegistry.getProviders(session, realm);
 
             if (lstSpidIdentityProviders.size() == 0)
                 throw new Exception("No SPID providers found!");
 
-            // Create an instance of the first SPID Identity Provider in alphabetical order
-            SpidIdentityProviderFactory providerFactory = new SpidIdentityProviderFactory();
-            SpidIdentityProvider firstSpidProvider = providerFactory.create(session, lstSpidIdentityProviders.get(0));
+            SpidIdentityProvider firstSpidProvider = lstSpidIdentityProviders.get(0);
+            SpidConfigSnapshot firstSpidConfig = firstSpidProvider.getSnapshot();
 
             // Retrieve the context URI
             UriInfo uriInfo = session.getContext().getUri();
@@ -117,26 +114,25 @@ public class SpidSpMetadataResourceProvider implements RealmResourceProvider {
             //
             URI authnBinding = JBossSAMLURIConstants.SAML_HTTP_REDIRECT_BINDING.getUri();
 
-            if (firstSpidProvider.getConfig().isPostBindingAuthnRequest()) {
+            if (firstSpidConfig.isPostBindingAuthnRequest()) {
                 authnBinding = JBossSAMLURIConstants.SAML_HTTP_POST_BINDING.getUri();
             }
 
             URI endpoint = uriInfo.getBaseUriBuilder()
                     .path("realms").path(realm.getName())
                     .path("broker")
-                    .path(firstSpidProvider.getConfig().getAlias())
+                    .path(firstSpidConfig.getAlias())
                     .path("endpoint")
                     .build();
 
-            boolean wantAuthnRequestsSigned = firstSpidProvider.getConfig().isWantAuthnRequestsSigned();
-            boolean wantAssertionsSigned = firstSpidProvider.getConfig().isWantAssertionsSigned();
-            boolean wantAssertionsEncrypted = firstSpidProvider.getConfig().isWantAssertionsEncrypted();
-            String configEntityId = firstSpidProvider.getConfig().getEntityId();
+            boolean wantAuthnRequestsSigned = firstSpidConfig.isWantAuthnRequestsSigned();
+            boolean wantAssertionsSigned = firstSpidConfig.isWantAssertionsSigned();
+            boolean wantAssertionsEncrypted = firstSpidConfig.isWantAssertionsEncrypted();
+            String configEntityId = firstSpidConfig.getEntityId();
             String entityId = getEntityId(configEntityId, uriInfo, realm);
-            String nameIDPolicyFormat = firstSpidProvider.getConfig().getNameIDPolicyFormat();
-            int attributeConsumingServiceIndex = firstSpidProvider.getConfig().getAttributeConsumingServiceIndex() != null ? firstSpidProvider.getConfig().getAttributeConsumingServiceIndex(): 1;
-            String attributeConsumingServiceName = firstSpidProvider.getConfig().getAttributeConsumingServiceName();
-            String[] attributeConsumingServiceNames = attributeConsumingServiceName != null ? attributeConsumingServiceName.split(","): null;
+            String nameIDPolicyFormat = firstSpidConfig.getNameIDPolicyFormat();
+            int attributeConsumingServiceIndex = firstSpidConfig.getAttributeConsumingServiceIndex() != null ? firstSpidConfig.getAttributeConsumingServiceIndex(): 1;
+            List<String> attributeConsumingServiceNames = firstSpidConfig.getAttributeConsumingServiceNames();
 
             List<Element> signingKeys = new LinkedList<>();
             List<Element> encryptionKeys = new LinkedList<>();
@@ -174,7 +170,7 @@ public class SpidSpMetadataResourceProvider implements RealmResourceProvider {
             AttributeConsumingServiceType attributeConsumingService = new AttributeConsumingServiceType(attributeConsumingServiceIndex);
             attributeConsumingService.setIsDefault(true);
 
-            if (attributeConsumingServiceNames != null && attributeConsumingServiceNames.length > 0)
+            if (!attributeConsumingServiceNames.isEmpty())
             {
                 for (String attributeConsumingServiceNameStr: attributeConsumingServiceNames)
                 {
@@ -203,7 +199,7 @@ public class SpidSpMetadataResourceProvider implements RealmResourceProvider {
             }
             
             // Add the attribute mappers
-            realm.getIdentityProviderMappersByAliasStream(firstSpidProvider.getConfig().getAlias())
+            realm.getIdentityProviderMappersByAliasStream(firstSpidConfig.getAlias())
                 .forEach(mapper -> {
                     IdentityProviderMapper target = (IdentityProviderMapper) session.getKeycloakSessionFactory().getProviderFactory(IdentityProviderMapper.class, mapper.getIdentityProviderMapper());
                     if (target instanceof SamlMetadataDescriptorUpdater)
@@ -214,25 +210,20 @@ public class SpidSpMetadataResourceProvider implements RealmResourceProvider {
                 });
 				
 			// Additional EntityDescriptor customizations
-            String strOrganizationNames = firstSpidProvider.getConfig().getOrganizationNames();
-            String[] organizationNames = strOrganizationNames != null ? strOrganizationNames.split(","): null;
-
-            String strOrganizationDisplayNames = firstSpidProvider.getConfig().getOrganizationDisplayNames();
-            String[] organizationDisplayNames = strOrganizationDisplayNames != null ? strOrganizationDisplayNames.split(","): null;
-
-            String strOrganizationUrls = firstSpidProvider.getConfig().getOrganizationUrls();
-            String[] organizationUrls = strOrganizationUrls != null ? strOrganizationUrls.split(","): null;
-
-            boolean isSpPrivate = firstSpidProvider.getConfig().isSpPrivate();
-            String ipaCode = firstSpidProvider.getConfig().getIpaCode();
-            String vatNumber = firstSpidProvider.getConfig().getVatNumber();
-            String fiscalCode = firstSpidProvider.getConfig().getFiscalCode();
-            String otherContactPersonCompany = firstSpidProvider.getConfig().getOtherContactCompany();
-            String otherContactPersonEmail = firstSpidProvider.getConfig().getOtherContactEmail();
-            String otherContactPersonPhone = firstSpidProvider.getConfig().getOtherContactPhone();
-            String billingContactPersonCompany = firstSpidProvider.getConfig().getBillingContactCompany();
-            String billingContactPersonEmail = firstSpidProvider.getConfig().getBillingContactEmail(); 
-            String billingContactPersonPhone = firstSpidProvider.getConfig().getBillingContactPhone();
+            List<String> organizationNames = firstSpidConfig.getOrganizationNames();
+            List<String> organizationDisplayNames = firstSpidConfig.getOrganizationDisplayNames();
+            List<String> organizationUrls = firstSpidConfig.getOrganizationUrls();
+
+            boolean isSpPrivate = firstSpidConfig.isSpPrivate();
+            String ipaCode = firstSpidConfig.getIpaCode();
+            String vatNumber = firstSpidConfig.getVatNumber();
+            String fiscalCode = firstSpidConfig.getFiscalCode();
+            String otherContactPersonCompany = firstSpidConfig.getOtherContactCompany();
+            String otherContactPersonEmail = firstSpidConfig.getOtherContactEmail();
+            String otherContactPersonPhone = firstSpidConfig.getOtherContactPhone();
+            String billingContactPersonCompany = firstSpidConfig.getBillingContactCompany();
+            String billingContactPersonEmail = firstSpidConfig.getBillingContactEmail();
+            String billingContactPersonPhone = firstSpidConfig.getBillingContactPhone();
 
 			// Additional EntityDescriptor customizations
             customizeEntityDescriptor(entityDescriptor, 
@@ -246,7 +237,7 @@ public class SpidSpMetadataResourceProvider implements RealmResourceProvider {
                     .map(t -> uriInfo.getBaseUriBuilder()
                         .path("realms").path(realm.getName())
                         .path("broker")
-                        .path(t.getAlias())
+                        .path(t.getConfig().getAlias())
                         .path("endpoint")
                     .build()).collect(Collectors.toList());
 
@@ -254,7 +245,7 @@ public class SpidSpMetadataResourceProvider implements RealmResourceProvider {
                 .map(t -> uriInfo.getBaseUriBuilder()
                     .path("realms").path(realm.getName())
                     .path("broker")
-                    .path(t.getAlias())
+                    .path(t.getConfig().getAlias())
                     .path("endpoint")
                     .build()).collect(Collectors.toList());
 
@@ -280,10 +271,10 @@ public class SpidSpMetadataResourceProvider implements RealmResourceProvider {
             String descriptor = sw.toString();
 
             // Metadata signing
-            if (firstSpidProvider.getConfig().isSignSpMetadata())
+            if (firstSpidConfig.isSignSpMetadata())
             {
                 KeyManager.ActiveRsaKey activeKey = session.keys().getActiveRsaKey(realm);
-                String keyName = firstSpidProvider.getConfig().getXmlSigKeyInfoKeyNameTransformer().getKeyName(activeKey.getKid(), activeKey.getCertificate());
+                String keyName = firstSpidConfig.getXmlSigKeyInfoKeyNameTransformer().getKeyName(activeKey.getKid(), activeKey.getCertificate());
                 KeyPair keyPair = new KeyPair(activeKey.getPublicKey(), activeKey.getPrivateKey());
 
                 Document metadataDocument = DocumentUtil.getDocument(descriptor);
@@ -299,10 +290,15 @@ public class SpidSpMetadataResourceProvider implements RealmResourceProvider {
                 descriptor = DocumentUtil.getDocumentAsString(metadataDocument);
             }
 
+            jfr.setPayloadSize(descriptor.length());
+            jfr.setOutcome("success");
             return Response.ok(descriptor, MediaType.APPLICATION_XML_TYPE).build();
         } catch (Exception e) {
+            jfr.setOutcome("error");
             logger.warn("Failed to export SAML SP Metadata!", e);
             throw new RuntimeException(e);
+        } finally {
+            jfr.end();
         }
     }
 
@@ -314,55 +310,49 @@ public class SpidSpMetadataResourceProvider implements RealmResourceProvider {
     }
 
     private static void customizeEntityDescriptor(EntityDescriptorType entityDescriptor,
-        String[] organizationNames, String[] organizationDisplayNames, String[] organizationUrls,
+        List<String> organizationNames, List<String> organizationDisplayNames, List<String> organizationUrls,
         boolean isSpPrivate, String ipaCode, String vatNumber, String fiscalCode,
         String otherContactPersonCompany, String otherContactPersonEmail, String otherContactPersonPhone,
         String billingContactPersonCompany, String billingContactPersonEmail, String billingContactPersonPhone) 
         throws ConfigurationException
     {
         // Organization
-        if (organizationNames != null && organizationNames.length > 0 ||
-            organizationDisplayNames != null && organizationDisplayNames.length > 0 ||
-            organizationUrls != null && organizationUrls.length > 0)
+        if (!organizationNames.isEmpty() ||
+            !organizationDisplayNames.isEmpty() ||
+            !organizationUrls.isEmpty())
         {
             OrganizationType organizationType = new OrganizationType();
 
-            if (organizationNames != null) {
-                for (String organizationNameStr: organizationNames)
-                {
-                    String[] parsedName = organizationNameStr.split("\\|", 2);
-                    if (parsedName.length < 2) continue;
+            for (String organizationNameStr: organizationNames)
+            {
+                String[] parsedName = organizationNameStr.split("\\|", 2);
+                if (parsedName.length < 2) continue;
 
-                    LocalizedNameType organizationName = new LocalizedNameType(parsedName[0].trim());
-                    organizationName.setValue(parsedName[1].trim());
-                    organizationType.addOrganizationName(organizationName);
-                }
+                LocalizedNameType organizationName = new LocalizedNameType(parsedName[0].trim());
+                organizationName.setValue(parsedName[1].trim());
+                organizationType.addOrganizationName(organizationName);
             }
 
-            if (organizationDisplayNames != null) {
-                for (String organizationDisplayNameStr: organizationDisplayNames)
-                {
-                    String[] parsedDisplayName = organizationDisplayNameStr.split("\\|", 2);
-                    if (parsedDisplayName.length < 2) continue;
+            for (String organizationDisplayNameStr: organizationDisplayNames)
+            {
+                String[] parsedDisplayName = organizationDisplayNameStr.split("\\|", 2);
+                if (parsedDisplayName.length < 2) continue;
 
-                    LocalizedNameType organizationDisplayName = new LocalizedNameType(parsedDisplayName[0].trim());
-                    organizationDisplayName.setValue(parsedDisplayName[1].trim());
-                    organizationType.addOrganizationDisplayName(organizationDisplayName);
-                }
+                LocalizedNameType organizationDisplayName = new LocalizedNameType(parsedDisplayName[0].trim());
+                organizationDisplayName.setValue(parsedDisplayName[1].trim());
+                organizationType.addOrganizationDisplayName(organizationDisplayName);
             }
 
-            if (organizationUrls != null) {
-                for (String organizationUrlStr: organizationUrls)
-                {
-                    String[] parsedUrl = organizationUrlStr.split("\\|", 2);
-                    if (parsedUrl.length < 2) continue;
-
-                    LocalizedURIType organizationUrl = new LocalizedURIType(parsedUrl[0].trim());
-                    try {
-                        organizationUrl.setValue(new URI(parsedUrl[1].trim()));
-                    } catch (URISyntaxException e) { logger.error("Error creating URI for Organization URL"); continue; };
-                    organizationType.addOrganizationURL(organizationUrl);
-                }
+            for (String organizationUrlStr: organizationUrls)
+            {
+                String[] parsedUrl = organizationUrlStr.split("\\|", 2);
+                if (parsedUrl.length < 2) continue;
+
+                LocalizedURIType organizationUrl = new LocalizedURIType(parsedUrl[0].trim());
+                try {
+                    organizationUrl.setValue(new URI(parsedUrl[1].trim()));
+                } catch (URISyntaxException e) { logger.error("Error creating URI for Organization URL"); continue; };
+                organizationType.addOrganizationURL(organizationUrl);
             }
 
             // ContactPerson type=OTHER
@@ -0,0 +1,48 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.metrics;
+
+public class DefaultSpidMetricsProvider implements SpidMetricsProvider {
+
+    private final SpidMetricsRegistry registry;
+
+    public DefaultSpidMetricsProvider(SpidMetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void recordPhase(String alias, String binding, SpidPhase phase, long nanos) {
+        registry.recordPhase(alias, binding, phase, nanos);
+    }
+
+    @Override
+    public void recordLogin(String alias, long nanos) {
+        registry.recordLogin(alias, nanos);
+    }
+
+    @Override
+    public void countResponse(String alias, String outcome) {
+        registry.increment(SpidMetricsRegistry.RESPONSES, alias, outcome);
+    }
+
+    @Override
+    public void countBackchannelLogout(String alias, String outcome) {
+        registry.increment(SpidMetricsRegistry.BACKCHANNEL_LOGOUTS, alias, outcome);
+    }
+
+    @Override
+    public void close() {
+    }
+}
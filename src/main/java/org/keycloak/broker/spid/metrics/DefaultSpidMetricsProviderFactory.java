@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.metrics;
+
+import org.keycloak.Config.Scope;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Keeps the SPID measurements in memory, in a registry shared by all sessions.
+ */
+public class DefaultSpidMetricsProviderFactory implements SpidMetricsProviderFactory {
+
+    public static final String ID = "default";
+
+    private final SpidMetricsRegistry registry = new SpidMetricsRegistry();
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public SpidMetricsProvider create(KeycloakSession session) {
+        return new DefaultSpidMetricsProvider(registry);
+    }
+
+    public SpidMetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    @Override
+    public void init(Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.metrics;
+
+import org.keycloak.provider.Provider;
+
+/**
+ * Receives the measurements taken by the SPID broker. Implementations are called on the request
+ * thread and must not block. Backchannel logout outcomes are reported from a background thread,
+ * possibly after the session the provider was created for has been closed.
+ */
+public interface SpidMetricsProvider extends Provider {
+
+    String RESPONSE_SUCCESS = "success";
+    String RESPONSE_STATUS_ERROR = "status_error";
+    String RESPONSE_INVALID_SIGNATURE = "invalid_signature";
+    String RESPONSE_INVALID_IN_RESPONSE_TO = "invalid_in_response_to";
+    String RESPONSE_INVALID_RELAY_STATE = "invalid_relay_state";
+    String RESPONSE_ASSERTION_NOT_ENCRYPTED = "assertion_not_encrypted";
+    String RESPONSE_ASSERTION_EXPIRED = "assertion_expired";
+    String RESPONSE_ASSERTION_REPLAYED = "assertion_replayed";
+    String RESPONSE_NO_PRINCIPAL = "no_principal";
+
+    /**
+     * Records the time taken to build and send an AuthnRequest.
+     */
+    void recordLogin(String alias, long nanos);
+
+    /**
+     * Counts the outcome of a SAML login response: {@link #RESPONSE_SUCCESS}, one of the other
+     * {@code RESPONSE_} constants, a {@code SpidSamlCheck_nrXX} validation error or a
+     * {@code SpidFault_ErrorCode_nrXX} fault reported by the IdP.
+     */
+    void countResponse(String alias, String outcome);
+
+    /**
+     * Counts the outcome of a backchannel LogoutRequest sent to the IdP.
+     */
+    void countBackchannelLogout(String alias, String outcome);
+
+    /**
+     * Records the time spent in a phase of the processing of a SAML message.
+     *
+     * @param alias alias of the SPID identity provider
+     * @param binding SAML binding the message was received with
+     * @param phase processing phase
+     * @param nanos elapsed time, in nanoseconds
+     */
+    void recordPhase(String alias, String binding, SpidPhase phase, long nanos);
+}
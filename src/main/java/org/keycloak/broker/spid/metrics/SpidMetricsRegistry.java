@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory store of the SPID measurements: phase histograms tagged by identity provider alias and
+ * SAML binding, AuthnRequest histograms tagged by alias, and counters tagged by alias and outcome.
+ *
+ * Histograms and counters are looked up through nested map reads, and phase histograms by phase
+ * ordinal, so that recording does not allocate once they exist. Counters are {@link LongAdder}s,
+ * which do not contend under concurrent updates.
+ */
+public class SpidMetricsRegistry {
+
+    public static final String RESPONSES = "responses";
+    public static final String BACKCHANNEL_LOGOUTS = "backchannel_logouts";
+
+    private static final SpidPhase[] PHASES = SpidPhase.values();
+
+    private final ConcurrentMap<String, ConcurrentMap<String, SpidHistogram[]>> phases = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, SpidHistogram> logins = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, LongAdder>>> counters = new ConcurrentHashMap<>();
+
+    /**
+     * Receives the histograms of the registry.
+     */
+    public interface PhaseVisitor {
+        void visit(String alias, String binding, SpidPhase phase, SpidHistogram histogram);
+    }
+
+    /**
+     * Receives the AuthnRequest histograms of the registry.
+     */
+    public interface LoginVisitor {
+        void visit(String alias, SpidHistogram histogram);
+    }
+
+    /**
+     * Receives the counters of the registry.
+     */
+    public interface CounterVisitor {
+        void visit(String counter, String alias, String outcome, long value);
+    }
+
+    public void recordLogin(String alias, long nanos) {
+        SpidHistogram histogram = logins.get(alias);
+        if (histogram == null) {
+            histogram = logins.computeIfAbsent(alias, k -> new SpidHistogram());
+        }
+        histogram.record(nanos);
+    }
+
+    public void increment(String counter, String alias, String outcome) {
+        ConcurrentMap<String, ConcurrentMap<String, LongAdder>> byAlias = counters.get(counter);
+        if (byAlias == null) {
+            byAlias = counters.computeIfAbsent(counter, k -> new ConcurrentHashMap<>());
+        }
+        ConcurrentMap<String, LongAdder> byOutcome = byAlias.get(alias);
+        if (byOutcome == null) {
+            byOutcome = byAlias.computeIfAbsent(alias, k -> new ConcurrentHashMap<>());
+        }
+        LongAdder adder = byOutcome.get(outcome);
+        if (adder == null) {
+            adder = byOutcome.computeIfAbsent(outcome, k -> new LongAdder());
+        }
+        adder.increment();
+    }
+
+    public void recordPhase(String alias, String binding, SpidPhase phase, long nanos) {
+        phaseHistograms(alias, binding)[phase.ordinal()].record(nanos);
+    }
+
+    private SpidHistogram[] phaseHistograms(String alias, String binding) {
+        ConcurrentMap<String, SpidHistogram[]> byBinding = phases.get(alias);
+        if (byBinding == null) {
+            byBinding = phases.computeIfAbsent(alias, k -> new ConcurrentHashMap<>());
+        }
+
+        SpidHistogram[] histograms = byBinding.get(binding);
+        if (histograms == null) {
+            histograms = byBinding.computeIfAbsent(binding, k -> {
+                SpidHistogram[] created = new SpidHistogram[PHASES.length];
+                for (int i = 0; i < created.length; i++) {
+                    created[i] = new SpidHistogram();
+                }
+                return created;
+            });
+        }
+        return histograms;
+    }
+
+    /**
+     * Visits the histograms of the phases that have been recorded at least once.
+     */
+    public void visitPhases(PhaseVisitor visitor) {
+        for (Map.Entry<String, ConcurrentMap<String, SpidHistogram[]>> byAlias : phases.entrySet()) {
+            for (Map.Entry<String, SpidHistogram[]> byBinding : byAlias.getValue().entrySet()) {
+                SpidHistogram[] histograms = byBinding.getValue();
+                for (SpidPhase phase : PHASES) {
+                    SpidHistogram histogram = histograms[phase.ordinal()];
+                    if (histogram.getCount() > 0) {
+                        visitor.visit(byAlias.getKey(), byBinding.getKey(), phase, histogram);
+                    }
+                }
+            }
+        }
+    }
+
+    public void visitLogins(LoginVisitor visitor) {
+        for (Map.Entry<String, SpidHistogram> entry : logins.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void visitCounters(CounterVisitor visitor) {
+        for (Map.Entry<String, ConcurrentMap<String, ConcurrentMap<String, LongAdder>>> byCounter : counters.entrySet()) {
+            for (Map.Entry<String, ConcurrentMap<String, LongAdder>> byAlias : byCounter.getValue().entrySet()) {
+                for (Map.Entry<String, LongAdder> byOutcome : byAlias.getValue().entrySet()) {
+                    visitor.visit(byCounter.getKey(), byAlias.getKey(), byOutcome.getKey(), byOutcome.getValue().sum());
+                }
+            }
+        }
+    }
+}
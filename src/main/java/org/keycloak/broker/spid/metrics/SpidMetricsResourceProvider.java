@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.metrics;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Exposes the SPID metrics in the Prometheus text format.
+ *
+ * The metrics cover all the realms of the server, so they are only served under the admin realm,
+ * i.e. {@code /realms/master/spid-metrics}. They are only available with the default
+ * {@link SpidMetricsProvider}, which keeps them in memory.
+ *
+ * The caller needs either the scrape token configured on the factory, or a bearer token of the
+ * admin realm with the configured realm role, {@code admin} by default.
+ */
+public class SpidMetricsResourceProvider implements RealmResourceProvider {
+
+    private KeycloakSession session;
+    private String scrapeToken;
+    private String role;
+
+    public SpidMetricsResourceProvider(KeycloakSession session, String scrapeToken, String role) {
+        this.session = session;
+        this.scrapeToken = scrapeToken;
+        this.role = role;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    @GET
+    @Produces("text/plain; version=0.0.4; charset=utf-8")
+    public Response get(@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization) {
+        RealmModel realm = session.getContext().getRealm();
+        if (!Config.getAdminRealm().equals(realm.getName())) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        if (!isScrapeToken(authorization)) {
+            AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).setRealm(realm).authenticate();
+            if (auth == null) {
+                return Response.status(Response.Status.UNAUTHORIZED).build();
+            }
+            RoleModel viewer = realm.getRole(role);
+            if (viewer == null || !auth.getUser().hasRole(viewer)) {
+                return Response.status(Response.Status.FORBIDDEN).build();
+            }
+        }
+
+        ProviderFactory<SpidMetricsProvider> factory = session.getKeycloakSessionFactory()
+            .getProviderFactory(SpidMetricsProvider.class, DefaultSpidMetricsProviderFactory.ID);
+        if (!(factory instanceof DefaultSpidMetricsProviderFactory)) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        SpidMetricsRegistry registry = ((DefaultSpidMetricsProviderFactory) factory).getRegistry();
+        return Response.ok(SpidPrometheusWriter.write(registry)).build();
+    }
+
+    private boolean isScrapeToken(String authorization) {
+        if (scrapeToken == null || authorization == null) return false;
+
+        String[] parts = authorization.trim().split("\\s+", 2);
+        return parts.length == 2 && parts[0].equalsIgnoreCase("Bearer")
+            && MessageDigest.isEqual(scrapeToken.getBytes(StandardCharsets.UTF_8), parts[1].getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
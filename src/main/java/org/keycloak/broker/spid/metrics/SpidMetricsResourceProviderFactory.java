@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.metrics;
+
+import org.keycloak.Config.Scope;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+public class SpidMetricsResourceProviderFactory implements RealmResourceProviderFactory {
+
+    public static final String ID = "spid-metrics";
+
+    public static final String DEFAULT_ROLE = "admin";
+
+    private String scrapeToken;
+    private String role;
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new SpidMetricsResourceProvider(session, scrapeToken, role);
+    }
+
+    @Override
+    public void init(Scope config) {
+        String token = config.get("scrapeToken");
+        this.scrapeToken = token == null || token.trim().isEmpty() ? null : token.trim();
+        this.role = config.get("role", DEFAULT_ROLE);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
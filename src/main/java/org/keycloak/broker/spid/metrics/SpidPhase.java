@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.metrics;
+
+/**
+ * Phases of the processing of a SAML message received by the SPID endpoint.
+ */
+public enum SpidPhase {
+    DECODE("decode"),
+    PARSE("parse"),
+    DESTINATION("destination"),
+    SIGNATURE("signature"),
+    ASSERTION_SIGNATURE("assertion_signature"),
+    DECRYPTION("decryption"),
+    SPID_VALIDATION("spid_validation"),
+    IN_RESPONSE_TO("in_response_to"),
+    CONDITIONS("conditions"),
+    AUTHENTICATED("authenticated"),
+    TOTAL("total");
+
+    private final String name;
+
+    SpidPhase(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.metrics;
+
+import org.keycloak.broker.spid.tracing.SpidSpan;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Times the phases of the processing of one SAML message.
+ *
+ * A phase is measured between {@link #begin()} and {@link #end(SpidPhase)}, at most once per
+ * message: the document and the assertion signatures are separate phases. The phase times and
+ * the total time are handed to the {@link SpidMetricsProvider} by {@link #finish()}, so phases
+ * cut short by an error are still reported. Each measurement is also recorded as a child of the
+ * given {@link SpidSpan}, which is ended by {@link #finish()}. Instances are not thread-safe.
+ */
+public class SpidPhaseTimer {
+
+    private static final SpidPhase[] PHASES = SpidPhase.values();
+
+    private final SpidMetricsProvider metrics;
+    private final String alias;
+    private final String binding;
+    private final SpidSpan span;
+    private final long startNanos;
+    private final long[] phaseNanos = new long[PHASES.length];
+    private final boolean[] measured = new boolean[PHASES.length];
+    private long phaseStartNanos;
+
+    private SpidPhaseTimer(SpidMetricsProvider metrics, String alias, String binding, SpidSpan span) {
+        this.metrics = metrics;
+        this.alias = alias;
+        this.binding = binding;
+        this.span = span;
+        this.startNanos = System.nanoTime();
+        this.phaseStartNanos = startNanos;
+    }
+
+    /**
+     * Starts timing a message. Measurements are discarded if no {@link SpidMetricsProvider} is
+     * available.
+     */
+    public static SpidPhaseTimer start(KeycloakSession session, String alias, String binding) {
+        return start(session, alias, binding, SpidSpan.NOOP);
+    }
+
+    public static SpidPhaseTimer start(KeycloakSession session, String alias, String binding, SpidSpan span) {
+        return new SpidPhaseTimer(session.getProvider(SpidMetricsProvider.class), alias, binding, span);
+    }
+
+    public void begin() {
+        phaseStartNanos = System.nanoTime();
+    }
+
+    public void end(SpidPhase phase) {
+        long endNanos = System.nanoTime();
+        phaseNanos[phase.ordinal()] = endNanos - phaseStartNanos;
+        measured[phase.ordinal()] = true;
+        span.addChild(phase.getName(), phaseStartNanos, endNanos);
+    }
+
+    /**
+     * Returns the time measured in the given phase, in nanoseconds.
+     */
+    public long getPhaseNanos(SpidPhase phase) {
+        return phase == SpidPhase.TOTAL ? System.nanoTime() - startNanos : phaseNanos[phase.ordinal()];
+    }
+
+    public boolean isMeasured(SpidPhase phase) {
+        return phase == SpidPhase.TOTAL || measured[phase.ordinal()];
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public String getBinding() {
+        return binding;
+    }
+
+    public SpidSpan getSpan() {
+        return span;
+    }
+
+    public void finish() {
+        span.end();
+        if (metrics == null) return;
+
+        for (SpidPhase phase : PHASES) {
+            if (measured[phase.ordinal()]) {
+                metrics.recordPhase(alias, binding, phase, phaseNanos[phase.ordinal()]);
+            }
+        }
+        metrics.recordPhase(alias, binding, SpidPhase.TOTAL, System.nanoTime() - startNanos);
+    }
+}
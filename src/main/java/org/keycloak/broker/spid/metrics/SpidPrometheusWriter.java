@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the content of a {@link SpidMetricsRegistry} in the Prometheus text exposition format.
+ */
+public final class SpidPrometheusWriter {
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static final String[] LATENCY_BUCKETS = {
+        "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"
+    };
+
+    private static final long[] LATENCY_BUCKET_NANOS = new long[LATENCY_BUCKETS.length];
+
+    static {
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            LATENCY_BUCKET_NANOS[i] = (long) (Double.parseDouble(LATENCY_BUCKETS[i]) * NANOS_PER_SECOND);
+        }
+    }
+
+    private SpidPrometheusWriter() {
+    }
+
+    public static String write(SpidMetricsRegistry registry) {
+        StringBuilder out = new StringBuilder(4096);
+
+        header(out, "spid_login_request_seconds", "histogram", "Time to build and send SPID AuthnRequests");
+        registry.visitLogins((alias, histogram) ->
+            histogram(out, "spid_login_request_seconds", labels("alias", alias), histogram));
+
+        header(out, "spid_response_phase_seconds", "histogram", "Time spent in each phase of the processing of SAML messages received from SPID IdPs");
+        registry.visitPhases((alias, binding, phase, histogram) ->
+            histogram(out, "spid_response_phase_seconds", labels("alias", alias, "binding", binding, "phase", phase.getName()), histogram));
+
+        List<String> responses = new ArrayList<>();
+        List<String> logouts = new ArrayList<>();
+        registry.visitCounters((counter, alias, outcome, value) -> {
+            String sample = labels("alias", alias, "outcome", outcome) + " " + value + "\n";
+            if (SpidMetricsRegistry.RESPONSES.equals(counter)) {
+                responses.add(sample);
+            } else if (SpidMetricsRegistry.BACKCHANNEL_LOGOUTS.equals(counter)) {
+                logouts.add(sample);
+            }
+        });
+
+        header(out, "spid_responses_total", "counter", "SAML login responses received from SPID IdPs, by outcome");
+        for (String sample : responses) {
+            out.append("spid_responses_total").append(sample);
+        }
+
+        header(out, "spid_backchannel_logouts_total", "counter", "Backchannel LogoutRequests sent to SPID IdPs, by outcome");
+        for (String sample : logouts) {
+            out.append("spid_backchannel_logouts_total").append(sample);
+        }
+
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, String labels, SpidHistogram histogram) {
+        // Labels are rendered as {a="b",...}: bucket samples add le before the closing brace
+        String prefix = labels.substring(0, labels.length() - 1) + ",le=\"";
+        long count = histogram.getCountAtOrBelow(Long.MAX_VALUE);
+
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            out.append(name).append("_bucket").append(prefix).append(LATENCY_BUCKETS[i]).append("\"} ")
+                .append(histogram.getCountAtOrBelow(LATENCY_BUCKET_NANOS[i])).append('\n');
+        }
+        out.append(name).append("_bucket").append(prefix).append("+Inf\"} ").append(count).append('\n');
+        out.append(name).append("_sum").append(labels).append(' ').append(histogram.getSum() / NANOS_PER_SECOND).append('\n');
+        out.append(name).append("_count").append(labels).append(' ').append(count).append('\n');
+    }
+
+    private static String labels(String... namesAndValues) {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            if (i > 0) sb.append(',');
+            sb.append(namesAndValues[i]).append("=\"");
+            escape(sb, namesAndValues[i + 1]);
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.metrics;
+
+import org.jboss.logging.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Logs one structured record for each SAML response whose processing exceeds a latency threshold,
+ * with the phase breakdown and a fingerprint of the payload, so that pathological IdP responses
+ * can be found without debug logging.
+ *
+ * Records are rate-limited per minute on the request thread, and the payload is hashed and the
+ * record written by a single background thread with a small bounded queue. Records over the rate
+ * or the queue capacity are dropped, and their number is reported with the next record.
+ */
+public class SpidSlowResponseLogger {
+    protected static final Logger logger = Logger.getLogger(SpidSlowResponseLogger.class);
+
+    public static final long DEFAULT_THRESHOLD_MILLIS = 2000;
+    public static final int DEFAULT_MAX_PER_MINUTE = 10;
+
+    private static final int QUEUE_SIZE = 16;
+    private static final long WINDOW_MILLIS = 60_000;
+    private static final SpidPhase[] PHASES = SpidPhase.values();
+
+    private final long thresholdNanos;
+    private final int maxPerMinute;
+    private final ThreadPoolExecutor executor;
+    private final LongSupplier clock;
+    private final Consumer<String> sink;
+
+    private final AtomicLong windowStart = new AtomicLong();
+    private final AtomicInteger windowCount = new AtomicInteger();
+    private final LongAdder suppressed = new LongAdder();
+
+    /**
+     * @param thresholdMillis latency above which a response is logged, or {@code 0} to disable
+     *                        the logger
+     */
+    public SpidSlowResponseLogger(long thresholdMillis, int maxPerMinute) {
+        this(thresholdMillis, maxPerMinute, System::currentTimeMillis, logger::warn);
+    }
+
+    /**
+     * @param clock the wall clock of the rate limit
+     * @param sink  receives the records, on the background thread
+     */
+    public SpidSlowResponseLogger(long thresholdMillis, int maxPerMinute, LongSupplier clock, Consumer<String> sink) {
+        this.clock = clock;
+        this.sink = sink;
+        this.thresholdNanos = thresholdMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(thresholdMillis) : Long.MAX_VALUE;
+        this.maxPerMinute = maxPerMinute;
+        this.executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE),
+            runnable -> {
+                Thread thread = new Thread(runnable, "spid-slow-response-logger");
+                thread.setDaemon(true);
+                return thread;
+            },
+            (runnable, executor) -> suppressed.increment());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static SpidSlowResponseLogger defaults() {
+        return new SpidSlowResponseLogger(DEFAULT_THRESHOLD_MILLIS, DEFAULT_MAX_PER_MINUTE);
+    }
+
+    public boolean isSlow(SpidPhaseTimer timer) {
+        return timer.getPhaseNanos(SpidPhase.TOTAL) >= thresholdNanos;
+    }
+
+    /**
+     * Logs the given response if it is slow and the rate allows it.
+     */
+    public void sample(SpidPhaseTimer timer, Sample sample) {
+        long totalNanos = timer.getPhaseNanos(SpidPhase.TOTAL);
+        if (totalNanos < thresholdNanos) return;
+        if (!tryAcquire(clock.getAsLong())) {
+            suppressed.increment();
+            return;
+        }
+
+        long[] phaseNanos = new long[PHASES.length];
+        for (SpidPhase phase : PHASES) {
+            phaseNanos[phase.ordinal()] = timer.isMeasured(phase) ? timer.getPhaseNanos(phase) : -1L;
+        }
+        phaseNanos[SpidPhase.TOTAL.ordinal()] = totalNanos;
+        String alias = timer.getAlias();
+        String binding = timer.getBinding();
+
+        executor.execute(() -> sink.accept(format(alias, binding, phaseNanos, sample, suppressed.sumThenReset())));
+    }
+
+    private boolean tryAcquire(long now) {
+        long start = windowStart.get();
+        if (now - start >= WINDOW_MILLIS && windowStart.compareAndSet(start, now)) {
+            windowCount.set(0);
+        }
+        return windowCount.incrementAndGet() <= maxPerMinute;
+    }
+
+    /**
+     * Formats the record of a response.
+     *
+     * @param phaseNanos the time spent in each phase, by ordinal, or {@code -1} for phases that
+     *                   were not measured
+     * @param suppressed the number of records dropped since the previous one
+     */
+    public static String format(String alias, String binding, long[] phaseNanos, Sample sample, long suppressed) {
+        StringBuilder sb = new StringBuilder("Slow SPID response:");
+        sb.append(" idp=").append(alias);
+        sb.append(" binding=").append(binding);
+        sb.append(" outcome=").append(sample.outcome);
+        sb.append(" total_ms=").append(millis(phaseNanos[SpidPhase.TOTAL.ordinal()]));
+        for (SpidPhase phase : PHASES) {
+            if (phase != SpidPhase.TOTAL && phaseNanos[phase.ordinal()] >= 0) {
+                sb.append(' ').append(phase.getName()).append("_ms=").append(millis(phaseNanos[phase.ordinal()]));
+            }
+        }
+        sb.append(" payload_length=").append(sample.payload == null ? 0 : sample.payload.length());
+        sb.append(" signatures=").append(sample.signatures);
+        sb.append(" signature_verifications=").append(sample.signatureVerifications);
+        sb.append(" candidate_keys=").append(sample.candidateKeys);
+        sb.append(" encrypted=").append(sample.encrypted);
+        sb.append(" sha256=").append(sample.payload == null ? "-" : sha256(sample.payload));
+        if (suppressed > 0) {
+            sb.append(" suppressed=").append(suppressed);
+        }
+        return sb.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String sha256(String payload) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(payload.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * What is known of a response besides its timing. The payload is the encoded SAMLResponse
+     * parameter as received, hashed on the logging thread.
+     */
+    public static class Sample {
+
+        private final String outcome;
+        private final String payload;
+        private final int signatures;
+        private final int signatureVerifications;
+        private final int candidateKeys;
+        private final boolean encrypted;
+
+        public Sample(String outcome, String payload, int signatures, int signatureVerifications, int candidateKeys, boolean encrypted) {
+            this.outcome = outcome;
+            this.payload = payload;
+            this.signatures = signatures;
+            this.signatureVerifications = signatureVerifications;
+            this.candidateKeys = candidateKeys;
+            this.encrypted = encrypted;
+        }
+    }
+}
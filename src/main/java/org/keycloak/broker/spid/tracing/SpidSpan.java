@@ -0,0 +1,256 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.tracing;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A timed operation of the SPID broker, in the OpenTelemetry span model: trace and span IDs are
+ * hex strings of 16 and 8 bytes, and a span may link to a span of another request.
+ *
+ * A root span is started with {@link #start(KeycloakSession, String)} and its children with
+ * {@link #startChild(String)} or {@link #addChild(String, long, long)}. The whole tree is exported
+ * when the root span ends, so the trace ID can still be changed with {@link #correlate(String)} or
+ * {@link #linkTo(String)} once the SAML request ID is known.
+ *
+ * The trace and span IDs of a login are derived from the ID of the AuthnRequest: the span of the
+ * callback carrying the same ID in InResponseTo joins the trace of the login and links to its
+ * span, without any state kept between the two requests.
+ *
+ * When no {@link SpidSpanExporter} is deployed, {@link #NOOP} is returned and nothing is recorded.
+ * Instances are not thread-safe.
+ */
+public class SpidSpan {
+
+    protected static final Logger logger = Logger.getLogger(SpidSpan.class);
+
+    public static final SpidSpan NOOP = new SpidSpan(null, null, null, 0L);
+
+    private final SpidSpanExporter exporter;
+    private final SpidSpan root;
+    private final SpidSpan parent;
+    private final String name;
+    private final long startNanos;
+    private final Map<String, String> attributes = new LinkedHashMap<>();
+    private long endNanos = -1L;
+    private String spanId;
+    private String error;
+
+    // Root only
+    private String traceId;
+    private long epochAnchorNanos;
+    private List<Link> links;
+    private List<SpidSpan> children;
+
+    private SpidSpan(SpidSpanExporter exporter, SpidSpan parent, String name, long startNanos) {
+        this.exporter = exporter;
+        this.root = parent == null ? this : parent.root;
+        this.parent = parent;
+        this.name = name;
+        this.startNanos = startNanos;
+        if (exporter == null) return;
+
+        this.spanId = randomHex(8);
+        if (parent == null) {
+            this.traceId = randomHex(16);
+            this.epochAnchorNanos = System.currentTimeMillis() * 1_000_000L - startNanos;
+            this.links = new ArrayList<>(1);
+            this.children = new ArrayList<>();
+        } else {
+            root.children.add(this);
+        }
+    }
+
+    /**
+     * Starts a root span, or returns {@link #NOOP} if no {@link SpidSpanExporter} is available.
+     */
+    public static SpidSpan start(KeycloakSession session, String name) {
+        return start(session.getProvider(SpidSpanExporter.class), name);
+    }
+
+    public static SpidSpan start(SpidSpanExporter exporter, String name) {
+        if (exporter == null) return NOOP;
+        return new SpidSpan(exporter, null, name, System.nanoTime());
+    }
+
+    public boolean isRecording() {
+        return exporter != null;
+    }
+
+    public SpidSpan startChild(String name) {
+        if (exporter == null) return NOOP;
+        return new SpidSpan(exporter, this, name, System.nanoTime());
+    }
+
+    /**
+     * Adds a child span measured elsewhere, with {@link System#nanoTime()} timestamps.
+     */
+    public SpidSpan addChild(String name, long startNanos, long endNanos) {
+        if (exporter == null) return NOOP;
+        SpidSpan child = new SpidSpan(exporter, this, name, startNanos);
+        child.endNanos = endNanos;
+        return child;
+    }
+
+    /**
+     * Makes the trace derived from the given SAML request ID start with this span.
+     */
+    public void correlate(String samlRequestId) {
+        if (exporter == null || samlRequestId == null) return;
+        byte[] hash = hash(samlRequestId);
+        root.traceId = hex(hash, 0, 16);
+        root.spanId = hex(hash, 16, 8);
+    }
+
+    /**
+     * Moves this span into the trace derived from the given SAML request ID and links it to the
+     * span started by {@link #correlate(String)} with the same ID.
+     */
+    public void linkTo(String samlRequestId) {
+        if (exporter == null || samlRequestId == null) return;
+        byte[] hash = hash(samlRequestId);
+        root.traceId = hex(hash, 0, 16);
+        root.links.add(new Link(root.traceId, hex(hash, 16, 8)));
+    }
+
+    public void setAttribute(String key, String value) {
+        if (exporter == null || value == null) return;
+        attributes.put(key, value);
+    }
+
+    public void setError(String description) {
+        if (exporter == null) return;
+        error = description == null ? "" : description;
+    }
+
+    /**
+     * Ends this span. Ending the root span exports the whole tree, children first; children still
+     * open at that time are ended with it.
+     */
+    public void end() {
+        if (exporter == null || endNanos >= 0) return;
+        endNanos = System.nanoTime();
+        if (root != this) return;
+
+        try {
+            for (SpidSpan child : children) {
+                if (child.endNanos < 0) child.endNanos = endNanos;
+                exporter.export(child);
+            }
+            exporter.export(this);
+        } catch (RuntimeException e) {
+            logger.warnf(e, "Could not export span %s", name);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTraceId() {
+        return root.traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * Returns the span ID of the parent, or {@code null} for a root span.
+     */
+    public String getParentSpanId() {
+        return parent == null ? null : parent.spanId;
+    }
+
+    public List<Link> getLinks() {
+        return root == this && links != null ? Collections.unmodifiableList(links) : Collections.emptyList();
+    }
+
+    public long getStartEpochNanos() {
+        return root.epochAnchorNanos + startNanos;
+    }
+
+    public long getEndEpochNanos() {
+        return root.epochAnchorNanos + endNanos;
+    }
+
+    public long getDurationNanos() {
+        return endNanos - startNanos;
+    }
+
+    public Map<String, String> getAttributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    public boolean isError() {
+        return error != null;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public static class Link {
+
+        private final String traceId;
+        private final String spanId;
+
+        public Link(String traceId, String spanId) {
+            this.traceId = traceId;
+            this.spanId = spanId;
+        }
+
+        public String getTraceId() {
+            return traceId;
+        }
+
+        public String getSpanId() {
+            return spanId;
+        }
+    }
+
+    private static byte[] hash(String samlRequestId) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(samlRequestId.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String randomHex(int length) {
+        byte[] bytes = new byte[length];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return hex(bytes, 0, length);
+    }
+
+    private static String hex(byte[] bytes, int offset, int length) {
+        StringBuilder sb = new StringBuilder(length * 2);
+        for (int i = offset; i < offset + length; i++) {
+            sb.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16)).append(Character.forDigit(bytes[i] & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.spid.tracing;
+
+import org.keycloak.provider.Provider;
+
+/**
+ * Receives the spans of the SPID broker as they end. Spans are exported on the request thread:
+ * implementations that send them to a tracing backend must hand them over to a background thread.
+ *
+ * No exporter is deployed by default, in which case tracing is disabled and spans are not even
+ * created.
+ */
+public interface SpidSpanExporter extends Provider {
+
+    void export(SpidSpan span);
+}
@@ -0,0 +1,168 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.keycloak.broker.provider.AuthenticationRequest;
+import org.keycloak.broker.provider.util.IdentityBrokerState;
+import org.keycloak.broker.spid.SpidIdentityProvider;
+import org.keycloak.broker.spid.SpidIdentityProviderConfig;
+import org.keycloak.broker.spid.SpidIdentityProviderFactory;
+import org.keycloak.broker.spid.SpidSAMLEndpoint;
+import org.keycloak.broker.spid.metadata.SpidSpMetadataResourceProvider;
+import org.keycloak.broker.spid.tests.support.SpidResponseGenerator;
+import org.keycloak.broker.spid.tests.support.SpidStubs;
+import org.keycloak.common.util.PemUtils;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.protocol.saml.SamlProtocol;
+import org.keycloak.saml.validators.DestinationValidator;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+import javax.ws.rs.core.Response;
+
+import java.lang.management.ManagementFactory;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Bytes allocated per call on the login and metadata paths, which drive the GC pause frequency at
+ * peak.
+ *
+ * The budget of each path is its measured baseline plus {@link #MARGIN_PERCENT}. A path whose
+ * baseline has not been measured yet is measured, its allocation is printed and the test is
+ * skipped: record the printed number as its baseline, with the JDK it was measured on. A budget can
+ * be overridden with {@code -Dspid.allocationBudget.<name>=<bytes>}.
+ */
+public class SpidAllocationBudgetTest {
+
+    private static final int WARMUP = 30;
+    private static final int ITERATIONS = 50;
+
+    /**
+     * Allowed growth over the baseline. Per-call averages vary by a few percent between runs of the
+     * same JDK, from JIT timing and lazily initialized caches.
+     */
+    private static final int MARGIN_PERCENT = 15;
+
+    private static final long UNMEASURED = -1;
+
+    // Baselines, in bytes per call, measured on OpenJDK 64-Bit Server VM 17.0.9
+    private static final long PERFORM_LOGIN_BASELINE = 168_000;
+    private static final long HANDLE_LOGIN_RESPONSE_BASELINE = 825_000;
+    private static final long SP_METADATA_BASELINE = 354_000;
+    private static final long AGGREGATED_SP_METADATA_BASELINE = 366_000;
+
+    private static com.sun.management.ThreadMXBean threads;
+
+    private static KeyPair idpKeys;
+    private static X509Certificate idpCertificate;
+    private static KeycloakSession session;
+    private static RealmModel realm;
+    private static AuthenticationSessionModel authSession;
+    private static SpidIdentityProvider provider;
+
+    @BeforeClass
+    public static void setup() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        idpKeys = SpidStubs.generateKeyPair();
+        idpCertificate = SpidStubs.generateCertificate(idpKeys);
+
+        SpidIdentityProviderConfig config = new SpidIdentityProviderConfig();
+        config.setAlias("spid-idp");
+        config.setInternalId("spid-idp-allocation-budget");
+        config.setProviderId(SpidIdentityProviderFactory.PROVIDER_ID);
+        config.setEnabled(true);
+        config.setEntityId(SpidStubs.BASE_URI + "realms/" + SpidStubs.REALM_ID);
+        config.setSingleSignOnServiceUrl("https://idp.example.org/sso");
+        config.setSigningCertificate(PemUtils.encodeCertificate(idpCertificate));
+        config.setValidateSignature(true);
+        config.setWantAuthnRequestsSigned(true);
+        config.setWantAssertionsSigned(true);
+        config.setSignSpMetadata(true);
+        config.setSignatureAlgorithm("RSA_SHA256");
+        config.setPostBindingResponse(true);
+        config.setAttributeConsumingServiceIndex(1);
+
+        KeyPair realmKeys = SpidStubs.generateKeyPair();
+        realm = SpidStubs.realm(Collections.<IdentityProviderModel>singletonList(config), Collections.emptyList());
+        session = SpidStubs.session(SpidStubs.keyManager(realmKeys, SpidStubs.generateCertificate(realmKeys)), realm, Collections.emptyList());
+        authSession = SpidStubs.authenticationSession();
+        provider = new SpidIdentityProvider(session, config, DestinationValidator.forProtocolMap(null));
+    }
+
+    @Test
+    public void performLogin() {
+        assertWithinBudget("performLogin", PERFORM_LOGIN_BASELINE, () -> {
+            AuthenticationRequest request = new AuthenticationRequest(session, realm, authSession, null, SpidStubs.uriInfo(),
+                IdentityBrokerState.decoded("state", "client", "tab"),
+                SpidStubs.BASE_URI + "realms/" + SpidStubs.REALM_ID + "/broker/spid-idp/endpoint");
+            Assert.assertEquals(302, provider.performLogin(request).getStatus());
+        });
+    }
+
+    @Test
+    public void handleLoginResponse() {
+        // Assertions cannot be replayed, so every call gets a response of its own
+        List<String> responses = new ArrayList<>();
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            String requestId = "ID_budget_" + i;
+            responses.add(new SpidResponseGenerator(idpKeys, idpCertificate).requestId(requestId).generateEncoded());
+        }
+        Iterator<String> response = responses.iterator();
+        int[] call = { 0 };
+
+        assertWithinBudget("handleLoginResponse", HANDLE_LOGIN_RESPONSE_BASELINE, () -> {
+            authSession.setClientNote(SamlProtocol.SAML_REQUEST_ID, "ID_budget_" + call[0]++);
+            SpidSAMLEndpoint endpoint = SpidStubs.endpoint(session, provider, authSession);
+            Response result = endpoint.postBinding(null, response.next(), "state");
+            Assert.assertEquals(String.valueOf(result.getEntity()), 200, result.getStatus());
+        });
+    }
+
+    @Test
+    public void spMetadata() {
+        assertWithinBudget("spMetadata", SP_METADATA_BASELINE, () ->
+            Assert.assertEquals(200, provider.export(SpidStubs.uriInfo(), realm, null).getStatus()));
+    }
+
+    @Test
+    public void aggregatedSpMetadata() {
+        SpidSpMetadataResourceProvider resource = new SpidSpMetadataResourceProvider(session);
+        assertWithinBudget("aggregatedSpMetadata", AGGREGATED_SP_METADATA_BASELINE, () ->
+            Assert.assertEquals(200, resource.get().getStatus()));
+    }
+
+    private static void assertWithinBudget(String name, long baseline, Runnable call) {
+        long defaultBudget = baseline == UNMEASURED ? UNMEASURED : baseline + baseline * MARGIN_PERCENT / 100;
+        long budget = Long.getLong("spid.allocationBudget." + name, defaultBudget);
+
+        for (int i = 0; i < WARMUP; i++) {
+            call.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            call.run();
+        }
+        long perCall = (threads.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+
+        if (budget == UNMEASURED) {
+            System.out.printf("%s allocates %d bytes per call on %s %s, record it as its baseline%n",
+                name, perCall, System.getProperty("java.vm.name"), System.getProperty("java.version"));
+            Assume.assumeTrue(name + " has no allocation baseline yet", false);
+        }
+        Assert.assertTrue(String.format("%s allocates %d bytes per call, over its budget of %d", name, perCall, budget),
+            perCall <= budget);
+    }
+}
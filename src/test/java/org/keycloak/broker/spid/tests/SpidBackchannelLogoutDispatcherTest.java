@@ -0,0 +1,130 @@
+package org.keycloak.broker.spid.tests;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.broker.spid.SpidBackchannelLogoutDispatcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SpidBackchannelLogoutDispatcherTest {
+
+    private HttpServer idp;
+    private String sloUrl;
+    private final AtomicInteger failuresBeforeSuccess = new AtomicInteger();
+    private volatile int failureStatus = 503;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+
+    @Before
+    public void startIdp() throws Exception {
+        idp = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        idp.createContext("/slo", exchange -> {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] buffer = new byte[1024];
+                for (int n; (n = in.read(buffer)) != -1; ) body.write(buffer, 0, n);
+            }
+            requests.incrementAndGet();
+            int status = failuresBeforeSuccess.getAndDecrement() > 0 ? failureStatus : 200;
+            if (status == 200) received.add(new String(body.toByteArray(), StandardCharsets.UTF_8));
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        idp.start();
+        sloUrl = "http://127.0.0.1:" + idp.getAddress().getPort() + "/slo";
+    }
+
+    @After
+    public void stopIdp() {
+        idp.stop(0);
+    }
+
+    @Test
+    public void deliversInBackground() throws Exception {
+        SpidBackchannelLogoutDispatcher dispatcher = new SpidBackchannelLogoutDispatcher(10, 1, 1000, 1000, 0, 10);
+        try {
+            Assert.assertTrue(dispatcher.enqueue(sloUrl, Collections.singletonMap("SAMLRequest", "a+b="), null));
+            Assert.assertEquals("SAMLRequest=a%2Bb%3D", received.poll(5, TimeUnit.SECONDS));
+            waitFor(() -> dispatcher.getDelivered() == 1);
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void retriesWithBackoff() throws Exception {
+        failuresBeforeSuccess.set(2);
+        SpidBackchannelLogoutDispatcher dispatcher = new SpidBackchannelLogoutDispatcher(10, 1, 1000, 1000, 3, 10);
+        try {
+            dispatcher.enqueue(sloUrl, Collections.singletonMap("SAMLRequest", "x"), null);
+            Assert.assertNotNull(received.poll(5, TimeUnit.SECONDS));
+            waitFor(() -> dispatcher.getDelivered() == 1);
+            Assert.assertEquals(2, dispatcher.getRetried());
+            Assert.assertEquals(0, dispatcher.getFailed());
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void givesUpAfterMaxRetries() throws Exception {
+        failuresBeforeSuccess.set(Integer.MAX_VALUE);
+        SpidBackchannelLogoutDispatcher dispatcher = new SpidBackchannelLogoutDispatcher(10, 1, 1000, 1000, 1, 10);
+        try {
+            dispatcher.enqueue(sloUrl, Collections.singletonMap("SAMLRequest", "x"), null);
+            waitFor(() -> dispatcher.getFailed() == 1);
+            Assert.assertEquals(1, dispatcher.getRetried());
+            Assert.assertEquals(0, dispatcher.getDelivered());
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void retriesTooManyRequests() throws Exception {
+        failuresBeforeSuccess.set(1);
+        failureStatus = 429;
+        SpidBackchannelLogoutDispatcher dispatcher = new SpidBackchannelLogoutDispatcher(10, 1, 1000, 1000, 3, 10);
+        try {
+            dispatcher.enqueue(sloUrl, Collections.singletonMap("SAMLRequest", "x"), null);
+            waitFor(() -> dispatcher.getDelivered() == 1);
+            Assert.assertEquals(1, dispatcher.getRetried());
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() throws Exception {
+        failuresBeforeSuccess.set(Integer.MAX_VALUE);
+        failureStatus = 400;
+        SpidBackchannelLogoutDispatcher dispatcher = new SpidBackchannelLogoutDispatcher(10, 1, 1000, 1000, 3, 10);
+        try {
+            dispatcher.enqueue(sloUrl, Collections.singletonMap("SAMLRequest", "x"), null);
+            waitFor(() -> dispatcher.getFailed() == 1);
+            Assert.assertEquals(0, dispatcher.getRetried());
+            Assert.assertEquals(1, requests.get());
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue("condition not met in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.spid.SpidBrokerSessionIndex;
+import org.keycloak.broker.spid.tests.support.SpidStubs;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.UserSessionProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+public class SpidBrokerSessionIndexTest {
+
+    private final List<UserSessionModel> store = new ArrayList<>();
+    private final List<String> lookedUp = new ArrayList<>();
+    private final List<KeycloakTransaction> afterCompletion = new ArrayList<>();
+    private int idleTimeout = 1800;
+    private final RealmModel realm = realm();
+    private final KeycloakSession session = session();
+
+    @Test
+    public void findsSessionsUnknownToThisNode() {
+        store.add(userSession("us-1", "spid-idp.session-1", "spid-idp.alice"));
+        store.add(userSession("us-2", "spid-idp.session-2", "spid-idp.alice"));
+        store.add(userSession("us-3", "spid-idp.session-3", "spid-idp.bob"));
+
+        // Only the first session has been created on this node
+        SpidBrokerSessionIndex.put(realm, "us-1", "spid-idp.session-1");
+
+        List<String> found = SpidBrokerSessionIndex.getUserSessionsByBrokerUserId(session, realm, "spid-idp.alice").stream()
+            .map(UserSessionModel::getId)
+            .sorted()
+            .collect(Collectors.toList());
+        Assert.assertEquals(Arrays.asList("us-1", "us-2"), found);
+    }
+
+    @Test
+    public void resolvesBrokerSessionIds() {
+        store.add(userSession("us-4", "spid-idp.session-4", "spid-idp.carol"));
+        store.add(userSession("us-5", "spid-idp.session-5", "spid-idp.carol"));
+        SpidBrokerSessionIndex.put(realm, "us-4", "spid-idp.session-4");
+
+        Assert.assertEquals("us-4", SpidBrokerSessionIndex.getUserSessionByBrokerSessionId(session, realm, "spid-idp.session-4").getId());
+        Assert.assertEquals("us-5", SpidBrokerSessionIndex.getUserSessionByBrokerSessionId(session, realm, "spid-idp.session-5").getId());
+        Assert.assertNull(SpidBrokerSessionIndex.getUserSessionByBrokerSessionId(session, realm, "spid-idp.session-6"));
+    }
+
+    @Test
+    public void ignoresStaleEntries() {
+        SpidBrokerSessionIndex.put(realm, "us-7", "spid-idp.session-7");
+        store.add(userSession("us-8", "spid-idp.session-7", "spid-idp.dave"));
+
+        Assert.assertEquals("us-8", SpidBrokerSessionIndex.getUserSessionByBrokerSessionId(session, realm, "spid-idp.session-7").getId());
+    }
+
+    @Test
+    public void indexesOnlyCreatedSessions() {
+        store.add(userSession("us-9", "spid-idp.session-9", "spid-idp.erin"));
+        SpidBrokerSessionIndex.putAfterCommit(session, realm, "us-9", "spid-idp.session-9");
+        // Went on with the first broker login flow, or abandoned
+        SpidBrokerSessionIndex.putAfterCommit(session, realm, "us-10", "spid-idp.session-10");
+        for (KeycloakTransaction transaction : afterCompletion) {
+            transaction.begin();
+            transaction.commit();
+        }
+        store.clear();
+        lookedUp.clear();
+
+        // Indexed entries are verified against the store, so only the first one is looked up by ID
+        SpidBrokerSessionIndex.getUserSessionByBrokerSessionId(session, realm, "spid-idp.session-9");
+        SpidBrokerSessionIndex.getUserSessionByBrokerSessionId(session, realm, "spid-idp.session-10");
+        Assert.assertEquals(Arrays.asList("us-9"), lookedUp);
+    }
+
+    @Test
+    public void expiresEntriesAfterTheIdleTimeout() throws InterruptedException {
+        store.add(userSession("us-11", "spid-idp.session-11", "spid-idp.frank"));
+        idleTimeout = 1;
+        SpidBrokerSessionIndex.put(realm, "us-11", "spid-idp.session-11");
+
+        Thread.sleep(1100);
+        Assert.assertEquals("us-11", SpidBrokerSessionIndex.getUserSessionByBrokerSessionId(session, realm, "spid-idp.session-11").getId());
+        Assert.assertTrue(lookedUp.isEmpty());
+    }
+
+    private RealmModel realm() {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getId", args -> getClass().getName());
+        answers.put("getSsoSessionMaxLifespan", args -> 36000);
+        answers.put("getSsoSessionIdleTimeout", args -> idleTimeout);
+        return SpidStubs.proxy(RealmModel.class, answers);
+    }
+
+    private KeycloakSession session() {
+        Map<String, Function<Object[], Object>> sessionsAnswers = new HashMap<>();
+        sessionsAnswers.put("getUserSession", args -> {
+            lookedUp.add((String) args[1]);
+            return store.stream()
+                .filter(userSession -> userSession.getId().equals(args[1]))
+                .findFirst().orElse(null);
+        });
+        sessionsAnswers.put("getUserSessionByBrokerSessionId", args -> store.stream()
+            .filter(userSession -> Objects.equals(userSession.getBrokerSessionId(), args[1]))
+            .findFirst().orElse(null));
+        sessionsAnswers.put("getUserSessionByBrokerUserIdStream", args -> store.stream()
+            .filter(userSession -> Objects.equals(userSession.getBrokerUserId(), args[1])));
+        UserSessionProvider sessions = SpidStubs.proxy(UserSessionProvider.class, sessionsAnswers);
+
+        KeycloakTransactionManager transactionManager = SpidStubs.proxy(KeycloakTransactionManager.class,
+            Collections.singletonMap("enlistAfterCompletion", args -> afterCompletion.add((KeycloakTransaction) args[0])));
+
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("sessions", args -> sessions);
+        answers.put("getTransactionManager", args -> transactionManager);
+        return SpidStubs.proxy(KeycloakSession.class, answers);
+    }
+
+    private static UserSessionModel userSession(String id, String brokerSessionId, String brokerUserId) {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getId", args -> id);
+        answers.put("getBrokerSessionId", args -> brokerSessionId);
+        answers.put("getBrokerUserId", args -> brokerUserId);
+        return SpidStubs.proxy(UserSessionModel.class, answers);
+    }
+}
@@ -0,0 +1,235 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.spid.SpidBulkProvisioner;
+import org.keycloak.broker.spid.SpidFiscalNumberIndex;
+import org.keycloak.broker.spid.tests.support.SpidStubs;
+import org.keycloak.executors.ExecutorsProvider;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.SingleUseTokenStoreProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+public class SpidBulkProvisionerTest {
+
+    private static final String LIST = "fiscalNumber\n"
+        + "TINIT-RSSMRA80A01H501U\n"
+        + "TINIT-BNCGVN80A01F205Y\n"
+        + "TINIT-VRDLGU80A01L219X\n";
+
+    @Test
+    public void readsCsvAndJsonLines() throws IOException {
+        SpidBulkProvisioner.RecordReader csv = SpidBulkProvisioner.reader(SpidBulkProvisioner.Format.CSV, new StringReader(
+            "fiscalNumber,lastName,address\n"
+            + "TINIT-RSSMRA80A01H501U,Rossi,\"Via Roma 1, \"\"Interno\"\" 2\"\n"
+            + "\n"
+            + "TINIT-BNCGVN80A01F205Y,,\n"));
+        SpidBulkProvisioner.Record record = csv.next();
+        Assert.assertEquals(2, record.getLine());
+        Assert.assertEquals("Rossi", record.getFirst("lastName"));
+        Assert.assertEquals(Collections.singletonList("Via Roma 1, \"Interno\" 2"), record.getAttributes().get("address"));
+        record = csv.next();
+        Assert.assertEquals(4, record.getLine());
+        Assert.assertNull(record.getFirst("lastName"));
+        Assert.assertNull(csv.next());
+
+        SpidBulkProvisioner.RecordReader jsonl = SpidBulkProvisioner.reader(SpidBulkProvisioner.Format.JSONL, new StringReader(
+            "{\"fiscalNumber\": \"TINIT-RSSMRA80A01H501U\", \"email\": \"mario.rossi@example.org\", \"roles\": [\"a\", \"b\"]}\n"
+            + "not json\n"));
+        record = jsonl.next();
+        Assert.assertEquals("mario.rossi@example.org", record.getFirst("email"));
+        Assert.assertEquals(Arrays.asList("a", "b"), record.getAttributes().get("roles"));
+        Assert.assertFalse(record.getAttributes().containsKey("email"));
+        // A malformed line is a record without fields, failed on its own
+        record = jsonl.next();
+        Assert.assertEquals(2, record.getLine());
+        Assert.assertNull(record.getFirst("fiscalNumber"));
+        Assert.assertNull(jsonl.next());
+    }
+
+    @Test
+    public void createsUsersOnceAndLinksThem() {
+        Map<String, UserModel> users = new HashMap<>();
+        KeycloakSession session = SpidStubs.session(SpidStubs.users(users));
+        RealmModel realm = SpidStubs.realm();
+        List<String> aliases = Collections.singletonList("spid-idp");
+
+        Map<String, List<String>> fields = new HashMap<>();
+        fields.put("fiscalNumber", Collections.singletonList("TINIT-RSSMRA80A01H501U"));
+        SpidBulkProvisioner.Record record = new SpidBulkProvisioner.Record(1, fields);
+
+        SpidBulkProvisioner.Result result = new SpidBulkProvisioner.Result();
+        SpidBulkProvisioner.provision(session, realm, aliases, record, result);
+        SpidBulkProvisioner.provision(session, realm, aliases, record, result);
+        Assert.assertEquals(2, result.getProcessed());
+        Assert.assertEquals(1, result.getCreated());
+        Assert.assertEquals(1, result.getLinked());
+
+        UserModel user = users.get("rssmra80a01h501u");
+        Assert.assertSame(user, SpidFiscalNumberIndex.getUser(session, realm, "RSSMRA80A01H501U"));
+        Assert.assertEquals("TINIT-RSSMRA80A01H501U", session.users().getFederatedIdentity(realm, user, "spid-idp").getUserId());
+    }
+
+    @Test
+    public void checkpointStopsBeforeFailedRecords() throws Exception {
+        Map<String, UserModel> users = new ConcurrentHashMap<>();
+        Map<String, String> attributes = new ConcurrentHashMap<>();
+        AtomicBoolean outage = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            KeycloakSessionFactory sessionFactory = sessionFactory(users, attributes, outage, executor);
+            SpidBulkProvisioner provisioner = new SpidBulkProvisioner(1, 1);
+            List<SpidBulkProvisioner.Result> updates = new ArrayList<>();
+
+            SpidBulkProvisioner.Result result = provisioner.provision(sessionFactory, "provisioning-realm", "citizens",
+                SpidBulkProvisioner.reader(SpidBulkProvisioner.Format.CSV, new StringReader(LIST)), updates::add);
+            Assert.assertEquals(3, result.getProcessed());
+            Assert.assertEquals(2, result.getCreated());
+            Assert.assertEquals(1, result.getFailed());
+            // The record after the failed one is provisioned, but the checkpoint does not pass the failure
+            Assert.assertEquals(1, result.getCheckpoint());
+            Assert.assertEquals("1", attributes.get(SpidBulkProvisioner.CHECKPOINT_ATTRIBUTE_PREFIX + "citizens"));
+            Assert.assertEquals(3, updates.size());
+            Assert.assertEquals(1, updates.get(2).getCheckpoint());
+
+            outage.set(false);
+            result = provisioner.provision(sessionFactory, "provisioning-realm", "citizens",
+                SpidBulkProvisioner.reader(SpidBulkProvisioner.Format.CSV, new StringReader(LIST)), updates::add);
+            Assert.assertEquals(1, result.getResumed());
+            Assert.assertEquals(2, result.getProcessed());
+            Assert.assertEquals(1, result.getCreated());
+            Assert.assertEquals(0, result.getFailed());
+            Assert.assertEquals(3, result.getCheckpoint());
+            Assert.assertEquals("3", attributes.get(SpidBulkProvisioner.CHECKPOINT_ATTRIBUTE_PREFIX + "citizens"));
+            Assert.assertEquals(3, users.size());
+        } finally {
+            executor.shutdownNow();
+            Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void retriesFailedBatchesWithTheirFiscalNumberClaims() throws Exception {
+        Map<String, UserModel> users = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            KeycloakSessionFactory sessionFactory = sessionFactory(users, new ConcurrentHashMap<>(), new AtomicBoolean(true), executor);
+            SpidBulkProvisioner provisioner = new SpidBulkProvisioner(3, 1);
+
+            // The batch claims the first fiscal number, then is rolled back by the failure of the second record
+            SpidBulkProvisioner.Result result = provisioner.provision(sessionFactory, "provisioning-realm", "citizens",
+                SpidBulkProvisioner.reader(SpidBulkProvisioner.Format.CSV, new StringReader(LIST)), update -> { });
+            Assert.assertEquals(3, result.getProcessed());
+            Assert.assertEquals(2, result.getCreated());
+            Assert.assertEquals(1, result.getFailed());
+            Assert.assertEquals(2, users.size());
+
+            KeycloakSession session = sessionFactory.create();
+            RealmModel realm = session.realms().getRealm("provisioning-realm");
+            Assert.assertSame(users.get("rssmra80a01h501u"), SpidFiscalNumberIndex.getUser(session, realm, "RSSMRA80A01H501U"));
+            Assert.assertSame(users.get("vrdlgu80a01l219x"), SpidFiscalNumberIndex.getUser(session, realm, "VRDLGU80A01L219X"));
+        } finally {
+            executor.shutdownNow();
+            Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Sessions on a realm keeping its attributes in memory, whose user store fails to add the
+     * second citizen while {@code outage} is set. A rolled back transaction removes the users and
+     * links it added; the claims of the single-use token store are kept, as in the server.
+     */
+    private static KeycloakSessionFactory sessionFactory(Map<String, UserModel> users, Map<String, String> attributes,
+                                                         AtomicBoolean outage, ExecutorService executor) {
+        Map<String, Function<Object[], Object>> realmAnswers = new HashMap<>();
+        realmAnswers.put("getId", args -> "provisioning-realm");
+        realmAnswers.put("getName", args -> "provisioning-realm");
+        realmAnswers.put("getAttribute", args -> attributes.get((String) args[0]));
+        realmAnswers.put("setAttribute", args -> attributes.put((String) args[0], String.valueOf(args[1])));
+        RealmModel realm = SpidStubs.proxy(RealmModel.class, realmAnswers);
+        RealmProvider realms = SpidStubs.proxy(RealmProvider.class, Collections.singletonMap("getRealm", args -> realm));
+
+        UserProvider store = SpidStubs.users(users);
+        List<Runnable> undo = new ArrayList<>();
+        UserProvider userProvider = (UserProvider) Proxy.newProxyInstance(SpidBulkProvisionerTest.class.getClassLoader(),
+            new Class<?>[] { UserProvider.class }, (self, method, args) -> {
+                if (method.getName().equals("addUser") && outage.get() && "bncgvn80a01f205y".equals(args[1])) {
+                    throw new IllegalStateException("database unavailable");
+                }
+                Object result;
+                try {
+                    result = method.invoke(store, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+                if (method.getName().equals("addUser")) {
+                    undo.add(() -> users.remove((String) args[1]));
+                } else if (method.getName().equals("addFederatedIdentity")) {
+                    FederatedIdentityModel link = (FederatedIdentityModel) args[2];
+                    undo.add(() -> store.removeFederatedIdentity((RealmModel) args[0], (UserModel) args[1], link.getIdentityProvider()));
+                }
+                return result;
+            });
+
+        Map<String, Function<Object[], Object>> transactionAnswers = new HashMap<>();
+        transactionAnswers.put("begin", args -> {
+            undo.clear();
+            return null;
+        });
+        transactionAnswers.put("isActive", args -> true);
+        transactionAnswers.put("commit", args -> {
+            undo.clear();
+            return null;
+        });
+        transactionAnswers.put("rollback", args -> {
+            Collections.reverse(undo);
+            undo.forEach(Runnable::run);
+            undo.clear();
+            return null;
+        });
+        KeycloakTransactionManager transaction = SpidStubs.proxy(KeycloakTransactionManager.class, transactionAnswers);
+
+        Set<String> claimed = ConcurrentHashMap.newKeySet();
+        SingleUseTokenStoreProvider claims = SpidStubs.proxy(SingleUseTokenStoreProvider.class,
+            Collections.singletonMap("putIfAbsent", args -> claimed.add((String) args[0])));
+
+        ExecutorsProvider executors = SpidStubs.proxy(ExecutorsProvider.class, Collections.singletonMap("getExecutor", args -> executor));
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("realms", args -> realms);
+        answers.put("users", args -> userProvider);
+        answers.put("getContext", args -> SpidStubs.proxy(KeycloakContext.class));
+        answers.put("getTransactionManager", args -> transaction);
+        answers.put("getProvider", args -> {
+            if (args[0] == ExecutorsProvider.class) return executors;
+            return args[0] == SingleUseTokenStoreProvider.class ? claims : null;
+        });
+        KeycloakSession session = SpidStubs.proxy(KeycloakSession.class, answers);
+
+        return SpidStubs.proxy(KeycloakSessionFactory.class, Collections.singletonMap("create", args -> session));
+    }
+}
@@ -0,0 +1,109 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.spid.SpidFiscalNumberIndex;
+import org.keycloak.broker.spid.tests.support.SpidStubs;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SingleUseTokenStoreProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+public class SpidFiscalNumberIndexTest {
+
+    @Test
+    public void normalizesFiscalNumbers() {
+        Assert.assertEquals("RSSMRA80A01H501U", SpidFiscalNumberIndex.normalize(" tinit-rssmra80a01h501u "));
+        Assert.assertEquals("RSSMRA80A01H501U", SpidFiscalNumberIndex.normalize("RSSMRA80A01H501U"));
+        Assert.assertNull(SpidFiscalNumberIndex.normalize("TINIT- "));
+        Assert.assertNull(SpidFiscalNumberIndex.normalize(null));
+    }
+
+    @Test
+    public void keepsOneUserPerFiscalNumber() {
+        Map<String, UserModel> users = new HashMap<>();
+        users.put("mario", user("mario"));
+        users.put("maria", user("maria"));
+        KeycloakSession session = SpidStubs.session(SpidStubs.users(users));
+        RealmModel realm = SpidStubs.realm();
+
+        Assert.assertTrue(SpidFiscalNumberIndex.put(session, realm, users.get("mario"), "TINIT-RSSMRA80A01H501U"));
+        Assert.assertFalse(SpidFiscalNumberIndex.put(session, realm, users.get("mario"), "RSSMRA80A01H501U"));
+        // The fiscal number of another user is not taken over
+        Assert.assertFalse(SpidFiscalNumberIndex.put(session, realm, users.get("maria"), "TINIT-RSSMRA80A01H501U"));
+        Assert.assertSame(users.get("mario"), SpidFiscalNumberIndex.getUser(session, realm, "TINIT-RSSMRA80A01H501U"));
+
+        Assert.assertTrue(SpidFiscalNumberIndex.put(session, realm, users.get("mario"), "TINIT-RSSMRA80A41H501Y"));
+        Assert.assertNull(SpidFiscalNumberIndex.getUser(session, realm, "RSSMRA80A01H501U"));
+        Assert.assertSame(users.get("mario"), SpidFiscalNumberIndex.getUser(session, realm, "RSSMRA80A41H501Y"));
+    }
+
+    @Test
+    public void ignoresFiscalNumbersLinkedTwice() {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getUserByFederatedIdentity", args -> {
+            throw new IllegalStateException("More results found for identityProvider=" + SpidFiscalNumberIndex.ALIAS);
+        });
+        answers.put("addFederatedIdentity", args -> {
+            throw new AssertionError("linked a third time");
+        });
+        KeycloakSession session = SpidStubs.session(SpidStubs.proxy(UserProvider.class, answers));
+        RealmModel realm = SpidStubs.realm();
+
+        Assert.assertNull(SpidFiscalNumberIndex.getUser(session, realm, "RSSMRA80A01H501U"));
+        Assert.assertFalse(SpidFiscalNumberIndex.put(session, realm, user("mario"), "RSSMRA80A01H501U"));
+    }
+
+    @Test
+    public void leavesTheLinkToConcurrentLogins() {
+        Map<String, UserModel> users = new HashMap<>();
+        users.put("mario", user("mario"));
+        users.put("maria", user("maria"));
+        Set<String> claims = new HashSet<>();
+        SingleUseTokenStoreProvider tokens = SpidStubs.proxy(SingleUseTokenStoreProvider.class,
+            Collections.singletonMap("putIfAbsent", args -> claims.add((String) args[0])));
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getProvider", args -> args[0] == SingleUseTokenStoreProvider.class ? tokens : null);
+        UserProvider userProvider = SpidStubs.users(users);
+        answers.put("users", args -> userProvider);
+        KeycloakSession session = SpidStubs.proxy(KeycloakSession.class, answers);
+        RealmModel realm = SpidStubs.realm();
+
+        // Both logins run before either link is committed
+        Assert.assertTrue(SpidFiscalNumberIndex.put(session, realm, users.get("mario"), "RSSMRA80A01H501U"));
+        userProvider.removeFederatedIdentity(realm, users.get("mario"), SpidFiscalNumberIndex.ALIAS);
+        Assert.assertFalse(SpidFiscalNumberIndex.put(session, realm, users.get("maria"), "RSSMRA80A01H501U"));
+        Assert.assertNull(SpidFiscalNumberIndex.getUser(session, realm, "RSSMRA80A01H501U"));
+    }
+
+    @Test
+    public void isUnusedWhileAnIdentityProviderHasTheReservedAlias() {
+        Map<String, UserModel> users = new HashMap<>();
+        users.put("mario", user("mario"));
+        KeycloakSession session = SpidStubs.session(SpidStubs.users(users));
+        RealmModel realm = SpidStubs.realm();
+        Assert.assertTrue(SpidFiscalNumberIndex.put(session, realm, users.get("mario"), "RSSMRA80A01H501U"));
+
+        IdentityProviderModel identityProvider = new IdentityProviderModel();
+        identityProvider.setAlias(SpidFiscalNumberIndex.ALIAS);
+        RealmModel takenRealm = SpidStubs.proxy(RealmModel.class,
+            Collections.singletonMap("getIdentityProviderByAlias", args -> identityProvider));
+
+        Assert.assertNull(SpidFiscalNumberIndex.getUser(session, takenRealm, "RSSMRA80A01H501U"));
+        Assert.assertFalse(SpidFiscalNumberIndex.put(session, takenRealm, users.get("mario"), "RSSMRA80A41H501Y"));
+        Assert.assertSame(users.get("mario"), SpidFiscalNumberIndex.getUser(session, realm, "RSSMRA80A01H501U"));
+    }
+
+    private static UserModel user(String id) {
+        return SpidStubs.proxy(UserModel.class, Collections.singletonMap("getId", args -> id));
+    }
+}
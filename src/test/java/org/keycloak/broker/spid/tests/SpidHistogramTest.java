@@ -0,0 +1,35 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.spid.metrics.SpidHistogram;
+
+public class SpidHistogramTest {
+
+    @Test
+    public void percentilesWithinRelativeError() {
+        SpidHistogram histogram = new SpidHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000000, histogram.getMax());
+        assertWithin(500000, histogram.getValueAtPercentile(50));
+        assertWithin(990000, histogram.getValueAtPercentile(99));
+        Assert.assertEquals(1000000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (int i = 1; i < SpidHistogram.BUCKETS; i++) {
+            Assert.assertTrue(SpidHistogram.upperBound(i) > SpidHistogram.upperBound(i - 1));
+        }
+        Assert.assertEquals(Long.MAX_VALUE, SpidHistogram.upperBound(SpidHistogram.BUCKETS - 1));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        Assert.assertTrue("expected ~" + expected + " but was " + actual,
+            actual >= expected && actual <= expected + expected / 8);
+    }
+}
@@ -0,0 +1,74 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.spid.SpidBackchannelLogoutDispatcher;
+import org.keycloak.broker.spid.SpidIdpHealthTracker;
+import org.keycloak.broker.spid.metrics.SpidMetricsProvider;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SpidIdpHealthTrackerTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000L);
+    private final SpidIdpHealthTracker tracker = new SpidIdpHealthTracker(10, 4, 50, 30_000, now::get);
+
+    @Test
+    public void circuitOpensAndRecovers() {
+        tracker.recordResponse("realm", "idp", SpidMetricsProvider.RESPONSE_SUCCESS);
+        tracker.recordBackchannelLogout("realm", "idp", SpidBackchannelLogoutDispatcher.Outcome.DELIVERED);
+        tracker.recordBackchannelLogout("realm", "idp", SpidBackchannelLogoutDispatcher.Outcome.FAILED);
+        Assert.assertTrue(tracker.allowRequest("realm", "idp"));
+        Assert.assertFalse(tracker.isDegraded("realm", "idp"));
+
+        tracker.recordBackchannelLogout("realm", "idp", SpidBackchannelLogoutDispatcher.Outcome.FAILED);
+        Assert.assertEquals(SpidIdpHealthTracker.State.OPEN, tracker.getStatus("realm", "idp").getState());
+        Assert.assertFalse(tracker.allowRequest("realm", "idp"));
+        Assert.assertTrue(tracker.allowRequest("realm", "other"));
+
+        now.addAndGet(30_000);
+        Assert.assertTrue(tracker.allowRequest("realm", "idp"));
+        Assert.assertFalse(tracker.allowRequest("realm", "idp"));
+        Assert.assertTrue(tracker.isDegraded("realm", "idp"));
+
+        tracker.recordBackchannelLogout("realm", "idp", SpidBackchannelLogoutDispatcher.Outcome.DELIVERED);
+        Assert.assertFalse(tracker.isDegraded("realm", "idp"));
+        Assert.assertTrue(tracker.allowRequest("realm", "idp"));
+    }
+
+    @Test
+    public void failedTrialReopensCircuit() {
+        for (int i = 0; i < 4; i++) {
+            tracker.recordBackchannelLogout("realm", "idp", SpidBackchannelLogoutDispatcher.Outcome.FAILED);
+        }
+        now.addAndGet(30_000);
+        Assert.assertTrue(tracker.allowRequest("realm", "idp"));
+
+        tracker.recordBackchannelLogout("realm", "idp", SpidBackchannelLogoutDispatcher.Outcome.FAILED);
+        Assert.assertEquals(SpidIdpHealthTracker.State.OPEN, tracker.getStatus("realm", "idp").getState());
+        Assert.assertFalse(tracker.allowRequest("realm", "idp"));
+    }
+
+    @Test
+    public void rejectedResponsesAreNotFailures() {
+        for (int i = 0; i < 10; i++) {
+            tracker.recordResponse("realm", "idp", SpidMetricsProvider.RESPONSE_INVALID_SIGNATURE);
+            tracker.recordResponse("realm", "idp", SpidMetricsProvider.RESPONSE_STATUS_ERROR);
+            tracker.recordResponse("realm", "idp", SpidMetricsProvider.RESPONSE_INVALID_RELAY_STATE);
+        }
+        SpidIdpHealthTracker.Status status = tracker.getStatus("realm", "idp");
+        Assert.assertEquals(SpidIdpHealthTracker.State.CLOSED, status.getState());
+        Assert.assertEquals(0, status.getFailures());
+        Assert.assertTrue(tracker.allowRequest("realm", "idp"));
+    }
+
+    @Test
+    public void spidFaultsAreNotFailures() {
+        for (int i = 0; i < 10; i++) {
+            tracker.recordResponse("realm", "idp", "SpidFault_ErrorCode_nr22");
+        }
+        SpidIdpHealthTracker.Status status = tracker.getStatus("realm", "idp");
+        Assert.assertEquals(SpidIdpHealthTracker.State.CLOSED, status.getState());
+        Assert.assertEquals(10, status.getFaults());
+    }
+}
@@ -0,0 +1,75 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.spid.SpidIdpInitiatedClientCache;
+import org.keycloak.broker.spid.tests.support.SpidStubs;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.protocol.saml.SamlProtocol;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public class SpidIdpInitiatedClientCacheTest {
+
+    private final Map<String, ClientModel> clients = new HashMap<>();
+    private final AtomicInteger searches = new AtomicInteger();
+    private final RealmModel realm = realm();
+    private final KeycloakSession session = session();
+
+    @Test
+    public void cachesClients() {
+        clients.put("client-1", client("client-1", "portal"));
+
+        Assert.assertSame(clients.get("client-1"), SpidIdpInitiatedClientCache.getClient(session, realm, "portal"));
+        Assert.assertSame(clients.get("client-1"), SpidIdpInitiatedClientCache.getClient(session, realm, "portal"));
+        Assert.assertEquals(1, searches.get());
+    }
+
+    @Test
+    public void cachesUnknownNames() {
+        Assert.assertNull(SpidIdpInitiatedClientCache.getClient(session, realm, "unknown"));
+        Assert.assertNull(SpidIdpInitiatedClientCache.getClient(session, realm, "unknown"));
+        Assert.assertEquals(1, searches.get());
+
+        // A client created on this node drops the misses of its realm
+        clients.put("client-2", client("client-2", "unknown"));
+        SpidIdpInitiatedClientCache.invalidate(realm.getId());
+        Assert.assertSame(clients.get("client-2"), SpidIdpInitiatedClientCache.getClient(session, realm, "unknown"));
+        Assert.assertEquals(2, searches.get());
+    }
+
+    private RealmModel realm() {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getId", args -> getClass().getName() + System.identityHashCode(this));
+        answers.put("getClientById", args -> clients.get((String) args[0]));
+        return SpidStubs.proxy(RealmModel.class, answers);
+    }
+
+    private KeycloakSession session() {
+        Map<String, Function<Object[], Object>> clientAnswers = new HashMap<>();
+        clientAnswers.put("searchClientsByAttributes", args -> {
+            searches.incrementAndGet();
+            Object urlName = ((Map<?, ?>) args[1]).get(SamlProtocol.SAML_IDP_INITIATED_SSO_URL_NAME);
+            return clients.values().stream()
+                .filter(client -> urlName.equals(client.getAttribute(SamlProtocol.SAML_IDP_INITIATED_SSO_URL_NAME)));
+        });
+        ClientProvider clientProvider = SpidStubs.proxy(ClientProvider.class, clientAnswers);
+
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("clients", args -> clientProvider);
+        return SpidStubs.proxy(KeycloakSession.class, answers);
+    }
+
+    private static ClientModel client(String id, String urlName) {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getId", args -> id);
+        answers.put("getAttribute", args -> SamlProtocol.SAML_IDP_INITIATED_SSO_URL_NAME.equals(args[0]) ? urlName : null);
+        return SpidStubs.proxy(ClientModel.class, answers);
+    }
+}
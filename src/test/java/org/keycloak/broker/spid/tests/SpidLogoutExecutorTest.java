@@ -0,0 +1,108 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.broker.spid.SpidLogoutExecutor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class SpidLogoutExecutorTest {
+
+    private ExecutorService executor;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void startExecutor() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void stopExecutor() throws Exception {
+        release.countDown();
+        executor.shutdownNow();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void logsOutAllSessions() {
+        SpidLogoutExecutor.Result result = new SpidLogoutExecutor(2, 1000, 5000)
+            .run(executor, Arrays.asList("s1", "s2", "s3"), userSessionId -> { });
+
+        Assert.assertEquals(3, result.getCompleted());
+        Assert.assertFalse(result.isPartial());
+        Assert.assertEquals(Arrays.asList("s1", "s2", "s3"), sorted(result.getLoggedOut()));
+    }
+
+    @Test
+    public void reportsFailedSessions() {
+        SpidLogoutExecutor.Result result = new SpidLogoutExecutor(2, 1000, 5000)
+            .run(executor, Arrays.asList("s1", "s2"), userSessionId -> {
+                if (userSessionId.equals("s2")) throw new IllegalStateException("store unavailable");
+            });
+
+        Assert.assertEquals(1, result.getCompleted());
+        Assert.assertEquals(1, result.getFailed());
+        Assert.assertTrue(result.isPartial());
+        Assert.assertEquals(Collections.singletonList("s1"), result.getLoggedOut());
+    }
+
+    @Test
+    public void cancelsSessionsPastTheirTimeout() {
+        SpidLogoutExecutor.Result result = new SpidLogoutExecutor(2, 100, 5000)
+            .run(executor, Arrays.asList("s1", "s2"), userSessionId -> {
+                if (userSessionId.equals("s2")) release.await();
+            });
+
+        Assert.assertEquals(1, result.getCompleted());
+        Assert.assertEquals(1, result.getTimedOut());
+        Assert.assertEquals(0, result.getFailed());
+        Assert.assertTrue(result.isPartial());
+        Assert.assertEquals(Collections.singletonList("s1"), result.getLoggedOut());
+    }
+
+    @Test
+    public void countsTimedOutSessionsOnce() {
+        SpidLogoutExecutor.Result result = new SpidLogoutExecutor(2, 200, 5000)
+            .run(executor, Arrays.asList("s1", "s2", "s3"), userSessionId -> {
+                if (userSessionId.equals("s2")) {
+                    release.await();
+                    throw new IllegalStateException("store unavailable");
+                }
+                // s3 is still running when the cancelled future of s2 is polled
+                Thread.sleep(150);
+            });
+
+        Assert.assertEquals(2, result.getCompleted());
+        Assert.assertEquals(1, result.getTimedOut());
+        Assert.assertEquals(0, result.getFailed());
+        Assert.assertEquals(Arrays.asList("s1", "s3"), sorted(result.getLoggedOut()));
+    }
+
+    @Test
+    public void skipsSessionsPastTheDeadline() {
+        long start = System.currentTimeMillis();
+        SpidLogoutExecutor.Result result = new SpidLogoutExecutor(1, 5000, 200)
+            .run(executor, Arrays.asList("s1", "s2", "s3"), userSessionId -> release.await());
+
+        Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+        Assert.assertEquals(0, result.getCompleted());
+        Assert.assertEquals(1, result.getTimedOut());
+        Assert.assertEquals(2, result.getSkipped());
+        Assert.assertTrue(result.isPartial());
+        Assert.assertTrue(result.getLoggedOut().isEmpty());
+    }
+
+    private static List<String> sorted(List<String> values) {
+        String[] array = values.toArray(new String[0]);
+        Arrays.sort(array);
+        return Arrays.asList(array);
+    }
+}
@@ -0,0 +1,416 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.keycloak.broker.spid.SpidIdentityProvider;
+import org.keycloak.broker.spid.SpidIdentityProviderConfig;
+import org.keycloak.broker.spid.SpidIdentityProviderFactory;
+import org.keycloak.broker.spid.SpidSAMLEndpoint;
+import org.keycloak.broker.spid.metrics.SpidMetricsProvider;
+import org.keycloak.broker.spid.tests.support.SpidResponseGenerator;
+import org.keycloak.broker.spid.tests.support.SpidStubs;
+import org.keycloak.common.util.PemUtils;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.protocol.saml.SamlProtocol;
+import org.keycloak.saml.common.constants.GeneralConstants;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+import org.keycloak.saml.common.util.DocumentUtil;
+import org.keycloak.saml.validators.DestinationValidator;
+import org.keycloak.services.messages.Messages;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import javax.xml.crypto.dsig.XMLSignature;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Runs malformed, truncated, oversized, wrongly signed and replayed SAML messages through the POST
+ * and Redirect bindings of the broker endpoint. Each message must be rejected with the expected
+ * code, i.e. the outcome counted by the endpoint or else the message of the error page, and must
+ * not cost more CPU than a valid response of the same size: invalid traffic is free to send to a
+ * public endpoint.
+ *
+ * The CPU ceiling is the valid response time multiplied by {@code -Dspid.rejectionCpuFactor}, 1.5
+ * by default to absorb timer noise.
+ */
+public class SpidMalformedInputTest {
+
+    private static final String ENDPOINT = SpidStubs.BASE_URI + "realms/" + SpidStubs.REALM_ID + "/broker/spid-idp/endpoint";
+    private static final String REQUEST_ID = "ID_corpus";
+    private static final String RELAY_STATE = "state";
+
+    private static final int WARMUP = 5;
+    private static final int REPEATS = 15;
+    private static final double CPU_FACTOR = Double.parseDouble(System.getProperty("spid.rejectionCpuFactor", "1.5"));
+
+    private static final Map<String, Long> baselines = new HashMap<>();
+    private static final AtomicReference<UriInfo> request = new AtomicReference<>(SpidStubs.uriInfo());
+    private static final AtomicReference<String> outcome = new AtomicReference<>();
+
+    private static ThreadMXBean threads;
+
+    private static KeyPair idpKeys;
+    private static X509Certificate idpCertificate;
+    private static KeyPair otherKeys;
+    private static X509Certificate otherCertificate;
+    private static KeycloakSession session;
+    private static AuthenticationSessionModel authSession;
+    private static SpidIdentityProvider provider;
+
+    private enum Binding { POST, REDIRECT }
+
+    @BeforeClass
+    public static void setup() {
+        threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isCurrentThreadCpuTimeSupported());
+        threads.setThreadCpuTimeEnabled(true);
+
+        idpKeys = SpidStubs.generateKeyPair();
+        idpCertificate = SpidStubs.generateCertificate(idpKeys);
+        otherKeys = SpidStubs.generateKeyPair();
+        otherCertificate = SpidStubs.generateCertificate(otherKeys);
+
+        SpidIdentityProviderConfig config = new SpidIdentityProviderConfig();
+        config.setAlias("spid-idp");
+        config.setInternalId("spid-idp-malformed-input");
+        config.setProviderId(SpidIdentityProviderFactory.PROVIDER_ID);
+        config.setEnabled(true);
+        config.setEntityId(SpidStubs.BASE_URI + "realms/" + SpidStubs.REALM_ID);
+        config.setSingleSignOnServiceUrl("https://idp.example.org/sso");
+        config.setSingleLogoutServiceUrl("https://idp.example.org/slo");
+        config.setSigningCertificate(PemUtils.encodeCertificate(idpCertificate));
+        config.setValidateSignature(true);
+        config.setWantAuthnRequestsSigned(true);
+        config.setWantAssertionsSigned(true);
+        config.setSignatureAlgorithm("RSA_SHA256");
+        config.setPostBindingResponse(true);
+
+        Map<String, Function<Object[], Object>> metricsAnswers = new HashMap<>();
+        metricsAnswers.put("countResponse", args -> {
+            outcome.set((String) args[1]);
+            return null;
+        });
+        SpidMetricsProvider metrics = SpidStubs.proxy(SpidMetricsProvider.class, metricsAnswers);
+
+        KeyPair realmKeys = SpidStubs.generateKeyPair();
+        RealmModel realm = SpidStubs.realm(Collections.<IdentityProviderModel>singletonList(config), Collections.emptyList());
+        session = SpidStubs.session(SpidStubs.keyManager(realmKeys, SpidStubs.generateCertificate(realmKeys)), realm,
+            Collections.emptyList(), request::get, metrics);
+        authSession = SpidStubs.authenticationSession();
+        authSession.setClientNote(SamlProtocol.SAML_REQUEST_ID, REQUEST_ID);
+        provider = new SpidIdentityProvider(session, config, DestinationValidator.forProtocolMap(null));
+    }
+
+    @Test
+    public void spidChecks() {
+        assertSpidCheck("SpidSamlCheck_nr17", document -> document.getDocumentElement().removeAttribute("InResponseTo"));
+        assertSpidCheck("SpidSamlCheck_nr16", document -> document.getDocumentElement().setAttribute("InResponseTo", ""));
+        assertSpidCheck("SpidSamlCheck_nr18", document -> document.getDocumentElement().setAttribute("InResponseTo", "ID_other"));
+        assertSpidCheck("SpidSamlCheck_nr42", document -> remove(element(document, "Subject")));
+        assertSpidCheck("SpidSamlCheck_nr41", document -> removeChildren(element(document, "Subject")));
+        assertSpidCheck("SpidSamlCheck_nr52", document -> remove(element(document, "SubjectConfirmation")));
+        assertSpidCheck("SpidSamlCheck_nr51", document -> removeChildren(element(document, "SubjectConfirmation")));
+        assertSpidCheck("SpidSamlCheck_nr54", document -> element(document, "SubjectConfirmation").removeAttribute("Method"));
+        assertSpidCheck("SpidSamlCheck_nr53", document -> element(document, "SubjectConfirmation").setAttribute("Method", ""));
+        assertSpidCheck("SpidSamlCheck_nr55", document -> element(document, "SubjectConfirmation").setAttribute("Method", "urn:oasis:names:tc:SAML:2.0:cm:holder-of-key"));
+        assertSpidCheck("SpidSamlCheck_nr56", document -> {
+            // Without another child the confirmation is empty, which fails as nr51 first
+            Element confirmation = element(document, "SubjectConfirmation");
+            confirmation.appendChild(document.createElementNS(JBossSAMLURIConstants.ASSERTION_NSURI.get(), "saml:NameID"))
+                .setTextContent("_confirmation");
+            remove(element(document, "SubjectConfirmationData"));
+        });
+        assertSpidCheck("SpidSamlCheck_nr58", document -> element(document, "SubjectConfirmationData").removeAttribute("Recipient"));
+        assertSpidCheck("SpidSamlCheck_nr57", document -> element(document, "SubjectConfirmationData").setAttribute("Recipient", ""));
+        assertSpidCheck("SpidSamlCheck_nr61", document -> element(document, "SubjectConfirmationData").removeAttribute("InResponseTo"));
+        assertSpidCheck("SpidSamlCheck_nr60", document -> element(document, "SubjectConfirmationData").setAttribute("InResponseTo", ""));
+        assertSpidCheck("SpidSamlCheck_nr62", document -> element(document, "SubjectConfirmationData").setAttribute("InResponseTo", "ID_other"));
+    }
+
+    @Test
+    public void wronglySignedResponses() {
+        assertRejected("wrong signer", SpidMetricsProvider.RESPONSE_INVALID_SIGNATURE,
+            Binding.POST, GeneralConstants.SAML_RESPONSE_KEY, encode(new SpidResponseGenerator(otherKeys, otherCertificate).requestId(REQUEST_ID).generate()));
+        assertRejected("unsigned", SpidMetricsProvider.RESPONSE_INVALID_SIGNATURE,
+            Binding.POST, GeneralConstants.SAML_RESPONSE_KEY, encode(response().signResponse(false).signAssertion(false).generate()));
+
+        Document tampered = response().generate();
+        Node nameId = tampered.getElementsByTagNameNS(JBossSAMLURIConstants.ASSERTION_NSURI.get(), "NameID").item(0);
+        nameId.setTextContent("_tampered");
+        assertRejected("tampered after signing", SpidMetricsProvider.RESPONSE_INVALID_SIGNATURE,
+            Binding.POST, GeneralConstants.SAML_RESPONSE_KEY, encode(tampered));
+    }
+
+    @Test
+    public void replayedExpiredAndMisdirectedResponses() {
+        String replayed = encode(response().generate());
+        Assert.assertEquals(200, submit(Binding.POST, GeneralConstants.SAML_RESPONSE_KEY, replayed, "").getStatus());
+        assertRejected("replayed", SpidMetricsProvider.RESPONSE_ASSERTION_REPLAYED,
+            Binding.POST, GeneralConstants.SAML_RESPONSE_KEY, replayed);
+
+        Instant past = Instant.now().truncatedTo(ChronoUnit.SECONDS).minus(2, ChronoUnit.HOURS);
+        Document expired = response().edit(document -> {
+            Element conditions = element(document, "Conditions");
+            conditions.setAttribute("NotBefore", past.toString());
+            conditions.setAttribute("NotOnOrAfter", past.plus(5, ChronoUnit.MINUTES).toString());
+            element(document, "SubjectConfirmationData").setAttribute("NotOnOrAfter", past.plus(5, ChronoUnit.MINUTES).toString());
+        }).generate();
+        assertRejected("expired", SpidMetricsProvider.RESPONSE_ASSERTION_EXPIRED,
+            Binding.POST, GeneralConstants.SAML_RESPONSE_KEY, encode(expired));
+
+        assertRejected("wrong destination", Messages.INVALID_REQUEST,
+            Binding.POST, GeneralConstants.SAML_RESPONSE_KEY, encode(response().destination("https://sp.example.org/other").generate()));
+    }
+
+    @Test
+    public void malformedResponses() {
+        String xml = toString(response().generate());
+        assertRejected("truncated", Messages.INVALID_FEDERATED_IDENTITY_ACTION,
+            Binding.POST, GeneralConstants.SAML_RESPONSE_KEY, base64(xml.substring(0, xml.length() / 2)));
+        assertRejected("not base64", Messages.INVALID_FEDERATED_IDENTITY_ACTION,
+            Binding.POST, GeneralConstants.SAML_RESPONSE_KEY, xml);
+        assertRejected("entity expansion", Messages.INVALID_FEDERATED_IDENTITY_ACTION,
+            Binding.POST, GeneralConstants.SAML_RESPONSE_KEY, base64(entityExpansion()));
+        assertRejected("external entity", Messages.INVALID_FEDERATED_IDENTITY_ACTION,
+            Binding.POST, GeneralConstants.SAML_RESPONSE_KEY, base64(externalEntity()));
+    }
+
+    @Test
+    public void oversizedResponses() {
+        assertRejected("large attribute values", SpidMetricsProvider.RESPONSE_INVALID_SIGNATURE, 16384, 0,
+            Binding.POST, GeneralConstants.SAML_RESPONSE_KEY,
+            encode(new SpidResponseGenerator(otherKeys, otherCertificate).requestId(REQUEST_ID).attributeValueSize(16384).generate()));
+        assertRejected("deep nesting", SpidMetricsProvider.RESPONSE_INVALID_SIGNATURE, 0, 64,
+            Binding.POST, GeneralConstants.SAML_RESPONSE_KEY,
+            encode(new SpidResponseGenerator(otherKeys, otherCertificate).requestId(REQUEST_ID).nestingDepth(64).generate()));
+    }
+
+    @Test
+    public void malformedRequests() {
+        Document unsigned = new SpidResponseGenerator(idpKeys, idpCertificate).generateLogoutRequest();
+        remove((Element) unsigned.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature").item(0));
+        assertRejected("unsigned logout request", Messages.INVALID_REQUESTER,
+            Binding.POST, GeneralConstants.SAML_REQUEST_KEY, encode(unsigned));
+        assertRejected("wrongly signed logout request", Messages.INVALID_REQUESTER,
+            Binding.POST, GeneralConstants.SAML_REQUEST_KEY, encode(new SpidResponseGenerator(otherKeys, otherCertificate).generateLogoutRequest()));
+        assertRejected("logout request to the wrong destination", Messages.INVALID_REQUEST,
+            Binding.POST, GeneralConstants.SAML_REQUEST_KEY,
+            encode(new SpidResponseGenerator(idpKeys, idpCertificate).destination("https://sp.example.org/other").generateLogoutRequest()));
+
+        String xml = toString(new SpidResponseGenerator(idpKeys, idpCertificate).generateLogoutRequest());
+        assertRejected("truncated logout request", Messages.INVALID_REQUEST,
+            Binding.POST, GeneralConstants.SAML_REQUEST_KEY, base64(xml.substring(0, xml.length() / 2)));
+        assertRejected("logout request not base64", Messages.INVALID_REQUEST,
+            Binding.POST, GeneralConstants.SAML_REQUEST_KEY, xml);
+        assertRejected("redirect unsigned logout request", Messages.INVALID_REQUESTER,
+            Binding.REDIRECT, GeneralConstants.SAML_REQUEST_KEY, deflate(toString(unsigned)));
+    }
+
+    @Test
+    public void redirectBinding() {
+        String xml = toString(response().signResponse(false).signAssertion(false).generate());
+        assertRejected("redirect unsigned", SpidMetricsProvider.RESPONSE_INVALID_SIGNATURE,
+            Binding.REDIRECT, GeneralConstants.SAML_RESPONSE_KEY, deflate(xml));
+
+        byte[] signature = new byte[256];
+        new Random(42).nextBytes(signature);
+        assertRejected("redirect forged signature", SpidMetricsProvider.RESPONSE_INVALID_SIGNATURE, 0, 0,
+            Binding.REDIRECT, GeneralConstants.SAML_RESPONSE_KEY, deflate(xml),
+            "&" + GeneralConstants.SAML_SIG_ALG_REQUEST_KEY + "=" + urlEncode(SpidResponseGenerator.RSA_SHA256)
+                + "&" + GeneralConstants.SAML_SIGNATURE_REQUEST_KEY + "=" + urlEncode(Base64.getEncoder().encodeToString(signature)));
+
+        assertRejected("redirect not deflated", Messages.INVALID_FEDERATED_IDENTITY_ACTION,
+            Binding.REDIRECT, GeneralConstants.SAML_RESPONSE_KEY, base64(xml));
+        assertRejected("redirect entity expansion", Messages.INVALID_FEDERATED_IDENTITY_ACTION,
+            Binding.REDIRECT, GeneralConstants.SAML_RESPONSE_KEY, deflate(entityExpansion()));
+    }
+
+    private static SpidResponseGenerator response() {
+        return new SpidResponseGenerator(idpKeys, idpCertificate).requestId(REQUEST_ID);
+    }
+
+    /**
+     * Breaks one SPID rule in an otherwise valid response, before it is signed.
+     */
+    private void assertSpidCheck(String code, Consumer<Document> edit) {
+        assertRejected(code, code, Binding.POST, GeneralConstants.SAML_RESPONSE_KEY, encode(response().edit(edit).generate()));
+    }
+
+    private void assertRejected(String name, String code, Binding binding, String parameter, String message) {
+        assertRejected(name, code, 0, 0, binding, parameter, message, "");
+    }
+
+    private void assertRejected(String name, String code, int attributeValueSize, int nestingDepth,
+                                Binding binding, String parameter, String message) {
+        assertRejected(name, code, attributeValueSize, nestingDepth, binding, parameter, message, "");
+    }
+
+    /**
+     * Submits the message repeatedly, checks every rejection and compares the median CPU time to the
+     * one of valid responses with the given attribute value size and nesting depth.
+     */
+    private void assertRejected(String name, String code, int attributeValueSize, int nestingDepth,
+                                Binding binding, String parameter, String message, String query) {
+        long cpu = medianCpuTime(() -> {
+            Response response = submit(binding, parameter, message, query);
+            Assert.assertEquals(name, 400, response.getStatus());
+            Assert.assertEquals(name, code, outcome.get() != null ? outcome.get() : response.getEntity());
+            return response;
+        });
+
+        long ceiling = (long) (baseline(attributeValueSize, nestingDepth) * CPU_FACTOR);
+        Assert.assertTrue(String.format("%s: rejected in %d us of CPU, over the ceiling of %d us", name, cpu / 1000, ceiling / 1000),
+            cpu <= ceiling);
+    }
+
+    /**
+     * The median CPU time of valid login responses of the given shape, each a fresh one since
+     * assertions cannot be replayed.
+     */
+    private long baseline(int attributeValueSize, int nestingDepth) {
+        return baselines.computeIfAbsent(attributeValueSize + "/" + nestingDepth, shape -> {
+            List<String> responses = new ArrayList<>();
+            for (int i = 0; i < WARMUP + REPEATS; i++) {
+                responses.add(encode(response().attributeValueSize(attributeValueSize).nestingDepth(nestingDepth).generate()));
+            }
+            int[] next = { 0 };
+            return medianCpuTime(() -> {
+                Response response = submit(Binding.POST, GeneralConstants.SAML_RESPONSE_KEY, responses.get(next[0]++), "");
+                Assert.assertEquals(String.valueOf(response.getEntity()), 200, response.getStatus());
+                return response;
+            });
+        });
+    }
+
+    private static long medianCpuTime(Supplier<Response> call) {
+        long[] times = new long[REPEATS];
+        for (int i = 0; i < WARMUP + REPEATS; i++) {
+            outcome.set(null);
+            long start = threads.getCurrentThreadCpuTime();
+            call.get();
+            long elapsed = threads.getCurrentThreadCpuTime() - start;
+            if (i >= WARMUP) times[i - WARMUP] = elapsed;
+        }
+        Arrays.sort(times);
+        return times[REPEATS / 2];
+    }
+
+    private static Response submit(Binding binding, String parameter, String message, String query) {
+        boolean isRequest = GeneralConstants.SAML_REQUEST_KEY.equals(parameter);
+        if (binding == Binding.POST) {
+            request.set(SpidStubs.uriInfo(URI.create(ENDPOINT)));
+            SpidSAMLEndpoint endpoint = SpidStubs.endpoint(session, provider, authSession);
+            return endpoint.postBinding(isRequest ? message : null, isRequest ? null : message, RELAY_STATE);
+        }
+        request.set(SpidStubs.uriInfo(URI.create(ENDPOINT + "?" + parameter + "=" + urlEncode(message)
+            + "&" + GeneralConstants.RELAY_STATE + "=" + RELAY_STATE + query)));
+        SpidSAMLEndpoint endpoint = SpidStubs.endpoint(session, provider, authSession);
+        return endpoint.redirectBinding(isRequest ? message : null, isRequest ? null : message, RELAY_STATE);
+    }
+
+    private static Element element(Document document, String localName) {
+        return (Element) document.getElementsByTagNameNS(JBossSAMLURIConstants.ASSERTION_NSURI.get(), localName).item(0);
+    }
+
+    private static void remove(Element element) {
+        element.getParentNode().removeChild(element);
+    }
+
+    private static void removeChildren(Element element) {
+        while (element.getFirstChild() != null) {
+            element.removeChild(element.getFirstChild());
+        }
+    }
+
+    /**
+     * Nine levels of ten-fold entity expansion, a billion characters if expanded.
+     */
+    private static String entityExpansion() {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?><!DOCTYPE samlp:Response [<!ENTITY e0 \"lol\">");
+        for (int level = 1; level <= 9; level++) {
+            xml.append("<!ENTITY e").append(level).append(" \"");
+            for (int i = 0; i < 10; i++) {
+                xml.append("&e").append(level - 1).append(';');
+            }
+            xml.append("\">");
+        }
+        return xml.append("]><samlp:Response xmlns:samlp=\"").append(JBossSAMLURIConstants.PROTOCOL_NSURI.get())
+            .append("\">&e9;</samlp:Response>").toString();
+    }
+
+    private static String externalEntity() {
+        return "<?xml version=\"1.0\"?><!DOCTYPE samlp:Response [<!ENTITY x SYSTEM \"file:///etc/passwd\">]>"
+            + "<samlp:Response xmlns:samlp=\"" + JBossSAMLURIConstants.PROTOCOL_NSURI.get() + "\">&x;</samlp:Response>";
+    }
+
+    private static String encode(Document document) {
+        return SpidResponseGenerator.encode(document);
+    }
+
+    private static String toString(Document document) {
+        try {
+            return DocumentUtil.getDocumentAsString(document);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String base64(String xml) {
+        return Base64.getEncoder().encodeToString(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes the message as for the Redirect binding: raw DEFLATE, then base64.
+     */
+    private static String deflate(String xml) {
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(deflated, new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+            out.write(xml.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return Base64.getEncoder().encodeToString(deflated.toByteArray());
+    }
+
+    private static String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
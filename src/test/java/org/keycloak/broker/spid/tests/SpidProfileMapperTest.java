@@ -0,0 +1,60 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.spid.SpidFiscalNumberIndex;
+import org.keycloak.broker.spid.mappers.SpidProfileMapper;
+import org.keycloak.broker.spid.tests.support.SpidMapperFixture;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.UserModel;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SpidProfileMapperTest {
+
+    private final SpidProfileMapper mapper = new SpidProfileMapper();
+    private final SpidMapperFixture fixture = new SpidMapperFixture();
+
+    @Test
+    public void mapsAndNormalizesInOnePass() {
+        Map<String, String> config = new HashMap<>();
+        config.put(SpidProfileMapper.ATTRIBUTES, "familyName=lastName\nfiscalNumber=fiscalNumber\ndateOfBirth=birthDate");
+        config.put(SpidProfileMapper.DATE_OF_BIRTH_FORMAT, "dd/MM/yyyy");
+        IdentityProviderMapperModel mapperModel = new IdentityProviderMapperModel();
+        mapperModel.setId("spid-profile");
+        mapperModel.setIdentityProviderMapper(SpidProfileMapper.PROVIDER_ID);
+        mapperModel.setConfig(config);
+
+        update(mapperModel, context("TINIT-RSSMRA80A01H501U", "1980-01-31"));
+        Assert.assertEquals("Rossi", fixture.fields.get(UserModel.LAST_NAME));
+        Assert.assertEquals(Collections.singletonList("RSSMRA80A01H501U"), fixture.attributes.get("fiscalNumber"));
+        Assert.assertEquals(Collections.singletonList("31/01/1980"), fixture.attributes.get("birthDate"));
+        Assert.assertEquals(3, fixture.writes.size());
+        Assert.assertSame(fixture.user, SpidFiscalNumberIndex.getUser(fixture.session, fixture.realm, "rssmra80a01h501u"));
+
+        fixture.writes.clear();
+        update(mapperModel, context("TINIT-RSSMRA80A01H501U", "1980-01-31"));
+        Assert.assertEquals(Collections.emptyList(), fixture.writes);
+
+        // A date that cannot be parsed keeps the stored one
+        update(mapperModel, context("TINIT-RSSMRA80A01H501U", "31/01/1980"));
+        Assert.assertEquals(Collections.emptyList(), fixture.writes);
+        Assert.assertEquals(Collections.singletonList("31/01/1980"), fixture.attributes.get("birthDate"));
+    }
+
+    private void update(IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        mapper.updateBrokeredUser(fixture.session, fixture.realm, fixture.user, mapperModel, context);
+    }
+
+    private static BrokeredIdentityContext context(String fiscalNumber, String dateOfBirth) {
+        Map<String, String> spidAttributes = new LinkedHashMap<>();
+        spidAttributes.put("familyName", "Rossi");
+        spidAttributes.put("fiscalNumber", fiscalNumber);
+        spidAttributes.put("dateOfBirth", dateOfBirth);
+        return SpidMapperFixture.context(spidAttributes);
+    }
+}
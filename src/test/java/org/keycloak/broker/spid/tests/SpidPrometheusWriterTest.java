@@ -0,0 +1,91 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.spid.metrics.SpidMetricsRegistry;
+import org.keycloak.broker.spid.metrics.SpidPhase;
+import org.keycloak.broker.spid.metrics.SpidPrometheusWriter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class SpidPrometheusWriterTest {
+
+    @Test
+    public void writesHistogramBuckets() {
+        SpidMetricsRegistry registry = new SpidMetricsRegistry();
+        registry.recordLogin("spid-idp", 100_000L);
+        registry.recordLogin("spid-idp", 3_000_000_000L);
+
+        List<String> lines = samples(SpidPrometheusWriter.write(registry), "spid_login_request_seconds");
+        Assert.assertEquals(Arrays.asList(
+            "spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"0.0005\"} 1",
+            "spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"0.001\"} 1",
+            "spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"0.0025\"} 1",
+            "spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"0.005\"} 1",
+            "spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"0.01\"} 1",
+            "spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"0.025\"} 1",
+            "spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"0.05\"} 1",
+            "spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"0.1\"} 1",
+            "spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"0.25\"} 1",
+            "spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"0.5\"} 1",
+            "spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"1\"} 1",
+            "spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"2.5\"} 1",
+            "spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"5\"} 2",
+            "spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"10\"} 2",
+            "spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"+Inf\"} 2",
+            "spid_login_request_seconds_sum{alias=\"spid-idp\"} 3.0001",
+            "spid_login_request_seconds_count{alias=\"spid-idp\"} 2"), lines);
+    }
+
+    @Test
+    public void countsValuesInBucketsStraddlingABoundary() {
+        SpidMetricsRegistry registry = new SpidMetricsRegistry();
+        // Both fall in the same histogram bucket, which spans 0.001
+        registry.recordLogin("spid-idp", 990_000L);
+        registry.recordLogin("spid-idp", 1_000_000L);
+
+        List<String> lines = samples(SpidPrometheusWriter.write(registry), "spid_login_request_seconds_bucket");
+        Assert.assertEquals("spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"0.0005\"} 0", lines.get(0));
+        Assert.assertEquals("spid_login_request_seconds_bucket{alias=\"spid-idp\",le=\"0.001\"} 2", lines.get(1));
+    }
+
+    @Test
+    public void writesPhaseLabels() {
+        SpidMetricsRegistry registry = new SpidMetricsRegistry();
+        registry.recordPhase("spid-idp", "post", SpidPhase.values()[0], 1_000_000L);
+
+        String prefix = "spid_response_phase_seconds_count{alias=\"spid-idp\",binding=\"post\",phase=\""
+            + SpidPhase.values()[0].getName() + "\"} ";
+        Assert.assertEquals(Arrays.asList(prefix + "1"),
+            samples(SpidPrometheusWriter.write(registry), "spid_response_phase_seconds_count"));
+    }
+
+    @Test
+    public void escapesLabelValues() {
+        SpidMetricsRegistry registry = new SpidMetricsRegistry();
+        registry.increment(SpidMetricsRegistry.RESPONSES, "idp \"quoted\" \\ back\nslash", "success");
+
+        Assert.assertEquals(Arrays.asList("spid_responses_total{alias=\"idp \\\"quoted\\\" \\\\ back\\nslash\",outcome=\"success\"} 1"),
+            samples(SpidPrometheusWriter.write(registry), "spid_responses_total"));
+    }
+
+    @Test
+    public void writesHeadersOfEmptyMetrics() {
+        String output = SpidPrometheusWriter.write(new SpidMetricsRegistry());
+
+        Assert.assertTrue(output.contains("# TYPE spid_login_request_seconds histogram\n"));
+        Assert.assertTrue(output.contains("# TYPE spid_response_phase_seconds histogram\n"));
+        Assert.assertTrue(output.contains("# TYPE spid_responses_total counter\n"));
+        Assert.assertTrue(output.contains("# TYPE spid_backchannel_logouts_total counter\n"));
+        Assert.assertTrue(output.endsWith("\n"));
+        Assert.assertEquals(0, output.split("\n").length - samples(output, "#").size());
+    }
+
+    private static List<String> samples(String output, String prefix) {
+        return Arrays.stream(output.split("\n"))
+            .filter(line -> line.startsWith(prefix))
+            .collect(Collectors.toList());
+    }
+}
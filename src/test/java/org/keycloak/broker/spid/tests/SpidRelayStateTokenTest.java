@@ -0,0 +1,145 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.spid.SpidRelayStateToken;
+import org.keycloak.broker.spid.tests.support.SpidStubs;
+import org.keycloak.common.util.Time;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyStatus;
+import org.keycloak.crypto.KeyType;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+public class SpidRelayStateTokenTest {
+
+    private static final String REQUEST_ID = "_request-1";
+    private static final String STATE = "tab-id.client-id.code";
+
+    private final RealmModel realm = SpidStubs.realm();
+    private final List<KeyWrapper> keys = new ArrayList<>();
+    private final KeycloakSession session = session();
+
+    @After
+    public void resetTime() {
+        Time.setOffset(0);
+    }
+
+    @Test
+    public void acceptsItsOwnToken() {
+        keys.add(hmacKey("current", KeyStatus.ACTIVE));
+        SpidRelayStateToken token = SpidRelayStateToken.parse(SpidRelayStateToken.encode(session, realm, REQUEST_ID, STATE));
+
+        Assert.assertNotNull(token);
+        Assert.assertEquals(STATE, token.getState());
+        Assert.assertTrue(token.isValid(session, realm, REQUEST_ID, 60));
+    }
+
+    @Test
+    public void acceptsTokensOfPassiveKeys() {
+        keys.add(hmacKey("previous", KeyStatus.ACTIVE));
+        String relayState = SpidRelayStateToken.encode(session, realm, REQUEST_ID, STATE);
+        keys.set(0, hmacKey("previous", KeyStatus.PASSIVE));
+        keys.add(0, hmacKey("current", KeyStatus.ACTIVE));
+
+        Assert.assertTrue(SpidRelayStateToken.parse(relayState).isValid(session, realm, REQUEST_ID, 60));
+    }
+
+    @Test
+    public void rejectsAnotherRequestId() {
+        keys.add(hmacKey("current", KeyStatus.ACTIVE));
+        SpidRelayStateToken token = SpidRelayStateToken.parse(SpidRelayStateToken.encode(session, realm, REQUEST_ID, STATE));
+
+        Assert.assertFalse(token.isValid(session, realm, "_request-2", 60));
+        Assert.assertFalse(token.isValid(session, realm, null, 60));
+    }
+
+    @Test
+    public void rejectsTamperedTokens() {
+        keys.add(hmacKey("current", KeyStatus.ACTIVE));
+        String relayState = SpidRelayStateToken.encode(session, realm, REQUEST_ID, STATE);
+
+        Assert.assertFalse(SpidRelayStateToken.parse(relayState + "x").isValid(session, realm, REQUEST_ID, 60));
+
+        String[] parts = relayState.split("\\.", 4);
+        String otherIssuedAt = parts[0] + "." + Long.toString(Long.parseLong(parts[1], 36) - 1, 36) + "." + parts[2] + "." + parts[3];
+        Assert.assertFalse(SpidRelayStateToken.parse(otherIssuedAt).isValid(session, realm, REQUEST_ID, 60));
+
+        char last = parts[2].charAt(parts[2].length() - 2);
+        String otherMac = parts[2].substring(0, parts[2].length() - 2) + (last == 'A' ? 'B' : 'A') + parts[2].charAt(parts[2].length() - 1);
+        Assert.assertFalse(SpidRelayStateToken.parse(parts[0] + "." + parts[1] + "." + otherMac + "." + parts[3])
+            .isValid(session, realm, REQUEST_ID, 60));
+
+        keys.set(0, hmacKey("other", KeyStatus.ACTIVE));
+        Assert.assertFalse(SpidRelayStateToken.parse(relayState).isValid(session, realm, REQUEST_ID, 60));
+    }
+
+    @Test
+    public void rejectsDisabledKeys() {
+        keys.add(hmacKey("current", KeyStatus.ACTIVE));
+        String relayState = SpidRelayStateToken.encode(session, realm, REQUEST_ID, STATE);
+        keys.set(0, hmacKey("current", KeyStatus.DISABLED));
+
+        Assert.assertFalse(SpidRelayStateToken.parse(relayState).isValid(session, realm, REQUEST_ID, 60));
+    }
+
+    @Test
+    public void rejectsExpiredTokens() {
+        keys.add(hmacKey("current", KeyStatus.ACTIVE));
+        SpidRelayStateToken token = SpidRelayStateToken.parse(SpidRelayStateToken.encode(session, realm, REQUEST_ID, STATE));
+
+        Time.setOffset(61);
+        Assert.assertFalse(token.isValid(session, realm, REQUEST_ID, 60));
+
+        // Issued in the future
+        Time.setOffset(-10);
+        Assert.assertFalse(token.isValid(session, realm, REQUEST_ID, 60));
+    }
+
+    @Test
+    public void parsesOnlyItsOwnFormat() {
+        Assert.assertNull(SpidRelayStateToken.parse(null));
+        Assert.assertNull(SpidRelayStateToken.parse(STATE));
+        Assert.assertNull(SpidRelayStateToken.parse("s2.abc.def." + STATE));
+        Assert.assertNull(SpidRelayStateToken.parse("s1.abc"));
+        Assert.assertNull(SpidRelayStateToken.parse("s1.!!.AAAA." + STATE));
+    }
+
+    private KeycloakSession session() {
+        Map<String, Function<Object[], Object>> keyAnswers = new HashMap<>();
+        keyAnswers.put("getActiveKey", args -> keys.stream()
+            .filter(key -> key.getStatus().isActive())
+            .findFirst().orElseThrow(IllegalStateException::new));
+        keyAnswers.put("getKeysStream", args -> new ArrayList<>(keys).stream());
+        KeyManager keyManager = SpidStubs.proxy(KeyManager.class, keyAnswers);
+
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("keys", args -> keyManager);
+        return SpidStubs.proxy(KeycloakSession.class, answers);
+    }
+
+    private static KeyWrapper hmacKey(String kid, KeyStatus status) {
+        KeyWrapper key = new KeyWrapper();
+        key.setProviderId("spid-stub");
+        key.setKid(kid);
+        key.setAlgorithm(Algorithm.HS256);
+        key.setType(KeyType.OCT);
+        key.setUse(KeyUse.SIG);
+        key.setStatus(status);
+        key.setSecretKey(new SecretKeySpec(("secret of " + kid).getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        return key;
+    }
+}
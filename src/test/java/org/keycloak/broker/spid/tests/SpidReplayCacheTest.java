@@ -0,0 +1,85 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.spid.SpidReplayCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SpidReplayCacheTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    @Test
+    public void rejectsReplayUntilExpiry() {
+        SpidReplayCache cache = new SpidReplayCache(new SpidReplayCache.LocalStore(100, 1000, 8, now::get));
+
+        Assert.assertTrue(cache.consume(null, "https://idp", "_a1", now.get() + 5000));
+        Assert.assertFalse(cache.consume(null, "https://idp", "_a1", now.get() + 5000));
+        Assert.assertTrue(cache.consume(null, "https://other-idp", "_a1", now.get() + 5000));
+
+        now.addAndGet(6000);
+        Assert.assertTrue(cache.consume(null, "https://idp", "_a1", now.get() + 5000));
+    }
+
+    @Test
+    public void sweepsExpiredEntries() {
+        SpidReplayCache.LocalStore store = new SpidReplayCache.LocalStore(100, 1000, 8, now::get);
+
+        store.putIfAbsent(null, "short", now.get() + 2000);
+        // Beyond the span of the wheel, must survive the first turn
+        store.putIfAbsent(null, "long", now.get() + 20000);
+        Assert.assertEquals(2, store.size());
+
+        now.addAndGet(3000);
+        store.putIfAbsent(null, "tick", now.get() + 1000);
+        Assert.assertEquals(2, store.size());
+        Assert.assertFalse(store.putIfAbsent(null, "long", now.get() + 20000));
+
+        now.addAndGet(10000);
+        store.putIfAbsent(null, "tick2", now.get() + 1000);
+        Assert.assertEquals(2, store.size());
+        Assert.assertFalse(store.putIfAbsent(null, "long", now.get() + 20000));
+
+        now.addAndGet(8000);
+        store.putIfAbsent(null, "tick3", now.get() + 1000);
+        Assert.assertEquals(1, store.size());
+    }
+
+    @Test
+    public void evictsEntryClosestToExpiryWhenFull() {
+        SpidReplayCache.LocalStore store = new SpidReplayCache.LocalStore(2, 1000, 8, now::get);
+
+        Assert.assertTrue(store.putIfAbsent(null, "a", now.get() + 5000));
+        Assert.assertTrue(store.putIfAbsent(null, "b", now.get() + 3000));
+        Assert.assertTrue(store.putIfAbsent(null, "c", now.get() + 7000));
+        Assert.assertEquals(2, store.size());
+        Assert.assertFalse(store.putIfAbsent(null, "a", now.get() + 5000));
+        Assert.assertFalse(store.putIfAbsent(null, "c", now.get() + 7000));
+    }
+
+    @Test
+    public void evictsEntriesBeyondTheWheelWhenFull() {
+        SpidReplayCache.LocalStore store = new SpidReplayCache.LocalStore(2, 1000, 8, now::get);
+
+        Assert.assertTrue(store.putIfAbsent(null, "a", now.get() + 30000));
+        Assert.assertTrue(store.putIfAbsent(null, "b", now.get() + 20000));
+        Assert.assertTrue(store.putIfAbsent(null, "c", now.get() + 40000));
+        Assert.assertEquals(2, store.size());
+        Assert.assertFalse(store.putIfAbsent(null, "a", now.get() + 30000));
+        Assert.assertFalse(store.putIfAbsent(null, "c", now.get() + 40000));
+    }
+
+    @Test
+    public void keepsTheNewestEntriesUnderSustainedEviction() {
+        SpidReplayCache.LocalStore store = new SpidReplayCache.LocalStore(4, 1000, 8, now::get);
+
+        for (int i = 0; i < 10_000; i++) {
+            Assert.assertTrue(store.putIfAbsent(null, "k" + i, now.get() + 1000 + i));
+        }
+        Assert.assertEquals(4, store.size());
+        for (int i = 9_996; i < 10_000; i++) {
+            Assert.assertFalse(store.putIfAbsent(null, "k" + i, now.get() + 1000 + i));
+        }
+    }
+}
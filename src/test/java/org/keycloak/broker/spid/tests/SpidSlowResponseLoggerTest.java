@@ -0,0 +1,112 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.spid.metrics.SpidPhase;
+import org.keycloak.broker.spid.metrics.SpidPhaseTimer;
+import org.keycloak.broker.spid.metrics.SpidSlowResponseLogger;
+import org.keycloak.broker.spid.tests.support.SpidStubs;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SpidSlowResponseLoggerTest {
+
+    private static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+    private final BlockingQueue<String> records = new LinkedBlockingQueue<>();
+    private SpidSlowResponseLogger slowResponseLogger;
+
+    @After
+    public void closeLogger() {
+        if (slowResponseLogger != null) {
+            slowResponseLogger.close();
+        }
+    }
+
+    @Test
+    public void formatsMeasuredPhases() {
+        long[] phaseNanos = new long[SpidPhase.values().length];
+        Arrays.fill(phaseNanos, -1L);
+        phaseNanos[SpidPhase.TOTAL.ordinal()] = 2_500_000L;
+        phaseNanos[SpidPhase.DECODE.ordinal()] = 500_000L;
+        phaseNanos[SpidPhase.SIGNATURE.ordinal()] = 1_000_000L;
+        SpidSlowResponseLogger.Sample sample = new SpidSlowResponseLogger.Sample("success", "abc", 2, 1, 3, false);
+
+        Assert.assertEquals("Slow SPID response: idp=spid-idp binding=POST outcome=success total_ms=2.500"
+                + " decode_ms=0.500 signature_ms=1.000 payload_length=3 signatures=2 signature_verifications=1"
+                + " candidate_keys=3 encrypted=false sha256=" + ABC_SHA256,
+            SpidSlowResponseLogger.format("spid-idp", "POST", phaseNanos, sample, 0));
+    }
+
+    @Test
+    public void formatsSuppressedCountAndMissingPayload() {
+        long[] phaseNanos = new long[SpidPhase.values().length];
+        Arrays.fill(phaseNanos, -1L);
+        phaseNanos[SpidPhase.TOTAL.ordinal()] = 3_000_000_000L;
+        SpidSlowResponseLogger.Sample sample = new SpidSlowResponseLogger.Sample("invalid_signature", null, 0, 0, 0, true);
+
+        Assert.assertEquals("Slow SPID response: idp=spid-idp binding=REDIRECT outcome=invalid_signature total_ms=3000.000"
+                + " payload_length=0 signatures=0 signature_verifications=0 candidate_keys=0 encrypted=true sha256=-"
+                + " suppressed=4",
+            SpidSlowResponseLogger.format("spid-idp", "REDIRECT", phaseNanos, sample, 4));
+    }
+
+    @Test
+    public void skipsFastResponses() {
+        slowResponseLogger = new SpidSlowResponseLogger(60_000, 10, now::get, records::add);
+
+        Assert.assertFalse(slowResponseLogger.isSlow(timer()));
+    }
+
+    @Test
+    public void limitsRecordsPerMinuteAndReportsSuppressed() throws Exception {
+        slowResponseLogger = new SpidSlowResponseLogger(1, 2, now::get, records::add);
+        SpidPhaseTimer timer = slowTimer();
+
+        slowResponseLogger.sample(timer, sample());
+        slowResponseLogger.sample(timer, sample());
+        String first = records.poll(5, TimeUnit.SECONDS);
+        String second = records.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(first);
+        Assert.assertNotNull(second);
+        Assert.assertFalse(first.contains("suppressed="));
+        Assert.assertFalse(second.contains("suppressed="));
+
+        // Over the rate for this minute
+        slowResponseLogger.sample(timer, sample());
+        slowResponseLogger.sample(timer, sample());
+        Assert.assertNull(records.poll(100, TimeUnit.MILLISECONDS));
+
+        now.addAndGet(60_000);
+        slowResponseLogger.sample(timer, sample());
+        String next = records.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(next);
+        Assert.assertTrue(next, next.endsWith(" suppressed=2"));
+
+        slowResponseLogger.sample(timer, sample());
+        String last = records.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(last);
+        Assert.assertFalse(last, last.contains("suppressed="));
+    }
+
+    private static SpidPhaseTimer timer() {
+        return SpidPhaseTimer.start(SpidStubs.proxy(KeycloakSession.class), "spid-idp", "POST");
+    }
+
+    private static SpidPhaseTimer slowTimer() throws InterruptedException {
+        SpidPhaseTimer timer = timer();
+        Thread.sleep(5);
+        return timer;
+    }
+
+    private static SpidSlowResponseLogger.Sample sample() {
+        return new SpidSlowResponseLogger.Sample("success", "abc", 1, 1, 1, false);
+    }
+}
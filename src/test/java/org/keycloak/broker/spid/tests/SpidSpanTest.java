@@ -0,0 +1,55 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.spid.tests.support.InMemorySpidSpanExporter;
+import org.keycloak.broker.spid.tracing.SpidSpan;
+import org.keycloak.broker.spid.tracing.SpidSpanExporter;
+
+import java.util.List;
+
+public class SpidSpanTest {
+
+    @Test
+    public void callbackJoinsTraceOfLogin() {
+        InMemorySpidSpanExporter exporter = new InMemorySpidSpanExporter();
+
+        SpidSpan login = SpidSpan.start(exporter, "spid.login");
+        login.correlate("ID_0f6bd6b6-3c1a-4b0e-9d2a-6a1c5e0d2f11");
+        login.end();
+
+        SpidSpan response = SpidSpan.start(exporter, "spid.response");
+        long start = System.nanoTime();
+        response.addChild("parse", start, System.nanoTime());
+        response.linkTo("ID_0f6bd6b6-3c1a-4b0e-9d2a-6a1c5e0d2f11");
+        SpidSpan signature = response.startChild("signature");
+        response.end();
+
+        List<SpidSpan> spans = exporter.getSpans();
+        Assert.assertEquals(4, spans.size());
+        Assert.assertSame(login, spans.get(0));
+        Assert.assertSame(response, spans.get(3));
+
+        Assert.assertEquals(32, login.getTraceId().length());
+        Assert.assertEquals(16, login.getSpanId().length());
+        for (SpidSpan span : spans) {
+            Assert.assertEquals(login.getTraceId(), span.getTraceId());
+        }
+        Assert.assertEquals(response.getSpanId(), spans.get(1).getParentSpanId());
+        Assert.assertEquals(response.getSpanId(), signature.getParentSpanId());
+        Assert.assertTrue(signature.getDurationNanos() >= 0);
+
+        Assert.assertEquals(1, response.getLinks().size());
+        Assert.assertEquals(login.getSpanId(), response.getLinks().get(0).getSpanId());
+    }
+
+    @Test
+    public void noopWithoutExporter() {
+        SpidSpan span = SpidSpan.start((SpidSpanExporter) null, "spid.login");
+        Assert.assertSame(SpidSpan.NOOP, span);
+        Assert.assertSame(SpidSpan.NOOP, span.startChild("parse"));
+        span.correlate("ID_1");
+        span.end();
+        Assert.assertFalse(span.isRecording());
+    }
+}
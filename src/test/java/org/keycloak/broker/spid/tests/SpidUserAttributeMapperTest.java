@@ -0,0 +1,72 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.saml.mappers.UserAttributeMapper;
+import org.keycloak.broker.spid.mappers.SpidUserAttributeMapper;
+import org.keycloak.broker.spid.tests.support.SpidMapperFixture;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.UserModel;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SpidUserAttributeMapperTest {
+
+    private final SpidUserAttributeMapper mapper = new SpidUserAttributeMapper();
+    private final SpidMapperFixture fixture = new SpidMapperFixture();
+
+    @Test
+    public void writesOnlyChangedAttributes() {
+        Map<String, String> spidAttributes = new LinkedHashMap<>();
+        spidAttributes.put("fiscalNumber", "TINIT-RSSMRA80A01H501U");
+        spidAttributes.put("dateOfBirth", "1980-01-01");
+        spidAttributes.put("name", "Mario");
+        spidAttributes.put("email", "Mario.Rossi@example.org");
+
+        login(spidAttributes);
+        Assert.assertEquals(4, fixture.writes.size());
+        Assert.assertEquals(Collections.singletonList("1980-01-01"), fixture.attributes.get("dateOfBirth"));
+
+        // A returning user with the same attributes, the email is stored in lower case
+        fixture.writes.clear();
+        login(spidAttributes);
+        Assert.assertEquals(Collections.emptyList(), fixture.writes);
+
+        fixture.writes.clear();
+        spidAttributes.put("name", "Maria");
+        spidAttributes.remove("dateOfBirth");
+        login(spidAttributes);
+        Assert.assertEquals(2, fixture.writes.size());
+        Assert.assertTrue(fixture.writes.contains("setFirstName"));
+        Assert.assertTrue(fixture.writes.contains("removeAttribute"));
+        Assert.assertFalse(fixture.attributes.containsKey("dateOfBirth"));
+    }
+
+    private void login(Map<String, String> spidAttributes) {
+        BrokeredIdentityContext context = SpidMapperFixture.context(spidAttributes);
+
+        update(mapperModel("fiscalNumber", "fiscalNumber"), context);
+        update(mapperModel("dateOfBirth", "dateOfBirth"), context);
+        update(mapperModel("name", UserModel.FIRST_NAME), context);
+        update(mapperModel("email", UserModel.EMAIL), context);
+    }
+
+    private void update(IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        mapper.updateBrokeredUser(fixture.session, fixture.realm, fixture.user, mapperModel, context);
+    }
+
+    private static IdentityProviderMapperModel mapperModel(String attributeName, String userAttribute) {
+        Map<String, String> config = new HashMap<>();
+        config.put(UserAttributeMapper.ATTRIBUTE_NAME, attributeName);
+        config.put(UserAttributeMapper.USER_ATTRIBUTE, userAttribute);
+
+        IdentityProviderMapperModel mapperModel = new IdentityProviderMapperModel();
+        mapperModel.setIdentityProviderMapper(SpidUserAttributeMapper.PROVIDER_ID);
+        mapperModel.setConfig(config);
+        return mapperModel;
+    }
+}
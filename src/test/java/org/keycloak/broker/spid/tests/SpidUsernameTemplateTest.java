@@ -0,0 +1,46 @@
+package org.keycloak.broker.spid.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.spid.mappers.SpidUsernameTemplate;
+import org.keycloak.broker.spid.tests.support.SpidMapperFixture;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SpidUsernameTemplateTest {
+
+    @Test
+    public void evaluatesCompiledSegments() {
+        BrokeredIdentityContext context = context();
+
+        Assert.assertEquals("spid-idp.rssmra80a01h501u",
+            SpidUsernameTemplate.compile("${ALIAS}.${ATTRIBUTE.fiscalNumber | stripprefix | lowercase}").evaluate(context));
+        Assert.assertEquals("TINIT-RSSMRA80A01H501U", SpidUsernameTemplate.compile("${ATTRIBUTE.fiscalNumber}").evaluate(context));
+        Assert.assertEquals("mario.rossi", SpidUsernameTemplate.compile("${ATTRIBUTE.email | localpart | lowercase}").evaluate(context));
+        Assert.assertEquals("Mario.Rossi@example.org", SpidUsernameTemplate.compile("${ATTRIBUTE.email | stripprefix}").evaluate(context));
+        // Values are appended as they are, not as regex replacements
+        Assert.assertEquals("user-$1\\x", SpidUsernameTemplate.compile("user-${ATTRIBUTE.spidCode}").evaluate(context));
+        Assert.assertEquals("--", SpidUsernameTemplate.compile("-${ATTRIBUTE.missing}-").evaluate(context));
+        Assert.assertEquals("prefix-${ALIAS", SpidUsernameTemplate.compile("prefix-${ALIAS").evaluate(context));
+    }
+
+    @Test
+    public void keepsUnknownAndEmptyVariables() {
+        BrokeredIdentityContext context = context();
+
+        Assert.assertEquals("-${OTHER}-", SpidUsernameTemplate.compile("-${OTHER}-").evaluate(context));
+        Assert.assertEquals("${OTHER | lowercase}.spid-idp",
+            SpidUsernameTemplate.compile("${OTHER | lowercase}.${ALIAS}").evaluate(context));
+        Assert.assertEquals("user-${}", SpidUsernameTemplate.compile("user-${}").evaluate(context));
+    }
+
+    private static BrokeredIdentityContext context() {
+        Map<String, String> spidAttributes = new LinkedHashMap<>();
+        spidAttributes.put("fiscalNumber", "TINIT-RSSMRA80A01H501U");
+        spidAttributes.put("email", "Mario.Rossi@example.org");
+        spidAttributes.put("spidCode", "$1\\x");
+        return SpidMapperFixture.context(spidAttributes);
+    }
+}
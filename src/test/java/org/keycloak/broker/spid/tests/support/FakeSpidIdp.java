@@ -0,0 +1,315 @@
+package org.keycloak.broker.spid.tests.support;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.keycloak.common.util.PemUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A local SPID IdP, in the spirit of spid-saml-check, that logs users in without asking anything.
+ *
+ * <ul>
+ * <li>{@code /metadata}: the IdP metadata, to be imported in the SPID identity provider;</li>
+ * <li>{@code /sso}: answers AuthnRequests (HTTP-Redirect or HTTP-POST) with a signed SPID response
+ * for the user given in the {@code user} parameter, posted to the requested
+ * AssertionConsumerServiceURL;</li>
+ * <li>{@code /logout?user=}: issues a signed LogoutRequest for the last session of the user;</li>
+ * <li>{@code /slo}: answers the LogoutRequests of the SP and accepts its LogoutResponses.</li>
+ * </ul>
+ *
+ * Users are numbers: user {@code n} has fiscal number {@code TINIT-LOAD} followed by {@code n} on
+ * twelve digits. Signatures of the SP messages are not checked.
+ */
+public final class FakeSpidIdp implements Closeable {
+
+    public static final String USER_PARAM = "user";
+    public static final String LOGGED_OUT = "SPID logout complete";
+
+    private final KeyPair keys;
+    private final X509Certificate certificate;
+    private final ConcurrentMap<String, Session> sessionsByUser = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Session> sessionsByIndex = new ConcurrentHashMap<>();
+    private final AtomicLong logins = new AtomicLong();
+    private final AtomicLong logouts = new AtomicLong();
+    private HttpServer server;
+    private ExecutorService executor;
+    private String baseUrl;
+
+    private static final class Session {
+        private final String user;
+        private final String nameId = "_" + UUID.randomUUID();
+        private final String sessionIndex = "_" + UUID.randomUUID();
+        private final String spEndpoint;
+
+        private Session(String user, String spEndpoint) {
+            this.user = user;
+            this.spEndpoint = spEndpoint;
+        }
+    }
+
+    public FakeSpidIdp(KeyPair keys, X509Certificate certificate) {
+        this.keys = keys;
+        this.certificate = certificate;
+    }
+
+    public FakeSpidIdp start(InetSocketAddress address, int threads) throws IOException {
+        server = HttpServer.create(address, 256);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/metadata", exchange -> handle(exchange, this::metadata));
+        server.createContext("/sso", exchange -> handle(exchange, this::login));
+        server.createContext("/logout", exchange -> handle(exchange, this::logout));
+        server.createContext("/slo", exchange -> handle(exchange, this::singleLogout));
+        server.start();
+        baseUrl = "http://" + address.getHostString() + ":" + server.getAddress().getPort();
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public String getEntityId() {
+        return baseUrl;
+    }
+
+    public long getLogins() {
+        return logins.get();
+    }
+
+    public long getLogouts() {
+        return logouts.get();
+    }
+
+    public static String fiscalNumber(String user) {
+        return String.format("TINIT-LOAD%012d", Long.parseLong(user));
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange, Map<String, String> params) throws Exception;
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            Map<String, String> params = parseForm(exchange.getRequestURI().getRawQuery());
+            if ("POST".equals(exchange.getRequestMethod())) {
+                params.putAll(parseForm(new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8)));
+            }
+            handler.handle(exchange, params);
+        } catch (Exception e) {
+            send(exchange, 400, "text/plain", e.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void metadata(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String redirect = "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect";
+        String post = "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST";
+        StringBuilder xml = new StringBuilder(4096);
+        xml.append("<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\" entityID=\"")
+            .append(getEntityId()).append("\">")
+            .append("<md:IDPSSODescriptor WantAuthnRequestsSigned=\"true\" protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">")
+            .append("<md:KeyDescriptor use=\"signing\"><ds:KeyInfo><ds:X509Data><ds:X509Certificate>")
+            .append(PemUtils.encodeCertificate(certificate))
+            .append("</ds:X509Certificate></ds:X509Data></ds:KeyInfo></md:KeyDescriptor>")
+            .append("<md:NameIDFormat>urn:oasis:names:tc:SAML:2.0:nameid-format:transient</md:NameIDFormat>");
+        for (String binding : new String[] { post, redirect }) {
+            xml.append("<md:SingleLogoutService Binding=\"").append(binding).append("\" Location=\"").append(baseUrl).append("/slo\"/>");
+        }
+        for (String binding : new String[] { post, redirect }) {
+            xml.append("<md:SingleSignOnService Binding=\"").append(binding).append("\" Location=\"").append(baseUrl).append("/sso\"/>");
+        }
+        xml.append("</md:IDPSSODescriptor></md:EntityDescriptor>");
+        send(exchange, 200, "application/samlmetadata+xml", xml.toString());
+    }
+
+    private void login(HttpExchange exchange, Map<String, String> params) throws Exception {
+        Element request = parseMessage(exchange, params.get("SAMLRequest"));
+        String acs = request.getAttribute("AssertionConsumerServiceURL");
+        if (acs.isEmpty()) {
+            throw new IllegalArgumentException("AuthnRequest without AssertionConsumerServiceURL");
+        }
+
+        String user = params.getOrDefault(USER_PARAM, "0");
+        Session session = new Session(user, acs);
+        Session previous = sessionsByUser.put(user, session);
+        if (previous != null) {
+            sessionsByIndex.remove(previous.sessionIndex);
+        }
+        sessionsByIndex.put(session.sessionIndex, session);
+
+        String response = generator(acs)
+            .requestId(request.getAttribute("ID"))
+            .audience(issuer(request))
+            .nameId(session.nameId)
+            .sessionIndex(session.sessionIndex)
+            .attribute("fiscalNumber", fiscalNumber(user))
+            .attribute("spidCode", "LOAD-" + user)
+            .attribute("email", "user" + user + "@example.org")
+            .generateEncoded();
+        logins.incrementAndGet();
+        sendForm(exchange, acs, "SAMLResponse", response, params.get("RelayState"));
+    }
+
+    private void logout(HttpExchange exchange, Map<String, String> params) throws IOException {
+        Session session = sessionsByUser.remove(params.getOrDefault(USER_PARAM, "0"));
+        if (session == null) {
+            send(exchange, 404, "text/plain", "No session for the user");
+            return;
+        }
+        sessionsByIndex.remove(session.sessionIndex);
+
+        String request = SpidResponseGenerator.encode(generator(session.spEndpoint)
+            .nameId(session.nameId)
+            .sessionIndex(session.sessionIndex)
+            .generateLogoutRequest());
+        sendForm(exchange, session.spEndpoint, "SAMLRequest", request, null);
+    }
+
+    private void singleLogout(HttpExchange exchange, Map<String, String> params) throws Exception {
+        if (params.containsKey("SAMLResponse")) {
+            parseMessage(exchange, params.get("SAMLResponse"));
+            logouts.incrementAndGet();
+            send(exchange, 200, "text/plain", LOGGED_OUT);
+            return;
+        }
+
+        Element request = parseMessage(exchange, params.get("SAMLRequest"));
+        Element sessionIndex = firstChild(request, "SessionIndex");
+        Session session = sessionIndex != null ? sessionsByIndex.remove(sessionIndex.getTextContent()) : null;
+        if (session == null) {
+            throw new IllegalArgumentException("LogoutRequest for an unknown session");
+        }
+        sessionsByUser.remove(session.user, session);
+        logouts.incrementAndGet();
+
+        String response = SpidResponseGenerator.encode(generator(session.spEndpoint).generateLogoutResponse(request.getAttribute("ID")));
+        sendForm(exchange, session.spEndpoint, "SAMLResponse", response, params.get("RelayState"));
+    }
+
+    private SpidResponseGenerator generator(String destination) {
+        return new SpidResponseGenerator(keys, certificate)
+            .issuer(getEntityId())
+            .destination(destination);
+    }
+
+    /**
+     * Decodes a SAML message of either binding: deflated on HTTP-Redirect, plain on HTTP-POST.
+     */
+    private static Element parseMessage(HttpExchange exchange, String encoded) throws Exception {
+        if (encoded == null) {
+            throw new IllegalArgumentException("No SAML message");
+        }
+        byte[] bytes = Base64.getMimeDecoder().decode(encoded);
+        if ("GET".equals(exchange.getRequestMethod())) {
+            bytes = readAll(new InflaterInputStream(new ByteArrayInputStream(bytes), new Inflater(true)));
+        }
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(bytes));
+        return document.getDocumentElement();
+    }
+
+    private static String issuer(Element message) {
+        Element issuer = firstChild(message, "Issuer");
+        return issuer != null ? issuer.getTextContent().trim() : "";
+    }
+
+    private static Element firstChild(Element element, String localName) {
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && localName.equals(node.getLocalName())) {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+
+    private static void sendForm(HttpExchange exchange, String action, String name, String message, String relayState) throws IOException {
+        StringBuilder html = new StringBuilder(message.length() + 512);
+        html.append("<!DOCTYPE html><html><body onload=\"document.forms[0].submit()\">")
+            .append("<form method=\"post\" action=\"").append(escape(action)).append("\">")
+            .append("<input type=\"hidden\" name=\"").append(name).append("\" value=\"").append(message).append("\"/>");
+        if (relayState != null) {
+            html.append("<input type=\"hidden\" name=\"RelayState\" value=\"").append(escape(relayState)).append("\"/>");
+        }
+        html.append("<noscript><input type=\"submit\" value=\"Continue\"/></noscript></form></body></html>");
+        send(exchange, 200, "text/html; charset=utf-8", html.toString());
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    static String escape(String value) {
+        return value.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    static Map<String, String> parseForm(String form) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (form == null || form.isEmpty()) return params;
+
+        for (String pair : form.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+            String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+            params.put(name, value);
+        }
+        return params;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read; (read = in.read(buffer)) > 0; ) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,33 @@
+package org.keycloak.broker.spid.tests.support;
+
+import org.keycloak.broker.spid.tracing.SpidSpan;
+import org.keycloak.broker.spid.tracing.SpidSpanExporter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps the exported spans in memory.
+ */
+public class InMemorySpidSpanExporter implements SpidSpanExporter {
+
+    private final List<SpidSpan> spans = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void export(SpidSpan span) {
+        spans.add(span);
+    }
+
+    public List<SpidSpan> getSpans() {
+        return new ArrayList<>(spans);
+    }
+
+    public void reset() {
+        spans.clear();
+    }
+
+    @Override
+    public void close() {
+    }
+}
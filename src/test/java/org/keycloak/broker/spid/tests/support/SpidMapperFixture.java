@@ -0,0 +1,92 @@
+package org.keycloak.broker.spid.tests.support;
+
+import org.keycloak.broker.provider.BrokeredIdentityContext;
+import org.keycloak.broker.spid.SpidSAMLEndpoint;
+import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.saml.processing.core.saml.v2.util.XMLTimeUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A brokered SPID login and the user it updates, for the tests of the identity provider mappers.
+ *
+ * The login carries a SAML assertion with the given attributes, as the endpoint leaves it in the
+ * context data. The user keeps its attributes and profile fields in memory and records the name of
+ * every write, so that tests can check which changes reach the user store. Emails are stored in
+ * lower case, as Keycloak does.
+ */
+public final class SpidMapperFixture {
+
+    public static final String ALIAS = "spid-idp";
+    public static final String USER_ID = "user-id";
+
+    public final Map<String, List<String>> attributes = new HashMap<>();
+    public final Map<String, String> fields = new HashMap<>();
+    public final List<String> writes = new ArrayList<>();
+    public final UserModel user = user();
+    public final KeycloakSession session = SpidStubs.session(SpidStubs.users(Collections.singletonMap(USER_ID, user)));
+    public final RealmModel realm = SpidStubs.realm();
+
+    /**
+     * A login through the {@link #ALIAS} identity provider whose assertion has one single-valued
+     * attribute per entry, in iteration order.
+     */
+    public static BrokeredIdentityContext context(Map<String, String> spidAttributes) {
+        AttributeStatementType statement = new AttributeStatementType();
+        for (Map.Entry<String, String> spidAttribute : spidAttributes.entrySet()) {
+            AttributeType attribute = new AttributeType(spidAttribute.getKey());
+            attribute.addAttributeValue(spidAttribute.getValue());
+            statement.addAttribute(new AttributeStatementType.ASTChoiceType(attribute));
+        }
+        AssertionType assertion = new AssertionType("_assertion", XMLTimeUtil.getIssueInstant());
+        assertion.addStatement(statement);
+
+        IdentityProviderModel idpConfig = new IdentityProviderModel();
+        idpConfig.setAlias(ALIAS);
+
+        BrokeredIdentityContext context = new BrokeredIdentityContext("_subject");
+        context.setIdpConfig(idpConfig);
+        context.getContextData().put(SpidSAMLEndpoint.SAML_ASSERTION, assertion);
+        return context;
+    }
+
+    private UserModel user() {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getId", args -> USER_ID);
+        answers.put("getAttributes", args -> new HashMap<>(attributes));
+        answers.put("setAttribute", args -> {
+            writes.add("setAttribute");
+            @SuppressWarnings("unchecked")
+            List<String> values = (List<String>) args[1];
+            return attributes.put((String) args[0], values);
+        });
+        answers.put("removeAttribute", args -> {
+            writes.add("removeAttribute");
+            return attributes.remove((String) args[0]);
+        });
+        field(answers, "Email", UserModel.EMAIL);
+        field(answers, "FirstName", UserModel.FIRST_NAME);
+        field(answers, "LastName", UserModel.LAST_NAME);
+        return SpidStubs.proxy(UserModel.class, answers);
+    }
+
+    private void field(Map<String, Function<Object[], Object>> answers, String property, String name) {
+        answers.put("get" + property, args -> fields.get(name));
+        answers.put("set" + property, args -> {
+            writes.add("set" + property);
+            String value = (String) args[0];
+            return fields.put(name, value != null && UserModel.EMAIL.equals(name) ? value.toLowerCase() : value);
+        });
+    }
+}
@@ -0,0 +1,373 @@
+package org.keycloak.broker.spid.tests.support;
+
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+import org.keycloak.saml.common.util.DocumentUtil;
+import org.keycloak.saml.processing.core.util.XMLEncryptionUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import javax.xml.namespace.QName;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Generates SPID login responses as an IdP would send them, for tests and benchmarks: a Success
+ * response carrying the full SPID attribute set, signed at response and/or assertion level and
+ * optionally with an encrypted assertion. The logout requests and responses of the IdP are signed
+ * the same way.
+ *
+ * The adversarial shapes the endpoint has to cope with can be generated too: many certificates in
+ * the signatures, huge attribute values and deeply nested extensions.
+ */
+public final class SpidResponseGenerator {
+
+    public static final String RSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+
+    /**
+     * The SPID attribute set, by attribute name.
+     */
+    public static final Map<String, String> SPID_ATTRIBUTES;
+
+    static {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        attributes.put("spidCode", "SPID-0123456789");
+        attributes.put("name", "Mario");
+        attributes.put("familyName", "Rossi");
+        attributes.put("placeOfBirth", "H501");
+        attributes.put("countyOfBirth", "RM");
+        attributes.put("dateOfBirth", "1980-01-01");
+        attributes.put("gender", "M");
+        attributes.put("companyName", "Rossi S.r.l.");
+        attributes.put("registeredOffice", "Via Roma 1 00100 Roma RM");
+        attributes.put("fiscalNumber", "TINIT-RSSMRA80A01H501U");
+        attributes.put("ivaCode", "VATIT-12345678901");
+        attributes.put("idCard", "CartaIdentita AA0000000 ComuneRoma 2020-01-01 2030-01-01");
+        attributes.put("mobilePhone", "+393331234567");
+        attributes.put("email", "mario.rossi@example.org");
+        attributes.put("address", "Via Roma 1 00100 Roma RM");
+        attributes.put("expirationDate", "2030-01-01");
+        attributes.put("digitalAddress", "mario.rossi@pec.example.org");
+        SPID_ATTRIBUTES = Collections.unmodifiableMap(attributes);
+    }
+
+    private final KeyPair signingKeys;
+    private final List<X509Certificate> certificates = new ArrayList<>();
+    private final Map<String, String> attributes = new LinkedHashMap<>(SPID_ATTRIBUTES);
+    private String requestId = "ID_" + UUID.randomUUID();
+    private String issuer = "https://idp.example.org";
+    private String destination = SpidStubs.BASE_URI + "realms/" + SpidStubs.REALM_ID + "/broker/spid-idp/endpoint";
+    private String audience = SpidStubs.BASE_URI + "realms/" + SpidStubs.REALM_ID;
+    private String nameId = "_" + UUID.randomUUID();
+    private String sessionIndex = "_" + UUID.randomUUID();
+    private boolean signResponse = true;
+    private boolean signAssertion = true;
+    private PublicKey encryptionKey;
+    private int attributeValueSize;
+    private int nestingDepth;
+    private Consumer<Document> edit = document -> { };
+
+    public SpidResponseGenerator(KeyPair signingKeys, X509Certificate certificate) {
+        this.signingKeys = signingKeys;
+        this.certificates.add(certificate);
+    }
+
+    public SpidResponseGenerator requestId(String requestId) {
+        this.requestId = requestId;
+        return this;
+    }
+
+    public SpidResponseGenerator issuer(String issuer) {
+        this.issuer = issuer;
+        return this;
+    }
+
+    public SpidResponseGenerator destination(String destination) {
+        this.destination = destination;
+        return this;
+    }
+
+    public SpidResponseGenerator audience(String audience) {
+        this.audience = audience;
+        return this;
+    }
+
+    public SpidResponseGenerator nameId(String nameId) {
+        this.nameId = nameId;
+        return this;
+    }
+
+    public SpidResponseGenerator sessionIndex(String sessionIndex) {
+        this.sessionIndex = sessionIndex;
+        return this;
+    }
+
+    /**
+     * Overrides the value of one of the SPID attributes, or adds another attribute.
+     */
+    public SpidResponseGenerator attribute(String name, String value) {
+        this.attributes.put(name, value);
+        return this;
+    }
+
+    public SpidResponseGenerator signResponse(boolean signResponse) {
+        this.signResponse = signResponse;
+        return this;
+    }
+
+    public SpidResponseGenerator signAssertion(boolean signAssertion) {
+        this.signAssertion = signAssertion;
+        return this;
+    }
+
+    /**
+     * Encrypts the assertion for the given SP key; {@code null} leaves it in clear.
+     */
+    public SpidResponseGenerator encryptFor(PublicKey encryptionKey) {
+        this.encryptionKey = encryptionKey;
+        return this;
+    }
+
+    /**
+     * Adds certificates to the {@code X509Data} of the signatures, after the signing one.
+     */
+    public SpidResponseGenerator extraCertificates(List<X509Certificate> extraCertificates) {
+        this.certificates.addAll(extraCertificates);
+        return this;
+    }
+
+    /**
+     * Pads every attribute value to at least the given number of characters.
+     */
+    public SpidResponseGenerator attributeValueSize(int attributeValueSize) {
+        this.attributeValueSize = attributeValueSize;
+        return this;
+    }
+
+    /**
+     * Nests the given number of elements in the {@code Extensions} of the response.
+     */
+    public SpidResponseGenerator nestingDepth(int nestingDepth) {
+        this.nestingDepth = nestingDepth;
+        return this;
+    }
+
+    /**
+     * Edits the response before it is signed, e.g. to break one of the SPID rules in an otherwise
+     * valid response.
+     */
+    public SpidResponseGenerator edit(Consumer<Document> edit) {
+        this.edit = edit;
+        return this;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public Document generate() {
+        try {
+            Document document = DocumentUtil.getDocument(toXml());
+            edit.accept(document);
+            Element response = document.getDocumentElement();
+            Element assertion = DocumentUtil.getElement(document, new QName(JBossSAMLURIConstants.ASSERTION_NSURI.get(), "Assertion"));
+
+            if (signAssertion) {
+                sign(assertion);
+            }
+            if (encryptionKey != null) {
+                KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+                keyGenerator.init(128);
+                SecretKey secretKey = keyGenerator.generateKey();
+                XMLEncryptionUtil.encryptElement(new QName(JBossSAMLURIConstants.ASSERTION_NSURI.get(), "Assertion", "saml"),
+                    document, encryptionKey, secretKey, 128,
+                    new QName(JBossSAMLURIConstants.ASSERTION_NSURI.get(), "EncryptedAssertion", "saml"), true);
+            }
+            if (signResponse) {
+                sign(response);
+            }
+            return document;
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not generate the SPID response", e);
+        }
+    }
+
+    /**
+     * The response as the IdP posts it in the {@code SAMLResponse} form parameter.
+     */
+    public String generateEncoded() {
+        return encode(generate());
+    }
+
+    /**
+     * A signed IdP-initiated logout request for the session of the login responses.
+     */
+    public Document generateLogoutRequest() {
+        Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        StringBuilder xml = new StringBuilder(1024);
+        xml.append("<samlp:LogoutRequest xmlns:samlp=\"").append(JBossSAMLURIConstants.PROTOCOL_NSURI.get())
+            .append("\" xmlns:saml=\"").append(JBossSAMLURIConstants.ASSERTION_NSURI.get())
+            .append("\" ID=\"_").append(UUID.randomUUID()).append("\" Version=\"2.0\" IssueInstant=\"").append(now)
+            .append("\" Destination=\"").append(destination).append("\" NotOnOrAfter=\"").append(now.plus(5, ChronoUnit.MINUTES)).append("\">");
+        xml.append("<saml:Issuer Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:entity\" NameQualifier=\"").append(issuer).append("\">")
+            .append(issuer).append("</saml:Issuer>");
+        xml.append("<saml:NameID Format=\"").append(JBossSAMLURIConstants.NAMEID_FORMAT_TRANSIENT.get())
+            .append("\" NameQualifier=\"").append(issuer).append("\">").append(nameId).append("</saml:NameID>");
+        xml.append("<samlp:SessionIndex>").append(sessionIndex).append("</samlp:SessionIndex>");
+        xml.append("</samlp:LogoutRequest>");
+        return signed(xml.toString());
+    }
+
+    /**
+     * A signed Success response to the given logout request of the SP.
+     */
+    public Document generateLogoutResponse(String inResponseTo) {
+        Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        StringBuilder xml = new StringBuilder(1024);
+        xml.append("<samlp:LogoutResponse xmlns:samlp=\"").append(JBossSAMLURIConstants.PROTOCOL_NSURI.get())
+            .append("\" xmlns:saml=\"").append(JBossSAMLURIConstants.ASSERTION_NSURI.get())
+            .append("\" ID=\"_").append(UUID.randomUUID()).append("\" Version=\"2.0\" IssueInstant=\"").append(now)
+            .append("\" Destination=\"").append(destination).append("\" InResponseTo=\"").append(inResponseTo).append("\">");
+        xml.append("<saml:Issuer Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:entity\" NameQualifier=\"").append(issuer).append("\">")
+            .append(issuer).append("</saml:Issuer>");
+        xml.append("<samlp:Status><samlp:StatusCode Value=\"").append(JBossSAMLURIConstants.STATUS_SUCCESS.get()).append("\"/></samlp:Status>");
+        xml.append("</samlp:LogoutResponse>");
+        return signed(xml.toString());
+    }
+
+    /**
+     * Encodes the document as for the POST binding.
+     */
+    public static String encode(Document document) {
+        try {
+            String xml = DocumentUtil.getDocumentAsString(document);
+            return Base64.getEncoder().encodeToString(xml.getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not serialize the SAML document", e);
+        }
+    }
+
+    private Document signed(String xml) {
+        try {
+            Document document = DocumentUtil.getDocument(xml);
+            sign(document.getDocumentElement());
+            return document;
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not generate the SAML document", e);
+        }
+    }
+
+    private String toXml() {
+        Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        Instant notOnOrAfter = now.plus(5, ChronoUnit.MINUTES);
+        String assertionId = "_" + UUID.randomUUID();
+
+        StringBuilder xml = new StringBuilder(4096);
+        xml.append("<samlp:Response xmlns:samlp=\"").append(JBossSAMLURIConstants.PROTOCOL_NSURI.get())
+            .append("\" xmlns:saml=\"").append(JBossSAMLURIConstants.ASSERTION_NSURI.get())
+            .append("\" ID=\"_").append(UUID.randomUUID()).append("\" Version=\"2.0\" IssueInstant=\"").append(now)
+            .append("\" Destination=\"").append(destination).append("\" InResponseTo=\"").append(requestId).append("\">");
+        xml.append("<saml:Issuer Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:entity\">").append(issuer).append("</saml:Issuer>");
+        if (nestingDepth > 0) {
+            xml.append("<samlp:Extensions>");
+            for (int i = 0; i < nestingDepth; i++) {
+                xml.append("<ext:Nested xmlns:ext=\"urn:example:spid:extension\" Level=\"").append(i).append("\">");
+            }
+            for (int i = 0; i < nestingDepth; i++) {
+                xml.append("</ext:Nested>");
+            }
+            xml.append("</samlp:Extensions>");
+        }
+        xml.append("<samlp:Status><samlp:StatusCode Value=\"").append(JBossSAMLURIConstants.STATUS_SUCCESS.get()).append("\"/></samlp:Status>");
+
+        xml.append("<saml:Assertion ID=\"").append(assertionId).append("\" Version=\"2.0\" IssueInstant=\"").append(now).append("\">");
+        xml.append("<saml:Issuer Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:entity\">").append(issuer).append("</saml:Issuer>");
+        xml.append("<saml:Subject>")
+            .append("<saml:NameID Format=\"").append(JBossSAMLURIConstants.NAMEID_FORMAT_TRANSIENT.get())
+            .append("\" NameQualifier=\"").append(issuer).append("\">").append(nameId).append("</saml:NameID>")
+            .append("<saml:SubjectConfirmation Method=\"").append(JBossSAMLURIConstants.SUBJECT_CONFIRMATION_BEARER.get()).append("\">")
+            .append("<saml:SubjectConfirmationData Recipient=\"").append(destination).append("\" InResponseTo=\"").append(requestId)
+            .append("\" NotOnOrAfter=\"").append(notOnOrAfter).append("\"/>")
+            .append("</saml:SubjectConfirmation></saml:Subject>");
+        xml.append("<saml:Conditions NotBefore=\"").append(now).append("\" NotOnOrAfter=\"").append(notOnOrAfter).append("\">")
+            .append("<saml:AudienceRestriction><saml:Audience>").append(audience).append("</saml:Audience></saml:AudienceRestriction>")
+            .append("</saml:Conditions>");
+        xml.append("<saml:AuthnStatement AuthnInstant=\"").append(now).append("\" SessionIndex=\"").append(sessionIndex).append("\">")
+            .append("<saml:AuthnContext><saml:AuthnContextClassRef>https://www.spid.gov.it/SpidL2</saml:AuthnContextClassRef></saml:AuthnContext>")
+            .append("</saml:AuthnStatement>");
+        xml.append("<saml:AttributeStatement xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">");
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            xml.append("<saml:Attribute Name=\"").append(attribute.getKey())
+                .append("\" NameFormat=\"").append(JBossSAMLURIConstants.ATTRIBUTE_FORMAT_BASIC.get()).append("\">")
+                .append("<saml:AttributeValue xsi:type=\"xs:string\">").append(pad(attribute.getValue()))
+                .append("</saml:AttributeValue></saml:Attribute>");
+        }
+        xml.append("</saml:AttributeStatement>");
+        xml.append("</saml:Assertion></samlp:Response>");
+        return xml.toString();
+    }
+
+    private String pad(String value) {
+        if (value.length() >= attributeValueSize) return value;
+
+        StringBuilder padded = new StringBuilder(attributeValueSize).append(value);
+        while (padded.length() < attributeValueSize) {
+            padded.append('x');
+        }
+        return padded.toString();
+    }
+
+    /**
+     * Signs the element as SAML requires: enveloped, exclusive canonicalization, with the
+     * signature right after the {@code Issuer}.
+     */
+    private void sign(Element element) throws Exception {
+        element.setIdAttribute("ID", true);
+
+        XMLSignatureFactory signatureFactory = XMLSignatureFactory.getInstance("DOM");
+        Reference reference = signatureFactory.newReference("#" + element.getAttribute("ID"),
+            signatureFactory.newDigestMethod(DigestMethod.SHA256, null),
+            Arrays.asList(signatureFactory.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null),
+                signatureFactory.newTransform(CanonicalizationMethod.EXCLUSIVE, (TransformParameterSpec) null)),
+            null, null);
+        SignedInfo signedInfo = signatureFactory.newSignedInfo(
+            signatureFactory.newCanonicalizationMethod(CanonicalizationMethod.EXCLUSIVE, (C14NMethodParameterSpec) null),
+            signatureFactory.newSignatureMethod(RSA_SHA256, null),
+            Collections.singletonList(reference));
+
+        KeyInfoFactory keyInfoFactory = signatureFactory.getKeyInfoFactory();
+        KeyInfo keyInfo = keyInfoFactory.newKeyInfo(Collections.singletonList(keyInfoFactory.newX509Data(certificates)));
+
+        Node issuer = DocumentUtil.getChildElement(element, new QName(JBossSAMLURIConstants.ASSERTION_NSURI.get(), "Issuer"));
+        DOMSignContext signContext = new DOMSignContext(signingKeys.getPrivate(), element, issuer.getNextSibling());
+        signContext.setDefaultNamespacePrefix("ds");
+        signatureFactory.newXMLSignature(signedInfo, keyInfo).sign(signContext);
+    }
+}
@@ -0,0 +1,396 @@
+package org.keycloak.broker.spid.tests.support;
+
+import org.keycloak.broker.provider.IdentityProvider;
+import org.keycloak.broker.provider.IdentityProviderMapper;
+import org.keycloak.broker.spid.SpidIdentityProvider;
+import org.keycloak.broker.spid.SpidIdentityProviderFactory;
+import org.keycloak.broker.spid.SpidSAMLEndpoint;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.common.util.CertificateUtils;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyStatus;
+import org.keycloak.crypto.KeyType;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.KeyManager;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakUriInfo;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.provider.Provider;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.urls.HostnameProvider;
+import org.keycloak.urls.UrlType;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Lightweight stand-ins for the Keycloak server objects used by the SPID provider, for tests and
+ * benchmarks that run outside of the server.
+ *
+ * Stand-ins are dynamic proxies: methods with an answer return it, fluent methods return the proxy
+ * and all other methods return {@code null}, {@code false}, zero or an empty stream.
+ */
+public final class SpidStubs {
+
+    public static final String REALM_ID = "spid-realm";
+    public static final String BASE_URI = "https://sp.example.org/auth/";
+
+    private SpidStubs() {
+    }
+
+    public static <T> T proxy(Class<T> type, Map<String, Function<Object[], Object>> answers) {
+        Object proxy = Proxy.newProxyInstance(SpidStubs.class.getClassLoader(), new Class<?>[] { type },
+            (self, method, args) -> {
+                Function<Object[], Object> answer = answers.get(method.getName());
+                if (answer != null) return answer.apply(args == null ? new Object[0] : args);
+
+                Class<?> returnType = method.getReturnType();
+                if (method.getDeclaringClass() == Object.class) {
+                    switch (method.getName()) {
+                        case "equals": return self == args[0];
+                        case "hashCode": return System.identityHashCode(self);
+                        default: return type.getSimpleName() + " stand-in";
+                    }
+                }
+                // Generic getters such as getAttribute(String, Class) return Object once erased
+                if (returnType != Object.class && returnType.isInstance(self)) return self;
+                if (returnType == boolean.class) return false;
+                if (returnType == int.class) return 0;
+                if (returnType == long.class) return 0L;
+                if (Stream.class.isAssignableFrom(returnType)) return Stream.empty();
+                return null;
+            });
+        return type.cast(proxy);
+    }
+
+    public static <T> T proxy(Class<T> type) {
+        return proxy(type, Collections.emptyMap());
+    }
+
+    public static KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            return generator.generateKeyPair();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static X509Certificate generateCertificate(KeyPair keyPair) {
+        try {
+            return CertificateUtils.generateV1SelfSignedCertificate(keyPair, "spid-stub");
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static KeyManager keyManager(KeyPair keyPair, X509Certificate certificate) {
+        return keyManager(keyPair, certificate, Collections.emptyList());
+    }
+
+    /**
+     * Keys whose active RSA key is the given one, followed by the other given keys.
+     */
+    public static KeyManager keyManager(KeyPair keyPair, X509Certificate certificate, List<KeyWrapper> otherKeys) {
+        KeyManager.ActiveRsaKey activeKey = new KeyManager.ActiveRsaKey("spid-stub-kid",
+            keyPair.getPrivate(), keyPair.getPublic(), certificate);
+        List<KeyWrapper> keys = new ArrayList<>();
+        keys.add(rsaKey("spid-stub-kid", keyPair, certificate, KeyStatus.ACTIVE));
+        keys.addAll(otherKeys);
+
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getActiveRsaKey", args -> activeKey);
+        answers.put("getKeysStream", args -> keys.stream());
+        return proxy(KeyManager.class, answers);
+    }
+
+    public static KeyWrapper rsaKey(String kid, KeyPair keyPair, X509Certificate certificate, KeyStatus status) {
+        KeyWrapper key = new KeyWrapper();
+        key.setProviderId("spid-stub");
+        key.setProviderPriority(100);
+        key.setKid(kid);
+        key.setAlgorithm(Algorithm.RS256);
+        key.setType(KeyType.RSA);
+        key.setUse(KeyUse.SIG);
+        key.setStatus(status);
+        key.setPublicKey(keyPair.getPublic());
+        key.setPrivateKey(keyPair.getPrivate());
+        key.setCertificate(certificate);
+        return key;
+    }
+
+    public static RealmModel realm() {
+        return realm(Collections.emptyList(), Collections.emptyList());
+    }
+
+    /**
+     * A realm with the given identity providers and identity provider mappers.
+     */
+    public static RealmModel realm(List<IdentityProviderModel> identityProviders, List<IdentityProviderMapperModel> mappers) {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getId", args -> REALM_ID);
+        answers.put("getName", args -> REALM_ID);
+        answers.put("isEnabled", args -> true);
+        answers.put("getAccessCodeLifespan", args -> 60);
+        answers.put("getAccessCodeLifespanLogin", args -> 1800);
+        answers.put("getIdentityProvidersStream", args -> identityProviders.stream());
+        answers.put("getIdentityProviderMappersByAliasStream", args ->
+            mappers.stream().filter(mapper -> mapper.getIdentityProviderAlias().equals(args[0])));
+        return proxy(RealmModel.class, answers);
+    }
+
+    /**
+     * A session whose factory knows the SPID provider factory, and nothing else.
+     */
+    public static KeycloakSession session(KeyManager keys) {
+        return session(keys, realm(), Collections.emptyList());
+    }
+
+    /**
+     * A session on the given realm, whose factory knows the SPID provider factory and the given
+     * identity provider mapper factories.
+     */
+    public static KeycloakSession session(KeyManager keys, RealmModel realm, List<IdentityProviderMapper> mapperFactories) {
+        UriInfo request = uriInfo();
+        return session(keys, realm, mapperFactories, () -> request);
+    }
+
+    /**
+     * A session as above, serving the request currently returned by {@code request} and returning
+     * the given providers by type, besides the login forms and the hostname providers.
+     */
+    public static KeycloakSession session(KeyManager keys, RealmModel realm, List<IdentityProviderMapper> mapperFactories,
+                                          Supplier<UriInfo> request, Provider... providers) {
+        SpidIdentityProviderFactory spidFactory = new SpidIdentityProviderFactory();
+        Map<String, Function<Object[], Object>> factoryAnswers = new HashMap<>();
+        factoryAnswers.put("getProviderFactory", args -> {
+            if (args.length != 2) return null;
+            if (args[0] == IdentityProvider.class && SpidIdentityProviderFactory.PROVIDER_ID.equals(args[1])) return spidFactory;
+            if (args[0] == IdentityProviderMapper.class) {
+                return mapperFactories.stream().filter(mapper -> mapper.getId().equals(args[1])).findFirst().orElse(null);
+            }
+            return null;
+        });
+        KeycloakSessionFactory sessionFactory = proxy(KeycloakSessionFactory.class, factoryAnswers);
+
+        // The POST binding renders its form through the login forms provider, error pages answer
+        // with their message as entity
+        LoginFormsProvider[] forms = new LoginFormsProvider[1];
+        String[] error = new String[1];
+        Map<String, Function<Object[], Object>> formAnswers = new HashMap<>();
+        formAnswers.put("createSamlPostForm", args -> Response.ok().build());
+        formAnswers.put("setError", args -> {
+            error[0] = (String) args[0];
+            return forms[0];
+        });
+        formAnswers.put("createErrorPage", args -> Response.status((Response.Status) args[0]).entity(error[0]).build());
+        forms[0] = proxy(LoginFormsProvider.class, formAnswers);
+
+        // Request URIs are resolved by the hostname provider, as configured by default
+        Map<String, Function<Object[], Object>> hostnameAnswers = new HashMap<>();
+        hostnameAnswers.put("getScheme", args -> "https");
+        hostnameAnswers.put("getHostname", args -> URI.create(BASE_URI).getHost());
+        hostnameAnswers.put("getPort", args -> -1);
+        hostnameAnswers.put("getContextPath", args -> URI.create(BASE_URI).getPath());
+        HostnameProvider hostname = proxy(HostnameProvider.class, hostnameAnswers);
+
+        KeycloakSession[] self = new KeycloakSession[1];
+        UriInfo[] delegate = new UriInfo[1];
+        KeycloakUriInfo[] uri = new KeycloakUriInfo[1];
+        Map<String, Function<Object[], Object>> contextAnswers = new HashMap<>();
+        contextAnswers.put("getRealm", args -> realm);
+        contextAnswers.put("getUri", args -> {
+            UriInfo current = request.get();
+            if (uri[0] == null || delegate[0] != current) {
+                delegate[0] = current;
+                uri[0] = new KeycloakUriInfo(self[0], UrlType.FRONTEND, current);
+            }
+            return uri[0];
+        });
+        KeycloakContext context = proxy(KeycloakContext.class, contextAnswers);
+
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getKeycloakSessionFactory", args -> sessionFactory);
+        answers.put("keys", args -> keys);
+        answers.put("getContext", args -> context);
+        answers.put("getProvider", args -> {
+            if (args[0] == LoginFormsProvider.class) return forms[0];
+            if (args[0] == HostnameProvider.class) return hostname;
+            return Stream.of(providers).filter(((Class<?>) args[0])::isInstance).findFirst().orElse(null);
+        });
+        self[0] = proxy(KeycloakSession.class, answers);
+        return self[0];
+    }
+
+    /**
+     * A session on the given user provider, and nothing else.
+     */
+    public static KeycloakSession session(UserProvider users) {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("users", args -> users);
+        return proxy(KeycloakSession.class, answers);
+    }
+
+    /**
+     * A user provider keeping the federated identities of the given users, by user ID, in memory.
+     * Added users are put in the given map, with their username as ID.
+     */
+    public static UserProvider users(Map<String, UserModel> users) {
+        Map<String, Map<String, FederatedIdentityModel>> links = new ConcurrentHashMap<>();
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getUserById", args -> users.get(arg(args, String.class)));
+        answers.put("addUser", args -> {
+            String username = arg(args, String.class);
+            Map<String, Function<Object[], Object>> userAnswers = new HashMap<>();
+            userAnswers.put("getId", userArgs -> username);
+            userAnswers.put("getUsername", userArgs -> username);
+            UserModel user = proxy(UserModel.class, userAnswers);
+            users.put(username, user);
+            return user;
+        });
+        answers.put("addFederatedIdentity", args -> {
+            FederatedIdentityModel link = arg(args, FederatedIdentityModel.class);
+            return links.computeIfAbsent(arg(args, UserModel.class).getId(), id -> new ConcurrentHashMap<>())
+                .put(link.getIdentityProvider(), link);
+        });
+        answers.put("removeFederatedIdentity", args ->
+            links.getOrDefault(arg(args, UserModel.class).getId(), Collections.emptyMap()).remove(arg(args, String.class)) != null);
+        answers.put("getFederatedIdentity", args ->
+            links.getOrDefault(arg(args, UserModel.class).getId(), Collections.emptyMap()).get(arg(args, String.class)));
+        answers.put("getUserByFederatedIdentity", args -> {
+            FederatedIdentityModel wanted = arg(args, FederatedIdentityModel.class);
+            return links.entrySet().stream()
+                .filter(entry -> {
+                    FederatedIdentityModel link = entry.getValue().get(wanted.getIdentityProvider());
+                    return link != null && link.getUserId().equals(wanted.getUserId());
+                })
+                .map(entry -> users.get(entry.getKey()))
+                .findFirst().orElse(null);
+        });
+        return proxy(UserProvider.class, answers);
+    }
+
+    private static <T> T arg(Object[] args, Class<T> type) {
+        return Stream.of(args).filter(type::isInstance).map(type::cast).findFirst().orElse(null);
+    }
+
+    /**
+     * An authentication session keeping its notes in memory.
+     */
+    public static AuthenticationSessionModel authenticationSession() {
+        Map<String, String> clientNotes = new HashMap<>();
+        Map<String, String> authNotes = new HashMap<>();
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("setClientNote", args -> clientNotes.put((String) args[0], (String) args[1]));
+        answers.put("getClientNote", args -> clientNotes.get((String) args[0]));
+        answers.put("getClientNotes", args -> clientNotes);
+        answers.put("setAuthNote", args -> authNotes.put((String) args[0], (String) args[1]));
+        answers.put("getAuthNote", args -> authNotes.get((String) args[0]));
+        answers.put("getTabId", args -> "spid-tab");
+        return proxy(AuthenticationSessionModel.class, answers);
+    }
+
+    public static UriInfo uriInfo() {
+        return uriInfo(URI.create(BASE_URI));
+    }
+
+    /**
+     * A request to the given URI, whose query parameters are parsed as JAX-RS does.
+     */
+    public static UriInfo uriInfo(URI requestUri) {
+        URI baseUri = URI.create(BASE_URI);
+        URI absolutePath = UriBuilder.fromUri(requestUri).replaceQuery(null).build();
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getBaseUri", args -> baseUri);
+        answers.put("getBaseUriBuilder", args -> UriBuilder.fromUri(baseUri));
+        answers.put("getRequestUri", args -> requestUri);
+        answers.put("getRequestUriBuilder", args -> UriBuilder.fromUri(requestUri));
+        answers.put("getAbsolutePath", args -> absolutePath);
+        answers.put("getAbsolutePathBuilder", args -> UriBuilder.fromUri(absolutePath));
+        answers.put("getQueryParameters", args -> queryParameters(requestUri.getRawQuery(), args.length == 0 || (Boolean) args[0]));
+        return proxy(UriInfo.class, answers);
+    }
+
+    private static MultivaluedMap<String, String> queryParameters(String rawQuery, boolean decode) {
+        MultivaluedMap<String, String> parameters = new MultivaluedHashMap<>();
+        if (rawQuery == null) return parameters;
+
+        for (String parameter : rawQuery.split("&")) {
+            int separator = parameter.indexOf('=');
+            String name = separator < 0 ? parameter : parameter.substring(0, separator);
+            String value = separator < 0 ? "" : parameter.substring(separator + 1);
+            try {
+                parameters.add(decode ? URLDecoder.decode(name, "UTF-8") : name, decode ? URLDecoder.decode(value, "UTF-8") : value);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * The broker endpoint of the given provider, with its JAX-RS context injected as the server
+     * would. The callback resumes the given authentication session and answers 200 once the user is
+     * authenticated, or 400 with the message as entity on errors.
+     */
+    public static SpidSAMLEndpoint endpoint(KeycloakSession session, SpidIdentityProvider provider, AuthenticationSessionModel authSession) {
+        Map<String, Function<Object[], Object>> callbackAnswers = new HashMap<>();
+        callbackAnswers.put("getAndVerifyAuthenticationSession", args -> authSession);
+        callbackAnswers.put("authenticated", args -> Response.ok().build());
+        callbackAnswers.put("cancelled", args -> Response.status(Response.Status.BAD_REQUEST).build());
+        callbackAnswers.put("error", args -> Response.status(Response.Status.BAD_REQUEST).entity(args[0]).build());
+        IdentityProvider.AuthenticationCallback callback = proxy(IdentityProvider.AuthenticationCallback.class, callbackAnswers);
+
+        Map<String, Function<Object[], Object>> connectionAnswers = new HashMap<>();
+        connectionAnswers.put("getRemoteAddr", args -> "127.0.0.1");
+        connectionAnswers.put("getRemoteHost", args -> "localhost");
+
+        SpidSAMLEndpoint endpoint = (SpidSAMLEndpoint) provider.callback(session.getContext().getRealm(), callback, null);
+        inject(endpoint, "session", session);
+        inject(endpoint, "clientConnection", proxy(ClientConnection.class, connectionAnswers));
+        inject(endpoint, "headers", proxy(HttpHeaders.class));
+        return endpoint;
+    }
+
+    private static void inject(Object target, String name, Object value) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}